@@ -28,11 +28,14 @@ import org.sakaiproject.entitybroker.entityprovider.EntityProviderManager;
 import org.sakaiproject.entitybroker.entityprovider.EntityProviderMethodStore;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.BrowseSearchable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.CollectionResolvable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.CursorPageable;
 import org.sakaiproject.entitybroker.entityprovider.extension.BrowseEntity;
+import org.sakaiproject.entitybroker.entityprovider.extension.CursorPage;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetterWrite;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorageWrite;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
+import org.sakaiproject.entitybroker.event.EntityChangeListener;
 import org.sakaiproject.entitybroker.providers.EntityPropertiesService;
 import org.sakaiproject.entitybroker.providers.EntityRESTProvider;
 import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
@@ -152,6 +155,20 @@ public interface EntityBrokerManager {
     public List<EntityData> getEntitiesData(EntityReference ref, Search search,
             Map<String, Object> params);
 
+    /**
+     * Get a single page of entities from a {@link CursorPageable} provider,
+     * returns the entities wrapped in {@link EntityData},
+     * the search limit is set to the default page size if none was requested (and is limited to the max page size)
+     * 
+     * @param ref the reference to a collection (the id is ignored)
+     * @param search a search (should not be null), the cursor in the search marks the start of the page
+     * @param params
+     * @return the page of entities and the cursor for the next page 
+     * OR null if the provider for this prefix does not implement {@link CursorPageable}
+     */
+    public CursorPage<EntityData> getEntitiesDataPage(EntityReference ref, Search search,
+            Map<String, Object> params);
+
     /**
      * Fetches the browseable entities
      * @param prefix
@@ -297,4 +314,37 @@ public interface EntityBrokerManager {
 	 */
 	public int getMaxJSONLevel();
 
+    /**
+     * Notifies the entity broker that an entity (or all entities for a prefix) have changed,
+     * this removes any cached data related to this reference,
+     * this is called automatically for entity events and for changes made via the REST interface
+     * @param reference a globally unique reference to an entity (e.g. /prefix/id) OR to a prefix (e.g. /prefix)
+     * which indicates that all entities for the prefix changed, invalid references are ignored
+     */
+    public void entityChanged(String reference);
+
+    /**
+     * Register a listener which will be notified whenever {@link #entityChanged(String)} is called,
+     * registering the same listener more than once has no effect
+     * @param listener the listener
+     */
+    public void registerEntityChangeListener(EntityChangeListener listener);
+
+    /**
+     * Remove a listener registered with {@link #registerEntityChangeListener(EntityChangeListener)}
+     * @param listener the listener
+     */
+    public void unregisterEntityChangeListener(EntityChangeListener listener);
+
+    /**
+     * @return the entity cache statistics (size, hits, misses, evictions, invalidations) for all prefixes
+     */
+    public Map<String, Long> getEntityCacheStatistics();
+
+    /**
+     * @return the statistics (size, hits, misses, evictions, invalidations) for the cache of
+     * references to entities which were recently found to not exist
+     */
+    public Map<String, Long> getMissingCacheStatistics();
+
 }
@@ -25,6 +25,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.sakaiproject.entitybroker.entityprovider.capabilities.AutoRegisterEntityProvider;
+import org.sakaiproject.entitybroker.entityprovider.extension.DispatchPlan;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityProviderListener;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetterWrite;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorageWrite;
@@ -89,6 +90,26 @@ public interface EntityProviderManager {
      */
     public <T extends EntityProvider> T getProviderByPrefixAndCapability(String prefix, Class<T> capability);
 
+    /**
+     * Get the dispatch plan for a prefix which holds all the capabilities registered for it,
+     * this is rebuilt whenever providers for the prefix are registered or unregistered and
+     * should be used instead of repeated calls to {@link #getProviderByPrefixAndCapability(String, Class)}
+     * when many capabilities for the same prefix are needed (e.g. when handling a request)
+     * 
+     * @param prefix the string which represents a type of entity handled by an entity provider
+     * @return the {@link DispatchPlan} for this prefix or null if the prefix is not registered
+     */
+    public DispatchPlan getDispatchPlan(String prefix);
+
+    /**
+     * Get the current registration generation, this changes every time any provider or capability
+     * is registered or unregistered and can be used to tell when anything cached from the
+     * registered providers (e.g. generated documentation) is no longer valid
+     * 
+     * @return the current registration generation number
+     */
+    public long getRegistrationGeneration();
+
     /**
      * Get all the entity providers which support a specific capability,
      * this useful if you need to get the providers and call the capability methods on them directly
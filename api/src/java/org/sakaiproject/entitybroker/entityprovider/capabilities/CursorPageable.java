@@ -0,0 +1,60 @@
+/**
+ * $Id$
+ * $URL$
+ * CursorPageable.java - entity-broker - Oct 18, 2026 4:12:40 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.entityprovider.capabilities;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
+import org.sakaiproject.entitybroker.entityprovider.extension.CursorPage;
+import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
+import org.sakaiproject.entitybroker.entityprovider.search.Search;
+
+/**
+ * Allows a collection of entities to be walked one page at a time using an opaque cursor
+ * (keyset pagination) instead of a start offset, this is much cheaper for large collections since
+ * the provider can start each page where the last one ended instead of skipping over all the earlier items<br/>
+ * Collection requests which do not use an offset (_start/_page) will be sent here instead of to
+ * {@link CollectionResolvable#getEntities(EntityReference, Search)}, the client passes the cursor
+ * back using the _cursor param and the next page is advertised using a Link header (rel="next")<br/>
+ * This is one of the capability extensions for the {@link EntityProvider} interface<br/>
+ * This extends {@link CollectionResolvable}
+ * 
+ * @author Sakai Software Development Team
+ */
+public interface CursorPageable extends EntityProvider, CollectionResolvable {
+
+    /**
+     * Get one page of the entities in a collection,
+     * this should never return null and if there are no entities then the page should be empty
+     * 
+     * @param ref the parsed reference object which uniquely represents this entity,
+     * only the prefix will be used from this reference (since that identifies the space and collection)
+     * @param search a search object which can define the order and filters for the entities,
+     * {@link Search#getCursor()} is the cursor returned with the previous page (null for the first page)
+     * and {@link Search#getLimit()} is the maximum number of entities to return in this page (always greater than 0)
+     * @return the page of entity objects (POJOs, Map, etc. or {@link EntityData}) and the cursor for the next page 
+     * (null if this is the last page)
+     * @throws SecurityException if the data cannot be accessed by the current user or is not publicly accessible
+     * @throws IllegalArgumentException if the reference, search or cursor is invalid
+     * @throws IllegalStateException if any other error occurs
+     */
+    public CursorPage<?> getEntitiesPage(EntityReference ref, Search search);
+
+}
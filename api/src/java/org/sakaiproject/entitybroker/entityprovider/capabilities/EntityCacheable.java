@@ -0,0 +1,52 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityCacheable.java - entity-broker - Oct 18, 2026 5:14:32 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.entityprovider.capabilities;
+
+import org.sakaiproject.entitybroker.EntityBrokerManager;
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
+
+/**
+ * Allows the entity broker to cache the entities returned by {@link Resolvable#getEntity(EntityReference)}
+ * so that entities which are read often but rarely change (e.g. sites, users) do not have to be
+ * retrieved from the provider for every request<br/>
+ * Only the entities which this provider marks as user independent will be cached, entities which
+ * are different depending on the current user must never be marked as user independent<br/>
+ * Cached entities are removed when an entity event is received for their reference (e.g. /prefix/id)
+ * and after a configurable time to live, the cache size and ttl can be set with the config settings:
+ * entitybroker.cache.entity.&lt;prefix&gt;.size and entitybroker.cache.entity.&lt;prefix&gt;.ttl (in ms)<br/>
+ * <b>NOTE:</b> cached entity objects are shared between requests and must not be modified,
+ * providers which change entities without firing events should call {@link EntityBrokerManager#entityChanged(String)}
+ *
+ * @author Sakai Software Development Team
+ */
+public interface EntityCacheable extends EntityProvider, Resolvable {
+
+    /**
+     * Indicates whether a retrieved entity can be cached and shared with all users
+     *
+     * @param ref the parsed reference object which uniquely represents this entity
+     * @param entity the entity object which was returned by {@link Resolvable#getEntity(EntityReference)}
+     * @return true if this entity is the same for every user and can be cached, false otherwise
+     */
+    public boolean isUserIndependent(EntityReference ref, Object entity);
+
+}
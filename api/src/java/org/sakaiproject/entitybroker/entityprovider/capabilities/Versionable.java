@@ -0,0 +1,66 @@
+/**
+ * $Id$
+ * $URL$
+ * Versionable.java - entity-broker - Oct 18, 2026 2:05:11 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.entityprovider.capabilities;
+
+import java.util.Map;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.CoreEntityProvider;
+import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityLastModified;
+
+/**
+ * Allows an entity provider to cheaply state the current version of an entity or a collection of entities
+ * without fetching them, this is used to answer conditional GET requests (If-None-Match / If-Modified-Since)
+ * with a 304 Not Modified without retrieving or encoding any data<br/>
+ * Providers which do not implement this will still get conditional GET handling but the entities
+ * will be retrieved and encoded in order to work out if they have changed<br/>
+ * This is also used to set the Last-Modified and ETag headers for HEAD requests, which never fetch the entities
+ * (existence of a single entity is checked with {@link CoreEntityProvider#entityExists(String)})<br/>
+ * <b>NOTE:</b> the version must change whenever the data returned for this reference changes
+ * for the current user, if that cannot be determined cheaply then return null
+ *
+ * @author Sakai Software Development Team
+ */
+public interface Versionable extends EntityProvider {
+
+    /**
+     * Get the current version of the data for an entity or entity collection
+     *
+     * @param ref the parsed reference object which uniquely represents this entity (or collection if there is no id)
+     * @param params (optional) incoming set of parameters which may be used to limit the data requested, may be empty or null
+     * @return an opaque version string (e.g. a revision number or a hash of the last modified dates) OR
+     * null if the version cannot be determined cheaply (normal processing will then continue)
+     */
+    public String getEntityVersion(EntityReference ref, Map<String, Object> params);
+
+    /**
+     * Get the last modified time for an entity or entity collection,
+     * this is used to answer If-Modified-Since requests
+     * and should be the same value as would be found in the {@link EntityLastModified} field
+     *
+     * @param ref the parsed reference object which uniquely represents this entity (or collection if there is no id)
+     * @param params (optional) incoming set of parameters which may be used to limit the data requested, may be empty or null
+     * @return the last modified time (unix time code) OR null if this is not known
+     */
+    public Long getEntityLastModified(EntityReference ref, Map<String, Object> params);
+
+}
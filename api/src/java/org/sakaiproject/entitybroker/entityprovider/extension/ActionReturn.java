@@ -40,7 +40,9 @@ public class ActionReturn {
         DATE ("Date"),
         ETAG ("ETag"),
         LAST_MODIFIED ("Last-Modified"),
-        CACHE_CONTROL ("Cache-Control");
+        CACHE_CONTROL ("Cache-Control"),
+        IF_NONE_MATCH ("If-None-Match"),
+        IF_MODIFIED_SINCE ("If-Modified-Since");
 
         private String value;
         Header(String value) { this.value = value; }
@@ -0,0 +1,75 @@
+/**
+ * $Id$
+ * $URL$
+ * CursorPage.java - entity-broker - Oct 18, 2026 4:12:40 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.entityprovider.extension;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sakaiproject.entitybroker.entityprovider.capabilities.CursorPageable;
+
+/**
+ * A single page of entities from a {@link CursorPageable} provider and the cursor
+ * which will fetch the page after it
+ * 
+ * @param <T> the type of the entities in the page
+ * @author Sakai Software Development Team
+ */
+public class CursorPage<T> {
+
+    private List<T> entities;
+    private String nextCursor;
+
+    /**
+     * @param entities the entities in this page (null is treated as empty)
+     * @param nextCursor the opaque cursor to get the next page OR null if this is the last page
+     */
+    public CursorPage(List<T> entities, String nextCursor) {
+        this.entities = entities == null ? new ArrayList<T>(0) : entities;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return the entities in this page, never null
+     */
+    public List<T> getEntities() {
+        return entities;
+    }
+
+    /**
+     * @return the opaque cursor to get the next page OR null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return true if there is another page after this one
+     */
+    public boolean hasNext() {
+        return nextCursor != null && nextCursor.length() > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "page::entities:" + entities.size() + ",next:" + nextCursor;
+    }
+
+}
@@ -0,0 +1,229 @@
+/**
+ * $Id$
+ * $URL$
+ * DispatchPlan.java - entity-broker - Oct 18, 2026 10:12:31 AM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.entityprovider.extension;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sakaiproject.entitybroker.entityprovider.CoreEntityProvider;
+import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
+import org.sakaiproject.entitybroker.entityprovider.EntityProviderManager;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.ActionsExecutable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Createable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.CursorPageable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Deleteable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.InputTranslatable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Inputable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.OutputFormattable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Redirectable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestHandler;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestInterceptor;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Resolvable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Updateable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Versionable;
+
+
+/**
+ * An immutable snapshot of all the capabilities registered for a single entity prefix,
+ * this is built by the {@link EntityProviderManager} whenever providers for the prefix are
+ * registered or unregistered so that request handling can resolve every capability
+ * with a single lookup instead of one lookup per capability<br/>
+ * <b>NOTE:</b> do not hold onto a plan beyond a single request, get a fresh one from
+ * {@link EntityProviderManager#getDispatchPlan(String)} each time
+ *
+ * @author Sakai Software Development Team
+ */
+public final class DispatchPlan {
+
+    private final String prefix;
+    private final Map<Class<? extends EntityProvider>, EntityProvider> capabilities;
+
+    private final EntityProvider provider;
+    private final CoreEntityProvider coreProvider;
+    private final Redirectable redirectable;
+    private final RequestInterceptor requestInterceptor;
+    private final RequestHandler requestHandler;
+    private final ActionsExecutable actionsExecutable;
+    private final Resolvable resolvable;
+    private final Outputable outputable;
+    private final OutputFormattable outputFormattable;
+    private final Inputable inputable;
+    private final InputTranslatable inputTranslatable;
+    private final Createable createable;
+    private final Updateable updateable;
+    private final Deleteable deleteable;
+    private final Versionable versionable;
+    private final CursorPageable cursorPageable;
+
+    private final boolean customActions;
+
+    /**
+     * @param prefix the entity prefix this plan handles
+     * @param capabilities map of capability class -> provider which implements it for this prefix
+     * @param customActions true if there are custom actions registered for this prefix
+     */
+    public DispatchPlan(String prefix, Map<Class<? extends EntityProvider>, EntityProvider> capabilities, boolean customActions) {
+        if (prefix == null || capabilities == null) {
+            throw new IllegalArgumentException("prefix and capabilities must not be null");
+        }
+        this.prefix = prefix;
+        this.capabilities = Collections.unmodifiableMap( new HashMap<Class<? extends EntityProvider>, EntityProvider>(capabilities) );
+        this.coreProvider = getCapability(CoreEntityProvider.class);
+        this.provider = this.coreProvider != null ? this.coreProvider : getCapability(EntityProvider.class);
+        this.redirectable = getCapability(Redirectable.class);
+        this.requestInterceptor = getCapability(RequestInterceptor.class);
+        this.requestHandler = getCapability(RequestHandler.class);
+        this.actionsExecutable = getCapability(ActionsExecutable.class);
+        this.resolvable = getCapability(Resolvable.class);
+        this.outputable = getCapability(Outputable.class);
+        this.outputFormattable = getCapability(OutputFormattable.class);
+        this.inputable = getCapability(Inputable.class);
+        this.inputTranslatable = getCapability(InputTranslatable.class);
+        this.createable = getCapability(Createable.class);
+        this.updateable = getCapability(Updateable.class);
+        this.deleteable = getCapability(Deleteable.class);
+        this.versionable = getCapability(Versionable.class);
+        this.cursorPageable = getCapability(CursorPageable.class);
+        this.customActions = customActions || this.actionsExecutable != null;
+    }
+
+    /**
+     * Get the provider for any capability registered for this prefix,
+     * this is the same as {@link EntityProviderManager#getProviderByPrefixAndCapability(String, Class)}
+     * but without the lookup cost
+     *
+     * @param <T> a class which extends {@link EntityProvider}
+     * @param capability any entity provider capability class
+     * @return the provider which handles this capability for this prefix or null if none
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends EntityProvider> T getCapability(Class<T> capability) {
+        return (T) capabilities.get(capability);
+    }
+
+    /**
+     * @return the read only map of all capabilities registered for this prefix
+     */
+    public Map<Class<? extends EntityProvider>, EntityProvider> getCapabilities() {
+        return capabilities;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the {@link CoreEntityProvider} for this prefix OR the basic {@link EntityProvider} if there is none,
+     * same as {@link EntityProviderManager#getProviderByPrefix(String)}
+     */
+    public EntityProvider getProvider() {
+        return provider;
+    }
+
+    public CoreEntityProvider getCoreProvider() {
+        return coreProvider;
+    }
+
+    public Redirectable getRedirectable() {
+        return redirectable;
+    }
+
+    public RequestInterceptor getRequestInterceptor() {
+        return requestInterceptor;
+    }
+
+    public RequestHandler getRequestHandler() {
+        return requestHandler;
+    }
+
+    public ActionsExecutable getActionsExecutable() {
+        return actionsExecutable;
+    }
+
+    public Resolvable getResolvable() {
+        return resolvable;
+    }
+
+    public Outputable getOutputable() {
+        return outputable;
+    }
+
+    public OutputFormattable getOutputFormattable() {
+        return outputFormattable;
+    }
+
+    public Inputable getInputable() {
+        return inputable;
+    }
+
+    public InputTranslatable getInputTranslatable() {
+        return inputTranslatable;
+    }
+
+    public Createable getCreateable() {
+        return createable;
+    }
+
+    public Updateable getUpdateable() {
+        return updateable;
+    }
+
+    public Deleteable getDeleteable() {
+        return deleteable;
+    }
+
+    public Versionable getVersionable() {
+        return versionable;
+    }
+
+    public CursorPageable getCursorPageable() {
+        return cursorPageable;
+    }
+
+    /**
+     * @return true if this prefix has a {@link RequestInterceptor}
+     */
+    public boolean hasInterceptor() {
+        return requestInterceptor != null;
+    }
+
+    /**
+     * @return true if this prefix is {@link Redirectable} and may have URL redirects
+     */
+    public boolean hasRedirects() {
+        return redirectable != null;
+    }
+
+    /**
+     * @return true if this prefix may have custom actions defined for it
+     */
+    public boolean hasCustomActions() {
+        return customActions;
+    }
+
+    @Override
+    public String toString() {
+        return "plan:" + prefix + ":" + capabilities.size() + " capabilities";
+    }
+
+}
@@ -80,6 +80,16 @@ public interface Formats {
     public static String JSONP_MIME_TYPE = "application/javascript";
     public static String[] JSONP_EXTENSIONS = new String[] {"jsonp","JSONP"};
 
+    /**
+     * CBOR binary data (application/cbor), same structure as the JSON data <br/>
+     * http://tools.ietf.org/html/rfc7049 <br/>
+     * INPUT: CBOR data <br/>
+     * OUTPUT: CBOR data <br/>
+     */
+    public static String CBOR = "cbor";
+    public static String CBOR_MIME_TYPE = "application/cbor";
+    public static String[] CBOR_EXTENSIONS = new String[] {"cbor","CBOR"};
+
     /**
      * Plain text (text/plain) <br/>
      * http://en.wikipedia.org/wiki/Plain_text <br/>
@@ -120,7 +130,7 @@ public interface Formats {
      * the array of all the known formats in this file
      */
     public static String[] ALL_KNOWN_FORMATS = new String[] {
-        HTML, XML, JSON, JSONP, TXT, RSS, ATOM
+        HTML, XML, JSON, JSONP, CBOR, TXT, RSS, ATOM
     };
 
 }
@@ -72,6 +72,28 @@ public interface RequestStorage {
      */
     public Map<String, Object> getStorageMapCopy(boolean includeInternal, boolean includeHeaders, boolean includeParams, boolean includeAttributes);
 
+    /**
+     * Get a read only view of the data as a map for easy access to the full set of keys/values,
+     * this is built at most once per request (until a value is stored) and shared so it
+     * is much cheaper than {@link #getStorageMapCopy()} when it is needed many times<br/>
+     * <b>NOTE:</b> do not hold onto this beyond the current request, 
+     * use {@link #getStorageMapCopy()} if a modifiable map is needed
+     * @return a read only map of the request keys and values, 
+     * may be empty but will not be null
+     * @throws UnsupportedOperationException if an attempt is made to change the map
+     */
+    public Map<String, Object> getStorageMapView();
+
+    /**
+     * Special version of {@link #getStorageMapView()} which allows getting only the parts that are desired
+     * @param includeInternal include the internal request values
+     * @param includeHeaders include the request headers
+     * @param includeParams include the request parameters
+     * @param includeAttributes include the request attributes
+     * @return the read only map with the requested values
+     */
+    public Map<String, Object> getStorageMapView(boolean includeInternal, boolean includeHeaders, boolean includeParams, boolean includeAttributes);
+
     /**
      * Get a value that is stored in the request for a specific key
      * @param key a key for a stored value
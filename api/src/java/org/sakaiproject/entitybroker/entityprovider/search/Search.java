@@ -74,6 +74,18 @@ public class Search {
       return limit;
    }
 
+   /**
+    * the opaque cursor which marks where the page of results should start (or null to start at the beginning),
+    * this is used instead of the start index by providers which support cursor paging
+    */
+   private String cursor = null;
+   public void setCursor(String cursor) {
+      this.cursor = cursor;
+   }
+   public String getCursor() {
+      return cursor;
+   }
+
    /**
     * if true then all restrictions are run using AND, if false then all restrictions are run using OR
     */
@@ -598,6 +610,7 @@ public class Search {
       orders = new Order[] {};
       conjunction = false;
       queryString = null;
+      cursor = null;
       start = 0;
       limit = 0;
    }
@@ -678,6 +691,7 @@ public class Search {
       }
       copy.setStart(original.getStart());
       copy.setLimit(original.getLimit());
+      copy.setCursor(original.getCursor());
       copy.setConjunction(original.isConjunction());
       copy.setQueryString(original.getQueryString());
       // TODO probably need to copy the arrays here
@@ -697,6 +711,7 @@ public class Search {
          boolean eq = this.start == castObj.start
                && this.limit == castObj.limit
                && this.conjunction == castObj.conjunction
+               && (this.cursor == null ? castObj.cursor == null : this.cursor.equals(castObj.cursor))
                && (this.queryString == null ? castObj.queryString == null : this.queryString.equals(castObj.queryString))
                && Arrays.deepEquals(this.restrictions, castObj.restrictions)
                && Arrays.deepEquals(this.orders, castObj.orders);
@@ -708,14 +723,14 @@ public class Search {
    public int hashCode() {
       if (this.isEmpty())
          return super.hashCode();
-      String hashStr = this.getClass().getName() + ":" + this.start + ":" + this.limit + ":" + this.conjunction + ":"
+      String hashStr = this.getClass().getName() + ":" + this.start + ":" + this.limit + ":" + this.cursor + ":" + this.conjunction + ":"
          + this.queryString + ":" + arrayToString(restrictions) + ":" + arrayToString(orders);
       return hashStr.hashCode();
    }
 
    @Override
    public String toString() {
-      return "search::start:" + start + ",limit:" + limit + ",conj:" + conjunction + ",query:" + queryString 
+      return "search::start:" + start + ",limit:" + limit + ",cursor:" + cursor + ",conj:" + conjunction + ",query:" + queryString 
          + ",restricts:" + arrayToString(restrictions) + ",orders:" + arrayToString(orders);
    }
 
@@ -0,0 +1,44 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityChangeListener.java - entity-broker - Oct 18, 2026 6:12:40 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.event;
+
+import org.sakaiproject.entitybroker.EntityBrokerManager;
+
+/**
+ * Allows internal parts of the entity broker system (e.g. caches) to be notified when an entity changes,
+ * register with {@link EntityBrokerManager#registerEntityChangeListener(EntityChangeListener)}<br/>
+ * This is called for all entity events and for changes made via the REST interface,
+ * see {@link EntityBrokerManager#entityChanged(String)}
+ * 
+ * @author Sakai Software Development Team
+ */
+public interface EntityChangeListener {
+
+    /**
+     * Called when an entity (or all entities for a prefix) may have changed,
+     * this must be fast and should not fail
+     * 
+     * @param prefix the entity prefix
+     * @param id the local id of the changed entity OR null if all entities for this prefix may have changed
+     */
+    public void entityChanged(String prefix, String id);
+
+}
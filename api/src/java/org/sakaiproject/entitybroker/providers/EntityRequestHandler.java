@@ -65,6 +65,11 @@ public interface EntityRequestHandler {
      * Example: /people/1?_method=PUT
      */
     public static String COMPENSATE_METHOD = "_method";
+    /**
+     * Request attribute which indicates that the output will be embedded into another response (e.g. batch),
+     * when this is set to true the XML declaration and DOCTYPE are not written into XML and FORM output
+     */
+    public static String EMBEDDED_OUTPUT = "_embeddedOutput";
 
     /**
      * Handles the servlet request response cycle for all direct servlet accesses,
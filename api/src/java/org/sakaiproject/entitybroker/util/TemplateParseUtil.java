@@ -169,6 +169,7 @@ public class TemplateParseUtil {
       Collections.addAll(commonExtensions, Formats.HTML_EXTENSIONS);
       Collections.addAll(commonExtensions, Formats.FORM_EXTENSIONS);
       Collections.addAll(commonExtensions, Formats.JSONP_EXTENSIONS);
+      Collections.addAll(commonExtensions, Formats.CBOR_EXTENSIONS);
       Collections.addAll(commonExtensions, Formats.ATOM_EXTENSIONS);
       Collections.addAll(commonExtensions, Formats.RSS_EXTENSIONS);
       // also image extensions and other common ones
@@ -27,10 +27,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.servlet.http.HttpServletResponse;
 
-import org.azeckoski.reflectutils.ConstructorUtils;
 import org.azeckoski.reflectutils.ReflectUtils;
 import org.azeckoski.reflectutils.exceptions.FieldnameNotFoundException;
 import org.sakaiproject.entitybroker.EntityBrokerManager;
@@ -49,21 +51,28 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.BrowseSearchabl
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Browseable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.BrowseableCollection;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.CollectionResolvable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.CursorPageable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Describeable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.EntityCacheable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.EntityViewUrlCustomizable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.ReferenceParseable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Resolvable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Sampleable;
 import org.sakaiproject.entitybroker.entityprovider.extension.BrowseEntity;
+import org.sakaiproject.entitybroker.entityprovider.extension.CursorPage;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetterWrite;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorageWrite;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
+import org.sakaiproject.entitybroker.event.EntityChangeListener;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.providers.EntityPropertiesService;
 import org.sakaiproject.entitybroker.providers.EntityRESTProvider;
 import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
 import org.sakaiproject.entitybroker.util.EntityDataUtils;
+import org.sakaiproject.entitybroker.util.cache.BoundedCache;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.PropertyAccessor;
 import org.sakaiproject.entitybroker.util.request.RequestUtils;
 
 
@@ -85,6 +94,20 @@ public class EntityBrokerManagerImpl implements EntityBrokerManager {
         return "MANAGER:: SVN: " + SVN_REVISION + " : " + SVN_LAST_UPDATE;
     }
 
+    public static final String CONFIG_CURSOR_LIMIT_DEFAULT = "entitybroker.cursor.limit.default";
+    public static final int CURSOR_LIMIT_DEFAULT = 100;
+    public static final String CONFIG_CURSOR_LIMIT_MAX = "entitybroker.cursor.limit.max";
+    public static final int CURSOR_LIMIT_MAX = 1000;
+    public static final String CONFIG_ENTITY_CACHE_ENABLE = "entitybroker.cache.entity.enable";
+    public static final String CONFIG_ENTITY_CACHE_PREFIX = "entitybroker.cache.entity.";
+    public static final int ENTITY_CACHE_SIZE = 1000;
+    public static final long ENTITY_CACHE_TTL = 300000l; // 5 mins
+    public static final String CONFIG_MISSING_CACHE_ENABLE = "entitybroker.cache.missing.enable";
+    public static final String CONFIG_MISSING_CACHE_SIZE = "entitybroker.cache.missing.size";
+    public static final int MISSING_CACHE_SIZE = 5000;
+    public static final String CONFIG_MISSING_CACHE_TTL = "entitybroker.cache.missing.ttl";
+    public static final long MISSING_CACHE_TTL = 30000l; // 30 secs
+
     public EntityBrokerManagerImpl() { }
 
     /**
@@ -198,7 +221,18 @@ public class EntityBrokerManagerImpl implements EntityBrokerManager {
                     // currently we assume exists if it is only a prefix
                     exists = true;
                 } else {
-                    exists = ((CoreEntityProvider) provider).entityExists( ref.getId() );
+                    BoundedCache<String, Boolean> missing = getMissingCache();
+                    if (missing != null 
+                            && missing.get(ref.toString()) != null) {
+                        // recently found to not exist
+                        exists = false;
+                    } else {
+                        long generation = missing == null ? 0 : missing.getGeneration();
+                        exists = ((CoreEntityProvider) provider).entityExists( ref.getId() );
+                        if (! exists && missing != null) {
+                            missing.put(ref.toString(), Boolean.TRUE, generation);
+                        }
+                    }
                 }
             }
         }
@@ -401,17 +435,231 @@ public class EntityBrokerManagerImpl implements EntityBrokerManager {
     }
 
     /**
-     * Get the entity without a change (may be EntityData or just an object)
+     * Get the entity without a change (may be EntityData or just an object),
+     * uses the entity cache if the provider is {@link EntityCacheable}
      */
     protected Object fetchEntityObject(EntityReference ref) {
         Object entity = null;
         Resolvable provider = entityProviderManager.getProviderByPrefixAndCapability(ref.getPrefix(), Resolvable.class);
         if (provider != null) {
+            BoundedCache<String, Object> cache = null;
+            BoundedCache<String, Boolean> missing = null;
+            long generation = 0;
+            if (ref.getId() != null) {
+                if (provider instanceof EntityCacheable) {
+                    cache = getEntityCache(ref.getPrefix());
+                }
+                missing = getMissingCache();
+            }
+            if (missing != null
+                    && missing.get(ref.toString()) != null) {
+                // recently found to not exist by the provider
+                return null;
+            }
+            if (cache != null) {
+                entity = cache.get(ref.getId());
+                if (entity != null) {
+                    return entity;
+                }
+                generation = cache.getGeneration();
+            }
+            // a null entity is not cached as missing since it may depend on the current user
             entity = provider.getEntity(ref);
+            if (entity != null
+                    && cache != null 
+                    && ((EntityCacheable) provider).isUserIndependent(ref, entity)) {
+                cache.put(ref.getId(), entity, generation);
+            }
         }
         return entity;
     }
 
+    private Map<String, BoundedCache<String, Object>> entityCaches = new ConcurrentHashMap<String, BoundedCache<String, Object>>();
+    private volatile long entityCachesGeneration = -1;
+    private volatile BoundedCache<String, Boolean> missingCache = null;
+
+    /**
+     * Get the entity cache for a prefix (creates it if needed),
+     * all caches are cleared when the set of registered providers changes
+     * @param prefix an entity prefix
+     * @return the cache OR null if entity caching is disabled
+     */
+    protected BoundedCache<String, Object> getEntityCache(String prefix) {
+        boolean enabled = true;
+        if (externalIntegrationProvider != null) {
+            enabled = externalIntegrationProvider.getConfigurationSetting(CONFIG_ENTITY_CACHE_ENABLE, enabled);
+        }
+        if (! enabled) {
+            return null;
+        }
+        checkCachesGeneration();
+        BoundedCache<String, Object> cache = entityCaches.get(prefix);
+        if (cache == null) {
+            int size = ENTITY_CACHE_SIZE;
+            long ttl = ENTITY_CACHE_TTL;
+            if (externalIntegrationProvider != null) {
+                size = externalIntegrationProvider.getConfigurationSetting(CONFIG_ENTITY_CACHE_PREFIX + prefix + ".size", size);
+                ttl = externalIntegrationProvider.getConfigurationSetting(CONFIG_ENTITY_CACHE_PREFIX + prefix + ".ttl", ttl);
+            }
+            if (size <= 0) {
+                return null;
+            }
+            synchronized (entityCaches) {
+                cache = entityCaches.get(prefix);
+                if (cache == null) {
+                    cache = new BoundedCache<String, Object>(size, ttl);
+                    entityCaches.put(prefix, cache);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Get the cache of references to entities which were recently found to not exist (creates it if needed),
+     * this has a short ttl and a strict size limit since the references come from requests,
+     * only the answers from {@link CoreEntityProvider#entityExists(String)} are cached since those do not depend on the user
+     * @return the cache OR null if caching of missing entities is disabled
+     */
+    protected BoundedCache<String, Boolean> getMissingCache() {
+        boolean enabled = true;
+        if (externalIntegrationProvider != null) {
+            enabled = externalIntegrationProvider.getConfigurationSetting(CONFIG_MISSING_CACHE_ENABLE, enabled);
+        }
+        if (! enabled) {
+            return null;
+        }
+        checkCachesGeneration();
+        BoundedCache<String, Boolean> cache = missingCache;
+        if (cache == null) {
+            int size = MISSING_CACHE_SIZE;
+            long ttl = MISSING_CACHE_TTL;
+            if (externalIntegrationProvider != null) {
+                size = externalIntegrationProvider.getConfigurationSetting(CONFIG_MISSING_CACHE_SIZE, size);
+                ttl = externalIntegrationProvider.getConfigurationSetting(CONFIG_MISSING_CACHE_TTL, ttl);
+            }
+            if (size <= 0 || ttl <= 0) {
+                return null;
+            }
+            synchronized (entityCaches) {
+                cache = missingCache;
+                if (cache == null) {
+                    cache = new BoundedCache<String, Boolean>(size, ttl);
+                    missingCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Clears all the caches if the set of registered providers changed
+     */
+    private void checkCachesGeneration() {
+        long registrationGeneration = entityProviderManager.getRegistrationGeneration();
+        if (registrationGeneration != entityCachesGeneration) {
+            synchronized (entityCaches) {
+                if (registrationGeneration != entityCachesGeneration) {
+                    for (BoundedCache<String, Object> cache : entityCaches.values()) {
+                        cache.clear();
+                    }
+                    entityCaches.clear();
+                    if (missingCache != null) {
+                        missingCache.clear();
+                    }
+                    entityCachesGeneration = registrationGeneration;
+                }
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.EntityBrokerManager#entityChanged(java.lang.String)
+     */
+    public void entityChanged(String reference) {
+        if (reference == null || ! reference.startsWith(EntityReference.SEPARATOR + "")) {
+            return;
+        }
+        String prefix;
+        String id = null;
+        String[] parts = reference.substring(1).split(EntityReference.SEPARATOR + "");
+        prefix = parts[0];
+        if (parts.length > 1 && parts[1].length() > 0) {
+            id = parts[1];
+        }
+        if (prefix.length() == 0) {
+            return;
+        }
+        BoundedCache<String, Object> cache = entityCaches.get(prefix);
+        if (cache != null) {
+            if (id == null) {
+                cache.clear();
+            } else {
+                cache.invalidate(id);
+            }
+        }
+        BoundedCache<String, Boolean> missing = missingCache;
+        if (missing != null) {
+            // the entity may have just been created
+            if (id == null) {
+                missing.clear();
+            } else {
+                missing.invalidate(EntityReference.SEPARATOR + prefix + EntityReference.SEPARATOR + id);
+            }
+        }
+        for (EntityChangeListener listener : entityChangeListeners) {
+            try {
+                listener.entityChanged(prefix, id);
+            } catch (RuntimeException e) {
+                System.out.println("WARN: EntityBrokerManager: entity change listener ("+listener+") failed for ("+reference+"): " + e);
+            }
+        }
+    }
+
+    private CopyOnWriteArrayList<EntityChangeListener> entityChangeListeners = new CopyOnWriteArrayList<EntityChangeListener>();
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.EntityBrokerManager#registerEntityChangeListener(org.sakaiproject.entitybroker.event.EntityChangeListener)
+     */
+    public void registerEntityChangeListener(EntityChangeListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+        entityChangeListeners.addIfAbsent(listener);
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.EntityBrokerManager#unregisterEntityChangeListener(org.sakaiproject.entitybroker.event.EntityChangeListener)
+     */
+    public void unregisterEntityChangeListener(EntityChangeListener listener) {
+        if (listener != null) {
+            entityChangeListeners.remove(listener);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.EntityBrokerManager#getEntityCacheStatistics()
+     */
+    public Map<String, Long> getEntityCacheStatistics() {
+        Map<String, Long> stats = new TreeMap<String, Long>();
+        for (BoundedCache<String, Object> cache : entityCaches.values()) {
+            cache.addStatistics(stats);
+        }
+        return stats;
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.EntityBrokerManager#getMissingCacheStatistics()
+     */
+    public Map<String, Long> getMissingCacheStatistics() {
+        Map<String, Long> stats = new TreeMap<String, Long>();
+        BoundedCache<String, Boolean> missing = missingCache;
+        if (missing != null) {
+            missing.addStatistics(stats);
+        }
+        return stats;
+    }
+
     /**
      * Get a list of entities from {@link CollectionResolvable} first if available or {@link BrowseSearchable} if not,
      * returns the entities as actual entities (converts from {@link EntityData} if that was used),
@@ -444,6 +692,48 @@ public class EntityBrokerManagerImpl implements EntityBrokerManager {
         return data;
     }
 
+    /**
+     * Get a single page of entities from a {@link CursorPageable} provider,
+     * returns the entities wrapped in {@link EntityData},
+     * the search limit is set to the default page size if none was requested (and is limited to the max page size)
+     * 
+     * @param ref the reference to a collection (the id is ignored)
+     * @param search a search (should not be null), the cursor in the search marks the start of the page
+     * @param params
+     * @return the page of entities and the cursor for the next page 
+     * OR null if the provider for this prefix does not implement {@link CursorPageable}
+     */
+    public CursorPage<EntityData> getEntitiesDataPage(EntityReference ref, Search search, Map<String, Object> params) {
+        if (ref == null) {
+            throw new IllegalArgumentException("No reference supplied for entity collection resolution, ref was null");
+        }
+        CursorPageable provider = entityProviderManager.getProviderByPrefixAndCapability(ref.getPrefix(), CursorPageable.class);
+        if (provider == null) {
+            return null;
+        }
+        search = EntityDataUtils.translateStandardSearch(search);
+        // enforce the page size
+        int defaultLimit = CURSOR_LIMIT_DEFAULT;
+        int maxLimit = CURSOR_LIMIT_MAX;
+        if (externalIntegrationProvider != null) {
+            defaultLimit = externalIntegrationProvider.getConfigurationSetting(CONFIG_CURSOR_LIMIT_DEFAULT, defaultLimit);
+            maxLimit = externalIntegrationProvider.getConfigurationSetting(CONFIG_CURSOR_LIMIT_MAX, maxLimit);
+        }
+        if (search.getLimit() <= 0) {
+            search.setLimit(defaultLimit);
+        }
+        if (maxLimit > 0 && search.getLimit() > maxLimit) {
+            search.setLimit(maxLimit);
+        }
+        EntityReference collectionRef = ref.getId() == null ? ref : new EntityReference(ref.getPrefix(), "");
+        CursorPage<?> page = provider.getEntitiesPage(collectionRef, search);
+        if (page == null) {
+            page = new CursorPage<Object>(null, null);
+        }
+        List<EntityData> data = convertToEntityData(page.getEntities(), collectionRef);
+        return new CursorPage<EntityData>(data, page.getNextCursor());
+    }
+
     /**
      * Fetches the browseable entities
      * @param prefix
@@ -685,9 +975,11 @@ public class EntityBrokerManagerImpl implements EntityBrokerManager {
             String fullURL = makeFullURL( partialURL );
             entityData.setEntityURL( fullURL );
             // check what we are dealing with
+            EntityAccessorPlan plan = null;
             boolean isPOJO = false;
             if (entityData.getData() != null) {
-                if ( ConstructorUtils.isClassBean(entityData.getData().getClass()) ) {
+                plan = EntityAccessorPlan.getPlan(entityData.getData().getClass());
+                if ( plan.isBean() ) {
                     isPOJO = true;
                 }
             }
@@ -704,14 +996,26 @@ public class EntityBrokerManagerImpl implements EntityBrokerManager {
                 }
                 // check the object itself next
                 if (isPOJO && titleNotSet) {
-                    try {
-                        String title = ReflectUtils.getInstance().getFieldValueAsString(entityData.getData(), "title", EntityTitle.class);
-                        if (title != null) {
-                            entityData.setDisplayTitle(title);
-                            titleNotSet = false;
+                    String title = null;
+                    if (plan.isFixedProperties()) {
+                        // use the cached accessor, no title property means nothing to do
+                        PropertyAccessor titleProperty = plan.getTitleProperty();
+                        if (titleProperty != null) {
+                            Object value = titleProperty.getValue(entityData.getData());
+                            if (value != null) {
+                                title = ReflectUtils.getInstance().convert(value, String.class);
+                            }
                         }
-                    } catch (FieldnameNotFoundException e) {
-                        // could not find any fields with the title, nothing to do but continue
+                    } else {
+                        try {
+                            title = ReflectUtils.getInstance().getFieldValueAsString(entityData.getData(), "title", EntityTitle.class);
+                        } catch (FieldnameNotFoundException e) {
+                            // could not find any fields with the title, nothing to do but continue
+                        }
+                    }
+                    if (title != null) {
+                        entityData.setDisplayTitle(title);
+                        titleNotSet = false;
                     }
                 }
             }
@@ -52,6 +52,7 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.Redirectable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestAware;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestStorable;
 import org.sakaiproject.entitybroker.entityprovider.extension.CustomAction;
+import org.sakaiproject.entitybroker.entityprovider.extension.DispatchPlan;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityProviderListener;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetterWrite;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorageWrite;
@@ -112,6 +113,12 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
     @SuppressWarnings("unchecked")
     protected ReferenceMap<String, EntityProviderListener> listenerMap = new ReferenceMap<String, EntityProviderListener>(ReferenceType.STRONG, ReferenceType.SOFT);
 
+    // holds the prebuilt dispatch plans by prefix, these are rebuilt on demand if the soft reference is cleared
+    protected ReferenceMap<String, DispatchPlan> planMap = new ReferenceMap<String, DispatchPlan>(ReferenceType.STRONG, ReferenceType.SOFT);
+    // incremented whenever a plan is invalidated so that plans built concurrently with a registration are not stored,
+    // this is also the registration generation since every registration change invalidates a plan
+    private volatile long planGeneration = 0;
+
     // old CHMs were switched to RMs to avoid holding strong references and allowing clean classloader unloads
     // protected ConcurrentMap<String, EntityProvider> prefixMap = new ConcurrentHashMap<String, EntityProvider>();
     // protected ConcurrentMap<String, ReferenceParseable> parseMap = new ConcurrentHashMap<String, ReferenceParseable>();
@@ -141,6 +148,81 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
         return provider;
     }
 
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.entityprovider.EntityProviderManager#getDispatchPlan(java.lang.String)
+     */
+    public DispatchPlan getDispatchPlan(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix cannot be null");
+        }
+        DispatchPlan plan = planMap.get(prefix);
+        if (plan == null) {
+            long generation;
+            synchronized (planMap) {
+                generation = planGeneration;
+            }
+            plan = buildDispatchPlan(prefix);
+            if (plan != null) {
+                synchronized (planMap) {
+                    if (generation == planGeneration) {
+                        planMap.put(prefix, plan);
+                    }
+                }
+            }
+        }
+        return plan;
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.entityprovider.EntityProviderManager#getRegistrationGeneration()
+     */
+    public long getRegistrationGeneration() {
+        return planGeneration;
+    }
+
+    /**
+     * Builds the dispatch plan for a prefix from the currently registered capabilities
+     * @param prefix an entity prefix
+     * @return the plan OR null if the prefix is not registered
+     */
+    protected DispatchPlan buildDispatchPlan(String prefix) {
+        Map<Class<? extends EntityProvider>, EntityProvider> capabilities = new HashMap<Class<? extends EntityProvider>, EntityProvider>();
+        for (Entry<String, EntityProvider> entry : prefixMap.entrySet()) {
+            String bikey = entry.getKey();
+            EntityProvider provider = entry.getValue();
+            if (provider == null || ! prefix.equals(getPrefix(bikey))) {
+                continue;
+            }
+            // resolve the capability from the provider itself to avoid classloader lookups
+            String capName = getCapabilityName(bikey);
+            for (Class<? extends EntityProvider> capability : extractCapabilities(provider)) {
+                if (capName.equals(capability.getName())) {
+                    capabilities.put(capability, provider);
+                    break;
+                }
+            }
+        }
+        if (capabilities.isEmpty()) {
+            return null;
+        }
+        boolean customActions = false;
+        if (entityProviderMethodStore != null) {
+            customActions = ! entityProviderMethodStore.getCustomActions(prefix).isEmpty();
+        }
+        return new DispatchPlan(prefix, capabilities, customActions);
+    }
+
+    /**
+     * Removes the current dispatch plan for a prefix so it will be rebuilt on the next request for it
+     * @param prefix an entity prefix
+     */
+    protected void invalidateDispatchPlan(String prefix) {
+        synchronized (planMap) {
+            planGeneration++;
+            planMap.remove(prefix);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see org.sakaiproject.entitybroker.entityprovider.EntityProviderManager#getRegisteredPrefixes()
@@ -311,6 +393,9 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
                 entityProviderMethodStore.addURLRedirects(prefix, redirects);
             }
         }
+        // rebuild the dispatch plan now that all capabilities and actions are registered
+        invalidateDispatchPlan(prefix);
+        getDispatchPlan(prefix);
         System.out.println("INFO Registered entity provider ("+entityProvider.getClass().getName()
                 +") prefix ("+prefix+") with "+count+" capabilities");
 
@@ -351,6 +436,9 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
         }
         // clean up the properties cache
         entityProperties.unloadProperties(prefix);
+        // rebuild the dispatch plan from whatever is left
+        invalidateDispatchPlan(prefix);
+        getDispatchPlan(prefix);
 
         System.out.println("INFO Unregistered entity provider ("+entityProvider.getClass().getName()+") and "+count+" capabilities");
     }
@@ -370,6 +458,7 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
         }
         String key = getBiKey(prefix, capability);
         prefixMap.remove(key);
+        invalidateDispatchPlan(prefix);
         // do any cleanup that needs to be done when unregistering
         if (ActionsExecutable.class.equals(capability)) {
             // clean up the list of custom actions
@@ -398,6 +487,7 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
                 prefixMap.remove(bikey);
             }
         }
+        invalidateDispatchPlan(prefix);
         System.out.println("INFO Unregistered entity prefix ("+prefix+")");
     }
 
@@ -412,7 +502,9 @@ public class EntityProviderManagerImpl implements EntityProviderManager {
     public boolean registerPrefixCapability(String prefix,
             Class<? extends EntityProvider> capability, EntityProvider entityProvider) {
         String key = getBiKey(prefix, capability);
-        return prefixMap.put(key, entityProvider) == null;
+        boolean added = prefixMap.put(key, entityProvider) == null;
+        invalidateDispatchPlan(prefix);
+        return added;
     }
 
     /**
@@ -26,6 +26,7 @@ import java.util.Observer;
 
 import org.azeckoski.reflectutils.refmap.ReferenceMap;
 import org.azeckoski.reflectutils.refmap.ReferenceType;
+import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.event.EventReceiver;
 import org.sakaiproject.event.api.Event;
 import org.sakaiproject.event.api.EventTrackingService;
@@ -51,6 +52,11 @@ public class EventReceiverCoordinator implements ApplicationContextAware {
         this.eventTrackingService = eventTrackingService;
     }
 
+    EntityBrokerManager entityBrokerManager;
+    public void setEntityBrokerManager(EntityBrokerManager entityBrokerManager) {
+        this.entityBrokerManager = entityBrokerManager;
+    }
+
     public void init() {
         // register a single observer for the EB system (switched from local observer)
         eventTrackingService.addObserver(new Observer() {
@@ -82,6 +88,12 @@ public class EventReceiverCoordinator implements ApplicationContextAware {
      * @param event the event from the system
      */
     protected void handleEvent(Event event) {
+        if (entityBrokerManager != null
+                && event.getModify()
+                && event.getResource() != null) {
+            // clear any cached data for the entity this event is about (only changes, not reads)
+            entityBrokerManager.entityChanged(event.getResource());
+        }
         for (EventReceiver receiver : receivers.values()) {
             if (match(receiver, event)) {
                 receiver.receiveEvent(event.getEvent(), event.getResource());
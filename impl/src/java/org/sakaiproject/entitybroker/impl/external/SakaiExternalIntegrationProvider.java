@@ -33,6 +33,7 @@ import org.sakaiproject.email.api.EmailService;
 import org.sakaiproject.entity.api.EntityManager;
 import org.sakaiproject.entitybroker.DeveloperHelperService;
 import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
+import org.sakaiproject.entitybroker.util.request.ThreadStatePropagator;
 import org.sakaiproject.entitybroker.util.servlet.DirectServlet;
 import org.sakaiproject.event.api.Event;
 import org.sakaiproject.event.api.EventTrackingService;
@@ -41,6 +42,7 @@ import org.sakaiproject.event.api.NotificationService;
 import org.sakaiproject.event.api.UsageSession;
 import org.sakaiproject.event.api.UsageSessionService;
 import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.api.SessionManager;
 
@@ -53,7 +55,7 @@ import org.sakaiproject.tool.api.SessionManager;
  * 
  * @author Aaron Zeckoski (azeckoski @ gmail.com)
  */
-public class SakaiExternalIntegrationProvider implements ExternalIntegrationProvider {
+public class SakaiExternalIntegrationProvider implements ExternalIntegrationProvider, ThreadStatePropagator {
 
     private static final Log log = LogFactory.getLog(SakaiExternalIntegrationProvider.class);
 
@@ -93,6 +95,11 @@ public class SakaiExternalIntegrationProvider implements ExternalIntegrationProv
         this.sessionManager = sessionManager;
     }
 
+    private ThreadLocalManager threadLocalManager;
+    public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+        this.threadLocalManager = threadLocalManager;
+    }
+
     /* (non-Javadoc)
      * @see org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider#findService(java.lang.Class)
      */
@@ -307,4 +314,31 @@ public class SakaiExternalIntegrationProvider implements ExternalIntegrationProv
         learningResourceStoreService.registerStatement(statement, prefix);
     }
 
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.util.request.ThreadStatePropagator#captureThreadState()
+     */
+    public Object captureThreadState() {
+        // the sakai session is bound to the request thread by the request filter
+        return sessionManager.getCurrentSession();
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.util.request.ThreadStatePropagator#applyThreadState(java.lang.Object)
+     */
+    public void applyThreadState(Object state) {
+        if (state != null) {
+            sessionManager.setCurrentSession((Session) state);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.util.request.ThreadStatePropagator#clearThreadState(java.lang.Object)
+     */
+    public void clearThreadState(Object state) {
+        // worker threads are reused so remove everything sakai bound to this thread
+        if (threadLocalManager != null) {
+            threadLocalManager.clear();
+        }
+    }
+
 }
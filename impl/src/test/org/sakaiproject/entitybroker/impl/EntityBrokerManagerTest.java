@@ -22,6 +22,7 @@ package org.sakaiproject.entitybroker.impl;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -30,6 +31,7 @@ import org.sakaiproject.entitybroker.EntityView;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
+import org.sakaiproject.entitybroker.mocks.CacheableEntityProviderMock;
 import org.sakaiproject.entitybroker.mocks.data.MyEntity;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
 
@@ -264,6 +266,88 @@ public class EntityBrokerManagerTest extends TestCase {
       }
    }
 
+   public void testFetchEntityCached() {
+      CacheableEntityProviderMock provider = new CacheableEntityProviderMock("cachePrefix", new String[] {"c1", "c2", "c3"});
+      provider.privateIds = new String[] {"c3"};
+      entityBrokerManager.getEntityProviderManager().registerEntityProvider(provider);
+      try {
+         EntityReference ref = new EntityReference("/cachePrefix/c1");
+         Object entity = entityBrokerManager.fetchEntity(ref);
+         assertNotNull(entity);
+         assertEquals(1, provider.getCount);
+         Object cached = entityBrokerManager.fetchEntity(ref);
+         assertEquals(entity, cached);
+         assertEquals(1, provider.getCount);
+         Map<String, Long> stats = entityBrokerManager.getEntityCacheStatistics();
+         assertEquals(Long.valueOf(1), stats.get("hits"));
+         assertEquals(Long.valueOf(1), stats.get("misses"));
+         assertEquals(Long.valueOf(1), stats.get("size"));
+
+         // events for this entity clear the cache
+         entityBrokerManager.entityChanged("/cachePrefix/c1/extra");
+         entityBrokerManager.fetchEntity(ref);
+         assertEquals(2, provider.getCount);
+         entityBrokerManager.entityChanged("/cachePrefix");
+         entityBrokerManager.fetchEntity(ref);
+         assertEquals(3, provider.getCount);
+         // other prefixes and invalid refs are ignored
+         entityBrokerManager.entityChanged("/otherPrefix/c1");
+         entityBrokerManager.entityChanged("invalid");
+         entityBrokerManager.entityChanged(null);
+         entityBrokerManager.fetchEntity(ref);
+         assertEquals(3, provider.getCount);
+
+         // user specific entities are never cached
+         ref = new EntityReference("/cachePrefix/c3");
+         entityBrokerManager.fetchEntity(ref);
+         entityBrokerManager.fetchEntity(ref);
+         assertEquals(5, provider.getCount);
+
+         // missing entities are not cached (the provider may return null for this user only)
+         ref = new EntityReference("/cachePrefix/invalid");
+         assertNull(entityBrokerManager.fetchEntity(ref));
+         assertNull(entityBrokerManager.fetchEntity(ref));
+         assertEquals(7, provider.getCount);
+
+         // non-cacheable providers are not cached
+         assertNotNull(entityBrokerManager.fetchEntity(new EntityReference(TestData.REF4)));
+         assertEquals(Long.valueOf(1), entityBrokerManager.getEntityCacheStatistics().get("size"));
+      } finally {
+         entityBrokerManager.getEntityProviderManager().unregisterEntityProvider(provider);
+      }
+      // registration changes clear the caches
+      assertEquals(null, entityBrokerManager.getEntityCache("cachePrefix").get("c1"));
+   }
+
+   public void testEntityExistsMissingCached() {
+      CacheableEntityProviderMock provider = new CacheableEntityProviderMock("missingPrefix", new String[] {"m1"});
+      entityBrokerManager.getEntityProviderManager().registerEntityProvider(provider);
+      try {
+         EntityReference ref = new EntityReference("/missingPrefix/m2");
+         assertFalse(entityBrokerManager.entityExists(ref));
+         assertFalse(entityBrokerManager.entityExists(ref));
+         assertEquals(1, provider.existsCount);
+         assertNull(entityBrokerManager.fetchEntity(ref));
+         assertEquals(0, provider.getCount);
+         assertEquals(Long.valueOf(2), entityBrokerManager.getMissingCacheStatistics().get("hits"));
+
+         // existing entities are always checked
+         assertTrue(entityBrokerManager.entityExists(new EntityReference("/missingPrefix/m1")));
+         assertTrue(entityBrokerManager.entityExists(new EntityReference("/missingPrefix/m1")));
+         assertEquals(3, provider.existsCount);
+
+         // creation events clear the missing entry
+         provider.ids = new String[] {"m1", "m2"};
+         assertFalse(entityBrokerManager.entityExists(ref));
+         entityBrokerManager.entityChanged("/missingPrefix/m2");
+         assertTrue(entityBrokerManager.entityExists(ref));
+         assertEquals(4, provider.existsCount);
+         assertNotNull(entityBrokerManager.fetchEntity(ref));
+      } finally {
+         entityBrokerManager.getEntityProviderManager().unregisterEntityProvider(provider);
+      }
+   }
+
    /**
     * Test method for
     * {@link org.sakaiproject.entitybroker.impl.EntityBrokerManagerImpl#getEntityData(org.sakaiproject.entitybroker.EntityReference)}.
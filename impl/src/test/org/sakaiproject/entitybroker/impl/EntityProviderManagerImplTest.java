@@ -38,6 +38,7 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.RedirectDefinab
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Resolvable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.TagProvideable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Taggable;
+import org.sakaiproject.entitybroker.entityprovider.extension.DispatchPlan;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityProviderListener;
 import org.sakaiproject.entitybroker.impl.entityprovider.EntityProviderManagerImpl;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
@@ -157,6 +158,58 @@ public class EntityProviderManagerImplTest extends TestCase {
       assertNull(ep);
    }
 
+   /**
+    * Test method for
+    * {@link org.sakaiproject.entitybroker.impl.entityprovider.EntityProviderManagerImpl#getDispatchPlan(java.lang.String)}.
+    */
+   public void testGetDispatchPlan() {
+      DispatchPlan plan = null;
+
+      plan = entityProviderManager.getDispatchPlan(TestData.PREFIX1);
+      assertNotNull(plan);
+      assertEquals(TestData.PREFIX1, plan.getPrefix());
+      assertEquals(td.entityProvider1, plan.getProvider());
+      assertEquals(td.entityProvider1, plan.getCoreProvider());
+      assertEquals(td.entityProvider1T, plan.getCapability(Taggable.class));
+      assertNull(plan.getResolvable());
+      assertFalse(plan.hasInterceptor());
+      assertFalse(plan.hasRedirects());
+      assertFalse(plan.hasCustomActions());
+
+      plan = entityProviderManager.getDispatchPlan(TestData.PREFIX6);
+      assertNotNull(plan);
+      assertEquals(td.entityProvider6, plan.getOutputable());
+      assertEquals(td.entityProvider6, plan.getInputable());
+      assertEquals(td.entityProvider6, plan.getCreateable());
+      assertEquals(td.entityProvider6, plan.getUpdateable());
+      assertEquals(td.entityProvider6, plan.getDeleteable());
+
+      plan = entityProviderManager.getDispatchPlan(TestData.PREFIXA1);
+      assertNotNull(plan);
+      assertTrue(plan.hasCustomActions());
+      assertEquals(td.entityProviderA1, plan.getActionsExecutable());
+
+      plan = entityProviderManager.getDispatchPlan(TestData.PREFIXU1);
+      assertNotNull(plan);
+      assertTrue(plan.hasRedirects());
+
+      // plan is rebuilt when capabilities are removed
+      entityProviderManager.unregisterCapability(TestData.PREFIX6, Outputable.class);
+      plan = entityProviderManager.getDispatchPlan(TestData.PREFIX6);
+      assertNotNull(plan);
+      assertNull(plan.getOutputable());
+      assertEquals(td.entityProvider6, plan.getInputable());
+
+      // plan is gone when the prefix is removed
+      entityProviderManager.unregisterEntityProviderByPrefix(TestData.PREFIX6);
+      plan = entityProviderManager.getDispatchPlan(TestData.PREFIX6);
+      assertNull(plan);
+
+      // unregistered prefix has no plan
+      plan = entityProviderManager.getDispatchPlan(TestData.PREFIX9);
+      assertNull(plan);
+   }
+
    /**
     * Test method for
     * {@link org.sakaiproject.entitybroker.impl.entityprovider.EntityProviderManagerImpl#getRegisteredPrefixes()}.
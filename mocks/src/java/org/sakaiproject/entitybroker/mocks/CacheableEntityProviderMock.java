@@ -0,0 +1,69 @@
+/**
+ * CacheableEntityProviderMock.java - created by Sakai Software Development Team on Oct 18, 2026
+ */
+
+package org.sakaiproject.entitybroker.mocks;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.EntityCacheable;
+import org.sakaiproject.entitybroker.mocks.data.MyEntity;
+
+/**
+ * Stub class to make it possible to test the {@link EntityCacheable} capability, will perform like the
+ * actual class so it can be reliably used for testing<br/> 
+ * Returns {@link MyEntity} objects, all entities except the ones in the private ids are user independent
+ * 
+ * @author Sakai Software Development Team
+ */
+public class CacheableEntityProviderMock extends ResolvableEntityProviderMock implements EntityCacheable {
+
+   /**
+    * the number of times an entity was retrieved from this provider
+    */
+   public int getCount = 0;
+
+   /**
+    * the number of times the existence of an entity was checked with this provider
+    */
+   public int existsCount = 0;
+
+   /**
+    * ids of the entities which are different for each user (these should not be cached)
+    */
+   public String[] privateIds = new String[0];
+
+   /**
+    * TEST Constructor: allows for easy setup of this stub for testing
+    * 
+    * @param prefix
+    * @param ids
+    */
+   public CacheableEntityProviderMock(String prefix, String[] ids) {
+      super(prefix, ids);
+   }
+
+   @Override
+   public boolean entityExists(String id) {
+      existsCount++;
+      return super.entityExists(id);
+   }
+
+   @Override
+   public Object getEntity(EntityReference reference) {
+      getCount++;
+      return super.getEntity(reference);
+   }
+
+   /* (non-Javadoc)
+    * @see org.sakaiproject.entitybroker.entityprovider.capabilities.EntityCacheable#isUserIndependent(org.sakaiproject.entitybroker.EntityReference, java.lang.Object)
+    */
+   public boolean isUserIndependent(EntityReference ref, Object entity) {
+      for (int i = 0; i < privateIds.length; i++) {
+         if (privateIds[i].equals(ref.getId())) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+}
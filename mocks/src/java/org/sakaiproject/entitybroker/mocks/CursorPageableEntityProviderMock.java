@@ -0,0 +1,61 @@
+/**
+ * CursorPageableEntityProviderMock.java - created by Sakai Software Development Team on Oct 18, 2026
+ */
+
+package org.sakaiproject.entitybroker.mocks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.CursorPageable;
+import org.sakaiproject.entitybroker.entityprovider.extension.CursorPage;
+import org.sakaiproject.entitybroker.entityprovider.search.Search;
+import org.sakaiproject.entitybroker.mocks.data.MyEntity;
+
+/**
+ * Stub class to make it possible to test the {@link CursorPageable} capability, will perform like the
+ * actual class so it can be reliably used for testing<br/> 
+ * Returns {@link MyEntity} objects in id order, the cursor is the position of the next id
+ * 
+ * @author Sakai Software Development Team
+ */
+public class CursorPageableEntityProviderMock extends ResolvableEntityProviderMock implements CursorPageable {
+
+   /**
+    * the number of times a page was requested
+    */
+   public int pageCount = 0;
+
+   /**
+    * TEST Constructor: allows for easy setup of this stub for testing
+    * 
+    * @param prefix
+    * @param ids
+    */
+   public CursorPageableEntityProviderMock(String prefix, String[] ids) {
+      super(prefix, ids);
+   }
+
+   /* (non-Javadoc)
+    * @see org.sakaiproject.entitybroker.entityprovider.capabilities.CursorPageable#getEntitiesPage(org.sakaiproject.entitybroker.EntityReference, org.sakaiproject.entitybroker.entityprovider.search.Search)
+    */
+   public CursorPage<?> getEntitiesPage(EntityReference ref, Search search) {
+      pageCount++;
+      int start = 0;
+      if (search.getCursor() != null) {
+         try {
+            start = Integer.parseInt(search.getCursor());
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + search.getCursor());
+         }
+      }
+      int end = (int) Math.min(ids.length, start + search.getLimit());
+      List<MyEntity> entities = new ArrayList<MyEntity>();
+      for (int i = start; i < end; i++) {
+         entities.add( new MyEntity( ids[i], "something" + i ) );
+      }
+      return new CursorPage<MyEntity>(entities, end < ids.length ? Integer.toString(end) : null);
+   }
+
+}
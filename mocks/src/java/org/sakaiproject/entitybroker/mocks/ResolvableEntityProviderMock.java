@@ -50,6 +50,9 @@ public class ResolvableEntityProviderMock extends CoreEntityProviderMock impleme
       if (reference.getId() == null) {
          return new MyEntity();
       }
+      if (! entityExists(reference.getId())) {
+         return null;
+      }
       return new MyEntity(reference.getId(), "something");
    }
 
@@ -0,0 +1,45 @@
+/**
+ * VersionableEntityProviderMock.java - created by Sakai Software Development Team on Oct 18, 2026
+ */
+
+package org.sakaiproject.entitybroker.mocks;
+
+import java.util.Map;
+
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Versionable;
+
+/**
+ * Stub class to make it possible to test the {@link Versionable} capability, will perform like the
+ * actual class so it can be reliably used for testing<br/> 
+ * Every entity has the same version (even ones which do not exist)
+ * 
+ * @author Sakai Software Development Team
+ */
+public class VersionableEntityProviderMock extends ResolvableEntityProviderMock implements Versionable {
+
+   /**
+    * TEST Constructor: allows for easy setup of this stub for testing
+    * 
+    * @param prefix
+    * @param ids
+    */
+   public VersionableEntityProviderMock(String prefix, String[] ids) {
+      super(prefix, ids);
+   }
+
+   /* (non-Javadoc)
+    * @see org.sakaiproject.entitybroker.entityprovider.capabilities.Versionable#getEntityVersion(org.sakaiproject.entitybroker.EntityReference, java.util.Map)
+    */
+   public String getEntityVersion(EntityReference ref, Map<String, Object> params) {
+      return "1";
+   }
+
+   /* (non-Javadoc)
+    * @see org.sakaiproject.entitybroker.entityprovider.capabilities.Versionable#getEntityLastModified(org.sakaiproject.entitybroker.EntityReference, java.util.Map)
+    */
+   public Long getEntityLastModified(EntityReference ref, Map<String, Object> params) {
+      return null;
+   }
+
+}
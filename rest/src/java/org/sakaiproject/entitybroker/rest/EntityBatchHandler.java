@@ -21,13 +21,41 @@
 package org.sakaiproject.entitybroker.rest;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -35,28 +63,50 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.azeckoski.reflectutils.ArrayUtils;
 import org.azeckoski.reflectutils.map.ArrayOrderedMap;
+import org.azeckoski.reflectutils.transcoders.Transcoder;
 import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityView;
 import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetterWrite;
+import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorageWrite;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
 import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
 import org.sakaiproject.entitybroker.rest.caps.BatchProvider;
+import org.sakaiproject.entitybroker.util.encoding.BinaryTranscoder;
+import org.sakaiproject.entitybroker.util.encoding.RawContent;
 import org.sakaiproject.entitybroker.util.http.EntityHttpServletRequest;
 import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
 import org.sakaiproject.entitybroker.util.http.HttpClientWrapper;
 import org.sakaiproject.entitybroker.util.http.HttpRESTUtils;
 import org.sakaiproject.entitybroker.util.http.HttpResponse;
+import org.sakaiproject.entitybroker.util.http.LazyResponseOutputStream;
 import org.sakaiproject.entitybroker.util.http.URLData;
 import org.sakaiproject.entitybroker.util.http.HttpRESTUtils.Method;
 import org.sakaiproject.entitybroker.util.request.RequestUtils;
+import org.sakaiproject.entitybroker.util.request.ThreadStatePropagator;
 
 
 /**
  * This handles batch operations internally as much as possible,
  * the idea is to provide for a standard way to reduce huge numbers of calls down to 1 call to the server
- * which puts the data together into a single response
+ * which puts the data together into a single response <br/>
+ * The references are normally listed in the {@value #REFS_PARAM_NAME} param and all use the batch request method,
+ * a POST with a JSON body (and no {@value #REFS_PARAM_NAME} param) can instead list the operations with a method,
+ * params, and body for each one (e.g. [{"method":"PUT","url":"/direct/thing/1.json","body":{"title":"new"}},
+ * {"method":"GET","url":"/direct/thing/2"}]) so reads and writes can be done in one request,
+ * these operations can also use values from the results of earlier operations (e.g. the id of a new entity: 
+ * {"method":"POST","url":"/direct/membership/{ref0.id}"}) and are processed once those results are complete <br/>
+ * The references in a GET batch are processed in parallel on a bounded set of worker threads
+ * (DELETE and PUT can be enabled with {@value #CONFIG_BATCH_PARALLEL_METHODS}, POST is always processed in order),
+ * the results are always returned in the order of the references and the whole batch must complete
+ * within {@value #CONFIG_BATCH_TIMEOUT} millis (references which are not done by then are returned as errors,
+ * except changes which already started, those get {@value #CONFIG_BATCH_TIMEOUT_GRACE} more millis to finish 
+ * and are reported as still running with an unknown outcome if they do not)<br/>
+ * External (non-EB) references are sent using a pooled http client which is shared by all batches,
+ * the connections are limited and reused (see the entitybroker.batch.http.* settings) and 
+ * the cookies from the batch request are sent with each external request to this server (never to other hosts)
  * 
  * @author Aaron Zeckoski (azeckoski @ gmail.com)
  */
@@ -64,6 +114,27 @@ public class EntityBatchHandler {
 
     public static final String CONFIG_BATCH_ENABLE = "entitybroker.batch.enable";
     public static final boolean CONFIG_BATCH_DEFAULT = false;
+    public static final String CONFIG_BATCH_PARALLEL = "entitybroker.batch.parallel";
+    public static final boolean CONFIG_BATCH_PARALLEL_DEFAULT = true;
+    public static final String CONFIG_BATCH_PARALLEL_METHODS = "entitybroker.batch.parallel.methods";
+    public static final String CONFIG_BATCH_PARALLEL_METHODS_DEFAULT = "GET";
+    public static final String CONFIG_BATCH_PARALLEL_THREADS = "entitybroker.batch.parallel.threads";
+    public static final int CONFIG_BATCH_PARALLEL_THREADS_DEFAULT = 10;
+    public static final String CONFIG_BATCH_TIMEOUT = "entitybroker.batch.timeout";
+    public static final int CONFIG_BATCH_TIMEOUT_DEFAULT = 60000;
+    public static final String CONFIG_BATCH_TIMEOUT_GRACE = "entitybroker.batch.timeout.grace";
+    public static final int CONFIG_BATCH_TIMEOUT_GRACE_DEFAULT = 5000;
+    public static final String CONFIG_BATCH_HTTP_MAX_PER_HOST = "entitybroker.batch.http.maxConnectionsPerHost";
+    public static final int CONFIG_BATCH_HTTP_MAX_PER_HOST_DEFAULT = 10;
+    public static final String CONFIG_BATCH_HTTP_MAX_TOTAL = "entitybroker.batch.http.maxConnections";
+    public static final int CONFIG_BATCH_HTTP_MAX_TOTAL_DEFAULT = 50;
+    public static final String CONFIG_BATCH_HTTP_IDLE_TIMEOUT = "entitybroker.batch.http.idleTimeout";
+    public static final int CONFIG_BATCH_HTTP_IDLE_TIMEOUT_DEFAULT = 30000;
+    public static final String CONFIG_BATCH_HTTP_CONNECT_TIMEOUT = "entitybroker.batch.http.connectTimeout";
+    public static final int CONFIG_BATCH_HTTP_CONNECT_TIMEOUT_DEFAULT = 5000;
+    public static final String CONFIG_BATCH_HTTP_READ_TIMEOUT = "entitybroker.batch.http.readTimeout";
+    public static final int CONFIG_BATCH_HTTP_READ_TIMEOUT_DEFAULT = 30000;
+    private static final int BATCH_QUEUE_SIZE = 100;
 
     private static final String HEADER_BATCH_STATUS = "batchStatus";
     private static final String HEADER_BATCH_ERRORS = "batchErrors";
@@ -77,7 +148,27 @@ public class EntityBatchHandler {
      * This is the name of the parameter which is used to pass along the reference URLs to be batch processed
      */
     public static final String REFS_PARAM_NAME = "_refs";
-    private static final String UNIQUE_DATA_PREFIX = "X-XqReplaceQX-X-";
+    /**
+     * The keys for the operations in a JSON batch request body (see {@link #makeBodyOperations(EntityView, HttpServletRequest, HttpServletResponse)})
+     */
+    public static final String BODY_OPERATIONS = "refs";
+    public static final String BODY_METHOD = "method";
+    public static final String BODY_URL = "url";
+    public static final String BODY_PARAMS = "params";
+    public static final String BODY_BODY = "body";
+    public static final String BODY_CONTENT_TYPE = "contentType";
+    public static final String BODY_KEY = "key";
+    public static final String BODY_AFTER = "after";
+    /**
+     * The values which can be used from the result of an earlier operation in a body operation 
+     * (e.g. {ref0.id}, see {@link #resolveValue(BatchOperation, String)})
+     */
+    public static final String RESULT_ID = "id";
+    public static final String RESULT_STATUS = "status";
+    public static final String RESULT_HEADER = "header";
+    public static final String RESULT_DATA = "data";
+    private static final Pattern RESULT_KEY_PATTERN = Pattern.compile("[A-Za-z0-9_\\-]+");
+    private static final Pattern RESULT_REFERENCE_PATTERN = Pattern.compile("\\{([A-Za-z0-9_\\-]+)\\.([^{}\\s]+)\\}");
 
     private static String INTERNAL_SERVER_ERROR_STATUS_STRING = HttpServletResponse.SC_INTERNAL_SERVER_ERROR+"";
 
@@ -127,6 +218,16 @@ public class EntityBatchHandler {
 
     public void destroy() {
         System.out.println("INFO: EntityBatchHandler: destroy()");
+        synchronized (this) {
+            if (batchExecutor != null) {
+                batchExecutor.shutdownNow();
+                batchExecutor = null;
+            }
+            if (batchHttpClient != null) {
+                batchHttpClient.shutdown();
+                batchHttpClient = null;
+            }
+        }
         if (batchEP != null) {
             try {
                 this.entityBrokerManager.getEntityProviderManager().unregisterEntityProvider(batchEP);
@@ -161,6 +262,52 @@ public class EntityBatchHandler {
         this.entityRequestHandler = entityRequestHandler;
     }
 
+    private ExecutorService batchExecutor = null;
+    /**
+     * @return the executor for parallel batch references (created when first needed)
+     */
+    private synchronized ExecutorService getBatchExecutor() {
+        if (batchExecutor == null) {
+            int threads = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_PARALLEL_THREADS, CONFIG_BATCH_PARALLEL_THREADS_DEFAULT);
+            if (threads <= 0) {
+                threads = CONFIG_BATCH_PARALLEL_THREADS_DEFAULT;
+            }
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+                    new ArrayBlockingQueue<Runnable>(BATCH_QUEUE_SIZE), 
+                    new BatchThreadFactory("entitybroker-batch-"));
+            pool.allowCoreThreadTimeOut(true);
+            batchExecutor = pool;
+            System.out.println("INFO: EntityBatchHandler: parallel batch processing started: threads=" + threads);
+        }
+        return batchExecutor;
+    }
+
+    private HttpClientWrapper batchHttpClient = null;
+    /**
+     * @return the pooled http client for external batch references (created when first needed),
+     * this is shared by all batches so cookies must be sent per request
+     */
+    private synchronized HttpClientWrapper getBatchHttpClient() {
+        if (batchHttpClient == null) {
+            int maxPerHost = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_HTTP_MAX_PER_HOST, CONFIG_BATCH_HTTP_MAX_PER_HOST_DEFAULT);
+            if (maxPerHost <= 0) {
+                maxPerHost = CONFIG_BATCH_HTTP_MAX_PER_HOST_DEFAULT;
+            }
+            int maxTotal = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_HTTP_MAX_TOTAL, CONFIG_BATCH_HTTP_MAX_TOTAL_DEFAULT);
+            if (maxTotal < maxPerHost) {
+                maxTotal = maxPerHost;
+            }
+            int idleTimeout = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_HTTP_IDLE_TIMEOUT, CONFIG_BATCH_HTTP_IDLE_TIMEOUT_DEFAULT);
+            int connectTimeout = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_HTTP_CONNECT_TIMEOUT, CONFIG_BATCH_HTTP_CONNECT_TIMEOUT_DEFAULT);
+            int readTimeout = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_HTTP_READ_TIMEOUT, CONFIG_BATCH_HTTP_READ_TIMEOUT_DEFAULT);
+            batchHttpClient = HttpRESTUtils.makePooledHttpClient(maxPerHost, maxTotal, idleTimeout, connectTimeout, readTimeout);
+            System.out.println("INFO: EntityBatchHandler: pooled http client for external batch references started: maxConnectionsPerHost=" 
+                    + maxPerHost + ", maxConnections=" + maxTotal + ", idleTimeout=" + idleTimeout 
+                    + ", connectTimeout=" + connectTimeout + ", readTimeout=" + readTimeout);
+        }
+        return batchHttpClient;
+    }
+
     private String getServletContext() {
         return this.entityBrokerManager.getServletContext();
     }
@@ -204,193 +351,1107 @@ public class EntityBatchHandler {
             throw new IllegalArgumentException("Cannot batch "+reqMethod+" request method, cannot continue processing request: " + view);
         }
 
-        // now get to handling stuff
-        String format = view.getFormat();
-        String servletContext = getServletContext(); // will be the servlet context (e.g. /direct)
+        // now get to handling stuff
+        String format = view.getFormat();
+
+        List<BatchOperation> operations;
+        String[] refs = null;
+        if (isBatchBody(req, method)) {
+            // the operations (each with a method, params, and body) are in the request body
+            operations = makeBodyOperations(view, req, res);
+        } else {
+            // validate the the refs param
+            refs = getRefsOrFail(req);
+            operations = makeRefOperations(view, req, res, method, refs);
+        }
+
+        // process the references (in parallel if allowed)
+        if (hasDependencies(operations)) {
+            executeDependent(operations, view, req, res);
+        } else if (isParallel(operations)) {
+            executeParallel(operations);
+        } else {
+            executeSerial(operations);
+        }
+
+        // compile the results in the order of the references
+        Map<String, ResponseBase> results = new ArrayOrderedMap<String, ResponseBase>(); // the results of all valid refs
+        boolean successOverall = false; // true if all ok or partial ok, false if exception occurs or all fail
+        boolean failure = false;
+        for (BatchOperation operation : operations) {
+            String refKey = operation.refKey;
+            ResponseBase result = operation.result;
+
+            // special handling for null result (should really not happen unless there was a logic error)
+            if (result == null) {
+                successOverall = false;
+                failure = true;
+                throw new IllegalStateException("Somehow the result is null, this should never happen, fatal error");
+            }
+
+            // all cookies go into the main response (only from results, errors and timeouts have none)
+            if (result instanceof ResponseResult && ((ResponseResult) result).cookies != null) {
+                for (Cookie cookie : ((ResponseResult) result).cookies) {
+                    res.addCookie(cookie);
+                }
+            }
+
+            if (result instanceof ResponseError) {
+                // looks like a failure occurred, keep going though
+                successOverall = false;
+                failure = true;
+            } else {
+                // all ok, process data
+                int status = result.getStatus();
+                if (status >= 200 && status < 300) {
+                    successOverall = true;
+                }
+                if (status == HttpServletResponse.SC_NO_CONTENT) {
+                    // no content to process
+                    ((ResponseResult)result).content = null;
+                    ((ResponseResult)result).data = null;
+                } else {
+                    // process the content and see if it matches the expected result, if not we have to dump it in escaped
+                    checkContent(format, operation, (ResponseResult)result);
+                }
+            }
+
+            results.put(refKey, result); // use an artificial key
+        }
+
+        // determine overall status
+        int overallStatus = HttpServletResponse.SC_OK;
+        if (failure == true || successOverall == false) {
+            overallStatus = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        }
+
+        // die if every ref was invalid
+        if (results.size() == 0) {
+            throw new EntityException("Invalid request which resulted in no valid references to batch process, original _refs=("
+                    +(refs == null ? "request body" : ArrayUtils.arrayToString(refs))+")", EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+        }
+
+        // put headers, encoding, and code into the http response before any content goes out
+        applyOverallHeaders(res, results);
+        RequestUtils.setResponseEncoding(format, res);
+        res.setStatus(overallStatus);
+
+        // encode all the responses directly into the response (compressed if the client accepts it)
+        try {
+            LazyResponseOutputStream responseStream = entityEncodingManager.makeResponseOutputStream(req, res);
+            Transcoder transcoder = entityEncodingManager.getTranscoder(format);
+            if (transcoder instanceof BinaryTranscoder) {
+                ((BinaryTranscoder) transcoder).encode(results, "refs", null, 0, responseStream);
+            } else {
+                BatchResponseWriter writer = new BatchResponseWriter(responseStream);
+                if (Formats.XML.equals(format)) {
+                    writer.write(EntityEncodingManager.XML_HEADER);
+                }
+                entityEncodingManager.encodeData(results, format, "refs", null, writer);
+                writer.flush();
+            }
+            responseStream.finish();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to encode data for overall response: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates the operations for the references in the {@value #REFS_PARAM_NAME} param,
+     * all references use the batch request method and duplicate references are skipped (unless this is a POST)
+     * @param view the current view
+     * @param req the current request
+     * @param res the current response
+     * @param method the batch request method
+     * @param refs the references to process
+     * @return the operations to process in the order of the references
+     */
+    private List<BatchOperation> makeRefOperations(EntityView view, HttpServletRequest req, HttpServletResponse res, 
+            Method method, String[] refs) {
+        // decode the params into a set of reference params
+        Map<String, Map<String, String[]>> referencedParams = extractReferenceParams(req, method, refs);
+
+        // loop through all references and work out which ones will be processed
+        HashSet<String> processedRefsAndURLs = new HashSet<String>(); // holds all refs which we processed in this batch
+        List<BatchOperation> operations = new ArrayList<BatchOperation>(refs.length);
+        for (int i = 0; i < refs.length; i++) {
+            String refKey = "ref" + i;
+            String reference = refs[i];
+            // validate the reference is not blank
+            if (reference == null || "".equals(reference)) {
+                continue; // skip
+            }
+            // skip refs that are already done, we do not process twice unless it is a POST
+            // NOTE: this duplicate check happens again slightly down below so change both at once
+            if (! Method.POST.equals(method) 
+                    && processedRefsAndURLs.contains(reference)) {
+                System.out.println("WARN: EntityBatchHandler: Found a duplicate reference, this will not be processed: " + reference);
+                continue; // skip for GET/DELETE/PUT
+            }
+
+            // object will hold the reference request which will be processed
+            BatchOperation operation = makeOperation(refKey, reference, method, view, req);
+            if (operation == null) {
+                // looks like this servlet only with no path and we do not process that
+                continue;
+            }
+
+            if (operation.result == null) {
+                if (operation.external) {
+                    operation.referencedParams = referencedParams;
+                } else {
+                    // skip URLs that are already done, we do not process twice unless it is a POST
+                    // NOTE: this duplicate check happens again slightly above so change both at once
+                    if (! Method.POST.equals(method) 
+                            && processedRefsAndURLs.contains(operation.entityURL)) {
+                        System.out.println("WARN: EntityBatchHandler: Found a duplicate entityURL, this will not be processed: " + operation.entityURL);
+                        continue; // skip
+                    }
+                    operation.entityRequest = makeInternalRequest(refKey, operation.entityURL, req, method, referencedParams);
+                    operation.entityResponse = new EntityHttpServletResponse(res);
+                }
+            }
+
+            // store the processed ref and url so we do not do them again
+            processedRefsAndURLs.add(reference);
+            processedRefsAndURLs.add(operation.entityURL);
+            operations.add(operation);
+        }
+        return operations;
+    }
+
+    /**
+     * Check if the operations for this batch are in the request body,
+     * this is a POST with JSON content and no {@value #REFS_PARAM_NAME} param
+     * @param req the current request
+     * @param method the batch request method
+     * @return true if the operations are in the request body
+     */
+    private boolean isBatchBody(HttpServletRequest req, Method method) {
+        if (! Method.POST.equals(method) 
+                || req.getParameter(REFS_PARAM_NAME) != null) {
+            return false;
+        }
+        String contentType = req.getContentType();
+        return contentType != null && contentType.toLowerCase().contains(Formats.JSON);
+    }
+
+    /**
+     * Creates the operations from the JSON request body, this is a list of operations
+     * (or a map with the list under {@value #BODY_OPERATIONS}) and each operation can have:<br/>
+     * {@value #BODY_URL} (required) the reference or URL to process<br/>
+     * {@value #BODY_METHOD} the method to use (GET, POST, PUT, DELETE), default GET<br/>
+     * {@value #BODY_PARAMS} a map of params (each value can be a single value or a list)<br/>
+     * {@value #BODY_BODY} the content of the request, a string is sent as is and anything else is sent as JSON<br/>
+     * {@value #BODY_CONTENT_TYPE} the content type of the body, default is text/plain for a string and JSON otherwise<br/>
+     * {@value #BODY_KEY} the key for the result (default is ref#), this is how later operations reference the result<br/>
+     * {@value #BODY_AFTER} a list of keys of earlier operations which must be complete before this one is processed<br/>
+     * The url, param values, and body can include values from the results of earlier operations 
+     * (e.g. {ref0.id}, see {@link #resolveValue(BatchOperation, String)}), an operation which does this
+     * is processed after the operations it references and is not processed if any of them fail<br/>
+     * All operations are processed (no duplicate checks) and the results are in the order of the operations
+     * @param view the current view
+     * @param req the current request
+     * @param res the current response
+     * @return the operations to process in the order of the request body
+     * @throws EntityException if the request body is not a valid list of operations
+     */
+    @SuppressWarnings("unchecked")
+    private List<BatchOperation> makeBodyOperations(EntityView view, HttpServletRequest req, HttpServletResponse res) {
+        Object decoded;
+        try {
+            Map<String, Object> body = entityEncodingManager.decodeData(req.getInputStream(), Formats.JSON);
+            decoded = body.containsKey(BODY_OPERATIONS) ? body.get(BODY_OPERATIONS) : body.get(Transcoder.DATA_KEY);
+        } catch (IOException e) {
+            throw new EntityException("Failure reading the batch request body: " + e.getMessage(), 
+                    EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+        } catch (UnsupportedOperationException e) {
+            throw new EntityException("Failure decoding the batch request body (must be a JSON list of operations): " + e.getMessage(), 
+                    EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+        }
+        if (! (decoded instanceof List)) {
+            throw new EntityException("Invalid batch request body, must be a JSON list of operations "
+                    + "(e.g. [{\""+BODY_METHOD+"\":\"GET\",\""+BODY_URL+"\":\"/direct/site/abc\"}])", 
+                    EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+        }
+        List<Object> list = (List<Object>) decoded;
+        List<BatchOperation> operations = new ArrayList<BatchOperation>(list.size());
+        Map<String, BatchOperation> keyedOperations = new HashMap<String, BatchOperation>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            String refKey = "ref" + i;
+            if (! (list.get(i) instanceof Map)) {
+                throw new EntityException("Invalid batch operation ("+refKey+"), each operation must be a JSON object: " + list.get(i), 
+                        EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+            }
+            Map<String, Object> op = (Map<String, Object>) list.get(i);
+            if (op.get(BODY_KEY) != null) {
+                refKey = op.get(BODY_KEY).toString();
+                if (! RESULT_KEY_PATTERN.matcher(refKey).matches()) {
+                    throw new EntityException("Invalid batch operation "+BODY_KEY+" ("+refKey+"), must only contain letters, numbers, - and _: " + op, 
+                            EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+                }
+            }
+            if (keyedOperations.containsKey(refKey)) {
+                throw new EntityException("Invalid batch operation "+BODY_KEY+" ("+refKey+"), the key is used by more than one operation: " + op, 
+                        EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+            }
+            Object url = op.get(BODY_URL);
+            if (url == null || "".equals(url)) {
+                throw new EntityException("Invalid batch operation ("+refKey+"), the "+BODY_URL+" must be set: " + op, 
+                        EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+            }
+            String reference = url.toString();
+            Method method = Method.GET;
+            if (op.get(BODY_METHOD) != null) {
+                method = HttpRESTUtils.makeMethodFromString(op.get(BODY_METHOD).toString().toUpperCase().trim());
+                if (! Method.GET.equals(method) 
+                        && ! Method.POST.equals(method)
+                        && ! Method.PUT.equals(method)
+                        && ! Method.DELETE.equals(method)) {
+                    throw new EntityException("Cannot batch "+method+" method for operation ("+refKey+"): " + op, 
+                            EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+                }
+            }
+            Map<String, String[]> params = makeBodyParams(op.get(BODY_PARAMS));
+            // convert the body into the request content
+            String contentType = op.get(BODY_CONTENT_TYPE) == null ? null : op.get(BODY_CONTENT_TYPE).toString();
+            String content = null;
+            Object body = op.get(BODY_BODY);
+            if (body instanceof String) {
+                content = (String) body;
+            } else if (body != null) {
+                content = entityEncodingManager.encodeData(body, Formats.JSON, null, null);
+                if (contentType == null) {
+                    contentType = Formats.JSON_MIME_TYPE;
+                }
+            }
+
+            BatchOperation operation = new BatchOperation(refKey, reference, reference);
+            operation.method = method;
+            operation.params = params;
+            operation.content = content;
+            operation.contentType = contentType;
+            if (! (body instanceof String)) {
+                operation.body = body;
+            }
+            // find the earlier operations this one depends on
+            findDependencies(operation, reference, keyedOperations);
+            for (String[] values : params.values()) {
+                for (String value : values) {
+                    findDependencies(operation, value, keyedOperations);
+                }
+            }
+            findDependencies(operation, content, keyedOperations);
+            if (op.get(BODY_AFTER) != null) {
+                Object after = op.get(BODY_AFTER);
+                List<?> afterKeys = after instanceof List ? (List<?>) after : Collections.singletonList(after);
+                for (Object key : afterKeys) {
+                    BatchOperation dependency = keyedOperations.get(key == null ? null : key.toString());
+                    if (dependency == null) {
+                        throw new EntityException("Invalid batch operation ("+refKey+"), "+BODY_AFTER+" ("+key+") must be the key of an earlier operation: " + op, 
+                                EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+                    }
+                    if (! operation.dependencies.contains(dependency)) {
+                        operation.dependencies.add(dependency);
+                    }
+                }
+            }
+            if (operation.dependencies.isEmpty()) {
+                // nothing to wait for so this can be ready to go now
+                prepareBodyOperation(operation, view, req, res);
+            }
+            keyedOperations.put(refKey, operation);
+            operations.add(operation);
+        }
+        return operations;
+    }
+
+    /**
+     * Finds the references to results of earlier operations (e.g. {ref0.id}) in a value 
+     * and adds those operations to the dependencies of the operation
+     * @param operation the operation with the value
+     * @param value any value from the operation (url, param value, body), may be null
+     * @param keyedOperations the earlier operations by key
+     */
+    private void findDependencies(BatchOperation operation, String value, Map<String, BatchOperation> keyedOperations) {
+        if (value == null || value.indexOf('{') < 0) {
+            return;
+        }
+        Matcher matcher = RESULT_REFERENCE_PATTERN.matcher(value);
+        while (matcher.find()) {
+            String key = matcher.group(1);
+            BatchOperation dependency = keyedOperations.get(key);
+            if (dependency != null) {
+                if (! operation.dependencies.contains(dependency)) {
+                    operation.dependencies.add(dependency);
+                }
+            } else if (key.equals(operation.refKey)) {
+                throw new EntityException("Invalid batch operation ("+operation.refKey+"), "
+                        + "it cannot use its own result ("+matcher.group()+")", 
+                        EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+            } else {
+                // a later or unknown key would otherwise be sent on as is
+                throw new EntityException("Invalid batch operation ("+operation.refKey+"), "
+                        + "the result ("+matcher.group()+") must be from an earlier operation (key: "+key+")", 
+                        EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+            }
+        }
+    }
+
+    /**
+     * Prepares an operation from the request body to be processed, 
+     * this fills in any values from the results of the operations it depends on (which must be complete)
+     * and creates the request for it, the result is set to an error if the operation cannot be processed
+     * @param operation the operation from the body
+     * @param view the current view
+     * @param req the current request
+     * @param res the current response
+     */
+    private void prepareBodyOperation(BatchOperation operation, EntityView view, HttpServletRequest req, HttpServletResponse res) {
+        String refKey = operation.refKey;
+        Map<String, String[]> params = operation.params;
+        String content = operation.content;
+        if (! operation.dependencies.isEmpty()) {
+            for (BatchOperation dependency : operation.dependencies) {
+                if (dependency.result == null 
+                        || dependency.result.isFailure() 
+                        || dependency.result.getStatus() >= HttpServletResponse.SC_BAD_REQUEST) {
+                    String errorMessage = "Batch operation ("+refKey+") was not processed because the operation it depends on ("+dependency.refKey+") failed";
+                    System.out.println("WARN: EntityBatchHandler: " + errorMessage);
+                    operation.result = new ResponseError(operation.reference, operation.entityURL, errorMessage);
+                    return;
+                }
+            }
+            try {
+                // put the values from the results into the operation, the url values are encoded
+                operation.reference = resolveResultReferences(operation, operation.reference, true);
+                operation.entityURL = operation.reference;
+                params = new ArrayOrderedMap<String, String[]>(params.size());
+                for (Entry<String, String[]> entry : operation.params.entrySet()) {
+                    String[] values = new String[entry.getValue().length];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = resolveResultReferences(operation, entry.getValue()[i], false);
+                    }
+                    params.put(entry.getKey(), values);
+                }
+                if (operation.body != null) {
+                    // the values go into the decoded body so they are escaped when it is encoded
+                    content = entityEncodingManager.encodeData(resolveBodyReferences(operation, operation.body), Formats.JSON, null, null);
+                } else {
+                    content = resolveResultReferences(operation, content, false);
+                }
+            } catch (IllegalArgumentException e) {
+                String errorMessage = "Batch operation ("+refKey+") could not be processed: " + e.getMessage();
+                System.out.println("WARN: EntityBatchHandler: " + errorMessage);
+                operation.result = new ResponseError(operation.reference, operation.entityURL, errorMessage);
+                return;
+            }
+        }
+
+        if (! resolveOperation(operation, view, req)) {
+            operation.result = new ResponseError(operation.reference, operation.entityURL, 
+                    "Invalid batch operation ("+refKey+"), the url ("+operation.reference+") has no entity path");
+        } else if (operation.result == null) {
+            Method method = operation.method;
+            if (operation.external) {
+                Map<String, Map<String, String[]>> referencedParams = new ArrayOrderedMap<String, Map<String, String[]>>(1);
+                referencedParams.put(UNREFERENCED_PARAMS, params);
+                operation.referencedParams = referencedParams;
+                operation.data = content;
+            } else {
+                EntityHttpServletRequest entityRequest = makeInternalRequest(refKey, operation.entityURL, req, method, null);
+                // only the params for this operation (and the ones in the URL)
+                entityRequest.clearParameters();
+                entityRequest.setParameters(params);
+                entityRequest.setParameters(entityRequest.pathQueryParams);
+                // always replace the content so the batch request body is not read again
+                entityRequest.setContentType(content == null ? null : operation.contentType);
+                entityRequest.setContent(content == null ? new byte[0] : content.getBytes(Charset.forName(Formats.UTF_8)));
+                operation.entityRequest = entityRequest;
+                operation.entityResponse = new EntityHttpServletResponse(res);
+            }
+        }
+    }
+
+    /**
+     * Replaces the references to results of earlier operations (e.g. {ref0.id}) with the values from those results
+     * @param operation the operation with the value
+     * @param value any value from the operation (url, param value, body), may be null
+     * @param encode if true the values are URL encoded
+     * @return the value with the result references replaced
+     * @throws IllegalArgumentException if a referenced value cannot be found in the result
+     */
+    private String resolveResultReferences(BatchOperation operation, String value, boolean encode) {
+        if (value == null || value.indexOf('{') < 0) {
+            return value;
+        }
+        Matcher matcher = RESULT_REFERENCE_PATTERN.matcher(value);
+        StringBuffer sb = new StringBuffer(value.length());
+        while (matcher.find()) {
+            BatchOperation dependency = null;
+            for (BatchOperation op : operation.dependencies) {
+                if (op.refKey.equals(matcher.group(1))) {
+                    dependency = op;
+                    break;
+                }
+            }
+            String replacement = matcher.group();
+            if (dependency != null) {
+                replacement = resolveValue(dependency, matcher.group(2));
+                if (replacement == null) {
+                    throw new IllegalArgumentException("the value for "+matcher.group()+" could not be found in the result of ("+dependency.refKey+")");
+                }
+                if (encode) {
+                    try {
+                        replacement = URLEncoder.encode(replacement, Formats.UTF_8).replace("+", "%20");
+                    } catch (UnsupportedEncodingException e) {
+                        throw new RuntimeException("UTF-8 encoding is not supported: " + e, e);
+                    }
+                }
+            }
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Replaces the references to results of earlier operations in all the string values of a decoded body
+     * @param operation the operation with the body
+     * @param value a decoded body value (map, list, string or other simple value)
+     * @return a copy of the value with the result references replaced
+     * @throws IllegalArgumentException if a referenced value cannot be found in the result
+     */
+    @SuppressWarnings("unchecked")
+    private Object resolveBodyReferences(BatchOperation operation, Object value) {
+        Object resolved = value;
+        if (value instanceof String) {
+            resolved = resolveResultReferences(operation, (String) value, false);
+        } else if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            Map<String, Object> resolvedMap = new ArrayOrderedMap<String, Object>(map.size());
+            for (Entry<String, Object> entry : map.entrySet()) {
+                resolvedMap.put(entry.getKey(), resolveBodyReferences(operation, entry.getValue()));
+            }
+            resolved = resolvedMap;
+        } else if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            List<Object> resolvedList = new ArrayList<Object>(list.size());
+            for (Object item : list) {
+                resolvedList.add(resolveBodyReferences(operation, item));
+            }
+            resolved = resolvedList;
+        }
+        return resolved;
+    }
+
+    /**
+     * Get a value from the result of a completed operation, the path can be:<br/>
+     * {@value #RESULT_ID} the id of the entity (from the {@link EntityRequestHandler#HEADER_ENTITY_ID} header, e.g. the id of a new entity)<br/>
+     * {@value #RESULT_STATUS} the response status<br/>
+     * {@value #RESULT_HEADER}.NAME the first value of a response header<br/>
+     * {@value #RESULT_DATA}.PATH a value from the (JSON or XML) response content, 
+     * the path is the dot separated names and list indexes (e.g. data.members.0.userId)
+     * @param operation a completed operation
+     * @param path the path to the value
+     * @return the value OR null if it cannot be found
+     */
+    @SuppressWarnings("unchecked")
+    private String resolveValue(BatchOperation operation, String path) {
+        if (! (operation.result instanceof ResponseResult)) {
+            return null;
+        }
+        ResponseResult result = (ResponseResult) operation.result;
+        if (RESULT_STATUS.equals(path)) {
+            return Integer.toString(result.getStatus());
+        }
+        String header = null;
+        if (RESULT_ID.equals(path)) {
+            header = EntityRequestHandler.HEADER_ENTITY_ID;
+        } else if (path.startsWith(RESULT_HEADER + '.')) {
+            header = path.substring(RESULT_HEADER.length() + 1);
+        }
+        if (header != null) {
+            if (result.headers != null) {
+                for (Entry<String, String[]> entry : result.headers.entrySet()) {
+                    if (header.equalsIgnoreCase(entry.getKey()) 
+                            && entry.getValue() != null && entry.getValue().length > 0) {
+                        return entry.getValue()[0];
+                    }
+                }
+            }
+            return null;
+        }
+        if (! path.startsWith(RESULT_DATA + '.')) {
+            return null;
+        }
+        // decode the content once and keep it for the other operations which use it
+        if (operation.decodedContent == null) {
+            String content;
+            String format;
+            if (operation.entityResponse != null) {
+                content = operation.entityResponse.getContentAsString();
+                format = new URLData(operation.entityURL).extension;
+            } else {
+                content = result.content;
+                format = null;
+            }
+            if (format == null || "".equals(format)) {
+                // assume JSON unless it looks like XML
+                format = content != null && content.trim().startsWith("<") ? Formats.XML : Formats.JSON;
+            }
+            try {
+                operation.decodedContent = entityEncodingManager.decodeData(content, format);
+            } catch (RuntimeException e) {
+                System.out.println("WARN: EntityBatchHandler: Unable to decode the content of ("+operation.refKey+") as "+format+": " + e);
+                return null;
+            }
+        }
+        Object current = operation.decodedContent;
+        for (String name : path.substring(RESULT_DATA.length() + 1).split("\\.")) {
+            if (current instanceof Map) {
+                current = ((Map<String, Object>) current).get(name);
+            } else if (current instanceof List) {
+                try {
+                    int index = Integer.parseInt(name);
+                    List<Object> list = (List<Object>) current;
+                    current = index >= 0 && index < list.size() ? list.get(index) : null;
+                } catch (NumberFormatException e) {
+                    current = null;
+                }
+            } else {
+                current = null;
+            }
+            if (current == null) {
+                return null;
+            }
+        }
+        if (current instanceof Map || current instanceof List) {
+            // only simple values can be used
+            return null;
+        }
+        return current.toString();
+    }
+
+    /**
+     * @param params the params for a body operation (should be a map of name to value or list of values)
+     * @return the params as request params
+     */
+    private Map<String, String[]> makeBodyParams(Object params) {
+        Map<String, String[]> requestParams = new ArrayOrderedMap<String, String[]>();
+        if (params instanceof Map) {
+            for (Entry<?, ?> entry : ((Map<?, ?>) params).entrySet()) {
+                Object value = entry.getValue();
+                String[] values;
+                if (value == null) {
+                    values = new String[] {""};
+                } else if (value instanceof List) {
+                    List<?> list = (List<?>) value;
+                    values = new String[list.size()];
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = list.get(j) == null ? "" : list.get(j).toString();
+                    }
+                } else {
+                    values = new String[] {value.toString()};
+                }
+                requestParams.put(entry.getKey().toString(), values);
+            }
+        } else if (params != null) {
+            throw new EntityException("Invalid batch operation "+BODY_PARAMS+" ("+params+"), must be a JSON object", 
+                    EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
+        }
+        return requestParams;
+    }
+
+    /**
+     * Works out the URL to process for a reference and if it is internal (EB) or external,
+     * internal GET URLs are rebuilt with the batch format and external URLs are made into full URLs
+     * @param refKey the key for the reference (e.g. ref0)
+     * @param reference the reference or URL
+     * @param method the method for this reference
+     * @param view the current view
+     * @param req the current request
+     * @return the operation (with an error result if the reference is invalid) 
+     * or null if the reference is this servlet only (which is not processed)
+     * @throws EntityException if the reference is another batch
+     */
+    private BatchOperation makeOperation(String refKey, String reference, Method method, EntityView view, HttpServletRequest req) {
+        BatchOperation operation = new BatchOperation(refKey, reference, reference);
+        operation.method = method;
+        return resolveOperation(operation, view, req) ? operation : null;
+    }
+
+    /**
+     * Works out the URL to process for the reference in an operation (see {@link #makeOperation(String, String, Method, EntityView, HttpServletRequest)}),
+     * the result is set to an error if the reference is invalid
+     * @param operation the operation with the reference and method set
+     * @param view the current view
+     * @param req the current request
+     * @return false if the reference is this servlet only (which is not processed), true otherwise
+     * @throws EntityException if the reference is another batch
+     */
+    private boolean resolveOperation(BatchOperation operation, EntityView view, HttpServletRequest req) {
+        String reference = operation.reference;
+        Method method = operation.method;
+        String format = view.getFormat();
+        String servletContext = getServletContext(); // will be the servlet context (e.g. /direct)
+        // fix anything that does not start with a slash or http
+        String entityURL = reference;
+        if (! reference.startsWith("/") 
+                && ! reference.startsWith("http://")) {
+            // assume this is an EB entity url without the slash
+            entityURL = servletContext + EntityView.SEPARATOR + reference;
+        }
+        // make sure no one tries to batch a batch
+        if (reference.startsWith(EntityRequestHandler.SLASH_BATCH)
+                || reference.startsWith( getServletBatch() )) {
+            throw new EntityException("Failure processing batch request, "
+                    + "batch reference ("+reference+") ("+entityURL+") appears to be another "
+                    + "batch URL (contains "+EntityRequestHandler.SLASH_BATCH+"), "
+                    + "failure in batch request: " + view,
+                    EntityRequestHandler.SLASH_BATCH, 
+                    HttpServletResponse.SC_BAD_REQUEST);
+        }
+
+        // parse the entityURL, should hopefully not cause a failure
+        URLData ud = new URLData(entityURL);
+
+        /*
+         * identify the EB direct operations - 
+         * this allows us to strip extensions and cleanup direct URLs as needed,
+         * possibly also handle these specially later on if desired,
+         * only EB operations can be handled internally
+         */
+        if ( servletContext.equals(ud.contextPath) ) {
+            if (ud.pathInfo == null || "".equals(ud.pathInfo)) {
+                // looks like this servlet only with no path and we do not process that
+                return false;
+            }
+
+            boolean success = false;
+            try {
+                // parse the entityURL to verify it
+                entityBrokerManager.parseReference(ud.pathInfo);
+                success = true;
+            } catch (IllegalArgumentException e) {
+                String errorMessage = "Failure parsing direct entityURL ("+entityURL+") from reference ("+reference+") from path ("+ud.pathInfo+"): " + e.getMessage() + ":" + e.getCause();
+                System.out.println("WARN: EntityBatchHandler: " + errorMessage);
+                operation.result = new ResponseError(reference, entityURL, errorMessage);
+            }
+
+            if (success) {
+                if (Method.GET.equals(method)) {
+                    // rebuild the entityURL with the correct extension in there for GET
+                    StringBuilder sb = new StringBuilder();
+                    sb.append( servletContext );
+                    sb.append(ud.pathInfoNoExtension);
+                    sb.append(EntityView.PERIOD);
+                    sb.append(format);
+                    if (ud.query.length() > 0) {
+                        // add on the query string
+                        sb.append('?');
+                        sb.append(ud.query);
+                    }
+                    entityURL = sb.toString();
+                }
+            }
+
+        } else {
+            // non-EB URL so we have to fire it off using the HttpUtils
+
+            // relative URLs are on this server, anything else is some other host
+            boolean thisServer = entityURL.startsWith("/");
+            // http utils requires full URLs
+            entityURL = makeFullExternalURL(req, entityURL);
+
+            operation.external = true;
+            if (thisServer) {
+                // the shared client holds no cookies so the ones for this request are sent with each call,
+                // they are never sent to other hosts since they include the session
+                operation.cookies = req.getCookies();
+            }
+        }
+        operation.entityURL = entityURL;
+        return true;
+    }
+
+    /**
+     * @return the methods (uppercase) which can be processed in parallel, empty if parallel processing is disabled
+     */
+    private HashSet<String> getParallelMethods() {
+        HashSet<String> parallelMethods = new HashSet<String>();
+        if (externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_PARALLEL, CONFIG_BATCH_PARALLEL_DEFAULT)) {
+            String methods = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_PARALLEL_METHODS, CONFIG_BATCH_PARALLEL_METHODS_DEFAULT);
+            if (methods != null) {
+                for (String m : methods.split(",")) {
+                    parallelMethods.add(m.trim().toUpperCase());
+                }
+            }
+            // POST always creates things in order
+            parallelMethods.remove(Method.POST.name());
+        }
+        return parallelMethods;
+    }
+
+    /**
+     * Check if the references in this batch can be processed in parallel
+     * @param operations the operations in the batch
+     * @return true if parallel processing is enabled for the methods of all the operations 
+     * and there is more than one reference to process
+     */
+    private boolean isParallel(List<BatchOperation> operations) {
+        HashSet<String> parallelMethods = getParallelMethods();
+        if (parallelMethods.isEmpty()) {
+            return false;
+        }
+        int count = 0;
+        for (BatchOperation operation : operations) {
+            if (operation.result == null) {
+                // mixed methods which are not all allowed are processed in order
+                if (! parallelMethods.contains(operation.method.name())) {
+                    return false;
+                }
+                count++;
+            }
+        }
+        return count > 1;
+    }
+
+    /**
+     * @param operations the operations in the batch
+     * @return true if any operation depends on the result of another one
+     */
+    private boolean hasDependencies(List<BatchOperation> operations) {
+        for (BatchOperation operation : operations) {
+            if (! operation.dependencies.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the time (in millis) at which the batch must be complete, 0 if there is no limit
+     */
+    private long getBatchDeadline() {
+        int timeout = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_TIMEOUT, CONFIG_BATCH_TIMEOUT_DEFAULT);
+        return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    }
+
+    /**
+     * Process the references one at a time on the request thread
+     * @param operations the operations in the batch (results are placed into these)
+     */
+    private void executeSerial(List<BatchOperation> operations) {
+        long deadline = getBatchDeadline();
+        for (BatchOperation operation : operations) {
+            if (operation.result != null) {
+                continue; // already failed
+            }
+            if (deadline > 0 && System.currentTimeMillis() > deadline) {
+                operation.result = operation.makeTimeoutError();
+                continue;
+            }
+            operation.result = operation.call();
+        }
+    }
+
+    /**
+     * Process the references on the batch worker threads, the request thread state
+     * (request storage, context classloader, and any external state like the user session)
+     * is carried over to the workers, results are collected in the order of the operations
+     * @param operations the operations in the batch (results are placed into these)
+     */
+    private void executeParallel(List<BatchOperation> operations) {
+        long deadline = getBatchDeadline();
+        ExecutorService executor = getBatchExecutor();
+        WorkerState workerState = new WorkerState();
+
+        List<Future<ResponseBase>> futures = new ArrayList<Future<ResponseBase>>(operations.size());
+        for (BatchOperation operation : operations) {
+            Future<ResponseBase> future = null;
+            if (operation.result == null) {
+                try {
+                    future = executor.submit(workerState.makeTask(operation));
+                } catch (RejectedExecutionException e) {
+                    // too busy (or shutting down) so process it on the request thread
+                    operation.result = operation.call();
+                }
+            }
+            futures.add(future);
+        }
+
+        long graceEnd = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            Future<ResponseBase> future = futures.get(i);
+            if (future == null) {
+                continue;
+            }
+            BatchOperation operation = operations.get(i);
+            try {
+                if (deadline > 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    operation.result = future.get(wait > 0 ? wait : 0, TimeUnit.MILLISECONDS);
+                } else {
+                    operation.result = future.get();
+                }
+            } catch (TimeoutException e) {
+                if (graceEnd == 0) {
+                    graceEnd = getGraceEnd(deadline);
+                }
+                operation.result = cancelAfterDeadline(operation, future, graceEnd);
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                operation.result = operation.makeInterruptedError();
+            } catch (ExecutionException e) {
+                operation.result = operation.makeFailureError(e.getCause());
+            }
+        }
+    }
 
-        // validate the the refs param
-        String[] refs = getRefsOrFail(req);
+    /**
+     * Stops an operation which did not complete before the batch deadline,
+     * a GET is interrupted and fails with a timeout but a change (PUT, DELETE, POST) which
+     * already started gets a grace period ({@value #CONFIG_BATCH_TIMEOUT_GRACE}) to finish so that 
+     * its result reports what actually happened, if it is still running after that it is left to finish 
+     * and reported as an error with an unknown outcome
+     * @param operation the operation which is not complete
+     * @param future the future for the operation
+     * @param graceEnd the time (in millis) at which started changes are no longer waited for
+     * @return the result for the operation
+     */
+    private ResponseBase cancelAfterDeadline(BatchOperation operation, Future<ResponseBase> future, long graceEnd) {
+        if (Method.GET.equals(operation.method)) {
+            future.cancel(true);
+            return operation.makeTimeoutError();
+        }
+        if (operation.started.compareAndSet(false, true)) {
+            // never started (and now it never will)
+            future.cancel(false);
+            return operation.makeTimeoutError();
+        }
+        ResponseBase result;
+        try {
+            long wait = graceEnd - System.currentTimeMillis();
+            result = future.get(wait > 0 ? wait : 0, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // not interrupted since that could leave the change half done
+            result = operation.makeUnknownOutcomeError();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = operation.makeInterruptedError();
+        } catch (ExecutionException e) {
+            result = operation.makeFailureError(e.getCause());
+        }
+        return result;
+    }
 
-        // decode the params into a set of reference params
-        Map<String, Map<String, String[]>> referencedParams = extractReferenceParams(req, method, refs);
+    /**
+     * @param deadline the batch deadline (in millis)
+     * @return the time (in millis) at which changes which already started are no longer waited for
+     */
+    private long getGraceEnd(long deadline) {
+        int grace = externalIntegrationProvider.getConfigurationSetting(CONFIG_BATCH_TIMEOUT_GRACE, CONFIG_BATCH_TIMEOUT_GRACE_DEFAULT);
+        return deadline + (grace > 0 ? grace : 0);
+    }
 
-        // loop through all references
-        HashSet<String> processedRefsAndURLs = new HashSet<String>(); // holds all refs which we processed in this batch
-        HashMap<String, String> dataMap = new ArrayOrderedMap<String, String>(); // the returned content data from each ref
-        Map<String, ResponseBase> results = new ArrayOrderedMap<String, ResponseBase>(); // the results of all valid refs
-        boolean successOverall = false; // true if all ok or partial ok, false if exception occurs or all fail
-        boolean failure = false;
-        for (int i = 0; i < refs.length; i++) {
-            String refKey = "ref" + i;
-            String reference = refs[i];
-            // validate the reference is not blank
-            if (reference == null || "".equals(reference)) {
-                continue; // skip
+    /**
+     * Process operations which depend on the results of other operations, 
+     * each operation is prepared (on the request thread) and started as soon as the operations it depends on are complete,
+     * operations which do not depend on each other are processed in parallel (if allowed for their methods),
+     * operations with methods which cannot be processed in parallel are still processed in order
+     * @param operations the operations in the batch (results are placed into these)
+     * @param view the current view
+     * @param req the current request
+     * @param res the current response
+     */
+    private void executeDependent(List<BatchOperation> operations, EntityView view, HttpServletRequest req, HttpServletResponse res) {
+        long deadline = getBatchDeadline();
+        HashSet<String> parallelMethods = getParallelMethods();
+        boolean parallel = ! parallelMethods.isEmpty();
+
+        // work out what each operation has to wait for
+        Map<BatchOperation, List<BatchOperation>> waitFor = new HashMap<BatchOperation, List<BatchOperation>>(operations.size());
+        HashSet<BatchOperation> done = new HashSet<BatchOperation>(operations.size());
+        List<BatchOperation> waiting = new ArrayList<BatchOperation>(operations.size());
+        BatchOperation lastOrdered = null;
+        for (BatchOperation operation : operations) {
+            if (operation.result != null) {
+                done.add(operation); // already failed
+                continue;
             }
-            // skip refs that are already done, we do not process twice unless it is a POST
-            // NOTE: this duplicate check happens again slightly down below so change both at once
-            if (! Method.POST.equals(method) 
-                    && processedRefsAndURLs.contains(reference)) {
-                System.out.println("WARN: EntityBatchHandler: Found a duplicate reference, this will not be processed: " + reference);
-                continue; // skip for GET/DELETE/PUT
+            List<BatchOperation> waits = new ArrayList<BatchOperation>(operation.dependencies);
+            if (! parallelMethods.contains(operation.method.name())) {
+                if (lastOrdered != null && ! waits.contains(lastOrdered)) {
+                    waits.add(lastOrdered);
+                }
+                lastOrdered = operation;
             }
-            // fix anything that does not start with a slash or http
-            String entityURL = reference;
-            if (! reference.startsWith("/") 
-                    && ! reference.startsWith("http://")) {
-                // assume this is an EB entity url without the slash
-                entityURL = servletContext + EntityView.SEPARATOR + reference;
-            }
-            // make sure no one tries to batch a batch
-            if (reference.startsWith(EntityRequestHandler.SLASH_BATCH)
-                    || reference.startsWith( getServletBatch() )) {
-                throw new EntityException("Failure processing batch request, "
-                        + "batch reference ("+reference+") ("+entityURL+") appears to be another "
-                        + "batch URL (contains "+EntityRequestHandler.SLASH_BATCH+"), "
-                        + "failure in batch request: " + view,
-                        EntityRequestHandler.SLASH_BATCH, 
-                        HttpServletResponse.SC_BAD_REQUEST);
-            }
-
-            // in case there are external ones we will reuse this httpclient
-            HttpClientWrapper clientWrapper = null;
-
-            // object will hold the results of this reference request
-            ResponseBase result = null;
-
-            // parse the entityURL, should hopefully not cause a failure
-            URLData ud = new URLData(entityURL);
-
-            /*
-             * identify the EB direct operations - 
-             * this allows us to strip extensions and cleanup direct URLs as needed,
-             * possibly also handle these specially later on if desired,
-             * only EB operations can be handled internally
-             */
-            if ( servletContext.equals(ud.contextPath) ) {
-                if (ud.pathInfo == null || "".equals(ud.pathInfo)) {
-                    // looks like this servlet only with no path and we do not process that
+            waitFor.put(operation, waits);
+            waiting.add(operation);
+        }
+
+        WorkerState workerState = parallel ? new WorkerState() : null;
+        CompletionService<ResponseBase> completion = parallel ? new ExecutorCompletionService<ResponseBase>(getBatchExecutor()) : null;
+        Map<Future<ResponseBase>, BatchOperation> running = new HashMap<Future<ResponseBase>, BatchOperation>();
+        while (! waiting.isEmpty() || ! running.isEmpty()) {
+            // start everything which is ready
+            boolean progress = false;
+            for (Iterator<BatchOperation> iterator = waiting.iterator(); iterator.hasNext();) {
+                BatchOperation operation = iterator.next();
+                if (! done.containsAll(waitFor.get(operation))) {
                     continue;
                 }
-
-                boolean success = false;
-                try {
-                    // parse the entityURL to verify it
-                    entityBrokerManager.parseReference(ud.pathInfo);
-                    success = true;
-                } catch (IllegalArgumentException e) {
-                    String errorMessage = "Failure parsing direct entityURL ("+entityURL+") from reference ("+reference+") from path ("+ud.pathInfo+"): " + e.getMessage() + ":" + e.getCause();
-                    System.out.println("WARN: EntityBatchHandler: " + errorMessage);
-                    result = new ResponseError(reference, entityURL, errorMessage);
-                }
-
-                if (success) {
-                    if (Method.GET.equals(method)) {
-                        // rebuild the entityURL with the correct extension in there for GET
-                        StringBuilder sb = new StringBuilder();
-                        sb.append( servletContext );
-                        sb.append(ud.pathInfoNoExtension);
-                        sb.append(EntityView.PERIOD);
-                        sb.append(format);
-                        if (ud.query.length() > 0) {
-                            // add on the query string
-                            sb.append('?');
-                            sb.append(ud.query);
+                iterator.remove();
+                progress = true;
+                if (deadline > 0 && System.currentTimeMillis() > deadline) {
+                    operation.result = operation.makeTimeoutError();
+                } else {
+                    if (operation.entityRequest == null && ! operation.external) {
+                        try {
+                            prepareBodyOperation(operation, view, req, res);
+                        } catch (EntityException e) {
+                            operation.result = operation.makeFailureError(e);
                         }
-                        entityURL = sb.toString();
                     }
-
-                    // skip URLs that are already done, we do not process twice unless it is a POST
-                    // NOTE: this duplicate check happens again slightly above so change both at once
-                    if (! Method.POST.equals(method) 
-                            && processedRefsAndURLs.contains(entityURL)) {
-                        System.out.println("WARN: EntityBatchHandler: Found a duplicate entityURL, this will not be processed: " + entityURL);
-                        continue; // skip
+                    if (operation.result == null && parallel) {
+                        try {
+                            running.put(completion.submit(workerState.makeTask(operation)), operation);
+                            continue;
+                        } catch (RejectedExecutionException e) {
+                            // too busy (or shutting down) so process it on the request thread
+                        }
+                    }
+                    if (operation.result == null) {
+                        operation.result = operation.call();
                     }
-
-                    result = generateInternalResult(refKey, reference, entityURL, req, res, method, referencedParams);
                 }
-
-            } else {
-                // non-EB URL so we have to fire it off using the HttpUtils
-
-                // http utils requires full URLs
-                entityURL = makeFullExternalURL(req, entityURL);
-
-                // set the client wrapper with cookies so we can reuse it for efficiency
-                if (clientWrapper == null) {
-                    clientWrapper = HttpRESTUtils.makeReusableHttpClient(false, 0, req.getCookies());
+                done.add(operation);
+            }
+            if (progress) {
+                continue; // more may be ready now
+            }
+            if (running.isEmpty()) {
+                // should not be possible since operations only depend on earlier ones
+                for (BatchOperation operation : waiting) {
+                    operation.result = operation.makeFailureError(new IllegalStateException("the operations it depends on were not processed"));
                 }
-                result = generateExternalResult(refKey, reference, entityURL, method, referencedParams, clientWrapper);
+                break;
             }
 
-            // special handling for null result (should really not happen unless there was a logic error)
-            if (result == null) {
-                successOverall = false;
-                failure = true;
-                throw new IllegalStateException("Somehow the result is null, this should never happen, fatal error");
+            // wait for a running operation to complete
+            Future<ResponseBase> future = null;
+            try {
+                if (deadline > 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    future = completion.poll(wait > 0 ? wait : 0, TimeUnit.MILLISECONDS);
+                } else {
+                    future = completion.take();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Entry<Future<ResponseBase>, BatchOperation> entry : running.entrySet()) {
+                    entry.getKey().cancel(true);
+                    entry.getValue().result = entry.getValue().makeInterruptedError();
+                }
+                for (BatchOperation operation : waiting) {
+                    operation.result = operation.makeInterruptedError();
+                }
+                break;
             }
-
-            if (result instanceof ResponseError) {
-                // looks like a failure occurred, keep going though
-                successOverall = false;
-                failure = true;
-            } else {
-                // all ok, process data
-                int status = result.getStatus();
-                if (status >= 200 && status < 300) {
-                    successOverall = true;
+            if (future == null) {
+                // timed out so everything which is not done fails (except changes which already started)
+                long graceEnd = getGraceEnd(deadline);
+                for (Entry<Future<ResponseBase>, BatchOperation> entry : running.entrySet()) {
+                    entry.getValue().result = cancelAfterDeadline(entry.getValue(), entry.getKey(), graceEnd);
                 }
-                if (status == HttpServletResponse.SC_NO_CONTENT) {
-                    // no content to process
-                    ((ResponseResult)result).content = null;
-                    ((ResponseResult)result).data = null;
-                } else {
-                    // process the content and see if it matches the expected result, if not we have to dump it in escaped
-                    String content = ((ResponseResult)result).content;
-                    String dataKey = checkContent(format, content, refKey, dataMap);
-                    ((ResponseResult)result).setDataKey(dataKey);
+                for (BatchOperation operation : waiting) {
+                    operation.result = operation.makeTimeoutError();
                 }
+                break;
             }
-
-            // store the processed ref and url so we do not do them again
-            processedRefsAndURLs.add(reference);
-            processedRefsAndURLs.add(entityURL);
-            results.put(refKey, result); // use an artificial key
-        }
-
-        // determine overall status
-        int overallStatus = HttpServletResponse.SC_OK;
-        if (failure == true || successOverall == false) {
-            overallStatus = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            BatchOperation operation = running.remove(future);
+            try {
+                operation.result = future.get();
+            } catch (InterruptedException e) {
+                // the future is complete so this cannot happen
+                Thread.currentThread().interrupt();
+                operation.result = operation.makeInterruptedError();
+            } catch (ExecutionException e) {
+                operation.result = operation.makeFailureError(e.getCause());
+            }
+            done.add(operation);
         }
+    }
 
-        // die if every ref was invalid
-        if (results.size() == 0) {
-            throw new EntityException("Invalid request which resulted in no valid references to batch process, original _refs=("
-                    +ArrayUtils.arrayToString(refs)+")", EntityRequestHandler.SLASH_BATCH, HttpServletResponse.SC_BAD_REQUEST);
-        }
+    /**
+     * Holds the request thread state (request storage, context classloader, 
+     * and any external state like the user session) so it can be carried over to the batch worker threads
+     */
+    private class WorkerState {
+        final ClassLoader classLoader;
+        final RequestGetterWrite requestGetter;
+        final RequestStorageWrite requestStorage;
+        final Map<String, Object> storedValues;
+        final ThreadStatePropagator propagator;
+        final Object threadState;
 
-        // compile all the responses into encoded data
-        String overallData = entityEncodingManager.encodeData(results, format, "refs", null);
-        if (Formats.XML.equals(format)) {
-            overallData = EntityEncodingManager.XML_HEADER + overallData;
+        /**
+         * Captures the state, must be created on the request thread
+         */
+        WorkerState() {
+            classLoader = Thread.currentThread().getContextClassLoader();
+            requestGetter = entityBrokerManager.getRequestGetter();
+            requestStorage = entityBrokerManager.getRequestStorage();
+            storedValues = requestStorage == null ? null 
+                    : requestStorage.getStorageMapCopy(true, false, false, false);
+            propagator = externalIntegrationProvider instanceof ThreadStatePropagator 
+                    ? (ThreadStatePropagator) externalIntegrationProvider : null;
+            threadState = propagator == null ? null : propagator.captureThreadState();
         }
-        // replace the data unique keys if there are any
-        overallData = reintegrateDataContent(format, dataMap, overallData);
 
-        // put response, headers, and code into the http response
-        applyOverallHeaders(res, results);
-        // put content into the response
-        try {
-            res.getWriter().write(overallData);
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to encode data for overall response: " + e.getMessage(), e);
+        /**
+         * @param operation the operation to process
+         * @return the task which processes the operation on a worker thread with the request thread state
+         */
+        Callable<ResponseBase> makeTask(final BatchOperation operation) {
+            return new Callable<ResponseBase>() {
+                public ResponseBase call() {
+                    if (! operation.started.compareAndSet(false, true)) {
+                        // already failed with a timeout before it could start
+                        return null;
+                    }
+                    Thread current = Thread.currentThread();
+                    ClassLoader currentLoader = current.getContextClassLoader();
+                    current.setContextClassLoader(classLoader);
+                    /* the batch request and response are NOT bound to the worker since a worker can outlive the batch
+                     * (if it times out) and the container may recycle them, internal references bind their own
+                     */
+                    if (requestStorage != null) {
+                        requestStorage.setRequestValues(storedValues);
+                    }
+                    try {
+                        if (propagator != null) {
+                            propagator.applyThreadState(threadState);
+                        }
+                        return operation.call();
+                    } finally {
+                        if (propagator != null) {
+                            propagator.clearThreadState(threadState);
+                        }
+                        if (requestStorage != null) {
+                            requestStorage.reset();
+                        }
+                        if (requestGetter != null) {
+                            requestGetter.setRequest(null);
+                            requestGetter.setResponse(null);
+                        }
+                        current.setContextClassLoader(currentLoader);
+                    }
+                }
+            };
         }
-        // set encoding
-        RequestUtils.setResponseEncoding(format, res);
-        // set overall status code
-        res.setStatus(overallStatus);
     }
 
     /**
@@ -482,14 +1543,12 @@ public class EntityBatchHandler {
 
 
     /**
-     * Processing internal (EB) requests
-     * @return the result from the request (may be an error)
+     * Creates the request for an internal (EB) reference, this copies from the current request
+     * so it is done on the request thread before the reference is processed
+     * @return the request to process the reference with
      */
-    private ResponseBase generateInternalResult(String refKey, String reference, String entityURL, HttpServletRequest req, 
-            HttpServletResponse res, Method method, Map<String, Map<String, String[]>> referencedParams) {
-        ResponseBase result = null;
-        ResponseError error = null;
-
+    private EntityHttpServletRequest makeInternalRequest(String refKey, String entityURL, HttpServletRequest req, 
+            Method method, Map<String, Map<String, String[]>> referencedParams) {
         /* WARNING: This is important to understand why this was done as is
          * First of all, forget the servlet forwarding, it is hopeless.
          * Why you ask? This is why, tomcat 5 has issues with calling forward using a set of custom
@@ -511,7 +1570,9 @@ public class EntityBatchHandler {
 
         EntityHttpServletRequest entityRequest = new EntityHttpServletRequest(req, entityURL);
         entityRequest.setContextPath("");
-        if (Method.POST.equals(method) || Method.PUT.equals(method) ) {
+        entityRequest.setMethod(method.name());
+        if (referencedParams != null 
+                && (Method.POST.equals(method) || Method.PUT.equals(method)) ) {
             // set only the unreferenced and correct referenced params for this request
             entityRequest.clearParameters(); // also clears REFS_PARAM_NAME
             entityRequest.setParameters( referencedParams.get(UNREFERENCED_PARAMS) );
@@ -525,8 +1586,33 @@ public class EntityBatchHandler {
         } else {
             entityRequest.removeParameter(REFS_PARAM_NAME); // make sure this is not passed along
         }
+        // the content is placed into the batch response so it must not be compressed on its own
+        // (the header name case depends on the container)
+        Enumeration<?> headerNames = entityRequest.getHeaderNames();
+        while (headerNames.hasMoreElements()) {
+            String name = (String) headerNames.nextElement();
+            if (EntityEncodingManager.HEADER_ACCEPT_ENCODING.equalsIgnoreCase(name)) {
+                entityRequest.removeHeader(name);
+            }
+        }
         entityRequest.setUseRealDispatcher(false); // we do not want to actually have the container handle forwarding
-        EntityHttpServletResponse entityResponse = new EntityHttpServletResponse(res);
+        entityRequest.setAttribute(EntityRequestHandler.EMBEDDED_OUTPUT, Boolean.TRUE); // no xml header or doctype to strip out
+        return entityRequest;
+    }
+
+    /**
+     * Processing internal (EB) requests
+     * @param operation the batch operation with the request and response to use
+     * @return the result from the request (may be an error)
+     */
+    private ResponseBase generateInternalResult(BatchOperation operation) {
+        ResponseBase result = null;
+        ResponseError error = null;
+
+        String reference = operation.reference;
+        String entityURL = operation.entityURL;
+        EntityHttpServletRequest entityRequest = operation.entityRequest;
+        EntityHttpServletResponse entityResponse = operation.entityResponse;
 
         boolean redirected = false;
         do {
@@ -582,15 +1668,13 @@ public class EntityBatchHandler {
         // create the result object to encode and place into the final response
         if (error == null && entityResponse != null) {
             // all ok, create the result for the response object
-            // all cookies go into the main response
-            Cookie[] cookies = entityResponse.getCookies();
-            for (Cookie cookie : cookies) {
-                res.addCookie(cookie);
-            }
             // status codes are compiled
             int status = entityResponse.getStatus();
-            // create the result (with raw content)
-            result = new ResponseResult(reference, entityURL, status, entityResponse.getHeaders(), entityResponse.getContentAsString());
+            // create the result (the content stays in the response until it is written out)
+            ResponseResult responseResult = new ResponseResult(reference, entityURL, status, entityResponse.getHeaders());
+            // all cookies go into the main response (added on the request thread)
+            responseResult.cookies = entityResponse.getCookies();
+            result = responseResult;
         } else {
             result = error;
         }
@@ -602,7 +1686,7 @@ public class EntityBatchHandler {
      * @return the result from the request (may be an error)
      */
     private ResponseBase generateExternalResult(String refKey, String reference, String entityURL, Method method, 
-            Map<String, Map<String, String[]>> referencedParams, HttpClientWrapper clientWrapper) {
+            Map<String, Map<String, String[]>> referencedParams, Object data, Cookie[] cookies) {
         ResponseBase result = null;
         ResponseError error = null;
 
@@ -644,10 +1728,10 @@ public class EntityBatchHandler {
         // fire off the request and hope it does not die horribly
         HttpResponse httpResponse = null;
         try {
-            httpResponse = HttpRESTUtils.fireRequest(clientWrapper, 
+            httpResponse = HttpRESTUtils.fireRequest(getBatchHttpClient(), 
                     entityURL, 
                     method,
-                    params, null, guaranteeSSL);
+                    params, null, data, guaranteeSSL, cookies);
         } catch (RuntimeException e) {
             String errorMessage = "Failure attempting to process external URL ("+entityURL+") from reference ("+reference+"): " + e.getMessage() + ":" + e;
             System.out.println("WARN: EntityBatchHandler: " + errorMessage);
@@ -730,65 +1814,127 @@ public class EntityBatchHandler {
     }
 
     /**
-     * Takes the overall data and reintegrates any content data that is waiting to be merged,
-     * this may do nothing if there is no content to merge
-     * @return the integrated data content
+     * Checks that the content is in the correct format, if it is then it is placed into the result data
+     * and written into the batch response as is, if it is in the wrong format it will be encoded as a string,
+     * the content of internal references is checked and written out without decoding it
+     * @param format the format of the batch response
+     * @param operation the processed batch operation
+     * @param result the result of the operation
      */
-    private String reintegrateDataContent(String format, HashMap<String, String> dataMap,
-            String overallData) {
-        StringBuilder sb = new StringBuilder();
-        int curLoc = 0;
-        for (Entry<String, String> entry : dataMap.entrySet()) {
-            // looping order is critical here, it must be in the same order it was added
-            if (entry.getKey() != null && ! "".equals(entry.getKey())) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-                if (Formats.XML.equals(format)) {
-                    value = "\n" + value; // add in a break
-                } else if (Formats.JSON.equals(format)) {
-                    key = '"' + key + '"'; // have to also replace the quotes
+    private void checkContent(String format, BatchOperation operation, ResponseResult result) {
+        // only the text formats can hold the content as is
+        boolean raw = entityEncodingManager.transcoderStreams(format);
+        EntityHttpServletResponse entityResponse = operation.entityResponse;
+        if (result.content == null && entityResponse != null) {
+            if (raw && Formats.UTF_8.equalsIgnoreCase(entityResponse.getCharacterEncoding())) {
+                ByteBuffer content = trimContent(entityResponse.getContentAsByteBuffer());
+                if (Formats.XML.equals(format) 
+                        || Formats.HTML.equals(format)) {
+                    // strip off the xml header and doctype if it exists (internal requests are encoded without them)
+                    content = stripOutXMLTag(content, "<?", "?>");
+                    content = stripOutXMLTag(content, "<!DOCTYPE", ">");
                 }
-                int keyLoc = overallData.indexOf(key);
-                if (keyLoc > -1) {
-                    sb.append( overallData.subSequence(curLoc, keyLoc) );
-                    sb.append( value );
-                    curLoc = keyLoc + key.length();
+                if (! content.hasRemaining()) {
+                    result.content = "";
+                } else if (validateContent(content, format)) {
+                    result.setData(new ResponseContent(content));
+                } else {
+                    result.content = entityResponse.getContentAsString();
                 }
-                //overallData = overallData.replace(key, value);
+                return;
             }
+            result.content = entityResponse.getContentAsString();
         }
-        // add in the remainder of the overall data string
-        sb.append( overallData.subSequence(curLoc, overallData.length()) );
-        return sb.toString();
-    }
-
-    /**
-     * Checks that the content is in the correct format and is not too large,
-     * if it is too large it will not be processed and if it is in the wrong format it will be encoded as a data chunk,
-     * it is OK it will be placed into the dataMap and reintegrated after encoding
-     * @param content this it the content of the response body (if null then no processing occurs, null returned)
-     * @return the dataKey which maps to the real content, need replace the key later OR null if the content is empty or too large
-     */
-    private String checkContent(String format, String content, String refKey,
-            HashMap<String, String> dataMap) {
-        String dataKey = null;
-        if (content != null) {
+        String content = result.content;
+        if (content != null && raw) {
             content = content.trim();
             if (! "".equals(content)) {
                 if (entityEncodingManager.validateFormat(content, format)) {
                     if (Formats.XML.equals(format) 
                             || Formats.HTML.equals(format)) {
-                        // strip off the xml header and doctype if it exists
-                        content = stripOutXMLTag(content, "<?", "?>");
-                        content = stripOutXMLTag(content, "<!DOCTYPE", ">");
+                        // strip off the xml header and doctype if it exists (internal requests are encoded without them)
+                        if (content.startsWith("<?")) {
+                            content = stripOutXMLTag(content, "<?", "?>");
+                        }
+                        if (content.startsWith("<!DOCTYPE")) {
+                            content = stripOutXMLTag(content, "<!DOCTYPE", ">");
+                        }
                     }
-                    // valid for the current format so insert later instead of merging now
-                    dataKey = UNIQUE_DATA_PREFIX + refKey;
-                    dataMap.put(dataKey, content);
+                    // valid for the current format so insert it as is
+                    result.setData(new ResponseContent(content));
                 }
             }
         }
-        return dataKey;
+    }
+
+    /**
+     * Checks the content in the same way as {@link EntityEncodingManager#validateFormat(String, String)}
+     * without decoding it
+     * @param content trimmed UTF-8 content (not empty)
+     * @param format the format to check for
+     * @return true if the content appears to be in the format
+     */
+    private boolean validateContent(ByteBuffer content, String format) {
+        byte first = content.get(content.position());
+        byte last = content.get(content.limit() - 1);
+        if (Formats.XML.equals(format) 
+                || Formats.HTML.equals(format)) {
+            return first == '<' && last == '>';
+        } else if (Formats.JSON.equals(format)) {
+            return first == '{' && last == '}';
+        }
+        return true;
+    }
+
+    /**
+     * @param content UTF-8 content
+     * @return the content without the leading and trailing whitespace
+     */
+    private ByteBuffer trimContent(ByteBuffer content) {
+        int start = content.position();
+        int end = content.limit();
+        while (start < end && (content.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (content.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        content.limit(end);
+        content.position(start);
+        return content;
+    }
+
+    /**
+     * Strips a tag from the start of the content (if it is there) without decoding it
+     * @param content trimmed UTF-8 content
+     * @param startTag the starting tag (e.g. "<?" or "<blah")
+     * @param endTag the ending tag (e.g "?>" or "/blah")
+     * @return the trimmed content without the tag
+     */
+    private ByteBuffer stripOutXMLTag(ByteBuffer content, String startTag, String endTag) {
+        int start = content.position();
+        if (! startsWith(content, start, startTag)) {
+            return content;
+        }
+        for (int i = start + startTag.length(); i <= content.limit() - endTag.length(); i++) {
+            if (startsWith(content, i, endTag)) {
+                content.position(i + endTag.length());
+                return trimContent(content);
+            }
+        }
+        return content;
+    }
+
+    private boolean startsWith(ByteBuffer content, int index, String tag) {
+        if (content.limit() - index < tag.length()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (content.get(index + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -862,14 +2008,17 @@ public class EntityBatchHandler {
      */
     public static class ResponseResult extends ResponseBase {
         public Map<String, String[]> headers;
-        public String data;
         /**
-         * Set the data key (clears the raw content) if the key is non-null
-         * @param data processed data
+         * The content which is already in the format of the batch response (written out as is)
+         */
+        public Object data;
+        /**
+         * Set the data (clears the raw content) if the data is non-null
+         * @param data content which is already encoded in the format of the batch response
          */
-        public void setDataKey(String dataKey) {
-            if (dataKey != null) {
-                this.data = dataKey;
+        public void setData(RawContent data) {
+            if (data != null) {
+                this.data = data;
                 this.content = null;
             }
         }
@@ -877,6 +2026,10 @@ public class EntityBatchHandler {
          * The raw content from the request
          */
         public String content;
+        /**
+         * The cookies from the reference response, these go into the main response (not encoded)
+         */
+        transient Cookie[] cookies;
         public ResponseResult(String reference, String entityURL, int status, Map<String, String[]> headers) {
             this.reference = reference;
             this.entityURL = entityURL;
@@ -897,4 +2050,161 @@ public class EntityBatchHandler {
         }
     }
 
+    /**
+     * Holds a single reference in the batch which is ready to be processed and then the result of processing it
+     */
+    private class BatchOperation {
+        final String refKey;
+        String reference;
+        String entityURL;
+        /**
+         * internal (EB) references only
+         */
+        EntityHttpServletRequest entityRequest;
+        EntityHttpServletResponse entityResponse;
+        /**
+         * external references only
+         */
+        boolean external = false;
+        /**
+         * the batch request cookies, only set when the reference is on this server
+         */
+        Cookie[] cookies;
+        Map<String, Map<String, String[]>> referencedParams;
+        Object data;
+        /**
+         * the method for this reference (the batch method unless the operations are in the request body)
+         */
+        Method method;
+        /**
+         * request body operations only, the operation is prepared from these when the operations it depends on are complete
+         */
+        Map<String, String[]> params;
+        String content;
+        String contentType;
+        /**
+         * the decoded (non-string) body, result references are replaced in this before it is encoded into the content
+         */
+        Object body;
+        final List<BatchOperation> dependencies = new ArrayList<BatchOperation>(0);
+        /**
+         * the decoded result content (only when it is used by another operation)
+         */
+        Map<String, Object> decodedContent;
+        ResponseBase result;
+        /**
+         * set by the worker when it starts processing the operation OR by the request thread
+         * when the operation times out before that (so it is never processed)
+         */
+        final AtomicBoolean started = new AtomicBoolean(false);
+
+        BatchOperation(String refKey, String reference, String entityURL) {
+            this.refKey = refKey;
+            this.reference = reference;
+            this.entityURL = entityURL;
+        }
+
+        /**
+         * Process the reference on the current thread
+         * @return the result from the request (may be an error)
+         */
+        ResponseBase call() {
+            if (entityRequest != null) {
+                return generateInternalResult(this);
+            }
+            return generateExternalResult(refKey, reference, entityURL, method, referencedParams, data, cookies);
+        }
+
+        ResponseError makeTimeoutError() {
+            String errorMessage = "Batch timeout ("+CONFIG_BATCH_TIMEOUT+") reached before reference ("+reference+") for url ("+entityURL+") was processed";
+            System.out.println("WARN: EntityBatchHandler: " + errorMessage);
+            return new ResponseError(reference, entityURL, errorMessage);
+        }
+
+        ResponseError makeUnknownOutcomeError() {
+            String errorMessage = "Batch timeout ("+CONFIG_BATCH_TIMEOUT+") reached and reference ("+reference+") for url ("+entityURL
+                    +") is still running, the outcome is unknown";
+            System.out.println("WARN: EntityBatchHandler: " + errorMessage);
+            return new ResponseError(reference, entityURL, errorMessage);
+        }
+
+        ResponseError makeInterruptedError() {
+            return new ResponseError(reference, entityURL, 
+                    "Interrupted while processing reference ("+reference+") for url ("+entityURL+")");
+        }
+
+        ResponseError makeFailureError(Throwable cause) {
+            String errorMessage = "Failure attempting to process reference ("+reference+") for url ("+entityURL+"): " + cause;
+            System.out.println("WARN: EntityBatchHandler: " + errorMessage);
+            return new ResponseError(reference, entityURL, errorMessage);
+        }
+    }
+
+    /**
+     * Creates named daemon threads for the batch executor
+     */
+    private static class BatchThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+        private final String prefix;
+        public BatchThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * The content from a reference response which is already in the format of the batch response,
+     * this is written into the batch response as is
+     */
+    private static class ResponseContent implements RawContent {
+        private final ByteBuffer bytes;
+        private final String content;
+        /**
+         * @param bytes UTF-8 content
+         */
+        public ResponseContent(ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.content = null;
+        }
+        public ResponseContent(String content) {
+            this.bytes = null;
+            this.content = content;
+        }
+        public void writeTo(Writer writer) throws IOException {
+            if (content != null) {
+                writer.write(content);
+            } else if (writer instanceof BatchResponseWriter) {
+                ((BatchResponseWriter) writer).writeBytes(bytes.duplicate());
+            } else {
+                writer.append( Charset.forName(Formats.UTF_8).decode(bytes.duplicate()) );
+            }
+        }
+    }
+
+    /**
+     * Writes the batch response into the response stream as UTF-8,
+     * content which is already UTF-8 bytes is copied into the stream without decoding it
+     */
+    private static class BatchResponseWriter extends OutputStreamWriter {
+        private final OutputStream output;
+        public BatchResponseWriter(OutputStream output) throws UnsupportedEncodingException {
+            super(output, Formats.UTF_8);
+            this.output = output;
+        }
+        public void writeBytes(ByteBuffer bytes) throws IOException {
+            // everything written so far has to go out first
+            flush();
+            byte[] chunk = new byte[Math.min(bytes.remaining(), 8192)];
+            while (bytes.hasRemaining()) {
+                int length = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, length);
+                output.write(chunk, 0, length);
+            }
+        }
+    }
+
 }
@@ -140,6 +140,7 @@ public class EntityBrokerRESTServiceManager {
                 httpServletAccessProviderManager, entityProviderManager, entityPropertiesService,
                 entityBrokerManager, entityProviderMethodStore);
         entityEncodingManager = new EntityEncodingManager(entityProviderManager, entityBrokerManager);
+        entityBrokerManager.registerEntityChangeListener(entityEncodingManager);
         entityBatchHandler = new EntityBatchHandler(entityBrokerManager, entityEncodingManager, externalIntegrationProvider);
 
         entityRequestHandler = new EntityHandlerImpl(entityProviderManager,
@@ -174,6 +175,7 @@ public class EntityBrokerRESTServiceManager {
         this.entityRequestHandler = null;
         this.entityBatchHandler.destroy();
         this.entityBatchHandler = null;
+        this.entityBrokerManager.unregisterEntityChangeListener(this.entityEncodingManager);
         this.entityEncodingManager = null;
         this.entityDescriptionManager.destroy();
         this.entityDescriptionManager = null;
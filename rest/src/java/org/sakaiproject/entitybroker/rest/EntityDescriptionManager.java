@@ -20,10 +20,13 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -189,6 +192,125 @@ public class EntityDescriptionManager {
     }
 
 
+    /**
+     * The maximum number of rendered describe documents to hold in the cache,
+     * the least recently used ones are dropped when this is reached (the id can come from the request so the keys are not bounded)
+     */
+    protected static final int MAX_DESCRIBE_CACHE_SIZE = 500;
+    // holds the rendered describe documents as UTF-8 bytes (soft so they can be reclaimed), keyed by prefix, format, locale and id
+    private final LinkedHashMap<String, SoftReference<byte[]>> describeCache = new LinkedHashMap<String, SoftReference<byte[]>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Entry<String, SoftReference<byte[]>> eldest) {
+            return size() > MAX_DESCRIBE_CACHE_SIZE;
+        }
+    };
+    // the provider registration generation that the cached documents were rendered for
+    private long describeCacheGeneration = -1;
+
+    /**
+     * Get the description of all entities in the system as UTF-8 bytes,
+     * this is cached until any provider is registered or unregistered
+     * 
+     * @param format XML or HTML (default is HTML)
+     * @param locale the locale to use for any translations
+     * @return the UTF-8 encoded description for all known entities
+     * @see #makeDescribeAll(String, Locale)
+     */
+    public byte[] getDescribeAllBytes(String format, Locale locale) {
+        if (locale == null) {
+            locale = entityProperties.getLocale();
+        }
+        String key = makeDescribeCacheKey(DESCRIBE, null, format, locale);
+        long generation = entityProviderManager.getRegistrationGeneration();
+        byte[] bytes = getCachedDescribe(key, generation);
+        if (bytes == null) {
+            bytes = encodeDescribe( makeDescribeAll(format, locale) );
+            putCachedDescribe(key, generation, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the description of an entity type as UTF-8 bytes,
+     * this is cached until any provider is registered or unregistered
+     * 
+     * @param prefix an entity prefix
+     * @param id the entity id to use for generating URLs
+     * @param format a format to output, HTML and XML supported
+     * @param locale the locale to use for translations
+     * @return the UTF-8 encoded description
+     * @throws IllegalArgumentException if the entity does not exist
+     * @see #makeDescribeEntity(String, String, String, Locale)
+     */
+    public byte[] getDescribeEntityBytes(String prefix, String id, String format, Locale locale) {
+        if (locale == null) {
+            locale = entityProperties.getLocale();
+        }
+        String key = makeDescribeCacheKey(prefix, id, format, locale);
+        long generation = entityProviderManager.getRegistrationGeneration();
+        byte[] bytes = getCachedDescribe(key, generation);
+        if (bytes == null) {
+            bytes = encodeDescribe( makeDescribeEntity(prefix, id, format, locale) );
+            putCachedDescribe(key, generation, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Clears all the cached describe documents,
+     * this only needs to be called if something other than provider registration changes the descriptions
+     * (e.g. access providers are registered or unregistered)
+     */
+    public void clearDescribeCache() {
+        synchronized (describeCache) {
+            describeCache.clear();
+        }
+    }
+
+    private byte[] getCachedDescribe(String key, long generation) {
+        synchronized (describeCache) {
+            if (generation != describeCacheGeneration) {
+                // providers were registered or unregistered since these were rendered
+                describeCache.clear();
+                describeCacheGeneration = generation;
+            }
+            SoftReference<byte[]> ref = describeCache.get(key);
+            byte[] bytes = ref == null ? null : ref.get();
+            if (ref != null && bytes == null) {
+                describeCache.remove(key);
+            }
+            return bytes;
+        }
+    }
+
+    private void putCachedDescribe(String key, long generation, byte[] bytes) {
+        synchronized (describeCache) {
+            // do not store anything rendered while a registration was happening
+            if (generation == describeCacheGeneration
+                    && generation == entityProviderManager.getRegistrationGeneration()) {
+                describeCache.put(key, new SoftReference<byte[]>(bytes));
+            }
+        }
+    }
+
+    private String makeDescribeCacheKey(String prefix, String id, String format, Locale locale) {
+        // only XML and HTML are generated
+        String f = Formats.XML.equals(format) ? Formats.XML : Formats.HTML;
+        // the default id is left out so all the normal describe requests share one key
+        String i = FAKE_ID.equals(id) ? "" : id;
+        return prefix + "/" + f + "/" + locale + "/" + i;
+    }
+
+    private byte[] encodeDescribe(String output) {
+        try {
+            return output.getBytes(Formats.UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Failed to encode the describe output as UTF-8: " + e.getMessage(), e);
+        }
+    }
+
+
     /**
      * Generate a description of all entities in the system,
      * this is only available as XML and XHTML
@@ -20,10 +20,14 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -43,10 +47,9 @@ import org.azeckoski.reflectutils.ReflectUtils;
 import org.azeckoski.reflectutils.StringUtils;
 import org.azeckoski.reflectutils.ClassFields.FieldsFilter;
 import org.azeckoski.reflectutils.map.ArrayOrderedMap;
-import org.azeckoski.reflectutils.transcoders.HTMLTranscoder;
-import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
+import org.azeckoski.reflectutils.refmap.ReferenceMap;
+import org.azeckoski.reflectutils.refmap.ReferenceType;
 import org.azeckoski.reflectutils.transcoders.Transcoder;
-import org.azeckoski.reflectutils.transcoders.XMLTranscoder;
 import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityReference;
 import org.sakaiproject.entitybroker.EntityView;
@@ -55,20 +58,36 @@ import org.sakaiproject.entitybroker.entityprovider.annotations.EntityFieldRequi
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Createable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Deleteable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.DepthLimitable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.EntityCacheable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.InputTranslatable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Inputable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.OutputFormattable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.OutputSerializable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Updateable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Versionable;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
+import org.sakaiproject.entitybroker.event.EntityChangeListener;
 import org.sakaiproject.entitybroker.exception.EntityEncodingException;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.exception.FormatUnsupportedException;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
+import org.sakaiproject.entitybroker.providers.ExternalIntegrationProvider;
 import org.sakaiproject.entitybroker.util.EntityDataUtils;
+import org.sakaiproject.entitybroker.util.cache.BoundedCache;
+import org.sakaiproject.entitybroker.util.encoding.BinaryTranscoder;
+import org.sakaiproject.entitybroker.util.encoding.CBORTranscoder;
+import org.sakaiproject.entitybroker.util.encoding.EntityInputDecoder;
+import org.sakaiproject.entitybroker.util.encoding.HTMLStreamEncoder;
+import org.sakaiproject.entitybroker.util.encoding.JSONStreamEncoder;
+import org.sakaiproject.entitybroker.util.encoding.StreamingTranscoder;
+import org.sakaiproject.entitybroker.util.encoding.XMLStreamEncoder;
+import org.sakaiproject.entitybroker.util.http.LazyResponseOutputStream;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.PropertyAccessor;
+import org.sakaiproject.entitybroker.util.request.RequestUtils;
 
 
 /**
@@ -78,7 +97,7 @@ import org.sakaiproject.entitybroker.util.EntityDataUtils;
  * 
  * @author Aaron Zeckoski (azeckoski @ gmail.com)
  */
-public class EntityEncodingManager {
+public class EntityEncodingManager implements EntityChangeListener {
 
     public static final String ENTITY_REFERENCE = "entityReference";
     public static final String ENTITY_ID = "entityId";
@@ -88,17 +107,36 @@ public class EntityEncodingManager {
     public static final String COLLECTION = "_collection";
     public static final String BATCH_PREFIX = '/' + EntityRequestHandler.BATCH + '?' + EntityBatchHandler.REFS_PARAM_NAME + '=';
 
-    public static final String[] HANDLED_INPUT_FORMATS = new String[] { Formats.XML, Formats.JSON, Formats.HTML };
-    public static final String[] HANDLED_OUTPUT_FORMATS = new String[] { Formats.XML, Formats.JSON, Formats.JSONP, Formats.HTML, Formats.FORM };
+    public static final String[] HANDLED_INPUT_FORMATS = new String[] { Formats.XML, Formats.JSON, Formats.CBOR, Formats.HTML };
+    public static final String[] HANDLED_OUTPUT_FORMATS = new String[] { Formats.XML, Formats.JSON, Formats.JSONP, Formats.CBOR, Formats.HTML, Formats.FORM };
 
     public static final String JSON_CALLBACK_PARAM = "jsonCallback";
     public static final String JSON_DEFAULT_CALLBACK = "jsonEntityFeed";
 
+    public static final String CONFIG_COMPRESSION_ENABLE = "entitybroker.compression.enable";
+    public static final boolean CONFIG_COMPRESSION_DEFAULT = true;
+    public static final String CONFIG_COMPRESSION_THRESHOLD = "entitybroker.compression.threshold";
+    public static final String CONFIG_COMPRESSION_DEFLATE = "entitybroker.compression.deflate";
+    public static final String HEADER_VARY = "Vary";
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String CONFIG_FRAGMENT_CACHE_ENABLE = "entitybroker.cache.fragment.enable";
+    public static final String CONFIG_FRAGMENT_CACHE_SIZE = "entitybroker.cache.fragment.size";
+    public static final int FRAGMENT_CACHE_SIZE = 5000;
+    public static final String CONFIG_FRAGMENT_CACHE_TTL = "entitybroker.cache.fragment.ttl";
+    public static final long FRAGMENT_CACHE_TTL = 600000l; // 10 mins
+    /**
+     * The formats which encoded entity fragments can be cached for (JSONP entities are encoded the same as JSON)
+     */
+    public static final String[] FRAGMENT_CACHE_FORMATS = new String[] { Formats.XML, Formats.JSON };
+    public static final String CONFIG_INPUT_MAX_SIZE = "entitybroker.input.max.size";
+    public static final String CONFIG_INPUT_MAX_DEPTH = "entitybroker.input.max.depth";
+
     protected static final String XML_HEADER_PREFIX = "<?";
     protected static final String XML_HEADER_SUFFIX = "?>";
     protected static final String XML_HEADER = XML_HEADER_PREFIX + "xml version=\"1.0\" encoding=\"UTF-8\" "+XML_HEADER_SUFFIX+"\n";
-    protected static final String XHTML_HEADER = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" " +
-    "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n" +
+    protected static final String XHTML_DOCTYPE = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" " +
+    "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n";
+    protected static final String XHTML_HEADER = XHTML_DOCTYPE +
     "<html xmlns=\"http://www.w3.org/1999/xhtml\">\n" +
     "<head>\n" +
     "  <meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />\n" +
@@ -115,6 +153,13 @@ public class EntityEncodingManager {
         super();
         this.entityProviderManager = entityProviderManager;
         this.entityBrokerManager = entityBrokerManager;
+        init();
+    }
+
+    public void init() {
+        System.out.println("INFO: EntityEncodingManager: init()");
+        // build the transcoders now so that the first requests do not race to create them
+        getTranscoders();
     }
 
     private EntityProviderManager entityProviderManager;
@@ -128,6 +173,35 @@ public class EntityEncodingManager {
     }
 
 
+    /**
+     * Makes the stream to write the encoded output for a request into,
+     * this will compress the output (gzip or deflate) if the client accepts it and compression is enabled
+     * (config settings: {@value #CONFIG_COMPRESSION_ENABLE}, {@value #CONFIG_COMPRESSION_THRESHOLD}, {@value #CONFIG_COMPRESSION_DEFLATE}),
+     * {@link LazyResponseOutputStream#finish()} must be called once all the output is written
+     * 
+     * @param req the request (from the client)
+     * @param res the response (back to the client)
+     * @return the output stream for the response
+     */
+    public LazyResponseOutputStream makeResponseOutputStream(HttpServletRequest req, HttpServletResponse res) {
+        String contentEncoding = null;
+        int threshold = LazyResponseOutputStream.DEFAULT_COMPRESSION_THRESHOLD;
+        ExternalIntegrationProvider externalIntegrationProvider = entityBrokerManager.getExternalIntegrationProvider();
+        boolean enabled = CONFIG_COMPRESSION_DEFAULT;
+        boolean deflate = false;
+        if (externalIntegrationProvider != null) {
+            enabled = externalIntegrationProvider.getConfigurationSetting(CONFIG_COMPRESSION_ENABLE, CONFIG_COMPRESSION_DEFAULT);
+            threshold = externalIntegrationProvider.getConfigurationSetting(CONFIG_COMPRESSION_THRESHOLD, threshold);
+            deflate = externalIntegrationProvider.getConfigurationSetting(CONFIG_COMPRESSION_DEFLATE, false);
+        }
+        if (enabled) {
+            // the response depends on the Accept-Encoding header even when this client gets it uncompressed
+            res.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+            contentEncoding = RequestUtils.findResponseContentEncoding(req, deflate);
+        }
+        return new LazyResponseOutputStream(res, contentEncoding, threshold);
+    }
+
     /**
      * Format and output an entity or collection included or referred to by this entity ref object
      * into output according to the format string provided,
@@ -161,7 +235,7 @@ public class EntityEncodingManager {
         if (outputable != null) {
             String[] outputFormats = outputable.getHandledOutputFormats();
             // check if the output formats are allowed
-            if (outputFormats == null || ReflectUtils.contains(outputFormats, format) ) {
+            if (outputFormats == null || isFormatHandled(outputFormats, format) ) {
                 boolean handled = false;
 
                 // if the user wants to serialize their objects specially then allow them to translate them
@@ -249,7 +323,7 @@ public class EntityEncodingManager {
         Inputable inputable = (Inputable) entityProviderManager.getProviderByPrefixAndCapability(prefix, Inputable.class);
         if (inputable != null) {
             String[] inputFormats = inputable.getHandledInputFormats();
-            if (inputFormats == null || ReflectUtils.contains(inputFormats, format) ) {
+            if (inputFormats == null || isFormatHandled(inputFormats, format) ) {
                 boolean handled = false;
                 /* try to use the provider translator if one available,
                  * if it decided not to handle it or none is available then control passes to internal
@@ -285,6 +359,92 @@ public class EntityEncodingManager {
         return entity;
     }
 
+    /**
+     * Checks if a format is in the formats handled by a provider,
+     * CBOR has the same structure as JSON so it is handled by any provider which handles JSON
+     * @param handledFormats the formats the provider handles
+     * @param format the format to check
+     * @return true if the format is handled
+     */
+    public static boolean isFormatHandled(String[] handledFormats, String format) {
+        if (ReflectUtils.contains(handledFormats, format)) {
+            return true;
+        }
+        return Formats.CBOR.equals(format)
+                && ReflectUtils.contains(handledFormats, Formats.JSON);
+    }
+
+    /**
+     * Input is decoded directly into the entity (see {@link EntityInputDecoder}) when the format is
+     * JSON, XML, or CBOR, the built in transcoder is being used for the format, and the entity is a normal bean
+     * @param format the input format
+     * @param entity the entity object which the input will be written into
+     * @return true if the input can be decoded directly into the entity
+     */
+    protected boolean inputStreams(String format, Object entity) {
+        if (! EntityInputDecoder.canDecode(format)
+                || ! EntityInputDecoder.canBind(entity)) {
+            return false;
+        }
+        Transcoder transcoder = getTranscoder(format);
+        return transcoder instanceof JSONStreamEncoder
+                || transcoder instanceof XMLStreamEncoder
+                || transcoder instanceof CBORTranscoder;
+    }
+
+    /**
+     * @return a decoder which uses the configured input limits 
+     * (config settings: {@value #CONFIG_INPUT_MAX_SIZE}, {@value #CONFIG_INPUT_MAX_DEPTH})
+     */
+    protected EntityInputDecoder makeInputDecoder() {
+        long maxSize = EntityInputDecoder.DEFAULT_MAX_SIZE;
+        int maxDepth = EntityInputDecoder.DEFAULT_MAX_DEPTH;
+        ExternalIntegrationProvider externalIntegrationProvider = entityBrokerManager.getExternalIntegrationProvider();
+        if (externalIntegrationProvider != null) {
+            maxSize = externalIntegrationProvider.getConfigurationSetting(CONFIG_INPUT_MAX_SIZE, maxSize);
+            maxDepth = externalIntegrationProvider.getConfigurationSetting(CONFIG_INPUT_MAX_DEPTH, maxDepth);
+        }
+        return new EntityInputDecoder(maxSize, maxDepth);
+    }
+
+    /**
+     * Decode a stream of data into a java map with the configured input limits applied 
+     * (config settings: {@value #CONFIG_INPUT_MAX_SIZE}, {@value #CONFIG_INPUT_MAX_DEPTH}),
+     * this is used for the input which cannot be decoded straight into the entity
+     * 
+     * @param input the stream of encoded data
+     * @param format the format of the encoded data (from {@link Formats})
+     * @return a map containing all the data derived from the encoded data
+     * @throws EntityInputDecoder.InputTooLargeException if the input is larger than the max size
+     * @throws EntityInputDecoder.InputDecodingException if the input is nested too deeply
+     * @throws UnsupportedOperationException if the data cannot be decoded
+     */
+    protected Map<String, Object> decodeLimitedData(InputStream input, String format) {
+        if (format == null) {
+            format = Formats.XML;
+        }
+        EntityInputDecoder decoder = makeInputDecoder();
+        EntityInputDecoder.LimitedInputStream limited = decoder.limit(input);
+        Map<String, Object> decoded = null;
+        try {
+            if (getTranscoder(format) instanceof BinaryTranscoder) {
+                decoded = decodeData(limited, format);
+            } else {
+                String data = StringUtils.makeStringFromInputStream(limited);
+                // the JSON decoder recurses for each level so this has to be checked first
+                decoder.checkDepth(data, format);
+                decoded = decodeData(data, format);
+            }
+        } catch (RuntimeException e) {
+            if (limited.isExceeded()) {
+                throw new EntityInputDecoder.InputTooLargeException(decoder.getMaxSize());
+            }
+            throw e;
+        }
+        decoder.checkDepth(decoded);
+        return decoded;
+    }
+
     /**
      * Will attempt to validate that string data is of a specific format
      * @param data a chunk of data to validate
@@ -363,11 +523,28 @@ public class EntityEncodingManager {
                         // no request params, bad request
                         throw new EntityException("No input for input translation (input cannot be null) for reference: " + ref, 
                                 ref.toString(), HttpServletResponse.SC_BAD_REQUEST);
+                    } else if (inputStreams(format, current)) {
+                        // decode straight into the entity without reading all the input first
+                        entity = current;
+                        try {
+                            makeInputDecoder().decode(input, format, entity, ref.getPrefix());
+                        } catch (EntityInputDecoder.InputTooLargeException e) {
+                            throw new EntityException("Input for reference ("+ref+") is too large: " + e.getMessage(), 
+                                    ref.toString(), HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                        } catch (EntityInputDecoder.InputDecodingException e) {
+                            throw new EntityException("Unable to decode " + format + " input for reference ("+ref+"): " + e.getMessage(), 
+                                    ref.toString(), HttpServletResponse.SC_BAD_REQUEST);
+                        }
                     } else {
-                        String data = StringUtils.makeStringFromInputStream(input);
                         Map<String, Object> decoded = null;
                         try {
-                            decoded = decodeData(data, format);
+                            decoded = decodeLimitedData(input, format);
+                        } catch (EntityInputDecoder.InputTooLargeException e) {
+                            throw new EntityException("Input for reference ("+ref+") is too large: " + e.getMessage(), 
+                                    ref.toString(), HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                        } catch (EntityInputDecoder.InputDecodingException e) {
+                            throw new EntityException("Unable to decode " + format + " input for reference ("+ref+"): " + e.getMessage(), 
+                                    ref.toString(), HttpServletResponse.SC_BAD_REQUEST);
                         } catch (IllegalArgumentException iae) {
                             throw new EntityEncodingException("No encoder available for the given format ("+format+"), ref=" + ref + ":" + iae.getMessage(), ref.toString(), iae);
                         } catch (UnsupportedOperationException uoe) {
@@ -437,6 +614,13 @@ public class EntityEncodingManager {
             System.out.println("INFO: EntityEncodingManager: No entities to format ("+format+") and output for ref (" + ref + ")");
         }
 
+        if (transcoderIsBinary(format)) {
+            // binary data is written straight into the output with no wrappers
+            boolean collection = EntityView.VIEW_LIST.equals(view.getViewKey()) || ref.getId() == null;
+            writeBinaryEntities(ref, format, entities, collection, output);
+            return;
+        }
+
         // SAK-22738 - do not show form editing when batch processing is disabled
         String replacementEncoding = null;
         if (Formats.FORM.equals(format) 
@@ -445,93 +629,193 @@ public class EntityEncodingManager {
             replacementEncoding = "<div style=\"font-weight:bold;color:red;\">"+msg+"</div>";
         }
 
+        // output is streamed straight into the output as it is encoded so that only a single encoded entity is held at once
+        boolean collection = EntityView.VIEW_LIST.equals(view.getViewKey()) || ref.getId() == null;
         String encoded = null;
-        if (EntityView.VIEW_LIST.equals(view.getViewKey()) 
-                || ref.getId() == null) {
-            // encoding a collection of entities
-            StringBuilder sb = new StringBuilder(40);
+        if (! collection) {
+            // encoding a single entity, this is done before anything is written so failures leave the output untouched
+            if (replacementEncoding != null) {
+                encoded = replacementEncoding;
+            } else {
+                EntityData toEncode = entities.get(0);
+                if (toEncode == null) {
+                    throw new EntityEncodingException("Failed to encode data for entity (" + ref 
+                            + "), entity object to encode could not be found (null object in list)", ref.toString());
+                }
+                try {
+                    encoded = encodeEntityFragment(ref.getPrefix(), format, toEncode, view);
+                } catch (RuntimeException e) {
+                    throw new EntityEncodingException("Failure during internal output encoding of entity: " + ref, ref.toString(), e);
+                }
+            }
+        }
+
+        // add the HTML headers and other wrappers
+        boolean embedded = params != null && Boolean.valueOf(String.valueOf(params.get(EntityRequestHandler.EMBEDDED_OUTPUT)));
+        if (Formats.FORM.equals(format)) {
+            String title = view.getViewKey() + ":" + ref;
+            String header = XHTML_HEADER.replace("{title}", title);
+            writeEncoded(output, embedded ? header.substring(XHTML_DOCTYPE.length()) : XML_HEADER + header, ref);
+        } else if (Formats.XML.equals(format)) {
+            if (! embedded) {
+                writeEncoded(output, XML_HEADER, ref);
+            }
+        } else if (Formats.JSONP.equals(format)) {
+            String callback = JSON_DEFAULT_CALLBACK;
+            if (params != null && params.containsKey(JSON_CALLBACK_PARAM)) {
+                callback = sanitizeJsonCallback(params.get(JSON_CALLBACK_PARAM));
+            }
+            writeEncoded(output, callback + "(", ref);
+        }
 
+        if (collection) {
+            // encoding a collection of entities
             // make header
             if (Formats.HTML.equals(format) 
                     || Formats.FORM.equals(format)) {
-                sb.append("<h1>"+ref.getPrefix() + COLLECTION + "</h1>\n");
+                writeEncoded(output, "<h1>"+ref.getPrefix() + COLLECTION + "</h1>\n", ref);
             } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
-                sb.append("{\""+ENTITY_PREFIX+"\": \""+ref.getPrefix() + "\", \"" + ref.getPrefix() + COLLECTION + "\": [\n");
+                writeEncoded(output, "{\""+ENTITY_PREFIX+"\": \""+ref.getPrefix() + "\", \"" + ref.getPrefix() + COLLECTION + "\": [\n", ref);
             } else if (Formats.XML.equals(format)) {
-                sb.append("<" + ref.getPrefix() + COLLECTION + " " + ENTITY_PREFIX + "=\"" + ref.getPrefix() + "\">\n");
+                writeEncoded(output, "<" + ref.getPrefix() + COLLECTION + " " + ENTITY_PREFIX + "=\"" + ref.getPrefix() + "\">\n", ref);
             } else { // general case
-                sb.append(ref.getPrefix() + COLLECTION + "\n");
+                writeEncoded(output, ref.getPrefix() + COLLECTION + "\n", ref);
             }
 
             int encodedEntities = 0;
             if (replacementEncoding != null) {
-                sb.append(replacementEncoding);
+                writeEncoded(output, replacementEncoding, ref);
             } else {
                 // loop through and encode items
+                boolean json = Formats.JSON.equals(format) || Formats.JSONP.equals(format);
+                boolean streaming = ! Formats.FORM.equals(format) && transcoderStreams(format);
+                Writer streamWriter = null;
                 for (EntityData entity : entities) {
-                    try {
-                        String encode = encodeEntity(ref.getPrefix(), format, entity, view);
-                        if (encode.length() > 3) {
-                            if ((Formats.JSON.equals(format) || Formats.JSONP.equals(format)) 
-                                    && encodedEntities > 0) {
-                                sb.append(",");
+                    String[] fragmentKey = findFragmentKey(ref.getPrefix(), format, entity);
+                    if (streaming && fragmentKey == null) {
+                        // entities which are not cached are written straight into the output as they are encoded
+                        try {
+                            if (streamWriter == null) {
+                                streamWriter = new OutputStreamWriter(new UnflushedOutputStream(output), Formats.UTF_8);
+                            }
+                            EntityFragmentWriter fragmentWriter = new EntityFragmentWriter(streamWriter, (json && encodedEntities > 0) ? "," : null);
+                            encodeEntity(ref.getPrefix(), format, entity, view, fragmentWriter);
+                            fragmentWriter.flush();
+                            if (fragmentWriter.isWritten()) {
+                                encodedEntities++;
                             }
-                            sb.append(encode);
-                            encodedEntities++;
+                        } catch (IOException e) {
+                            throw new EntityEncodingException("Failed to encode into output stream: " + ref, ref.toString(), e);
+                        } catch (RuntimeException e) {
+                            throw new EntityEncodingException("Failure during internal output encoding of entity set on entity: " + ref, ref.toString(), e);
                         }
+                        continue;
+                    }
+                    String encode;
+                    try {
+                        encode = encodeEntityFragment(ref.getPrefix(), format, entity, view, fragmentKey);
                     } catch (RuntimeException e) {
                         throw new EntityEncodingException("Failure during internal output encoding of entity set on entity: " + ref, ref.toString(), e);
                     }
+                    if (encode.length() > 3) {
+                        if (json && encodedEntities > 0) {
+                            writeEncoded(output, ",", ref);
+                        }
+                        writeEncoded(output, encode, ref);
+                        encodedEntities++;
+                    }
                 }
             }
 
             // make footer
             if (Formats.HTML.equals(format)
                     || Formats.FORM.equals(format)) {
-                sb.append("\n<b>Collection size:</b> "+encodedEntities+"\n");
+                writeEncoded(output, "\n<b>Collection size:</b> "+encodedEntities+"\n", ref);
             } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
-                sb.append("\n]}");
+                writeEncoded(output, "\n]}", ref);
             } else if (Formats.XML.equals(format)) {
-                sb.append("</" + ref.getPrefix() + COLLECTION + ">");
+                writeEncoded(output, "</" + ref.getPrefix() + COLLECTION + ">", ref);
             } else { // general case
-                sb.append("\nSize: " + encodedEntities + "\n");
+                writeEncoded(output, "\nSize: " + encodedEntities + "\n", ref);
             }
-            encoded = sb.toString();
         } else {
-            // encoding a single entity
-            EntityData toEncode = entities.get(0);
-            if (replacementEncoding != null) {
-                encoded = replacementEncoding;
-            } else {
-                if (toEncode == null) {
-                    throw new EntityEncodingException("Failed to encode data for entity (" + ref 
-                            + "), entity object to encode could not be found (null object in list)", ref.toString());
-                } else {
-                    try {
-                        encoded = encodeEntity(ref.getPrefix(), format, toEncode, view);
-                    } catch (RuntimeException e) {
-                        throw new EntityEncodingException("Failure during internal output encoding of entity: " + ref, ref.toString(), e);
-                    }
-                }
-            }
+            writeEncoded(output, encoded, ref);
         }
-        // add the HTML headers and footers
+
+        // close the HTML and other wrappers
         if (Formats.FORM.equals(format)) {
-            String title = view.getViewKey() + ":" + ref;
-            encoded = XML_HEADER + XHTML_HEADER.replace("{title}", title) + encoded + XHTML_FOOTER;
-        } else if (Formats.XML.equals(format)) {
-            encoded = XML_HEADER + encoded;
+            writeEncoded(output, XHTML_FOOTER, ref);
         } else if (Formats.JSONP.equals(format)) {
-            String callback = JSON_DEFAULT_CALLBACK;
-            if (params != null && params.containsKey(JSON_CALLBACK_PARAM)) {
-                callback = sanitizeJsonCallback(params.get(JSON_CALLBACK_PARAM));
+            writeEncoded(output, ")", ref);
+        }
+    }
+
+    /**
+     * Writes entities straight into the output stream using a binary transcoder,
+     * collections have the same structure as the JSON output (a map with the prefix and the array of entities)
+     * @param ref the reference being encoded
+     * @param format the binary format
+     * @param entities the entities to encode
+     * @param collection if true then encode the entities as a collection, otherwise only the first one is encoded
+     * @param output the stream to write to
+     */
+    protected void writeBinaryEntities(EntityReference ref, String format, List<EntityData> entities, boolean collection, OutputStream output) {
+        BinaryTranscoder transcoder = (BinaryTranscoder) getTranscoder(format);
+        if (collection && ! (transcoder instanceof CBORTranscoder)) {
+            throw new FormatUnsupportedException("Internal output formatter cannot handle collections for binary format ("+format+") for ref ("+ref+")", ref+"", format);
+        }
+        EntityData single = null;
+        if (! collection) {
+            single = entities.isEmpty() ? null : entities.get(0);
+            if (single == null) {
+                throw new EntityEncodingException("Failed to encode data for entity (" + ref 
+                        + "), entity object to encode could not be found (null object in list)", ref.toString());
             }
-            encoded = callback + "(" + encoded + ")";
         }
-        // put the encoded data into the stream
+        String prefix = ref.getPrefix();
+        int maxDepth = getMaxDepth(prefix);
+        try {
+            if (collection) {
+                CBORTranscoder.writeHeader(output, CBORTranscoder.MAJOR_MAP, 2);
+                CBORTranscoder.writeString(output, ENTITY_PREFIX);
+                CBORTranscoder.writeString(output, prefix);
+                CBORTranscoder.writeString(output, prefix + COLLECTION);
+                CBORTranscoder.writeIndefinite(output, CBORTranscoder.MAJOR_ARRAY);
+                for (EntityData entityData : entities) {
+                    writeBinaryEntity(transcoder, prefix, entityData, maxDepth, output, true);
+                }
+                CBORTranscoder.writeBreak(output);
+            } else {
+                writeBinaryEntity(transcoder, prefix, single, maxDepth, output, false);
+            }
+        } catch (IOException e) {
+            throw new EntityEncodingException("Failed to encode into output stream: " + ref, ref.toString(), e);
+        } catch (RuntimeException e) {
+            throw new EntityEncodingException("Failure during internal output encoding of entity: " + ref, ref.toString(), e);
+        }
+    }
+
+    private void writeBinaryEntity(BinaryTranscoder transcoder, String prefix, EntityData entityData, int maxDepth, OutputStream output, boolean skipEmpty) throws IOException {
+        Map<String, Object> entityProps = new ArrayOrderedMap<String, Object>();
+        Object toEncode = makeEncodableEntity(entityData, entityProps);
+        if (skipEmpty && entityProps.isEmpty()
+                && (toEncode == null || (toEncode instanceof Map && ((Map<?, ?>) toEncode).isEmpty()))) {
+            // empty entities are left out of collections (same as the text formats)
+            return;
+        }
+        transcoder.encode(toEncode, prefix, entityProps, maxDepth, output);
+    }
+
+    /**
+     * Writes a chunk of encoded output into the stream as UTF-8,
+     * the stream is not flushed so the response is not committed any earlier than it would be otherwise
+     * @param output the stream to write to
+     * @param encoded the encoded chunk
+     * @param ref the reference being encoded (for errors)
+     */
+    protected void writeEncoded(OutputStream output, String encoded, EntityReference ref) {
         try {
-            byte[] b = encoded.getBytes(Formats.UTF_8);
-            output.write(b);
+            output.write( encoded.getBytes(Formats.UTF_8) );
         } catch (UnsupportedEncodingException e) {
             throw new EntityEncodingException("Failed to encode UTF-8: " + ref, ref.toString(), e);
         } catch (IOException e) {
@@ -539,6 +823,302 @@ public class EntityEncodingManager {
         }
     }
 
+    /**
+     * Passes everything through to the wrapped stream except flushes,
+     * this allows writers to be flushed into the stream without committing the response
+     */
+    protected static class UnflushedOutputStream extends FilterOutputStream {
+        public UnflushedOutputStream(OutputStream out) {
+            super(out);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+        @Override
+        public void flush() {
+            // flushes are ignored
+        }
+        @Override
+        public void close() {
+            // the wrapped stream is not closed
+        }
+    }
+
+    /**
+     * Holds back the start of an encoded entity until it is clear that it is not empty
+     * (encodings of 3 characters or less are not output) and then writes the separator (if there is one)
+     * before the entity
+     */
+    protected static class EntityFragmentWriter extends Writer {
+        private static final int MIN_LENGTH = 4;
+        private final Writer writer;
+        private final String separator;
+        private final StringBuilder start = new StringBuilder(MIN_LENGTH);
+        private boolean written = false;
+        public EntityFragmentWriter(Writer writer, String separator) {
+            this.writer = writer;
+            this.separator = separator;
+        }
+        /**
+         * @return true if the entity was long enough to be written
+         */
+        public boolean isWritten() {
+            return written;
+        }
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (written) {
+                writer.write(cbuf, off, len);
+            } else {
+                start.append(cbuf, off, len);
+                checkStart();
+            }
+        }
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if (written) {
+                writer.write(str, off, len);
+            } else {
+                start.append(str, off, off + len);
+                checkStart();
+            }
+        }
+        @Override
+        public void write(int c) throws IOException {
+            if (written) {
+                writer.write(c);
+            } else {
+                start.append((char) c);
+                checkStart();
+            }
+        }
+        private void checkStart() throws IOException {
+            if (start.length() >= MIN_LENGTH) {
+                written = true;
+                if (separator != null) {
+                    writer.write(separator);
+                }
+                writer.write(start.toString());
+                start.setLength(0);
+            }
+        }
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private volatile BoundedCache<String, String[]> fragmentCache = null;
+
+    /**
+     * Encodes entity data using the cached encoded fragment for this entity if there is a current one,
+     * fragments are only cached for entities from {@link EntityCacheable} providers which are user independent
+     * and which have a version (from the {@link EntityDataUtils#findLastModified(EntityData)} or {@link Versionable}),
+     * otherwise this is the same as {@link #encodeEntity(String, String, EntityData, EntityView)}
+     * 
+     * @param prefix the entity prefix related to this data
+     * @param format the format to encode the data into
+     * @param entityData (optional) entity data to encode
+     * @param view (optional) used to generate links and determine the correct incoming view
+     * @return the encoded entity or "" if encoding fails
+     */
+    public String encodeEntityFragment(String prefix, String format, EntityData entityData, EntityView view) {
+        return encodeEntityFragment(prefix, format, entityData, view, findFragmentKey(prefix, format, entityData));
+    }
+
+    /**
+     * @param fragmentKey the result of {@link #findFragmentKey(String, String, EntityData)}
+     */
+    private String encodeEntityFragment(String prefix, String format, EntityData entityData, EntityView view, String[] fragmentKey) {
+        String encoded;
+        if (fragmentKey == null) {
+            encoded = encodeEntity(prefix, format, entityData, view);
+        } else {
+            BoundedCache<String, String[]> cache = getFragmentCache();
+            String key = fragmentKey[0];
+            String version = fragmentKey[1];
+            String[] fragment = cache.get(key);
+            if (fragment != null 
+                    && version.equals(fragment[0])) {
+                encoded = fragment[1];
+            } else {
+                long generation = cache.getGeneration();
+                encoded = encodeEntity(prefix, format, entityData, view);
+                cache.put(key, new String[] {version, encoded}, generation);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Finds the key and version to use for caching the encoded entity
+     * @param prefix the entity prefix related to this data
+     * @param format the format to encode the data into
+     * @param entityData (optional) entity data to encode
+     * @return the fragment cache key and version (as key, version) OR null if this entity cannot be cached
+     */
+    protected String[] findFragmentKey(String prefix, String format, EntityData entityData) {
+        BoundedCache<String, String[]> cache = getFragmentCache();
+        String key = null;
+        String version = null;
+        if (cache != null
+                && prefix != null
+                && entityData != null
+                && entityData.getData() != null
+                && entityData.getEntityRef() != null
+                && entityData.getEntityRef().getId() != null) {
+            String fragmentFormat = Formats.JSONP.equals(format) ? Formats.JSON : format;
+            EntityCacheable cacheable = entityProviderManager.getProviderByPrefixAndCapability(prefix, EntityCacheable.class);
+            if (ReflectUtils.contains(FRAGMENT_CACHE_FORMATS, fragmentFormat)
+                    && cacheable != null
+                    && cacheable.isUserIndependent(entityData.getEntityRef(), entityData.getData())) {
+                version = makeFragmentVersion(prefix, entityData);
+                if (version != null) {
+                    key = makeFragmentKey(fragmentFormat, entityData.getEntityRef().getPrefix(), entityData.getEntityRef().getId());
+                }
+            }
+        }
+        return key == null ? null : new String[] {key, version};
+    }
+
+    /**
+     * Makes the version string for a cached fragment, this includes the entity version
+     * and all the other parts of the entity data which are encoded along with the entity
+     * @param prefix the entity prefix
+     * @param entityData the entity data
+     * @return the version OR null if the entity has no version or has complex properties (it cannot be cached)
+     */
+    protected String makeFragmentVersion(String prefix, EntityData entityData) {
+        String version = null;
+        Long lastModified = EntityDataUtils.findLastModified(entityData);
+        if (lastModified != null) {
+            version = lastModified.toString();
+        } else {
+            Versionable versionable = entityProviderManager.getProviderByPrefixAndCapability(prefix, Versionable.class);
+            if (versionable != null) {
+                version = versionable.getEntityVersion(entityData.getEntityRef(), null);
+            }
+        }
+        if (version != null) {
+            String properties = makePropertiesVersion(entityData.getEntityProperties());
+            if (properties == null) {
+                version = null;
+            } else {
+                String title = (entityData.isDisplayTitleSet() ? entityData.getDisplayTitle() : "");
+                String url = entityData.getEntityURL();
+                version = version + "|" + entityData.isDataOnly() 
+                    + "|" + (url == null ? -1 : url.length()) + ":" + url
+                    + "|" + title.length() + ":" + title
+                    + "|" + properties;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Makes a version string from the content of the entity properties (sorted by key),
+     * the lengths are included so that different properties can never make the same string
+     * @param properties the entity properties
+     * @return the properties version OR null if any property value is not a simple type (it cannot be cached)
+     */
+    private String makePropertiesVersion(Map<String, Object> properties) {
+        StringBuilder sb = new StringBuilder();
+        if (properties != null && ! properties.isEmpty()) {
+            List<String> keys = new ArrayList<String>(properties.keySet());
+            Collections.sort(keys);
+            for (String key : keys) {
+                Object value = properties.get(key);
+                String val;
+                if (value == null) {
+                    val = "-";
+                } else if (ConstructorUtils.isClassSimple(value.getClass())) {
+                    val = value.getClass().getName() + "=" + value.toString();
+                } else {
+                    return null;
+                }
+                sb.append(key.length()).append(':').append(key);
+                sb.append(val.length()).append(':').append(val);
+            }
+        }
+        return sb.toString();
+    }
+
+    private String makeFragmentKey(String format, String prefix, String id) {
+        return format + ":" + EntityReference.SEPARATOR + prefix + EntityReference.SEPARATOR + id;
+    }
+
+    /**
+     * Get the cache of encoded entity fragments (creates it if needed)
+     * @return the cache OR null if fragment caching is disabled (the default)
+     */
+    protected BoundedCache<String, String[]> getFragmentCache() {
+        ExternalIntegrationProvider externalIntegrationProvider = entityBrokerManager.getExternalIntegrationProvider();
+        if (externalIntegrationProvider == null
+                || ! externalIntegrationProvider.getConfigurationSetting(CONFIG_FRAGMENT_CACHE_ENABLE, false)) {
+            return null;
+        }
+        BoundedCache<String, String[]> cache = fragmentCache;
+        if (cache == null) {
+            int size = externalIntegrationProvider.getConfigurationSetting(CONFIG_FRAGMENT_CACHE_SIZE, FRAGMENT_CACHE_SIZE);
+            long ttl = externalIntegrationProvider.getConfigurationSetting(CONFIG_FRAGMENT_CACHE_TTL, FRAGMENT_CACHE_TTL);
+            if (size <= 0) {
+                return null;
+            }
+            synchronized (this) {
+                cache = fragmentCache;
+                if (cache == null) {
+                    cache = new BoundedCache<String, String[]>(size, ttl);
+                    fragmentCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return the statistics (size, hits, misses, evictions, invalidations) for the encoded fragment cache
+     */
+    public Map<String, Long> getFragmentCacheStatistics() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        BoundedCache<String, String[]> cache = fragmentCache;
+        if (cache != null) {
+            cache.addStatistics(stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Removes all cached fragments
+     */
+    public void clearFragmentCache() {
+        BoundedCache<String, String[]> cache = fragmentCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.event.EntityChangeListener#entityChanged(java.lang.String, java.lang.String)
+     */
+    public void entityChanged(String prefix, String id) {
+        BoundedCache<String, String[]> cache = fragmentCache;
+        if (cache != null) {
+            if (id == null) {
+                // fragments are not stored by prefix
+                cache.clear();
+            } else {
+                for (String format : FRAGMENT_CACHE_FORMATS) {
+                    cache.invalidate( makeFragmentKey(format, prefix, id) );
+                }
+            }
+        }
+    }
+
     /**
      * Encodes entity data
      * @param prefix the entity prefix related to this data
@@ -557,46 +1137,14 @@ public class EntityEncodingManager {
         String encoded = "";
         if (Formats.HTML.equals(format)) {
             // special handling for HTML
-            StringBuilder sb = new StringBuilder(200);
-            sb.append("  <div style='padding-left:1em;'>\n");
-            if (entityData == null) {
-                sb.append("NO DATA to encode");
-            } else {
-                sb.append("    <div style='font-weight:bold;'>"+StringEscapeUtils.escapeHtml(entityData.getDisplayTitle())+"</div>\n");
-                sb.append("    <table border='1'>\n");
-                sb.append("      <caption style='font-weight:bold;'>Entity Data</caption>\n");
-                if (! entityData.isDataOnly()) {
-                    sb.append("      <tr><td>entityReference</td><td>"+StringEscapeUtils.escapeHtml(entityData.getEntityReference())+"</td></tr>\n");
-                    sb.append("      <tr><td>entityURL</td><td>"+StringEscapeUtils.escapeHtml(entityData.getEntityURL())+"</td></tr>\n");
-                    if (entityData.getEntityRef() != null) {
-                        sb.append("      <tr><td>entityPrefix</td><td>"+StringEscapeUtils.escapeHtml(entityData.getEntityRef().getPrefix())+"</td></tr>\n");
-                        if (entityData.getEntityRef().getId() != null) {
-                            sb.append("      <tr><td>entityID</td><td>"+StringEscapeUtils.escapeHtml(entityData.getEntityRef().getId())+"</td></tr>\n");
-                        }
-                    }
-                }
-                if (entityData.getData() != null) {
-                    sb.append("      <tr><td>entity-type</td><td>"+entityData.getData().getClass().getName()+"</td></tr>\n");
-                    // dump entity data
-                    sb.append("      <tr><td colspan='2'>Data:<br/>\n");
-                    sb.append( encodeData(entityData.getData(), Formats.HTML, null, null) );
-                    sb.append("      </td></tr>\n");
-                } else {
-                    sb.append("      <tr><td>entity-object</td><td><i>null</i></td></tr>\n");
-                }
-                sb.append("    </table>\n");
-                Map<String, Object> props = entityData.getEntityProperties();
-                if (!props.isEmpty()) {
-                    sb.append("    <table border='1'>\n");
-                    sb.append("      <caption style='font-weight:bold;'>Properties</caption>\n");
-                    for (Entry<String, Object> entry : props.entrySet()) {
-                        sb.append("      <tr><td>"+StringEscapeUtils.escapeHtml(entry.getKey())+"</td><td>"+StringEscapeUtils.escapeHtml(entry.getValue().toString())+"</td></tr>\n");
-                    }
-                    sb.append("    </table>\n");
-                }
+            StringWriter writer = new StringWriter(200);
+            try {
+                writeHTMLEntity(entityData, writer);
+            } catch (IOException e) {
+                // should not be possible with a string writer
+                throw new IllegalStateException("Failure encoding HTML for entity ("+entityData+"): " + e.getMessage(), e);
             }
-            sb.append("  </div>\n");
-            encoded = sb.toString();
+            encoded = writer.toString();
         } else if (Formats.FORM.equals(format)) {
             // special handling for FORM type
             if (view == null) {
@@ -679,74 +1227,9 @@ public class EntityEncodingManager {
                     }
                     sb.append("  <form name='"+formName+"-edit' action='"+formAction+"' style='margin:0px;' method='post'>\n");
                     sb.append("    <table border='1'>\n");
-                    // get all the read and write fields from this object
-                    ClassFields<?> cf = ReflectUtils.getInstance().analyzeClass(entityClass);
-                    Map<String, Object> fieldValues = ReflectUtils.getInstance().getObjectValues(entity);
-                    Map<String, Class<?>> readTypes = cf.getFieldTypes(FieldsFilter.SERIALIZABLE);
-                    Map<String, Class<?>> writeTypes = cf.getFieldTypes(FieldsFilter.WRITEABLE);
-                    HashSet<String> requiredFieldNames = new HashSet<String>(cf.getFieldNamesWithAnnotation(EntityFieldRequired.class));
-                    // make sure no one tries to write the id field when not creating entities
-                    String idFieldName = EntityDataUtils.getEntityIdField(entityClass);
-                    if (idFieldName != null && ! EntityView.VIEW_NEW.equals(viewKey)) {
-                        writeTypes.remove(idFieldName);
-                    }
-                    Map<String, Class<?>> entityTypes = new HashMap<String, Class<?>>(readTypes);
-                    entityTypes.putAll(writeTypes);
-                    ArrayList<String> keys = new ArrayList<String>(entityTypes.keySet());
-                    Collections.sort(keys);
-                    for (int i = 0; i < keys.size(); i++) {
-                        String fieldName = keys.get(i);
-                        Class<?> type = entityTypes.get(fieldName);
-                        boolean read = true;
-                        boolean write = false;
-                        if (! readTypes.containsKey(fieldName)) {
-                            // write only
-                            read = false;
-                            write = true;
-                        } else if (! writeTypes.containsKey(fieldName)) {
-                            // read only
-                            write = false;
-                        } else {
-                            // read/write
-                            write = true;
-                        }
-                        boolean required = requiredFieldNames.contains(fieldName);
-                        // get the printable type names
-                        String typeName = type.getName();
-                        if (String.class.getName().equals(typeName)) {
-                            typeName = "string";
-                        } else if (Boolean.class.getName().equals(typeName)) {
-                            typeName = "boolean";
-                        } else if (Integer.class.getName().equals(typeName)) {
-                            typeName = "int";
-                        } else if (Long.class.getName().equals(typeName)) {
-                            typeName = "long";
-                        }
-                        sb.append("      <tr><td>"+(i+1)+")&nbsp;</td>"
-                                + "<td style='font-weight:bold;'>"+ fieldName +"</td>"
-                                + "<td>"+ typeName +"</td><td>");
-                        if (read && write) {
-                            Object value = fieldValues.get(fieldName);
-                            String sVal = "";
-                            if (value != null) {
-                                sVal = ReflectUtils.getInstance().convert(value, String.class);
-                            }
-                            sb.append("<input type='text' name=\""+fieldName+"\" value=\""+StringEscapeUtils.escapeHtml(sVal)+"\" />");
-                        } else if (write) {
-                            sb.append("<input type='text' name='"+fieldName+"' />");
-                        } else if (read) {
-                            Object value = fieldValues.get(fieldName);
-                            String sVal = "";
-                            if (value != null) {
-                                sVal = ReflectUtils.getInstance().convert(value, String.class);
-                            }
-                            sb.append(StringEscapeUtils.escapeHtml(sVal));
-                        }
-                        if (required) {
-                            sb.append(" <b style='color:red;'>*</b> ");
-                        }
-                        sb.append("</td></tr>\n");
-                    }
+                    // the fields and the static parts of the form are worked out once per class
+                    FormSchema schema = getFormSchema(entityClass, EntityView.VIEW_NEW.equals(viewKey));
+                    schema.appendFields(entity, sb);
                     sb.append("    </table>\n");
                     sb.append("    <input type='submit' value='SAVE' />\n");
                     sb.append("  </form>\n");
@@ -755,30 +1238,8 @@ public class EntityEncodingManager {
             }
         } else {
             // encode the entity itself
-            Object toEncode = entityData; // default to encoding the entity data object
             Map<String, Object> entityProps = new ArrayOrderedMap<String, Object>();
-            if (entityData != null && entityData.getData() != null) {
-                if (entityData.isDataOnly()) {
-                    toEncode = entityData.getData();
-                    // no meta data except properties if there are any
-                    entityProps.putAll( entityData.getEntityProperties() );
-                } else {
-                    if (ConstructorUtils.isClassBean(entityData.getData().getClass())) {
-                        // encode the bean directly if it is one
-                        toEncode = entityData.getData();
-                        // add in the extra props
-                        entityProps.put(ENTITY_REFERENCE, entityData.getEntityReference());
-                        entityProps.put(ENTITY_URL, entityData.getEntityURL());
-                        if (entityData.getEntityRef().getId() != null) {
-                            entityProps.put(ENTITY_ID, entityData.getEntityRef().getId());
-                        }
-                        if (entityData.isDisplayTitleSet()) {
-                            entityProps.put(ENTITY_TITLE, entityData.getDisplayTitle());
-                        }
-                    }
-                    entityProps.putAll(entityData.getEntityProperties());
-                }
-            }
+            Object toEncode = makeEncodableEntity(entityData, entityProps);
             // do the encoding
             try {
                 encoded = encodeData(toEncode, format, prefix, entityProps);
@@ -790,6 +1251,307 @@ public class EntityEncodingManager {
         return encoded;
     }
 
+    // weak keys so schemas do not hold onto classes from webapps which are unloaded
+    private Map<Class<?>, FormSchema[]> formSchemas = new ReferenceMap<Class<?>, FormSchema[]>(ReferenceType.WEAK, ReferenceType.SOFT);
+
+    /**
+     * Get the cached form schema for an entity class (creates it if needed)
+     * @param entityClass the class of the entity the form is for
+     * @param creating true if this is the form for creating a new entity (the id field can be written)
+     * @return the form schema
+     */
+    protected FormSchema getFormSchema(Class<?> entityClass, boolean creating) {
+        FormSchema[] schemas = formSchemas.get(entityClass);
+        if (schemas == null) {
+            schemas = new FormSchema[2];
+            formSchemas.put(entityClass, schemas);
+        }
+        int index = creating ? 1 : 0;
+        FormSchema schema = schemas[index];
+        if (schema == null) {
+            schema = new FormSchema(entityClass, creating);
+            schemas[index] = schema;
+        }
+        return schema;
+    }
+
+    /**
+     * The fields (in order) of an entity class which are shown in the FORM output along with
+     * the static HTML for each field, rendering a form only needs to fill in the values<br/>
+     * None of the form text is translated so the schema is the same for all locales
+     */
+    protected static class FormSchema {
+
+        /**
+         * How a field is shown in the form
+         */
+        protected static enum Widget {
+            /** read/write fields have a text input with the current value */
+            INPUT, 
+            /** write only fields have an empty text input */
+            EMPTY_INPUT, 
+            /** read only fields have the current value as text */
+            TEXT
+        }
+
+        private final EntityAccessorPlan plan;
+        private final List<FormField> fields;
+
+        protected FormSchema(Class<?> entityClass, boolean creating) {
+            plan = EntityAccessorPlan.getPlan(entityClass);
+            // get all the read and write fields from this class
+            ClassFields<?> cf = ReflectUtils.getInstance().analyzeClass(entityClass);
+            Map<String, Class<?>> readTypes = cf.getFieldTypes(FieldsFilter.SERIALIZABLE);
+            Map<String, Class<?>> writeTypes = cf.getFieldTypes(FieldsFilter.WRITEABLE);
+            HashSet<String> requiredFieldNames = new HashSet<String>(cf.getFieldNamesWithAnnotation(EntityFieldRequired.class));
+            // make sure no one tries to write the id field when not creating entities
+            String idFieldName = EntityDataUtils.getEntityIdField(entityClass);
+            if (idFieldName != null && ! creating) {
+                writeTypes.remove(idFieldName);
+            }
+            Map<String, Class<?>> entityTypes = new HashMap<String, Class<?>>(readTypes);
+            entityTypes.putAll(writeTypes);
+            ArrayList<String> keys = new ArrayList<String>(entityTypes.keySet());
+            Collections.sort(keys);
+            HashMap<String, PropertyAccessor> accessors = new HashMap<String, PropertyAccessor>();
+            for (PropertyAccessor accessor : plan.getSerializableProperties()) {
+                accessors.put(accessor.getName(), accessor);
+            }
+            ArrayList<FormField> formFields = new ArrayList<FormField>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                String fieldName = keys.get(i);
+                Widget widget;
+                if (! readTypes.containsKey(fieldName)) {
+                    // write only
+                    widget = Widget.EMPTY_INPUT;
+                } else if (! writeTypes.containsKey(fieldName)) {
+                    // read only
+                    widget = Widget.TEXT;
+                } else {
+                    // read/write
+                    widget = Widget.INPUT;
+                }
+                boolean required = requiredFieldNames.contains(fieldName);
+                formFields.add( new FormField(i+1, fieldName, entityTypes.get(fieldName), widget, required, accessors.get(fieldName)) );
+            }
+            fields = Collections.unmodifiableList(formFields);
+        }
+
+        public List<FormField> getFields() {
+            return fields;
+        }
+
+        /**
+         * Appends the table rows for all the fields in the entity
+         * @param entity the entity object (must be of the class this schema is for)
+         * @param sb the builder to append to
+         */
+        public void appendFields(Object entity, StringBuilder sb) {
+            Map<String, Object> fieldValues = null;
+            if (! plan.isFixedProperties()) {
+                fieldValues = ReflectUtils.getInstance().getObjectValues(entity);
+            }
+            for (FormField field : fields) {
+                sb.append(field.rowStart);
+                if (field.widget == Widget.EMPTY_INPUT) {
+                    sb.append(field.valueStart);
+                } else {
+                    Object value;
+                    if (fieldValues != null) {
+                        value = fieldValues.get(field.name);
+                    } else {
+                        value = field.getValue(entity);
+                    }
+                    String sVal = "";
+                    if (value != null) {
+                        sVal = ReflectUtils.getInstance().convert(value, String.class);
+                    }
+                    sb.append(field.valueStart);
+                    sb.append(StringEscapeUtils.escapeHtml(sVal));
+                }
+                sb.append(field.rowEnd);
+            }
+        }
+    }
+
+    /**
+     * A single field in a {@link FormSchema}
+     */
+    protected static class FormField {
+        protected final String name;
+        protected final String typeName;
+        protected final FormSchema.Widget widget;
+        protected final boolean required;
+        private final PropertyAccessor accessor;
+        private final String rowStart;
+        private final String valueStart;
+        private final String rowEnd;
+
+        protected FormField(int number, String name, Class<?> type, FormSchema.Widget widget, boolean required, PropertyAccessor accessor) {
+            this.name = name;
+            this.widget = widget;
+            this.required = required;
+            this.accessor = accessor;
+            // get the printable type names
+            String typeName = type.getName();
+            if (String.class.getName().equals(typeName)) {
+                typeName = "string";
+            } else if (Boolean.class.getName().equals(typeName)) {
+                typeName = "boolean";
+            } else if (Integer.class.getName().equals(typeName)) {
+                typeName = "int";
+            } else if (Long.class.getName().equals(typeName)) {
+                typeName = "long";
+            }
+            this.typeName = typeName;
+            this.rowStart = "      <tr><td>"+number+")&nbsp;</td>"
+                    + "<td style='font-weight:bold;'>"+ name +"</td>"
+                    + "<td>"+ typeName +"</td><td>";
+            String end = "";
+            if (widget == FormSchema.Widget.INPUT) {
+                this.valueStart = "<input type='text' name=\""+name+"\" value=\"";
+                end = "\" />";
+            } else if (widget == FormSchema.Widget.EMPTY_INPUT) {
+                this.valueStart = "<input type='text' name='"+name+"' />";
+            } else {
+                this.valueStart = "";
+            }
+            if (required) {
+                end += " <b style='color:red;'>*</b> ";
+            }
+            this.rowEnd = end + "</td></tr>\n";
+        }
+
+        /**
+         * @param entity the entity object
+         * @return the value of this field in the entity OR null if it cannot be read
+         */
+        protected Object getValue(Object entity) {
+            Object value = null;
+            if (accessor != null) {
+                try {
+                    value = accessor.getValue(entity);
+                } catch (RuntimeException e) {
+                    // unreadable values are skipped, the same as getObjectValues does
+                    value = null;
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Writes the HTML for a single entity (the entity data is written as it is encoded)
+     * @param entityData (optional) entity data to encode
+     * @param writer the writer to place the HTML into
+     * @throws IOException if the writer fails
+     */
+    protected void writeHTMLEntity(EntityData entityData, Writer writer) throws IOException {
+        writer.write("  <div style='padding-left:1em;'>\n");
+        if (entityData == null) {
+            writer.write("NO DATA to encode");
+        } else {
+            writer.write("    <div style='font-weight:bold;'>"+StringEscapeUtils.escapeHtml(entityData.getDisplayTitle())+"</div>\n");
+            writer.write("    <table border='1'>\n");
+            writer.write("      <caption style='font-weight:bold;'>Entity Data</caption>\n");
+            if (! entityData.isDataOnly()) {
+                writer.write("      <tr><td>entityReference</td><td>"+StringEscapeUtils.escapeHtml(entityData.getEntityReference())+"</td></tr>\n");
+                writer.write("      <tr><td>entityURL</td><td>"+StringEscapeUtils.escapeHtml(entityData.getEntityURL())+"</td></tr>\n");
+                if (entityData.getEntityRef() != null) {
+                    writer.write("      <tr><td>entityPrefix</td><td>"+StringEscapeUtils.escapeHtml(entityData.getEntityRef().getPrefix())+"</td></tr>\n");
+                    if (entityData.getEntityRef().getId() != null) {
+                        writer.write("      <tr><td>entityID</td><td>"+StringEscapeUtils.escapeHtml(entityData.getEntityRef().getId())+"</td></tr>\n");
+                    }
+                }
+            }
+            if (entityData.getData() != null) {
+                writer.write("      <tr><td>entity-type</td><td>"+entityData.getData().getClass().getName()+"</td></tr>\n");
+                // dump entity data
+                writer.write("      <tr><td colspan='2'>Data:<br/>\n");
+                encodeData(entityData.getData(), Formats.HTML, null, null, writer);
+                writer.write("      </td></tr>\n");
+            } else {
+                writer.write("      <tr><td>entity-object</td><td><i>null</i></td></tr>\n");
+            }
+            writer.write("    </table>\n");
+            Map<String, Object> props = entityData.getEntityProperties();
+            if (!props.isEmpty()) {
+                writer.write("    <table border='1'>\n");
+                writer.write("      <caption style='font-weight:bold;'>Properties</caption>\n");
+                for (Entry<String, Object> entry : props.entrySet()) {
+                    writer.write("      <tr><td>"+StringEscapeUtils.escapeHtml(entry.getKey())+"</td><td>"+StringEscapeUtils.escapeHtml(entry.getValue().toString())+"</td></tr>\n");
+                }
+                writer.write("    </table>\n");
+            }
+        }
+        writer.write("  </div>\n");
+    }
+
+    /**
+     * Encodes entity data directly into a writer,
+     * the output is the same as {@link #encodeEntity(String, String, EntityData, EntityView)}
+     * but formats which have a {@link StreamingTranscoder} are written as they are encoded
+     * @param prefix the entity prefix related to this data
+     * @param format the format to encode the data into
+     * @param entityData (optional) entity data to encode
+     * @param view (optional) used to generate links and determine the correct incoming view
+     * @param writer the writer to place the encoded entity into (this is not flushed)
+     * @throws IOException if the writer fails
+     */
+    public void encodeEntity(String prefix, String format, EntityData entityData, EntityView view, Writer writer) throws IOException {
+        if (Formats.FORM.equals(format)
+                || ! transcoderStreams(format)) {
+            writer.write( encodeEntity(prefix, format, entityData, view) );
+        } else {
+            if (prefix == null) {
+                throw new IllegalArgumentException("prefix and format must not be null");
+            }
+            if (entityData == null) {
+                throw new IllegalArgumentException("entityData to encode must not be null for prefix ("+prefix+") and format ("+format+")");
+            }
+            if (Formats.HTML.equals(format)) {
+                writeHTMLEntity(entityData, writer);
+                return;
+            }
+            Map<String, Object> entityProps = new ArrayOrderedMap<String, Object>();
+            Object toEncode = makeEncodableEntity(entityData, entityProps);
+            encodeData(toEncode, format, prefix, entityProps, writer);
+        }
+    }
+
+    /**
+     * Works out what should actually be encoded for this entity data and the extra properties to encode with it
+     * @param entityData (optional) entity data to encode
+     * @param entityProps the map to place the extra properties into
+     * @return the object to encode
+     */
+    protected Object makeEncodableEntity(EntityData entityData, Map<String, Object> entityProps) {
+        Object toEncode = entityData; // default to encoding the entity data object
+        if (entityData != null && entityData.getData() != null) {
+            if (entityData.isDataOnly()) {
+                toEncode = entityData.getData();
+                // no meta data except properties if there are any
+                entityProps.putAll( entityData.getEntityProperties() );
+            } else {
+                if (EntityAccessorPlan.getPlan(entityData.getData().getClass()).isBean()) {
+                    // encode the bean directly if it is one
+                    toEncode = entityData.getData();
+                    // add in the extra props
+                    entityProps.put(ENTITY_REFERENCE, entityData.getEntityReference());
+                    entityProps.put(ENTITY_URL, entityData.getEntityURL());
+                    if (entityData.getEntityRef().getId() != null) {
+                        entityProps.put(ENTITY_ID, entityData.getEntityRef().getId());
+                    }
+                    if (entityData.isDisplayTitleSet()) {
+                        entityProps.put(ENTITY_TITLE, entityData.getDisplayTitle());
+                    }
+                }
+                entityProps.putAll(entityData.getEntityProperties());
+            }
+        }
+        return toEncode;
+    }
+
     /**
      * @return the form view URLs which should be used with the forms
      */
@@ -802,9 +1564,20 @@ public class EntityEncodingManager {
 
     protected static final String DATA_KEY = Transcoder.DATA_KEY;
 
-    private Map<String, Transcoder> transcoders;
+    /**
+     * The registry of transcoders (format -> transcoder), this is never modified once it is built,
+     * changes replace the whole registry so it can be read without locking
+     */
+    private volatile Map<String, Transcoder> transcoders;
+    /**
+     * Replace all the transcoders, only the formats in this map will be handled
+     * @param transcoders a map of format -> transcoder, null to go back to the default transcoders
+     */
     public void setTranscoders(Map<String, Transcoder> transcoders) {
-        this.transcoders = transcoders;
+        synchronized (this) {
+            this.transcoders = transcoders == null ? null : Collections.unmodifiableMap(new HashMap<String, Transcoder>(transcoders));
+        }
+        clearFragmentCache();
     }
     /**
      * Override the transcoder used for a specific format
@@ -814,27 +1587,55 @@ public class EntityEncodingManager {
         if (transcoder == null) {
             throw new IllegalArgumentException("transcoder cannot be null");
         }
-        if (transcoders == null) {
-            getTranscoder(Formats.XML);
-        }
         String format = transcoder.getHandledFormat();
-        if (format != null && transcoder != null) {
-            transcoders.put(format, transcoder);
+        if (format != null) {
+            synchronized (this) {
+                Map<String, Transcoder> registry = new HashMap<String, Transcoder>(getTranscoders());
+                registry.put(format, transcoder);
+                this.transcoders = Collections.unmodifiableMap(registry);
+            }
+            clearFragmentCache();
+        }
+    }
+    /**
+     * @return the current transcoders registry (format -> transcoder), this cannot be modified
+     */
+    protected Map<String, Transcoder> getTranscoders() {
+        Map<String, Transcoder> registry = transcoders;
+        if (registry == null) {
+            synchronized (this) {
+                registry = transcoders;
+                if (registry == null) {
+                    registry = Collections.unmodifiableMap(makeDefaultTranscoders());
+                    transcoders = registry;
+                }
+            }
         }
+        return registry;
+    }
+    /**
+     * @return a new map of the default transcoders (format -> transcoder)
+     */
+    protected Map<String, Transcoder> makeDefaultTranscoders() {
+        Map<String, Transcoder> registry = new HashMap<String, Transcoder>();
+        JSONStreamEncoder jt = new JSONStreamEncoder(true, true, false);
+        CBORTranscoder ct = new CBORTranscoder(true, false);
+        if (entityBrokerManager != null) {
+            jt.setMaxLevel(entityBrokerManager.getMaxJSONLevel());
+            ct.setMaxLevel(entityBrokerManager.getMaxJSONLevel());
+            ct.setMaxInputDepth(makeInputDecoder().getMaxDepth());
+        }
+        registry.put(jt.getHandledFormat(), jt);
+        registry.put(Formats.JSONP, jt);
+        XMLStreamEncoder xt = new XMLStreamEncoder(true, true, false, false);
+        registry.put(xt.getHandledFormat(), xt);
+        HTMLStreamEncoder ht = new HTMLStreamEncoder();
+        registry.put(ht.getHandledFormat(), ht);
+        registry.put(ct.getHandledFormat(), ct);
+        return registry;
     }
     public Transcoder getTranscoder(String format) {
-        if (transcoders == null) {
-            transcoders = new HashMap<String, Transcoder>();
-            JSONTranscoder jt = new JSONTranscoder(true, true, false);
-			jt.setMaxLevel(entityBrokerManager.getMaxJSONLevel());
-            transcoders.put(jt.getHandledFormat(), jt);
-            transcoders.put(Formats.JSONP, jt);
-            XMLTranscoder xt = new XMLTranscoder(true, true, false, false);
-            transcoders.put(xt.getHandledFormat(), xt);
-            HTMLTranscoder ht = new HTMLTranscoder();
-            transcoders.put(ht.getHandledFormat(), ht);
-        }
-        Transcoder transcoder = transcoders.get(format);
+        Transcoder transcoder = getTranscoders().get(format);
         if (transcoder == null) {
             throw new IllegalArgumentException("Failed to find a transcoder for format, none exists, cannot encode or decode data for format: " + format);
         }
@@ -858,13 +1659,7 @@ public class EntityEncodingManager {
         }
         String encoded = "";
         if (data != null) {
-            int maxDepth = 0;
-            if (name != null) {
-                DepthLimitable provider = (DepthLimitable) entityProviderManager.getProviderByPrefixAndCapability(name, DepthLimitable.class);
-                if (provider != null) {
-                    maxDepth = provider.getMaxDepth();
-                }
-            }
+            int maxDepth = getMaxDepth(name);
             Transcoder transcoder = getTranscoder(format);
             try {
                 if (maxDepth == 0) {
@@ -879,6 +1674,79 @@ public class EntityEncodingManager {
         }
         return encoded;
     }
+
+    /**
+     * Encode data into a given format and write it into the writer, 
+     * the data is written as it is encoded if the transcoder for this format is a {@link StreamingTranscoder}
+     * (otherwise this is the same as {@link #encodeData(Object, String, String, Map)})
+     * 
+     * @param data the data to encode (can be a POJO or Map or pretty much any java object)
+     * @param format the format to use for output (from {@link Formats})
+     * @param name (optional) the name to use for the encoded data (e.g. root node for XML)
+     * @param properties (optional) extra properties to add into the encoding, ignored if encoded object is not a map or bean
+     * @param writer the writer to place the encoded data into (this is not flushed)
+     * @throws IOException if the writer fails
+     * @throws UnsupportedOperationException if the data cannot be encoded
+     */
+    public void encodeData(Object data, String format, String name, Map<String, Object> properties, Writer writer) throws IOException {
+        if (format == null) {
+            format = Formats.XML;
+        }
+        Transcoder transcoder = getTranscoder(format);
+        if (! (transcoder instanceof StreamingTranscoder)) {
+            writer.write( encodeData(data, format, name, properties) );
+        } else if (data != null) {
+            int maxDepth = getMaxDepth(name);
+            StreamingTranscoder streamingTranscoder = (StreamingTranscoder) transcoder;
+            try {
+                if (maxDepth == 0) {
+                    streamingTranscoder.encode(data, name, properties, writer);
+                } else {
+                    streamingTranscoder.encode(data, name, properties, maxDepth, writer);
+                }
+            } catch (RuntimeException e) {
+                // convert failure to UOE
+                throw new UnsupportedOperationException("Failure encoding data ("+data+") of type ("+data.getClass()+"): " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @param name (optional) the entity prefix
+     * @return the max depth for this prefix OR 0 if the default should be used
+     */
+    protected int getMaxDepth(String name) {
+        int maxDepth = 0;
+        if (name != null) {
+            DepthLimitable provider = (DepthLimitable) entityProviderManager.getProviderByPrefixAndCapability(name, DepthLimitable.class);
+            if (provider != null) {
+                maxDepth = provider.getMaxDepth();
+            }
+        }
+        return maxDepth;
+    }
+
+    /**
+     * @return true if the transcoder for this format is a binary one (false if there is no transcoder, e.g. for forms)
+     */
+    protected boolean transcoderIsBinary(String format) {
+        try {
+            return getTranscoder(format) instanceof BinaryTranscoder;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the transcoder for this format can write directly to a writer
+     */
+    protected boolean transcoderStreams(String format) {
+        try {
+            return getTranscoder(format) instanceof StreamingTranscoder;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
     
     /**
      * Clean the JSONP callback parameter to make sure it is sensible
@@ -930,6 +1798,34 @@ public class EntityEncodingManager {
         return decoded;
     }
 
+    /**
+     * Decode a stream of data in a specified format into a java map,
+     * binary formats are decoded directly from the stream,
+     * all other formats are read into a string and decoded with {@link #decodeData(String, String)}
+     * 
+     * @param input the stream of encoded data
+     * @param format the format of the encoded data (from {@link Formats})
+     * @return a map containing all the data derived from the encoded data
+     * @throws UnsupportedOperationException if the data cannot be decoded
+     */
+    public Map<String, Object> decodeData(InputStream input, String format) {
+        if (format == null) {
+            format = Formats.XML;
+        }
+        Transcoder transcoder = getTranscoder(format);
+        if (! (transcoder instanceof BinaryTranscoder)) {
+            return decodeData(StringUtils.makeStringFromInputStream(input), format);
+        }
+        try {
+            return ((BinaryTranscoder) transcoder).decode(input);
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Failure reading data for format ("+format+"): " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            // convert failure to UOE
+            throw new UnsupportedOperationException("Failure decoding data for format ("+format+"): " + e.getMessage(), e);
+        }
+    }
+
     /**
      * Using GSON is hopeless:
      * http://code.google.com/p/google-gson/issues/detail?id=45
@@ -25,8 +25,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -35,7 +38,6 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.azeckoski.reflectutils.ReflectUtils;
-import org.azeckoski.reflectutils.exceptions.FieldnameNotFoundException;
 import org.sakaiproject.entitybroker.EntityBroker;
 import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityReference;
@@ -46,6 +48,7 @@ import org.sakaiproject.entitybroker.access.EntityViewAccessProvider;
 import org.sakaiproject.entitybroker.access.EntityViewAccessProviderManager;
 import org.sakaiproject.entitybroker.access.HttpServletAccessProvider;
 import org.sakaiproject.entitybroker.access.HttpServletAccessProviderManager;
+import org.sakaiproject.entitybroker.entityprovider.CoreEntityProvider;
 import org.sakaiproject.entitybroker.entityprovider.EntityProvider;
 import org.sakaiproject.entitybroker.entityprovider.EntityProviderManager;
 import org.sakaiproject.entitybroker.entityprovider.annotations.EntityLastModified;
@@ -59,9 +62,13 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Redirectable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestHandler;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestInterceptor;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Resolvable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Updateable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Versionable;
 import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
+import org.sakaiproject.entitybroker.entityprovider.extension.CursorPage;
 import org.sakaiproject.entitybroker.entityprovider.extension.CustomAction;
+import org.sakaiproject.entitybroker.entityprovider.extension.DispatchPlan;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetterWrite;
@@ -95,6 +102,18 @@ public class EntityHandlerImpl implements EntityRequestHandler {
     public static String SVN_REVISION = "$Revision$";
     public static String SVN_LAST_UPDATE = "$Date$";
 
+    public static final String HEADER_LINK = "Link";
+    /**
+     * the params which are replaced in the link to the next page of a cursor paged collection
+     */
+    protected static final String[] PAGING_PARAMS = new String[] {"_cursor", "_limit", "_perpage", "perpage", "count", "itemsPerPage", 
+        "_start", "startIndex", "_page", "page", "startPage"};
+    /**
+     * responses without a version or last modified date are held up to this size so a strong ETag can be made from the content,
+     * larger responses are streamed out without an ETag
+     */
+    public static final int STRONG_ETAG_MAX_SIZE = 32768;
+
     /**
      * Empty constructor
      */
@@ -252,14 +271,8 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                     || path.startsWith(SLASH_DESCRIBE + EntityReference.PERIOD)) {
                 // SPECIAL handling for the describe all URL
                 String format = RequestUtils.findAndHandleFormat(req, res, Formats.HTML);
-                String output = entityDescriptionManager.makeDescribeAll(format, req.getLocale()); // possibly get the locale from other places?
-                res.setContentLength(output.getBytes().length);
-                try {
-                    res.getWriter().write(output);
-                } catch (IOException e) {
-                    // should never happen
-                    throw new RuntimeException("Failed to put output into the response writer: " + e.getMessage(), e);
-                }
+                byte[] output = entityDescriptionManager.getDescribeAllBytes(format, req.getLocale()); // possibly get the locale from other places?
+                writeResponseBytes(req, res, output);
                 res.setStatus(HttpServletResponse.SC_OK);
                 handledReference = EntityView.SEPARATOR+"";
             } else {
@@ -283,23 +296,25 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                     if (entityId == null || "".equals(entityId)) {
                         entityId = FAKE_ID;
                     }
-                    String output = entityDescriptionManager.makeDescribeEntity(view.getEntityReference().getPrefix(), entityId, format, req.getLocale());
-                    res.setContentLength(output.getBytes().length);
-                    try {
-                        res.getWriter().write(output);
-                    } catch (IOException e) {
-                        throw new RuntimeException("Failed to put output into the response writer: " + e.getMessage(), e);
-                    }
+                    byte[] output = entityDescriptionManager.getDescribeEntityBytes(view.getEntityReference().getPrefix(), entityId, format, req.getLocale());
+                    writeResponseBytes(req, res, output);
                     res.setStatus(HttpServletResponse.SC_OK);
                     handledReference = view.getEntityReference().getSpaceReference() + SLASH_DESCRIBE;
 
                 } else {
                     // STANDARD reference successfully parsed
                     String prefix = view.getEntityReference().getPrefix();
+                    // get all the capabilities for this prefix in one lookup
+                    DispatchPlan plan = entityProviderManager.getDispatchPlan(prefix);
+                    if (plan == null) {
+                        // FAILURE provider was unregistered after the path was parsed
+                        throw new EntityException( "Could not parse the incoming path ("+path+") and no entity provider could be found to handle the prefix", 
+                                path, HttpServletResponse.SC_NOT_IMPLEMENTED );
+                    }
 
                     // check for redirect
-                    Redirectable urlConfigurable = entityProviderManager.getProviderByPrefixAndCapability(prefix, Redirectable.class);
-                    if (urlConfigurable != null) {
+                    if (plan.hasRedirects()) {
+                        Redirectable urlConfigurable = plan.getRedirectable();
                         // SPECIAL check for redirect
                         String redirectURL = entityRedirectsManager.checkForTemplateMatch(urlConfigurable, path, req.getQueryString());
                         if (redirectURL != null) {
@@ -317,17 +332,21 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                     }
 
                     // check for custom action
-                    CustomAction customAction = entityActionsManager.getCustomAction(prefix, view.getPathSegment(1));
-                    if (customAction == null) {
-                        customAction = entityActionsManager.getCustomAction(prefix, view.getPathSegment(2));
+                    CustomAction customAction = null;
+                    if (plan.hasCustomActions()) {
+                        customAction = entityActionsManager.getCustomAction(prefix, view.getPathSegment(1));
+                        if (customAction == null) {
+                            customAction = entityActionsManager.getCustomAction(prefix, view.getPathSegment(2));
+                        }
                     }
+                    boolean existenceChecked = true;
                     if (customAction == null) {
-                        // check to see if the entity exists
-                        if (! entityBrokerManager.entityExists(view.getEntityReference()) ) {
-                            // FAILURE invalid entity reference (entity does not exist)
-                            throw new EntityException( "Attempted to access an entity URL path (" + path + ") for an entity ("
-                                    + view.getEntityReference() + ") that does not exist", 
-                                    view.getEntityReference()+"", HttpServletResponse.SC_NOT_FOUND );
+                        if (isFusedResolution(plan, view, req)) {
+                            // the entity will be fetched once for output and a missing entity will be a 404 then
+                            existenceChecked = false;
+                        } else {
+                            // check to see if the entity exists
+                            checkEntityExists(view, path);
                         }
                     } else {
                         // cleanup the entity reference, this has to be done because otherwise the custom action
@@ -354,7 +373,7 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                         requestStorage.setRequestValue(RequestStorage.ReservedKeys._requestActive.name(), true);
 
                         // handle the before interceptor
-                        RequestInterceptor interceptor = (RequestInterceptor) entityProviderManager.getProviderByPrefixAndCapability(prefix, RequestInterceptor.class);
+                        RequestInterceptor interceptor = plan.getRequestInterceptor();
                         if (interceptor != null) {
                             interceptor.before(view, req, res);
                         }
@@ -370,7 +389,7 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                             view.setExtension( format );
 
                             // check for provider handling of this request
-                            RequestHandler handler = (RequestHandler) entityProviderManager.getProviderByPrefixAndCapability(prefix, RequestHandler.class);
+                            RequestHandler handler = plan.getRequestHandler();
                             if (handler != null) {
                                 // SPECIAL provider is handling this request
                                 handleClassLoaderAccess(handler, req, res, view);
@@ -380,14 +399,14 @@ public class EntityHandlerImpl implements EntityRequestHandler {
 
                                 // identify the type of request (input or output) and the action (will be encoded in the viewKey)
                                 boolean output = RequestUtils.isRequestOutput(req, view);
-                                setResponseHeaders(view, res, requestStorage.getStorageMapCopy(), null);
+                                setResponseHeaders(view, res, requestStorage.getStorageMapView(), null, plan.getProvider());
 
                                 boolean handled = false;
                                 // PROCESS CUSTOM ACTIONS
                                 ActionReturn actionReturn = null;
                                 if (customAction != null) {
                                     // SPECIAL handle the custom action
-                                    ActionsExecutable actionProvider = entityProviderManager.getProviderByPrefixAndCapability(prefix, ActionsExecutable.class);
+                                    ActionsExecutable actionProvider = plan.getActionsExecutable();
                                     if (actionProvider == null) {
                                         throw new EntityException( "The provider for prefix ("+prefix+") cannot handle custom actions", 
                                                 view.getEntityReference()+"", HttpServletResponse.SC_BAD_REQUEST );
@@ -401,7 +420,7 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                     }
                                     try {
                                         actionReturn = entityActionsManager.handleCustomActionRequest(actionProvider, view, customAction.action, req, res, 
-                                                requestStorage.getStorageMapCopy(true, false, true, true) );
+                                                requestStorage.getStorageMapView(true, false, true, true) );
                                     } catch (SecurityException se) {
                                         // AJAX/WS type security exceptions are handled specially, no redirect
                                         throw new EntityException("Security exception handling request for view ("+view+"), "
@@ -467,10 +486,14 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                                     || EntityView.VIEW_EDIT.equals(viewKey) 
                                                     || EntityView.VIEW_DELETE.equals(viewKey) ) {
                                                 // request for the create/edit/delete entity forms
+                                                if (! existenceChecked) {
+                                                    checkEntityExists(view, path);
+                                                    existenceChecked = true;
+                                                }
                                                 handled = false; // if we handle this then switch this to true
                                                 if (Formats.FORM.equals(format)) {
                                                     // generate new/edit/delete forms internally if the provider allows it
-                                                    Outputable outputable = (Outputable) entityProviderManager.getProviderByPrefixAndCapability(prefix, Outputable.class);
+                                                    Outputable outputable = plan.getOutputable();
                                                     if (outputable != null) {
                                                         String[] outputFormats = outputable.getHandledOutputFormats();
                                                         if (outputFormats != null && ReflectUtils.contains(outputFormats, Formats.FORM) ) {
@@ -505,7 +528,7 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                                     }
                                                 }
                                             } else {
-                                                Outputable outputable = (Outputable) entityProviderManager.getProviderByPrefixAndCapability(prefix, Outputable.class);
+                                                Outputable outputable = plan.getOutputable();
                                                 if (outputable != null) {
                                                     if (customAction != null) {
                                                         // override format from the custom action
@@ -515,88 +538,188 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                                         }
                                                     }
                                                     String[] outputFormats = outputable.getHandledOutputFormats();
-                                                    if (outputFormats == null || ReflectUtils.contains(outputFormats, format) ) {
+                                                    if (outputFormats == null || EntityEncodingManager.isFormatHandled(outputFormats, format) ) {
                                                         // we are handling this type of format for this entity
                                                         RequestUtils.setResponseEncoding(format, res);
 
                                                         EntityReference ref = view.getEntityReference();
-                                                        // get the entities to output
-                                                        List<EntityData> entities = null;
-                                                        if (customAction != null 
-                                                                && actionReturn != null) {
-                                                            // get entities from a custom action
-                                                            entities = actionReturn.entitiesList;
-                                                            if (entities != null) {
-                                                                // recode the collection
-                                                                if (entities.size() > 0) {
-                                                                    EntityData ed = entities.get(0);
-                                                                    ref = new EntityReference(ed.getEntityRef().getPrefix(), "");
-                                                                    view.setEntityReference( ref );
-                                                                    view.setViewKey(EntityView.VIEW_LIST);
-                                                                }
-                                                            } else if (actionReturn.entityData != null) {
-                                                                // this was a single object return so it should be encoded as such, thus we will recode the correct reference into the view
-                                                                ArrayList<EntityData> eList = new ArrayList<EntityData>();
-                                                                EntityData ed = actionReturn.entityData;
-                                                                // set title if not set
-                                                                if (! ed.isDisplayTitleSet()) {
-                                                                    ed.setDisplayTitle(customAction.action);
-                                                                }
-                                                                // add to list
-                                                                eList.add( ed );
-                                                                entities = eList;
-                                                                // make entity reference
-                                                                ref = ed.getEntityRef();
-                                                                if (ref == null) {
-                                                                    ref = new EntityReference(prefix, customAction.action);
-                                                                } else if (ref.getId() == null) {
-                                                                    ref = new EntityReference(ref.getPrefix(), customAction.action);
-                                                                }
-                                                                view.setEntityReference( ref );
-                                                                view.setViewKey(EntityView.VIEW_SHOW);
+                                                        // conditional GET: allow the provider to cheaply state the version first
+                                                        String versionETag = null;
+                                                        Long versionLastModified = null;
+                                                        Versionable versionable = (customAction == null ? plan.getVersionable() : null);
+                                                        if (versionable != null) {
+                                                            Map<String, Object> params = requestStorage.getStorageMapView();
+                                                            String version = versionable.getEntityVersion(ref, params);
+                                                            if (version != null) {
+                                                                versionETag = makeWeakETag(ref, format, version);
                                                             }
-                                                        } else {
-                                                            // get from a search
-                                                            Search search = RequestUtils.makeSearchFromRequestParams(requestStorage.getStorageMapCopy(true, false, true, true)); // leave out headers));
-                                                            entities = entityBrokerManager.getEntitiesData(ref, search, requestStorage.getStorageMapCopy());
+                                                            versionLastModified = versionable.getEntityLastModified(ref, params);
                                                         }
-                                                        // set the modified header (use the sole entity in the list if there is one only)
-                                                        setLastModifiedHeaders(res, (entities != null && entities.size()==1 ? entities.get(0) : null), System.currentTimeMillis());
-
-                                                        if (EntityView.Method.HEAD.name().equals(view.getMethod())) {
-                                                            // HEADER only
+                                                        if ((versionETag != null || versionLastModified != null)
+                                                                && ! Formats.FORM.equals(format)
+                                                                && isNotModified(req, versionETag, versionLastModified)) {
+                                                            // not modified so there is no need to fetch or encode anything
+                                                            setNotModified(res, versionETag, versionLastModified);
+                                                            handled = true;
+                                                        } else if (customAction == null
+                                                                && EntityView.Method.HEAD.name().equals(view.getMethod())) {
+                                                            // HEADER only, the entities are never fetched or encoded (the existence check was already done)
+                                                            setLastModifiedHeaders(res, null, (versionLastModified != null ? versionLastModified.longValue() : System.currentTimeMillis()));
+                                                            if (versionETag != null 
+                                                                    && ! Formats.FORM.equals(format)) {
+                                                                res.setHeader(ActionReturn.Header.ETAG.toString(), versionETag);
+                                                            }
                                                             res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                                                            handled = true;
                                                         } else {
-                                                            // GET
-                                                            OutputStream outputStream = new LazyResponseOutputStream(res);
-
-                                                            /* try to use the provider formatter if one available,
-                                                             * if it decided not to handle it or none is available then control passes to internal
-                                                             */
-                                                            try {
-                                                                OutputFormattable formattable = (OutputFormattable) entityProviderManager.getProviderByPrefixAndCapability(prefix, OutputFormattable.class);
-                                                                if (formattable != null) {
-                                                                    // use provider's formatter
-                                                                    formattable.formatOutput(ref, format, entities, requestStorage.getStorageMapCopy(), outputStream);
-                                                                    handled = true;
+                                                            // get the entities to output
+                                                            List<EntityData> entities = null;
+                                                            if (customAction != null 
+                                                                    && actionReturn != null) {
+                                                                // get entities from a custom action
+                                                                entities = actionReturn.entitiesList;
+                                                                if (entities != null) {
+                                                                    // recode the collection
+                                                                    if (entities.size() > 0) {
+                                                                        EntityData ed = entities.get(0);
+                                                                        ref = new EntityReference(ed.getEntityRef().getPrefix(), "");
+                                                                        view.setEntityReference( ref );
+                                                                        view.setViewKey(EntityView.VIEW_LIST);
+                                                                    }
+                                                                } else if (actionReturn.entityData != null) {
+                                                                    // this was a single object return so it should be encoded as such, thus we will recode the correct reference into the view
+                                                                    ArrayList<EntityData> eList = new ArrayList<EntityData>();
+                                                                    EntityData ed = actionReturn.entityData;
+                                                                    // set title if not set
+                                                                    if (! ed.isDisplayTitleSet()) {
+                                                                        ed.setDisplayTitle(customAction.action);
+                                                                    }
+                                                                    // add to list
+                                                                    eList.add( ed );
+                                                                    entities = eList;
+                                                                    // make entity reference
+                                                                    ref = ed.getEntityRef();
+                                                                    if (ref == null) {
+                                                                        ref = new EntityReference(prefix, customAction.action);
+                                                                    } else if (ref.getId() == null) {
+                                                                        ref = new EntityReference(ref.getPrefix(), customAction.action);
+                                                                    }
+                                                                    view.setEntityReference( ref );
+                                                                    view.setViewKey(EntityView.VIEW_SHOW);
+                                                                }
+                                                            } else {
+                                                                // get from a search
+                                                                Search search = RequestUtils.makeSearchFromRequestParams(requestStorage.getStorageMapView(true, false, true, true)); // leave out headers));
+                                                                try {
+                                                                    if (ref.getId() == null 
+                                                                            && plan.getCursorPageable() != null
+                                                                            && search.getStart() <= 0) {
+                                                                        // cursor paging (used unless an offset was requested)
+                                                                        CursorPage<EntityData> page = entityBrokerManager.getEntitiesDataPage(ref, search, requestStorage.getStorageMapView());
+                                                                        entities = page.getEntities();
+                                                                        if (page.hasNext()) {
+                                                                            res.addHeader(HEADER_LINK, makeNextPageLink(req, page.getNextCursor(), search.getLimit()));
+                                                                        }
+                                                                    } else {
+                                                                        // for a single entity this is also the existence check when it was not done already
+                                                                        entities = entityBrokerManager.getEntitiesData(ref, search, requestStorage.getStorageMapView());
+                                                                    }
+                                                                } catch (EntityNotFoundException e) {
+                                                                    throw new EntityException( "Attempted to access an entity URL path (" + path + ") for an entity ("
+                                                                            + ref + ") that does not exist: " + e.getMessage(), 
+                                                                            ref+"", HttpServletResponse.SC_NOT_FOUND );
                                                                 }
-                                                            } catch (FormatUnsupportedException e) {
-                                                                // provider decided not to handle this format
-                                                                handled = false;
                                                             }
-                                                            if (!handled) {
-                                                                // handle internally or fail
-                                                                entityEncodingManager.internalOutputFormatter(ref, format, entities, requestStorage.getStorageMapCopy(), outputStream, view);
-                                                                // SPECIAL CASE: FORM
-                                                                if (Formats.FORM.equals(format)) {
-                                                                    setNoCacheHeaders(res);
+                                                            // set the modified header (use the sole entity in the list if there is one only)
+                                                            Long lastModified = versionLastModified;
+                                                            if (lastModified == null && entities != null && entities.size() == 1) {
+                                                                lastModified = findLastModified(entities.get(0));
+                                                            }
+                                                            setLastModifiedHeaders(res, null, (lastModified != null ? lastModified.longValue() : System.currentTimeMillis()));
+                                                            // the weak ETag comes from the version or the last modified date if there is one
+                                                            String etag = versionETag;
+                                                            if (etag == null && lastModified != null) {
+                                                                etag = makeWeakETag(ref, format, lastModified.toString());
+                                                            }
+                                                            boolean conditional = ! Formats.FORM.equals(format);
+                                                            if (conditional && etag != null) {
+                                                                res.setHeader(ActionReturn.Header.ETAG.toString(), etag);
+                                                            }
+
+                                                            if (conditional && etag != null
+                                                                    && isNotModified(req, etag, lastModified)) {
+                                                                // client already has the current version
+                                                                setNotModified(res, etag, lastModified);
+                                                                handled = true;
+                                                            } else if (EntityView.Method.HEAD.name().equals(view.getMethod())) {
+                                                                // HEADER only
+                                                                res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                                                                handled = true;
+                                                            } else {
+                                                                // GET
+                                                                LazyResponseOutputStream responseStream = entityEncodingManager.makeResponseOutputStream(req, res);
+                                                                OutputStream outputStream = responseStream;
+                                                                ETagOutputStream etagStream = null;
+                                                                if (conditional && etag == null) {
+                                                                    // no cheap validator so the encoded bytes have to be hashed to make a strong ETag (if they are small enough)
+                                                                    etagStream = new ETagOutputStream(responseStream, STRONG_ETAG_MAX_SIZE);
+                                                                    outputStream = etagStream;
+                                                                }
+
+                                                                /* try to use the provider formatter if one available,
+                                                                 * if it decided not to handle it or none is available then control passes to internal
+                                                                 */
+                                                                try {
+                                                                    OutputFormattable formattable = plan.getOutputFormattable();
+                                                                    if (formattable != null) {
+                                                                        // use provider's formatter
+                                                                        formattable.formatOutput(ref, format, entities, requestStorage.getStorageMapView(), outputStream);
+                                                                        handled = true;
+                                                                    }
+                                                                } catch (FormatUnsupportedException e) {
+                                                                    // provider decided not to handle this format
+                                                                    handled = false;
+                                                                }
+                                                                if (!handled) {
+                                                                    // handle internally or fail
+                                                                    entityEncodingManager.internalOutputFormatter(ref, format, entities, requestStorage.getStorageMapView(), outputStream, view);
+                                                                    // SPECIAL CASE: FORM
+                                                                    if (Formats.FORM.equals(format)) {
+                                                                        setNoCacheHeaders(res);
+                                                                    }
+                                                                }
+                                                                handled = true;
+                                                                if (etagStream != null && etagStream.isHeld()) {
+                                                                    // the compressed bytes differ from the identity ones so they get a different strong ETag
+                                                                    etag = makeStrongETag(etagStream.getHeld(), etagStream.size(), responseStream.getContentEncoding());
+                                                                    res.setHeader(ActionReturn.Header.ETAG.toString(), etag);
+                                                                    if (isNotModified(req, etag, null)) {
+                                                                        setNotModified(res, etag, null);
+                                                                    } else {
+                                                                        try {
+                                                                            etagStream.writeHeld();
+                                                                        } catch (IOException e) {
+                                                                            throw new RuntimeException("Failed to get output stream from response: " + ref, e);
+                                                                        }
+                                                                        res.setStatus(HttpServletResponse.SC_OK);
+                                                                    }
+                                                                } else {
+                                                                    res.setStatus(HttpServletResponse.SC_OK);
+                                                                }
+                                                                try {
+                                                                    responseStream.finish();
+                                                                } catch (IOException e) {
+                                                                    throw new RuntimeException("Failed to complete the output into the response: " + ref, e);
                                                                 }
                                                             }
-                                                            handled = true;
-                                                            res.setStatus(HttpServletResponse.SC_OK);
                                                         }
                                                     } else {
                                                         // format type not handled
+                                                        if (! existenceChecked) {
+                                                            // the access providers may still handle this so the entity must exist
+                                                            checkEntityExists(view, path);
+                                                            existenceChecked = true;
+                                                        }
                                                         throw new FormatUnsupportedException("Outputable restriction (formats list) for " 
                                                                 + prefix + " blocked handling this format ("+format+")",
                                                                 view.getEntityReference()+"", format);
@@ -607,36 +730,40 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                             // input request
                                             if (EntityView.VIEW_DELETE.equals(view.getViewKey())) {
                                                 // delete request
-                                                Deleteable deleteable = (Deleteable) entityProviderManager.getProviderByPrefixAndCapability(prefix, Deleteable.class);
+                                                Deleteable deleteable = plan.getDeleteable();
                                                 if (deleteable != null) {
-                                                    deleteable.deleteEntity(view.getEntityReference(), requestStorage.getStorageMapCopy());
+                                                    deleteable.deleteEntity(view.getEntityReference(), requestStorage.getStorageMapView());
+                                                    entityBrokerManager.entityChanged(view.getEntityReference().toString());
                                                     res.setStatus(HttpServletResponse.SC_NO_CONTENT);
                                                     handled = true;
                                                 }
                                             } else {
                                                 // save request
-                                                Inputable inputable = (Inputable) entityProviderManager.getProviderByPrefixAndCapability(prefix, Inputable.class);
+                                                Inputable inputable = plan.getInputable();
                                                 if (inputable != null) {
                                                     String[] inputFormats = inputable.getHandledInputFormats();
-                                                    if (inputFormats == null || ReflectUtils.contains(inputFormats, format) ) {
+                                                    if (inputFormats == null || EntityEncodingManager.isFormatHandled(inputFormats, format) ) {
                                                         // we are handling this type of format for this entity
                                                         Object entity = null;
                                                         InputStream inputStream = null;
                                                         try {
-                                                            inputStream = req.getInputStream();
+                                                            // the body may have been sent compressed
+                                                            inputStream = RequestUtils.getDecodedInputStream(req);
                                                         } catch (IOException e) {
-                                                            throw new RuntimeException("Failed to get output stream from response: " + view.getEntityReference(), e);
+                                                            throw new EntityException("Failed to read the request body (Content-Encoding: "
+                                                                    + req.getHeader(LazyResponseOutputStream.HEADER_CONTENT_ENCODING) + ") for: " + view.getEntityReference() + ": " + e.getMessage(), 
+                                                                    view.getEntityReference()+"", HttpServletResponse.SC_BAD_REQUEST);
                                                         }
 
                                                         /* try to use the provider translator if one available,
                                                          * if it decided not to handle it or none is available then control passes to internal
                                                          */
                                                         try {
-                                                            InputTranslatable translatable = (InputTranslatable) entityProviderManager.getProviderByPrefixAndCapability(prefix, InputTranslatable.class);
+                                                            InputTranslatable translatable = plan.getInputTranslatable();
                                                             if (translatable != null) {
                                                                 // use provider's translator
                                                                 entity = translatable.translateFormattedData(view.getEntityReference(), 
-                                                                        format, inputStream, requestStorage.getStorageMapCopy());
+                                                                        format, inputStream, requestStorage.getStorageMapView());
                                                                 handled = true;
                                                             }
                                                         } catch (FormatUnsupportedException e) {
@@ -658,17 +785,18 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                                         } else {
                                                             // setup all the headers for the response
                                                             if (EntityView.VIEW_NEW.equals(view.getViewKey())) {
-                                                                Createable createable = entityProviderManager.getProviderByPrefixAndCapability(prefix, Createable.class);
+                                                                Createable createable = plan.getCreateable();
                                                                 if (createable == null) {
                                                                     throw new EntityException("Unable to create new entity ("+view+"), "
                                                                             +Createable.class.getName()+" is not implemented for this entity type ("+prefix+")", 
                                                                             view+"", HttpServletResponse.SC_NOT_IMPLEMENTED);
                                                                 }
-                                                                String createdId = createable.createEntity(view.getEntityReference(), entity, requestStorage.getStorageMapCopy());
+                                                                String createdId = createable.createEntity(view.getEntityReference(), entity, requestStorage.getStorageMapView());
                                                                 if (createdId == null || "".equals(createdId)) {
                                                                     throw new IllegalStateException("Could not get the createdId from the newly created entity for ("+view+"), please ensure the provider is returning a non-null and non-empty value from the create method, if the item was not created then an exception should have been thrown");
                                                                 }
                                                                 view.setEntityReference( new EntityReference(prefix, createdId) ); // update the entity view
+                                                                entityBrokerManager.entityChanged(view.getEntityReference().toString());
                                                                 res.setHeader(EntityRequestHandler.HEADER_ENTITY_ID, createdId);
                                                                 res.setStatus(HttpServletResponse.SC_CREATED);
                                                                 // added the id to the response to make it easier on Nico
@@ -681,13 +809,14 @@ public class EntityHandlerImpl implements EntityRequestHandler {
                                                                     // oh well, no id in the output
                                                                 }
                                                             } else if (EntityView.VIEW_EDIT.equals(view.getViewKey())) {
-                                                                Updateable updateable = entityProviderManager.getProviderByPrefixAndCapability(prefix, Updateable.class);
+                                                                Updateable updateable = plan.getUpdateable();
                                                                 if (updateable == null) {
                                                                     throw new EntityException("Unable to create new entity ("+view+"), "
                                                                             +Updateable.class.getName()+" is not implemented for this entity type ("+prefix+")", 
                                                                             view+"", HttpServletResponse.SC_NOT_IMPLEMENTED);
                                                                 }
-                                                                updateable.updateEntity(view.getEntityReference(), entity, requestStorage.getStorageMapCopy());
+                                                                updateable.updateEntity(view.getEntityReference(), entity, requestStorage.getStorageMapView());
+                                                                entityBrokerManager.entityChanged(view.getEntityReference().toString());
                                                                 res.setStatus(HttpServletResponse.SC_NO_CONTENT);
                                                             } else {
                                                                 // FAILURE not delete, edit, or new
@@ -781,6 +910,50 @@ public class EntityHandlerImpl implements EntityRequestHandler {
     }
 
 
+    /**
+     * Checks if the entity in the view exists and fails with a 404 if it does not
+     * @param view the entity view
+     * @param path the path which was requested
+     * @throws EntityException if the entity does not exist
+     */
+    protected void checkEntityExists(EntityView view, String path) {
+        if (! entityBrokerManager.entityExists(view.getEntityReference()) ) {
+            // FAILURE invalid entity reference (entity does not exist)
+            throw new EntityException( "Attempted to access an entity URL path (" + path + ") for an entity ("
+                    + view.getEntityReference() + ") that does not exist", 
+                    view.getEntityReference()+"", HttpServletResponse.SC_NOT_FOUND );
+        }
+    }
+
+    /**
+     * Determines if the existence check can be fused with the entity fetch for this request,
+     * this is only possible for GET requests for a single entity which will be handled internally
+     * by a {@link Resolvable} provider since the fetch will fail with a 404 if the entity is not found
+     * (this avoids calling the provider once for {@link CoreEntityProvider#entityExists(String)} and 
+     * again for {@link Resolvable#getEntity(EntityReference)}),
+     * it is not done when the provider is {@link Versionable} or has a {@link RequestInterceptor}
+     * since those are called before the fetch and must only see entities which exist
+     * @param plan the dispatch plan for the prefix
+     * @param view the entity view
+     * @param req the request
+     * @return true if the existence check can be skipped and left to the fetch
+     */
+    protected boolean isFusedResolution(DispatchPlan plan, EntityView view, HttpServletRequest req) {
+        boolean fused = false;
+        if (view.getEntityReference().getId() != null
+                && plan.getResolvable() != null
+                && plan.getOutputable() != null
+                && plan.getRequestHandler() == null
+                && plan.getVersionable() == null
+                && plan.getRequestInterceptor() == null
+                && ! BATCH.equals(plan.getPrefix())) {
+            String method = req.getMethod() == null ? EntityView.Method.GET.name() : req.getMethod().toUpperCase().trim();
+            // HEAD requests never fetch the entity so they always need the existence check
+            fused = EntityView.Method.GET.name().equals(method);
+        }
+        return fused;
+    }
+
     /**
      * @see EntityBroker#fireEntityRequest(String, String, String, Map, Object)
      */
@@ -967,6 +1140,21 @@ public class EntityHandlerImpl implements EntityRequestHandler {
      * @param headers any headers to add on
      */
     protected void setResponseHeaders(EntityView view, HttpServletResponse res, Map<String, Object> params, Map<String, String> headers) {
+        EntityProvider provider = entityProviderManager.getProviderByPrefix(view.getEntityReference().getPrefix());
+        setResponseHeaders(view, res, params, headers, provider);
+    }
+
+    /**
+     * Correctly sets up the basic headers for every response,
+     * same as {@link #setResponseHeaders(EntityView, HttpServletResponse, Map, Map)} but uses
+     * the already known provider instead of looking it up again
+     * @param view
+     * @param res
+     * @param params
+     * @param headers any headers to add on
+     * @param provider (optional) the provider for the prefix in the view
+     */
+    protected void setResponseHeaders(EntityView view, HttpServletResponse res, Map<String, Object> params, Map<String, String> headers, EntityProvider provider) {
         boolean noCache = false;
         long currentTime = System.currentTimeMillis();
         long lastModified = currentTime;
@@ -1004,7 +1192,6 @@ public class EntityHandlerImpl implements EntityRequestHandler {
 
         // set the EB specific headers
         String prefix = view.getEntityReference().getPrefix();
-        EntityProvider provider = entityProviderManager.getProviderByPrefix(prefix);
         res.setHeader("x-entity-prefix", prefix);
         res.setHeader("x-entity-reference", view.getEntityReference().toString());
         res.setHeader("x-entity-url", view.getEntityURL());
@@ -1040,64 +1227,311 @@ public class EntityHandlerImpl implements EntityRequestHandler {
     protected void setLastModifiedHeaders(HttpServletResponse res, EntityData ed, long lastModifiedTime) {
         long lastModified = System.currentTimeMillis();
         if (ed != null) {
-            // try to get from props first
-            boolean found = false;
-            Object lm = ed.getEntityProperties().get("lastModified");
-            if (lm != null) {
-                Long l = makeLastModified(lm);
-                if (l != null) {
-                    lastModified = l.longValue();
-                    found = true;
-                }
-            }
-            if (!found) {
-                if (ed.getData() != null) {
-                    // look for the annotation on the entity
-                    try {
-                        lm = ReflectUtils.getInstance().getFieldValue(ed.getData(), "lastModified", EntityLastModified.class);
-                        Long l = makeLastModified(lm);
-                        if (l != null) {
-                            lastModified = l.longValue();
-                            found = true;
-                        }
-                    } catch (FieldnameNotFoundException e1) {
-                        // nothing to do here
-                    }
-                }
+            Long l = findLastModified(ed);
+            if (l != null) {
+                lastModified = l.longValue();
             }
         } else {
             lastModified = lastModifiedTime;
         }
-        // ETag or Last-Modified
+        // Last-Modified only, the ETag is only set where a real validator (version or content hash) was made
         res.setDateHeader(ActionReturn.Header.LAST_MODIFIED.toString(), lastModified);
-        String currentEtag = String.valueOf(lastModified);
-        res.setHeader(ActionReturn.Header.ETAG.toString(), currentEtag);
     }
 
     /**
-     * Make a last modified long from this object if possible OR return null
-     * @param lm any object that might be the last modified date
-     * @return the long OR null if it cannot be converted
+     * Find the last modified time for some entity data,
+     * checks the lastModified property first and then the {@link EntityLastModified} field on the entity
+     * @param ed some entity data
+     * @return the last modified time OR null if it cannot be found
      */
-    private Long makeLastModified(Object lm) {
-        Long lastModified = null;
-        if (lm != null) {
-            Class<?> c = lm.getClass();
-            if (Date.class.isAssignableFrom(c)) {
-                lastModified = ((Date)lm).getTime();
-            } else if (Long.class.isAssignableFrom(c)) {
-                lastModified = ((Long)lm);
-            } else if (String.class.isAssignableFrom(c)) {
-                try {
-                    lastModified = new Long((String)lm);
-                } catch (NumberFormatException e) {
-                    // nothing to do here
+    protected Long findLastModified(EntityData ed) {
+        return EntityDataUtils.findLastModified(ed);
+    }
+
+    /**
+     * Checks the conditional GET headers (If-None-Match and If-Modified-Since) against
+     * the current validators for the response,
+     * If-None-Match takes priority and If-Modified-Since is only checked when it is not set
+     * @param req the request
+     * @param etag (optional) the current ETag for the response
+     * @param lastModified (optional) the real last modified time of the data (not the current time)
+     * @return true if the client already has the current version and a 304 should be sent
+     */
+    protected boolean isNotModified(HttpServletRequest req, String etag, Long lastModified) {
+        boolean notModified = false;
+        String ifNoneMatch = req.getHeader(ActionReturn.Header.IF_NONE_MATCH.toString());
+        if (ifNoneMatch != null) {
+            if (etag != null) {
+                String current = stripWeakETag(etag);
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if ("*".equals(tag) || current.equals(stripWeakETag(tag))) {
+                        notModified = true;
+                        break;
+                    }
+                }
+            }
+        } else if (lastModified != null) {
+            long ifModifiedSince = -1;
+            try {
+                ifModifiedSince = req.getDateHeader(ActionReturn.Header.IF_MODIFIED_SINCE.toString());
+            } catch (IllegalArgumentException e) {
+                // invalid date so ignore the header
+                ifModifiedSince = -1;
+            }
+            // http dates only have second resolution
+            if (ifModifiedSince >= 0 
+                    && (lastModified.longValue() / 1000) <= (ifModifiedSince / 1000)) {
+                notModified = true;
+            }
+        }
+        return notModified;
+    }
+
+    /**
+     * Makes the RFC 5988 Link header value which points to the next page of a cursor paged collection,
+     * the current request URL and params are reused with the paging params replaced
+     * @param req the request
+     * @param nextCursor the cursor for the next page
+     * @param limit the page size
+     * @return the Link header value (e.g. &lt;/direct/prefix.json?_cursor=abc&amp;_limit=100&gt;; rel="next")
+     */
+    @SuppressWarnings("unchecked")
+    protected String makeNextPageLink(HttpServletRequest req, String nextCursor, long limit) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('<');
+        sb.append(req.getRequestURI());
+        try {
+            char separator = '?';
+            Map<String, String[]> params = req.getParameterMap();
+            if (params != null) {
+                for (Entry<String, String[]> entry : params.entrySet()) {
+                    String name = entry.getKey();
+                    if (ReflectUtils.contains(PAGING_PARAMS, name) 
+                            || entry.getValue() == null) {
+                        continue;
+                    }
+                    for (String value : entry.getValue()) {
+                        sb.append(separator);
+                        sb.append(URLEncoder.encode(name, Formats.UTF_8));
+                        sb.append('=');
+                        sb.append(URLEncoder.encode(value == null ? "" : value, Formats.UTF_8));
+                        separator = '&';
+                    }
                 }
-            } else {
-                System.out.println("WARN: EntityRequestHandler: Unknown type returned for 'lastModified' (not Date, Long, String): " + lm.getClass() + ", using the default value of current time instead");
             }
+            sb.append(separator);
+            sb.append("_cursor=");
+            sb.append(URLEncoder.encode(nextCursor, Formats.UTF_8));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Failed to encode the link for the cursor: " + nextCursor, e);
         }
-        return lastModified;
+        sb.append("&_limit=");
+        sb.append(limit);
+        sb.append(">; rel=\"next\"");
+        return sb.toString();
     }
 
+    /**
+     * Writes already encoded output into the response (compressed if the client accepts it)
+     * @param req the request
+     * @param res the response
+     * @param output the complete output
+     */
+    protected void writeResponseBytes(HttpServletRequest req, HttpServletResponse res, byte[] output) {
+        LazyResponseOutputStream responseStream = entityEncodingManager.makeResponseOutputStream(req, res);
+        if (responseStream.getContentEncoding() == null) {
+            res.setContentLength(output.length);
+        }
+        try {
+            responseStream.write(output);
+            responseStream.finish();
+        } catch (IOException e) {
+            // should never happen
+            throw new RuntimeException("Failed to put output into the response writer: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sets the response to 304 Not Modified with the current validators and no body
+     * @param res the response
+     * @param etag (optional) the current ETag
+     * @param lastModified (optional) the current last modified time
+     */
+    protected void setNotModified(HttpServletResponse res, String etag, Long lastModified) {
+        if (etag != null) {
+            res.setHeader(ActionReturn.Header.ETAG.toString(), etag);
+        }
+        if (lastModified != null) {
+            res.setDateHeader(ActionReturn.Header.LAST_MODIFIED.toString(), lastModified.longValue());
+        }
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    /**
+     * Make a weak ETag from the reference, format and a version (or last modified time),
+     * the format is included since each format is a different representation of the entity
+     * @param ref the entity reference
+     * @param format the output format
+     * @param version the version of the data
+     * @return the weak ETag (e.g. W/"abc123")
+     */
+    protected String makeWeakETag(EntityReference ref, String format, String version) {
+        String key = ref + ":" + format + ":" + version;
+        try {
+            return "W/\"" + makeHash(key.getBytes(Formats.UTF_8)) + "\"";
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Failed to encode UTF-8 for ETag: " + ref, e);
+        }
+    }
+
+    /**
+     * Make a strong ETag from the encoded bytes of a response
+     * @param content the encoded response body
+     * @return the strong ETag (e.g. "abc123")
+     */
+    protected String makeStrongETag(byte[] content) {
+        return makeStrongETag(content, content.length, null);
+    }
+
+    /**
+     * Make a strong ETag from the encoded bytes of a response,
+     * the content coding is included since a strong ETag must only match identical bytes
+     * @param content the buffer holding the encoded response body
+     * @param length the length of the response body in the buffer
+     * @param contentEncoding (optional) the content coding (e.g. gzip) the body is sent with OR null if not compressed
+     * @return the strong ETag (e.g. "abc123" or "abc123-gzip")
+     */
+    protected String makeStrongETag(byte[] content, int length, String contentEncoding) {
+        String hash = makeHash(content, length);
+        if (contentEncoding != null) {
+            hash = hash + "-" + contentEncoding;
+        }
+        return "\"" + hash + "\"";
+    }
+
+    private String stripWeakETag(String etag) {
+        if (etag.startsWith("W/")) {
+            etag = etag.substring(2);
+        }
+        return etag;
+    }
+
+    private String makeHash(byte[] bytes) {
+        return makeHash(bytes, bytes.length);
+    }
+
+    private String makeHash(byte[] bytes, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 digest is not available for ETag generation", e);
+        }
+        digest.update(bytes, 0, length);
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Holds the output until it reaches the max size so a strong ETag can be made from it,
+     * once the output is larger than that it is all written out and the rest goes straight through
+     * (so the memory used is bounded and large responses have no ETag)
+     */
+    private static class ETagOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final int maxSize;
+        private byte[] buf;
+        private int count = 0;
+
+        public ETagOutputStream(OutputStream out, int maxSize) {
+            this.out = out;
+            this.maxSize = maxSize;
+            this.buf = new byte[maxSize < 1024 ? maxSize : 1024];
+        }
+
+        /**
+         * @return true if all the output is still held (it is not larger than the max size)
+         */
+        public boolean isHeld() {
+            return buf != null;
+        }
+
+        /**
+         * @return the buffer with the held output (only {@link #size()} bytes are valid)
+         */
+        public byte[] getHeld() {
+            return buf;
+        }
+
+        /**
+         * @return the number of bytes held
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Write the held output out (without copying it)
+         * @throws IOException if the output fails
+         */
+        public void writeHeld() throws IOException {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+
+        /**
+         * @return true if the output can still be held after adding this many bytes
+         */
+        private boolean hold(int len) throws IOException {
+            if (buf == null) {
+                return false;
+            }
+            if (count + len > maxSize) {
+                // too big so everything goes straight out from now on
+                out.write(buf, 0, count);
+                buf = null;
+                count = 0;
+                return false;
+            }
+            if (count + len > buf.length) {
+                int size = Math.min(maxSize, Math.max(buf.length * 2, count + len));
+                byte[] bigger = new byte[size];
+                System.arraycopy(buf, 0, bigger, 0, count);
+                buf = bigger;
+            }
+            return true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (hold(1)) {
+                buf[count++] = (byte) b;
+            } else {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (hold(len)) {
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+            } else {
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buf == null) {
+                out.flush();
+            }
+        }
+    }
 }
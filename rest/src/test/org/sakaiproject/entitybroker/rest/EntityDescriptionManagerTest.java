@@ -22,6 +22,8 @@ package org.sakaiproject.entitybroker.rest;
 
 import junit.framework.TestCase;
 
+import org.sakaiproject.entitybroker.entityprovider.EntityProviderManager;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Createable;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
 import org.sakaiproject.entitybroker.rest.EntityDescriptionManager;
@@ -34,6 +36,7 @@ import org.sakaiproject.entitybroker.rest.EntityDescriptionManager;
 public class EntityDescriptionManagerTest extends TestCase {
 
    protected EntityDescriptionManager entityDescriptionManager;
+   protected EntityProviderManager entityProviderManager;
    private TestData td;
 
    @Override
@@ -41,7 +44,9 @@ public class EntityDescriptionManagerTest extends TestCase {
       super.setUp();
       // setup things
       td = new TestData();
-      entityDescriptionManager = new ServiceTestManager(td).entityDescriptionManager;
+      ServiceTestManager tm = new ServiceTestManager(td);
+      entityDescriptionManager = tm.entityDescriptionManager;
+      entityProviderManager = tm.entityBrokerManager.getEntityProviderManager();
    }
 
    public void testReplacePrefix() {
@@ -155,4 +160,44 @@ public class EntityDescriptionManagerTest extends TestCase {
       
    }
 
+   public void testDescribeCache() throws Exception {
+      // cached bytes are the same as the generated string
+      byte[] bytes = entityDescriptionManager.getDescribeAllBytes(Formats.XML, null);
+      assertNotNull(bytes);
+      assertEquals(entityDescriptionManager.makeDescribeAll(Formats.XML, null), new String(bytes, Formats.UTF_8));
+      assertSame(bytes, entityDescriptionManager.getDescribeAllBytes(Formats.XML, null));
+      assertNotSame(bytes, entityDescriptionManager.getDescribeAllBytes(Formats.HTML, null));
+
+      byte[] entityBytes = entityDescriptionManager.getDescribeEntityBytes(TestData.PREFIX7, "test", Formats.HTML, null);
+      assertNotNull(entityBytes);
+      String content = new String(entityBytes, Formats.UTF_8);
+      assertEquals(entityDescriptionManager.makeDescribeEntity(TestData.PREFIX7, "test", Formats.HTML, null), content);
+      assertTrue(content.contains("This is a test description of Createable"));
+      assertSame(entityBytes, entityDescriptionManager.getDescribeEntityBytes(TestData.PREFIX7, "test", Formats.HTML, null));
+      assertNotSame(entityBytes, entityDescriptionManager.getDescribeEntityBytes(TestData.PREFIX7, "other", Formats.HTML, null));
+
+      // the least recently used documents are dropped when the cache is full
+      byte[] first = entityDescriptionManager.getDescribeEntityBytes(TestData.PREFIX7, "id0", Formats.HTML, null);
+      for (int i = 1; i <= EntityDescriptionManager.MAX_DESCRIBE_CACHE_SIZE; i++) {
+         entityDescriptionManager.getDescribeEntityBytes(TestData.PREFIX7, "id" + i, Formats.HTML, null);
+         assertSame(entityBytes, entityDescriptionManager.getDescribeEntityBytes(TestData.PREFIX7, "test", Formats.HTML, null));
+      }
+      assertNotSame(first, entityDescriptionManager.getDescribeEntityBytes(TestData.PREFIX7, "id0", Formats.HTML, null));
+
+      // unregistering a capability evicts the cached documents
+      entityProviderManager.unregisterCapability(TestData.PREFIX7, Createable.class);
+      byte[] updated = entityDescriptionManager.getDescribeEntityBytes(TestData.PREFIX7, "test", Formats.HTML, null);
+      assertNotSame(entityBytes, updated);
+      assertFalse(new String(updated, Formats.UTF_8).contains("This is a test description of Createable"));
+      assertNotSame(bytes, entityDescriptionManager.getDescribeAllBytes(Formats.XML, null));
+
+      // invalid prefix still fails
+      try {
+         entityDescriptionManager.getDescribeEntityBytes("fakeprefix", "test", Formats.HTML, null);
+         fail("Should have thrown exception");
+      } catch (IllegalArgumentException e) {
+         assertNotNull(e.getMessage());
+      }
+   }
+
 }
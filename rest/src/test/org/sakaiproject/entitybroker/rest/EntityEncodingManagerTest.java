@@ -24,6 +24,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -36,14 +38,19 @@ import junit.framework.TestCase;
 import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.EntityReference;
 import org.sakaiproject.entitybroker.EntityView;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Inputable;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.entityprovider.search.Search;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.exception.FormatUnsupportedException;
+import org.sakaiproject.entitybroker.mocks.CacheableEntityProviderMock;
 import org.sakaiproject.entitybroker.mocks.data.MyEntity;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
+import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
 import org.sakaiproject.entitybroker.rest.EntityEncodingManager;
 import org.sakaiproject.entitybroker.rest.EntityHandlerImpl;
+import org.sakaiproject.entitybroker.util.encoding.EntityInputDecoder;
 import org.azeckoski.reflectutils.map.ArrayOrderedMap;
 
 /**
@@ -86,8 +93,127 @@ public class EntityEncodingManagerTest extends TestCase {
         assertEquals("TEST", me2.getStuff());
         assertEquals(5, me2.getNumber());
 
+        // wrapped in the prefix
+        json = "{\""+TestData.PREFIX6+"\" : { \"stuff\" : \"TEST2\", \"number\" : 6 }}";
+        inputStream = new ByteArrayInputStream(json.getBytes());
+        me2 = (MyEntity) entityEncodingManager.translateInputToEntity(
+                new EntityReference(TestData.PREFIX6,""), Formats.JSON, inputStream, null);
+        assertNotNull(me2);
+        assertEquals("TEST2", me2.getStuff());
+        assertEquals(6, me2.getNumber());
+
+        // invalid field value
+        json = "{ \"stuff\" : \"TEST\", \"number\" : \"five\" }";
+        inputStream = new ByteArrayInputStream(json.getBytes());
+        try {
+            entityEncodingManager.translateInputToEntity(
+                    new EntityReference(TestData.PREFIX6,""), Formats.JSON, inputStream, null);
+            fail("Should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+            assertTrue(e.getMessage().contains("number"));
+        }
+
+        // invalid xml
+        xml = "<"+TestData.PREFIX6+"><stuff>TEST</number></"+TestData.PREFIX6+">";
+        inputStream = new ByteArrayInputStream(xml.getBytes());
+        try {
+            entityEncodingManager.translateInputToEntity(
+                    new EntityReference(TestData.PREFIX6,""), Formats.XML, inputStream, null);
+            fail("Should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+        }
      }
 
+    public void testInternalInputTranslatorMapLimits() throws Exception {
+        Inputable provider = new Inputable() {
+            public String getEntityPrefix() {
+                return "mapPrefix";
+            }
+            public String[] getHandledInputFormats() {
+                return new String[] {Formats.JSON, Formats.XML};
+            }
+            public Object getSampleEntity() {
+                return new HashMap<String, Object>();
+            }
+        };
+        entityBrokerManager.getEntityProviderManager().registerEntityProvider(provider);
+        try {
+            EntityReference ref = new EntityReference("mapPrefix", "");
+            String json = "{ \"stuff\" : \"TEST\", \"number\" : 5 }";
+            Object entity = entityEncodingManager.internalInputTranslator(ref, Formats.JSON, 
+                    new ByteArrayInputStream(json.getBytes()), null);
+            assertTrue(entity instanceof Map);
+
+            // too large
+            byte[] large = new byte[(int) EntityInputDecoder.DEFAULT_MAX_SIZE + 10];
+            Arrays.fill(large, (byte) ' ');
+            large[0] = '{';
+            large[large.length - 1] = '}';
+            try {
+                entityEncodingManager.internalInputTranslator(ref, Formats.JSON, new ByteArrayInputStream(large), null);
+                fail("Should have thrown exception");
+            } catch (EntityException e) {
+                assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.responseCode);
+            }
+
+            // too deep
+            char[] deep = new char[100000];
+            Arrays.fill(deep, '[');
+            try {
+                entityEncodingManager.internalInputTranslator(ref, Formats.JSON, 
+                        new ByteArrayInputStream(new String(deep).getBytes()), null);
+                fail("Should have thrown exception");
+            } catch (EntityException e) {
+                assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+            }
+            StringBuilder xml = new StringBuilder();
+            for (int i = 0; i < 30; i++) {
+                xml.append("<a").append(i).append('>');
+            }
+            xml.append('1');
+            for (int i = 29; i >= 0; i--) {
+                xml.append("</a").append(i).append('>');
+            }
+            try {
+                entityEncodingManager.internalInputTranslator(ref, Formats.XML, 
+                        new ByteArrayInputStream(xml.toString().getBytes()), null);
+                fail("Should have thrown exception");
+            } catch (EntityException e) {
+                assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+            }
+        } finally {
+            entityBrokerManager.getEntityProviderManager().unregisterEntityProvider(provider);
+        }
+    }
+
+    public void testEncodeEntityForm() {
+        MyEntity me = new MyEntity(TestData.IDS6[0], "<stuff>", 7);
+        EntityData ed = new EntityData(new EntityReference(TestData.PREFIX6, TestData.IDS6[0]), "Form Title", me);
+        EntityView view = new EntityView(new EntityReference(TestData.PREFIX6, TestData.IDS6[0]), EntityView.VIEW_EDIT, Formats.FORM);
+        String encoded = entityEncodingManager.encodeEntity(TestData.PREFIX6, Formats.FORM, ed, view);
+        assertNotNull(encoded);
+        assertTrue(encoded.contains("Form Title"));
+        assertTrue(encoded.contains("<td style='font-weight:bold;'>stuff</td><td>string</td><td><input type='text' name=\"stuff\" value=\"&lt;stuff&gt;\" /></td>"));
+        assertTrue(encoded.contains("<td style='font-weight:bold;'>number</td><td>int</td><td><input type='text' name=\"number\" value=\"7\" /></td>"));
+        // id cannot be changed when editing
+        assertTrue(encoded.contains("<td style='font-weight:bold;'>id</td><td>string</td><td>" + TestData.IDS6[0] + "</td>"));
+
+        // the schema is only made once per class
+        EntityEncodingManager.FormSchema schema = entityEncodingManager.getFormSchema(MyEntity.class, false);
+        assertSame(schema, entityEncodingManager.getFormSchema(MyEntity.class, false));
+        assertNotSame(schema, entityEncodingManager.getFormSchema(MyEntity.class, true));
+        String encoded2 = entityEncodingManager.encodeEntity(TestData.PREFIX6, Formats.FORM, ed, view);
+        assertEquals(encoded, encoded2);
+
+        // id can be set when creating
+        view = new EntityView(new EntityReference(TestData.PREFIX6, ""), EntityView.VIEW_NEW, Formats.FORM);
+        encoded = entityEncodingManager.encodeEntity(TestData.PREFIX6, Formats.FORM, null, view);
+        assertNotNull(encoded);
+        assertTrue(encoded.contains("<td style='font-weight:bold;'>id</td><td>string</td><td><input type='text' name=\"id\" value=\"\" /></td>"));
+    }
+
     public void testEncodeEntity() {
         String encoded = null;
         EntityData ed = null;
@@ -332,6 +458,16 @@ public class EntityEncodingManagerTest extends TestCase {
         assertTrue(fo.contains(TestData.IDS4[2]));
         assertTrue(fo.contains(EntityEncodingManager.ENTITY_REFERENCE));
 
+        // FORM (there is no transcoder for forms)
+        output = new ByteArrayOutputStream();
+        view = entityBrokerManager.parseEntityURL(TestData.SPACE4 + "." + Formats.FORM);
+        assertNotNull(view);
+        entityEncodingManager.internalOutputFormatter(view.getEntityReference(), view.getExtension(), null, null, output, view);
+        fo = output.toString();
+        assertTrue(fo.contains("<h1>" + TestData.PREFIX4 + EntityEncodingManager.COLLECTION + "</h1>"));
+        assertTrue(fo.contains("<b>Collection size:</b>"));
+        assertTrue(fo.endsWith(EntityEncodingManager.XHTML_FOOTER));
+
         // JSON
         output = new ByteArrayOutputStream();
         view = entityBrokerManager.parseEntityURL(TestData.SPACE4 + "." + Formats.JSON);
@@ -357,7 +493,250 @@ public class EntityEncodingManagerTest extends TestCase {
 
     }
 
+    public void testInternalOutputFormatterCBOR() throws Exception {
+        List<EntityData> entities = new ArrayList<EntityData>();
+        entities.add( new EntityData(new EntityReference("cborPrefix", "c1"), "C1", new MyEntity("c1", "first", 5)) );
+        EntityData empty = new EntityData(new HashMap<String, Object>());
+        empty.setDataOnly(true);
+        entities.add( empty );
+        entities.add( new EntityData(new EntityReference("cborPrefix", "c2"), "C2", new MyEntity("c2", "second unié")) );
+        EntityReference ref = new EntityReference("cborPrefix", "");
+
+        // same structure as the JSON output
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        entityEncodingManager.internalOutputFormatter(ref, Formats.JSON, entities, null, output, null);
+        Map<String, Object> json = entityEncodingManager.decodeData(output.toString(Formats.UTF_8), Formats.JSON);
+        output = new ByteArrayOutputStream();
+        entityEncodingManager.internalOutputFormatter(ref, Formats.CBOR, entities, null, output, null);
+        Map<String, Object> cbor = entityEncodingManager.decodeData(new ByteArrayInputStream(output.toByteArray()), Formats.CBOR);
+        assertEquals(json, cbor);
+        assertEquals(2, ((List<?>) cbor.get("cborPrefix" + EntityEncodingManager.COLLECTION)).size());
+
+        // single entity
+        output = new ByteArrayOutputStream();
+        entityEncodingManager.internalOutputFormatter(new EntityReference("cborPrefix", "c1"), Formats.CBOR, entities, null, output, null);
+        cbor = entityEncodingManager.decodeData(new ByteArrayInputStream(output.toByteArray()), Formats.CBOR);
+        assertEquals("first", cbor.get("stuff"));
+        assertEquals(5, cbor.get("number"));
+        assertEquals("/cborPrefix/c1", cbor.get(EntityEncodingManager.ENTITY_REFERENCE));
+
+        // CBOR input for a provider which handles JSON
+        byte[] data = output.toByteArray();
+        MyEntity me = (MyEntity) entityEncodingManager.translateInputToEntity(
+                new EntityReference(TestData.PREFIX6,""), Formats.CBOR, new ByteArrayInputStream(data), null);
+        assertEquals("first", me.getStuff());
+        assertEquals(5, me.getNumber());
+
+        assertTrue(EntityEncodingManager.isFormatHandled(new String[] {Formats.JSON}, Formats.CBOR));
+        assertFalse(EntityEncodingManager.isFormatHandled(new String[] {Formats.XML}, Formats.CBOR));
+    }
+
+    // testing the internal encoder
+    public void testInternalOutputFormatterStreaming() {
+        List<EntityData> entities = new ArrayList<EntityData>();
+        entities.add( new EntityData(new EntityReference("streamPrefix", "s1"), "S1", new MyEntity("s1", "first \"quoted\"")) );
+        EntityData empty = new EntityData(new HashMap<String, Object>());
+        empty.setDataOnly(true);
+        entities.add( empty );
+        entities.add( new EntityData(new EntityReference("streamPrefix", "s2"), "S2", new MyEntity("s2", "second")) );
+        EntityReference ref = new EntityReference("streamPrefix", "");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        entityEncodingManager.internalOutputFormatter(ref, Formats.JSON, entities, null, output, null);
+        String fo = output.toString();
+        // same as the non-streamed encoding, empty entities are skipped
+        String expected = "{\"" + EntityEncodingManager.ENTITY_PREFIX + "\": \"streamPrefix\", \"streamPrefix" + EntityEncodingManager.COLLECTION + "\": [\n"
+            + entityEncodingManager.encodeEntity("streamPrefix", Formats.JSON, entities.get(0), null) + ","
+            + entityEncodingManager.encodeEntity("streamPrefix", Formats.JSON, entities.get(2), null) + "\n]}";
+        assertEquals(expected, fo);
+        assertEquals(2, entityEncodingManager.decodeData(fo, Formats.JSON).size());
+
+        // XML is streamed the same way
+        output = new ByteArrayOutputStream();
+        entityEncodingManager.internalOutputFormatter(ref, Formats.XML, entities, null, output, null);
+        fo = output.toString();
+        assertTrue(fo.startsWith(EntityEncodingManager.XML_HEADER));
+        assertTrue(fo.contains(entityEncodingManager.encodeEntity("streamPrefix", Formats.XML, entities.get(2), null)));
+        assertTrue(fo.contains("first &quot;quoted&quot;"));
+
+        // embedded output has no XML declaration
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(EntityRequestHandler.EMBEDDED_OUTPUT, true);
+        output = new ByteArrayOutputStream();
+        entityEncodingManager.internalOutputFormatter(ref, Formats.XML, entities, params, output, null);
+        assertEquals(fo.substring(EntityEncodingManager.XML_HEADER.length()), output.toString());
+
+        // HTML entities are streamed with the same output as when they are encoded alone
+        output = new ByteArrayOutputStream();
+        entityEncodingManager.internalOutputFormatter(ref, Formats.HTML, entities, null, output, null);
+        fo = output.toString();
+        assertTrue(fo.contains(entityEncodingManager.encodeEntity("streamPrefix", Formats.HTML, entities.get(0), null)));
+        assertTrue(fo.contains("<b>Collection size:</b> 3"));
+    }
+
+    public void testInternalOutputFormatterSameBytes() throws Exception {
+        List<EntityData> entities = new ArrayList<EntityData>();
+        entities.add( new EntityData(new EntityReference("bytesPrefix", "b1"), "B1 <&> \"quoted\"", new MyEntity("b1", "first & <second>", 5)) );
+        EntityData empty = new EntityData(new HashMap<String, Object>());
+        empty.setDataOnly(true);
+        entities.add( empty );
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("extra", "unié");
+        entities.add( new EntityData(new EntityReference("bytesPrefix", "b2"), "B2", new MyEntity("b2", "second unié"), props) );
+        EntityReference ref = new EntityReference("bytesPrefix", "");
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(EntityEncodingManager.JSON_CALLBACK_PARAM, "myCallback");
+
+        String[] formats = new String[] {Formats.JSON, Formats.JSONP, Formats.XML, Formats.HTML, Formats.FORM};
+        for (String format : formats) {
+            // provided entities
+            EntityView view = entityBrokerManager.makeEntityView(ref, null, null);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            entityEncodingManager.internalOutputFormatter(ref, format, entities, params, output, view);
+            byte[] expected = makeBufferedCollectionOutput(ref, format, entities, params, view);
+            assertEquals(format, new String(expected, Formats.UTF_8), output.toString(Formats.UTF_8));
+            assertTrue(format, Arrays.equals(expected, output.toByteArray()));
+
+            // fetched entities
+            view = entityBrokerManager.parseEntityURL(TestData.SPACE4 + "." + format);
+            List<EntityData> fetched = entityBrokerManager.getEntitiesData(view.getEntityReference(), new Search(), null);
+            output = new ByteArrayOutputStream();
+            entityEncodingManager.internalOutputFormatter(view.getEntityReference(), format, fetched, null, output, view);
+            expected = makeBufferedCollectionOutput(view.getEntityReference(), format, fetched, null, view);
+            assertEquals(format, new String(expected, Formats.UTF_8), output.toString(Formats.UTF_8));
+            assertTrue(format, Arrays.equals(expected, output.toByteArray()));
+        }
+    }
+
+    /**
+     * Makes the collection output the way it was made before the output was streamed
+     * (the whole output built in a StringBuilder from the encoded entities)
+     */
+    private byte[] makeBufferedCollectionOutput(EntityReference ref, String format, List<EntityData> entities, Map<String, Object> params, EntityView view) throws Exception {
+        StringBuilder sb = new StringBuilder(40);
+        if (Formats.HTML.equals(format) 
+                || Formats.FORM.equals(format)) {
+            sb.append("<h1>"+ref.getPrefix() + EntityEncodingManager.COLLECTION + "</h1>\n");
+        } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
+            sb.append("{\""+EntityEncodingManager.ENTITY_PREFIX+"\": \""+ref.getPrefix() + "\", \"" + ref.getPrefix() + EntityEncodingManager.COLLECTION + "\": [\n");
+        } else if (Formats.XML.equals(format)) {
+            sb.append("<" + ref.getPrefix() + EntityEncodingManager.COLLECTION + " " + EntityEncodingManager.ENTITY_PREFIX + "=\"" + ref.getPrefix() + "\">\n");
+        }
+        int encodedEntities = 0;
+        for (EntityData entity : entities) {
+            String encode = entityEncodingManager.encodeEntity(ref.getPrefix(), format, entity, view);
+            if (encode.length() > 3) {
+                if ((Formats.JSON.equals(format) || Formats.JSONP.equals(format)) 
+                        && encodedEntities > 0) {
+                    sb.append(",");
+                }
+                sb.append(encode);
+                encodedEntities++;
+            }
+        }
+        if (Formats.HTML.equals(format)
+                || Formats.FORM.equals(format)) {
+            sb.append("\n<b>Collection size:</b> "+encodedEntities+"\n");
+        } else if (Formats.JSON.equals(format) || Formats.JSONP.equals(format)) {
+            sb.append("\n]}");
+        } else if (Formats.XML.equals(format)) {
+            sb.append("</" + ref.getPrefix() + EntityEncodingManager.COLLECTION + ">");
+        }
+        String encoded = sb.toString();
+        if (Formats.FORM.equals(format)) {
+            String title = view.getViewKey() + ":" + ref;
+            encoded = EntityEncodingManager.XML_HEADER + EntityEncodingManager.XHTML_HEADER.replace("{title}", title) + encoded + EntityEncodingManager.XHTML_FOOTER;
+        } else if (Formats.XML.equals(format)) {
+            encoded = EntityEncodingManager.XML_HEADER + encoded;
+        } else if (Formats.JSONP.equals(format)) {
+            String callback = EntityEncodingManager.JSON_DEFAULT_CALLBACK;
+            if (params != null && params.containsKey(EntityEncodingManager.JSON_CALLBACK_PARAM)) {
+                callback = entityEncodingManager.sanitizeJsonCallback(params.get(EntityEncodingManager.JSON_CALLBACK_PARAM));
+            }
+            encoded = callback + "(" + encoded + ")";
+        }
+        return encoded.getBytes(Formats.UTF_8);
+    }
+
     // testing the internal encoder
+    public void testInternalOutputFormatterFragmentCache() {
+        CacheableEntityProviderMock provider = new CacheableEntityProviderMock("fragPrefix", new String[] {"f1", "f2"});
+        provider.privateIds = new String[] {"f2"};
+        entityBrokerManager.getEntityProviderManager().registerEntityProvider(provider);
+        try {
+            MyEntity e1 = new MyEntity("f1", "first");
+            MyEntity e2 = new MyEntity("f2", "second");
+            Map<String, Object> props = new HashMap<String, Object>();
+            props.put("lastModified", 1000l);
+            List<EntityData> entities = new ArrayList<EntityData>();
+            entities.add( new EntityData(new EntityReference("fragPrefix", "f1"), "F1", e1, props) );
+            entities.add( new EntityData(new EntityReference("fragPrefix", "f2"), "F2", e2, props) );
+            EntityReference ref = new EntityReference("fragPrefix", "");
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            entityEncodingManager.internalOutputFormatter(ref, Formats.JSON, entities, null, output, null);
+            String fo = output.toString();
+            assertTrue(fo.contains("first"));
+            assertTrue(fo.contains("second"));
+            assertEquals(Long.valueOf(1), entityEncodingManager.getFragmentCacheStatistics().get("size"));
+
+            // cached fragment is used while the version is the same (user specific entities are always encoded)
+            e1.setStuff("changed");
+            e2.setStuff("changed2");
+            output = new ByteArrayOutputStream();
+            entityEncodingManager.internalOutputFormatter(ref, Formats.JSONP, entities, null, output, null);
+            fo = output.toString();
+            assertTrue(fo.startsWith(EntityEncodingManager.JSON_DEFAULT_CALLBACK));
+            assertTrue(fo.contains("first"));
+            assertTrue(fo.contains("changed2"));
+            assertEquals(Long.valueOf(1), entityEncodingManager.getFragmentCacheStatistics().get("hits"));
+
+            // entity events remove the fragment
+            entityBrokerManager.entityChanged("/fragPrefix/f1");
+            output = new ByteArrayOutputStream();
+            entityEncodingManager.internalOutputFormatter(ref, Formats.JSON, entities, null, output, null);
+            fo = output.toString();
+            assertFalse(fo.contains("first"));
+            assertTrue(fo.contains("changed"));
+
+            // a new version replaces the fragment
+            e1.setStuff("again");
+            entities.set(0, new EntityData(new EntityReference("fragPrefix", "f1"), "F1", e1, 
+                    new HashMap<String, Object>(Collections.singletonMap("lastModified", (Object) 2000l))) );
+            output = new ByteArrayOutputStream();
+            entityEncodingManager.internalOutputFormatter(ref, Formats.JSON, entities, null, output, null);
+            assertTrue(output.toString().contains("again"));
+
+            // other formats are encoded separately
+            output = new ByteArrayOutputStream();
+            entityEncodingManager.internalOutputFormatter(ref, Formats.XML, entities, null, output, null);
+            assertTrue(output.toString().contains("<stuff>again</stuff>"));
+            assertEquals(Long.valueOf(2), entityEncodingManager.getFragmentCacheStatistics().get("size"));
+
+            // the version comes from the property content so equal hash codes do not collide
+            Map<String, Object> props1 = new HashMap<String, Object>();
+            props1.put("lastModified", 1000l);
+            props1.put("code", "Aa");
+            Map<String, Object> props2 = new HashMap<String, Object>();
+            props2.put("lastModified", 1000l);
+            props2.put("code", "BB");
+            assertEquals(props1.hashCode(), props2.hashCode());
+            String v1 = entityEncodingManager.makeFragmentVersion("fragPrefix", new EntityData(new EntityReference("fragPrefix", "f1"), "F1", e1, props1));
+            String v2 = entityEncodingManager.makeFragmentVersion("fragPrefix", new EntityData(new EntityReference("fragPrefix", "f1"), "F1", e1, props2));
+            assertNotNull(v1);
+            assertNotNull(v2);
+            assertFalse(v1.equals(v2));
+            assertEquals(v1, entityEncodingManager.makeFragmentVersion("fragPrefix", 
+                    new EntityData(new EntityReference("fragPrefix", "f1"), "F1", e1, new HashMap<String, Object>(props1))));
+
+            // complex property values cannot be versioned so they are never cached
+            props2.put("thing", new MyEntity("f3", "third"));
+            assertNull(entityEncodingManager.makeFragmentVersion("fragPrefix", new EntityData(new EntityReference("fragPrefix", "f1"), "F1", e1, props2)));
+        } finally {
+            entityBrokerManager.getEntityProviderManager().unregisterEntityProvider(provider);
+        }
+    }
+
     public void testJSONEncode() {
         String encoded = null;
 
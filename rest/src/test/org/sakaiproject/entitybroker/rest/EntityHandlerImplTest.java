@@ -20,16 +20,22 @@
 
 package org.sakaiproject.entitybroker.rest;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
 import junit.framework.TestCase;
 
 import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.mocks.ActionsEntityProviderMock;
+import org.sakaiproject.entitybroker.mocks.CursorPageableEntityProviderMock;
+import org.sakaiproject.entitybroker.mocks.VersionableEntityProviderMock;
 import org.sakaiproject.entitybroker.mocks.data.MyEntity;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
@@ -48,6 +54,7 @@ public class EntityHandlerImplTest extends TestCase {
     public static String DIRECT_PREFIX = "/direct";
     protected EntityHandlerImpl entityHandler;
     private TestData td;
+    private ServiceTestManager serviceTestManager;
 
     @Override
     protected void setUp() throws Exception {
@@ -55,7 +62,8 @@ public class EntityHandlerImplTest extends TestCase {
         // setup things
         td = new TestData();
 
-        entityHandler = new ServiceTestManager(td).entityRequestHandler;
+        serviceTestManager = new ServiceTestManager(td);
+        entityHandler = serviceTestManager.entityRequestHandler;
     }
 
     /**
@@ -476,6 +484,307 @@ public class EntityHandlerImplTest extends TestCase {
 
     }
 
+    public void testHandleEntityAccessFusedResolution() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        // resolvable entity which exists
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.REF4 + "." + Formats.JSON);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+
+        // resolvable entity which does not exist is still a 404
+        String invalidRef = TestData.SPACE4 + "/invalid-4";
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + invalidRef + "." + Formats.JSON);
+        res = new EntityHttpServletResponse();
+        try {
+            entityHandler.handleEntityAccess(req, res, null);
+            fail("Should have thrown exception");
+        } catch (EntityException e) {
+            assertNotNull(e.getMessage());
+            assertEquals(invalidRef, e.entityReference);
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.responseCode);
+        }
+
+        // unhandled format for an entity which does not exist is a 404 and not a format failure
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + invalidRef + ".csv");
+        res = new EntityHttpServletResponse();
+        try {
+            entityHandler.handleEntityAccess(req, res, null);
+            fail("Should have thrown exception");
+        } catch (EntityException e) {
+            assertNotNull(e.getMessage());
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.responseCode);
+        }
+
+        // versionable providers are checked before the version so a missing entity is never a 304
+        String prefix = "versionPrefix";
+        VersionableEntityProviderMock provider = new VersionableEntityProviderMock(prefix, new String[] {"v-1"});
+        serviceTestManager.entityBrokerManager.getEntityProviderManager().registerEntityProvider(provider);
+        try {
+            req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + prefix + "/v-1." + Formats.JSON);
+            req.addHeader(ActionReturn.Header.IF_NONE_MATCH.toString(), "*");
+            res = new EntityHttpServletResponse();
+            entityHandler.handleEntityAccess(req, res, null);
+            assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus());
+
+            req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + prefix + "/invalid." + Formats.JSON);
+            req.addHeader(ActionReturn.Header.IF_NONE_MATCH.toString(), "*");
+            res = new EntityHttpServletResponse();
+            try {
+                entityHandler.handleEntityAccess(req, res, null);
+                fail("Should have thrown exception");
+            } catch (EntityException e) {
+                assertEquals(HttpServletResponse.SC_NOT_FOUND, e.responseCode);
+            }
+        } finally {
+            serviceTestManager.entityBrokerManager.getEntityProviderManager().unregisterEntityProvider(provider);
+        }
+    }
+
+    public void testHandleEntityAccessHead() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        // single entity
+        req = new EntityHttpServletRequest("HEAD", DIRECT_PREFIX + TestData.REF4 + "." + Formats.JSON);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NO_CONTENT, res.getStatus());
+        assertNotNull(res.getHeader(ActionReturn.Header.LAST_MODIFIED.toString()));
+        assertEquals("", res.getContentAsString());
+
+        // collection
+        req = new EntityHttpServletRequest("HEAD", DIRECT_PREFIX + TestData.SPACE4 + "." + Formats.XML);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NO_CONTENT, res.getStatus());
+        assertEquals("", res.getContentAsString());
+
+        // entity which does not exist
+        req = new EntityHttpServletRequest("HEAD", DIRECT_PREFIX + TestData.SPACE4 + "/invalid-4." + Formats.JSON);
+        res = new EntityHttpServletResponse();
+        try {
+            entityHandler.handleEntityAccess(req, res, null);
+            fail("Should have thrown exception");
+        } catch (EntityException e) {
+            assertNotNull(e.getMessage());
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.responseCode);
+        }
+    }
+
+    public void testHandleEntityAccessCompression() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        // large output is compressed when the client accepts it
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + EntityRequestHandler.SLASH_DESCRIBE);
+        req.addHeader("Accept-Encoding", "deflate, gzip;q=0.9");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals("gzip", res.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", res.getHeader("Vary"));
+        assertTrue(res.isContentCompressed());
+        byte[] compressed = res.getContentAsByteArray();
+        assertEquals((byte) 0x1f, compressed[0]);
+        assertEquals((byte) 0x8b, compressed[1]);
+        String content = res.getContentAsString();
+        assertTrue(content.length() > compressed.length);
+        assertTrue(content.contains(TestData.PREFIX4));
+
+        // no compression unless it is accepted
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + EntityRequestHandler.SLASH_DESCRIBE);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertNull(res.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", res.getHeader("Vary"));
+        assertEquals(content, res.getContentAsString());
+
+        // small output is sent as is
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.REF4 + "." + Formats.JSON);
+        req.addHeader("Accept-Encoding", "gzip");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertNull(res.getHeader("Content-Encoding"));
+        assertTrue(res.getContentAsString().contains(TestData.IDS4[0]));
+
+        // compressed request bodies are decoded
+        req = new EntityHttpServletRequest("POST", DIRECT_PREFIX + TestData.SPACE6 + "/new" + "." + Formats.JSON);
+        req.addHeader("Content-Encoding", "gzip");
+        req.setContent( makeGzipBytes("{\""+TestData.PREFIX6+"\" : { \"stuff\" : \"GZIPPED\", \"number\" : 7 }}") );
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_CREATED, res.getStatus());
+        String entityId = (String) res.getHeader(EntityRequestHandler.HEADER_ENTITY_ID);
+        MyEntity me = td.entityProvider6.myEntities.get(entityId);
+        assertNotNull(me);
+        assertEquals("GZIPPED", me.getStuff());
+        assertEquals(7, me.getNumber());
+
+        // invalid compressed body
+        req = new EntityHttpServletRequest("POST", DIRECT_PREFIX + TestData.SPACE6 + "/new" + "." + Formats.JSON);
+        req.addHeader("Content-Encoding", "gzip");
+        req.setContent( makeUTF8Bytes("{\""+TestData.PREFIX6+"\" : { \"stuff\" : \"PLAIN\" }}") );
+        res = new EntityHttpServletResponse();
+        try {
+            entityHandler.handleEntityAccess(req, res, null);
+            fail("Should have thrown exception");
+        } catch (EntityException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.responseCode);
+        }
+    }
+
+    public void testHandleEntityAccessCursorPaging() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        String prefix = "cursorPrefix";
+        CursorPageableEntityProviderMock provider = new CursorPageableEntityProviderMock(prefix, 
+                new String[] {"c-1", "c-2", "c-3", "c-4", "c-5"});
+        serviceTestManager.entityBrokerManager.getEntityProviderManager().registerEntityProvider(provider);
+
+        // first page has a link to the next one
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + prefix + "." + Formats.JSON, "_limit", "2", "stuff", "x");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(1, provider.pageCount);
+        String content = res.getContentAsString();
+        assertTrue(content.contains("c-1"));
+        assertTrue(content.contains("c-2"));
+        assertFalse(content.contains("c-3"));
+        String link = res.getHeader("Link");
+        assertNotNull(link);
+        assertTrue(link.endsWith("; rel=\"next\""));
+        assertTrue(link.contains("_cursor=2"));
+        assertTrue(link.contains("_limit=2"));
+        assertTrue(link.contains("stuff=x"));
+
+        // last page has no link
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + prefix + "." + Formats.JSON, "_cursor", "4", "_limit", "2");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        content = res.getContentAsString();
+        assertTrue(content.contains("c-5"));
+        assertFalse(content.contains("c-4"));
+        assertNull(res.getHeader("Link"));
+
+        // default page size when nothing is requested
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + prefix + "." + Formats.JSON);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertTrue(res.getContentAsString().contains("c-5"));
+        assertNull(res.getHeader("Link"));
+        assertEquals(3, provider.pageCount);
+
+        // offset requests still use the normal collection
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + "/" + prefix + "." + Formats.JSON, "_start", "2");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertNull(res.getHeader("Link"));
+        assertEquals(3, provider.pageCount);
+
+        serviceTestManager.entityBrokerManager.getEntityProviderManager().unregisterEntityProvider(provider);
+    }
+
+    public void testHandleEntityAccessConditionalGet() {
+        EntityHttpServletRequest req = null;
+        EntityHttpServletResponse res = null;
+
+        // first request gets the full content and an ETag
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.REF4 + "." + Formats.JSON);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        String content = res.getContentAsString();
+        assertTrue(content.length() > 20);
+        String etag = res.getHeader(ActionReturn.Header.ETAG.toString());
+        assertNotNull(etag);
+        assertTrue(etag.startsWith("\""));
+
+        // same request again is the same ETag
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.REF4 + "." + Formats.JSON);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(etag, res.getHeader(ActionReturn.Header.ETAG.toString()));
+        assertEquals(content, res.getContentAsString());
+
+        // matching ETag gets a 304 and no body
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.REF4 + "." + Formats.JSON);
+        req.addHeader(ActionReturn.Header.IF_NONE_MATCH.toString(), "\"other\", " + etag);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus());
+        assertEquals(etag, res.getHeader(ActionReturn.Header.ETAG.toString()));
+        assertEquals("", res.getContentAsString());
+
+        // ETag for another format does not match
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.REF4 + "." + Formats.XML);
+        req.addHeader(ActionReturn.Header.IF_NONE_MATCH.toString(), etag);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertTrue(res.getContentAsString().length() > 20);
+
+        // collections work the same way
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.SPACE4 + "." + Formats.JSON);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        etag = res.getHeader(ActionReturn.Header.ETAG.toString());
+        assertNotNull(etag);
+
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.SPACE4 + "." + Formats.JSON);
+        req.addHeader(ActionReturn.Header.IF_NONE_MATCH.toString(), etag);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus());
+        assertEquals("", res.getContentAsString());
+
+        // compressed responses have a different strong ETag than the identity ones
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.SPACE4 + "." + Formats.JSON);
+        req.addHeader("Accept-Encoding", "gzip");
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        String gzipETag = res.getHeader(ActionReturn.Header.ETAG.toString());
+        assertNotNull(gzipETag);
+        assertTrue(gzipETag.endsWith("-gzip\""));
+        assertFalse(etag.equals(gzipETag));
+
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.SPACE4 + "." + Formats.JSON);
+        req.addHeader("Accept-Encoding", "gzip");
+        req.addHeader(ActionReturn.Header.IF_NONE_MATCH.toString(), etag);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertEquals(gzipETag, res.getHeader(ActionReturn.Header.ETAG.toString()));
+
+        req = new EntityHttpServletRequest("GET", DIRECT_PREFIX + TestData.SPACE4 + "." + Formats.JSON);
+        req.addHeader("Accept-Encoding", "gzip");
+        req.addHeader(ActionReturn.Header.IF_NONE_MATCH.toString(), gzipETag);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus());
+        assertEquals("", res.getContentAsString());
+
+        // no validator is computed for a delete so there is no ETag at all
+        req = new EntityHttpServletRequest("DELETE", DIRECT_PREFIX + TestData.REF6_4);
+        res = new EntityHttpServletResponse();
+        entityHandler.handleEntityAccess(req, res, null);
+        assertEquals(HttpServletResponse.SC_NO_CONTENT, res.getStatus());
+        assertNull(res.getHeader(ActionReturn.Header.ETAG.toString()));
+        assertNotNull(res.getHeader(ActionReturn.Header.LAST_MODIFIED.toString()));
+    }
+
     public void testHandleEntityAccessDescribe() {
         EntityHttpServletRequest req = null;
         EntityHttpServletResponse res = null;
@@ -929,4 +1238,16 @@ public class EntityHandlerImplTest extends TestCase {
         }
         return bytes;
     }
+
+    private byte[] makeGzipBytes(String string) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(baos);
+            gzip.write(makeUTF8Bytes(string));
+            gzip.close();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
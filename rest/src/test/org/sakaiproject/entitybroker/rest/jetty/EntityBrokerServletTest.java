@@ -22,20 +22,45 @@ package org.sakaiproject.entitybroker.rest.jetty;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.servlet.ServletHolder;
 import org.mortbay.jetty.testing.HttpTester;
 import org.mortbay.jetty.testing.ServletTester;
 
+import org.sakaiproject.entitybroker.EntityReference;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.Deleteable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestStorable;
+import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorage;
+import org.sakaiproject.entitybroker.mocks.ResolvableEntityProviderMock;
+import org.sakaiproject.entitybroker.mocks.data.MyEntity;
 import org.sakaiproject.entitybroker.mocks.data.TestData;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
+import org.sakaiproject.entitybroker.rest.EntityBatchHandler;
 import org.sakaiproject.entitybroker.rest.ServiceTestManager;
+import org.sakaiproject.entitybroker.util.external.ExternalIntegrationProviderMock;
 import org.sakaiproject.entitybroker.util.http.HttpRESTUtils;
+import org.sakaiproject.entitybroker.util.request.ThreadStatePropagator;
 
 
 /**
@@ -68,6 +93,7 @@ public class EntityBrokerServletTest {
         this.tester = new ServletTester();
         this.tester.setContextPath(DIRECT_PREFIX);
         this.tester.addServlet(MockDirectServlet.class, "/*");
+        this.tester.addFilter(BatchStateFilter.class, "/*", Handler.REQUEST);
         try {
             this.tester.start();
         } catch (Exception e) {
@@ -627,6 +653,117 @@ public class EntityBrokerServletTest {
     }
 
 
+    @Test
+    public void testBatchParallelOrderJSON() {
+        // GET references are processed in parallel but results must be in reference order without duplicates
+        String url = DIRECT_PREFIX + EntityRequestHandler.SLASH_BATCH + ".json" 
+                + "?_refs=" + DIRECT_PREFIX + TestData.REF4
+                + "," + DIRECT_PREFIX + TestData.REF4_two
+                + "," + DIRECT_PREFIX + TestData.REF4
+                + "," + DIRECT_PREFIX + TestData.REF4_3
+                + "," + DIRECT_PREFIX + TestData.REF4 + ".xml"
+                + "," + DIRECT_PREFIX + TestData.REF6_2;
+        fireRequest(url);
+
+        assertEquals(200, this.response.getStatus());
+        String content = this.response.getContent();
+        assertNotNull(content);
+        int ref0 = content.indexOf("\"ref0\"");
+        int ref1 = content.indexOf("\"ref1\"");
+        int ref3 = content.indexOf("\"ref3\"");
+        int ref5 = content.indexOf("\"ref5\"");
+        assertTrue(ref0 >= 0);
+        assertTrue(ref1 > ref0);
+        assertTrue(ref3 > ref1);
+        assertTrue(ref5 > ref3);
+        // duplicate references and URLs are skipped
+        assertFalse(content.contains("\"ref2\""));
+        assertFalse(content.contains("\"ref4\""));
+        assertTrue(content.indexOf("\"id\": \"4-one\"") > ref0);
+        assertTrue(content.indexOf("\"id\": \"4-two\"") > ref1);
+        assertTrue(content.indexOf("\"id\": \"4-three\"") > ref3);
+        assertTrue(content.indexOf("\"id\": \"6-two\"") > ref5);
+    }
+
+    @Test
+    public void testBatchParallelWorkers() {
+        BatchWorkerProviderMock provider = new BatchWorkerProviderMock();
+        serviceTestManager.entityBrokerManager.getEntityProviderManager().registerEntityProvider(provider);
+        BatchIntegrationProviderMock integration = new BatchIntegrationProviderMock();
+        integration.settings.put(EntityBatchHandler.CONFIG_BATCH_PARALLEL_THREADS, 2);
+        serviceTestManager.entityBatchHandler.setExternalIntegrationProvider(integration);
+
+        // the references only complete if they are processed at the same time
+        String url = DIRECT_PREFIX + EntityRequestHandler.SLASH_BATCH + ".json" 
+                + "?_refs=" + DIRECT_PREFIX + "/" + BatchWorkerProviderMock.PREFIX + "/wait1"
+                + "," + DIRECT_PREFIX + "/" + BatchWorkerProviderMock.PREFIX + "/wait2";
+        this.request.setHeader(BatchStateFilter.STATE_HEADER, "session1");
+        fireRequest(url);
+        assertEquals(200, this.response.getStatus());
+        String content = this.response.getContent();
+        assertNotNull(content);
+        assertFalse(content.contains("\"error\""));
+        assertTrue(content.contains("\"id\": \"wait1\""));
+        assertTrue(content.contains("\"id\": \"wait2\""));
+
+        // the request storage and the thread state were carried over to the workers
+        assertEquals(2, provider.calls.size());
+        for (String[] call : provider.calls.values()) {
+            assertTrue(call[0].startsWith("entitybroker-batch-"));
+            assertEquals("session1", call[1]);
+            assertEquals("session1", call[2]);
+        }
+
+        // and removed afterwards (the same 2 workers process the next batch)
+        provider.calls.clear();
+        url = DIRECT_PREFIX + EntityRequestHandler.SLASH_BATCH + ".json" 
+                + "?_refs=" + DIRECT_PREFIX + "/" + BatchWorkerProviderMock.PREFIX + "/fast1"
+                + "," + DIRECT_PREFIX + "/" + BatchWorkerProviderMock.PREFIX + "/fast2";
+        fireRequest(url);
+        assertEquals(200, this.response.getStatus());
+        assertEquals(2, provider.calls.size());
+        for (String[] call : provider.calls.values()) {
+            assertTrue(call[0].startsWith("entitybroker-batch-"));
+            assertNull(call[1]);
+            assertNull(call[2]);
+        }
+    }
+
+    @Test
+    public void testBatchParallelTimeout() {
+        BatchWorkerProviderMock provider = new BatchWorkerProviderMock();
+        serviceTestManager.entityBrokerManager.getEntityProviderManager().registerEntityProvider(provider);
+        BatchIntegrationProviderMock integration = new BatchIntegrationProviderMock();
+        integration.settings.put(EntityBatchHandler.CONFIG_BATCH_TIMEOUT, 300);
+        integration.settings.put(EntityBatchHandler.CONFIG_BATCH_TIMEOUT_GRACE, 300);
+        integration.settings.put(EntityBatchHandler.CONFIG_BATCH_PARALLEL_METHODS, "GET,DELETE");
+        serviceTestManager.entityBatchHandler.setExternalIntegrationProvider(integration);
+
+        // a GET which is not done by the deadline is stopped and fails with a timeout
+        String url = DIRECT_PREFIX + EntityRequestHandler.SLASH_BATCH + ".json" 
+                + "?_refs=" + DIRECT_PREFIX + "/" + BatchWorkerProviderMock.PREFIX + "/slow1"
+                + "," + DIRECT_PREFIX + "/" + BatchWorkerProviderMock.PREFIX + "/fast1";
+        long start = System.currentTimeMillis();
+        fireRequest(url);
+        assertTrue(System.currentTimeMillis() - start < BatchWorkerProviderMock.SLOW_MILLIS);
+        String content = this.response.getContent();
+        assertNotNull(content);
+        assertTrue(content.contains("Batch timeout (" + EntityBatchHandler.CONFIG_BATCH_TIMEOUT + ") reached before reference"));
+        assertTrue(content.contains("slow1"));
+        assertTrue(content.contains("\"id\": \"fast1\""));
+
+        // a change which already started gets the grace period and then is reported with an unknown outcome
+        start = System.currentTimeMillis();
+        fireRequest(url, "DELETE", null);
+        assertTrue(System.currentTimeMillis() - start < BatchWorkerProviderMock.SLOW_MILLIS);
+        content = this.response.getContent();
+        assertNotNull(content);
+        assertTrue(content.contains("is still running, the outcome is unknown"));
+        assertTrue(content.contains("slow1"));
+        assertTrue(provider.deleted.containsKey("fast1"));
+        assertFalse(provider.deleted.containsKey("slow1"));
+    }
+
     @Test
     public void testBatchNew() {
         // now fire the request
@@ -672,6 +809,123 @@ public class EntityBrokerServletTest {
         assertEquals(11, td.entityProvider6.myEntities.get("AZ2").getNumber());
     }
 
+    @Test
+    public void testBatchBodyJSON() {
+        // each operation in the body has its own method, params, and body
+        String body = "[{\"method\":\"POST\",\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/new\","
+                + "\"params\":{\"id\":\"AZ0\",\"stuff\":\"Aaron\",\"number\":11}},"
+                + "{\"method\":\"PUT\",\"url\":\"" + DIRECT_PREFIX + TestData.REF6_2 + ".json\","
+                + "\"body\":{\"" + TestData.PREFIX6 + "\":{\"stuff\":\"TEST-PUT\"}}},"
+                + "{\"url\":\"" + DIRECT_PREFIX + TestData.REF4_two + "\"},"
+                + "{\"method\":\"DELETE\",\"url\":\"" + DIRECT_PREFIX + TestData.REF6_3 + "\"}]";
+        this.request.setHeader("Content-Type", "application/json");
+        this.request.setContent(body);
+
+        assertEquals(4, td.entityProvider6.myEntities.size());
+
+        fireRequest(DIRECT_PREFIX + EntityRequestHandler.SLASH_BATCH + ".json", "POST", null);
+
+        assertEquals(200, this.response.getStatus());
+        String content = this.response.getContent();
+        assertNotNull(content);
+        int ref0 = content.indexOf("\"ref0\"");
+        int ref1 = content.indexOf("\"ref1\"");
+        int ref2 = content.indexOf("\"ref2\"");
+        int ref3 = content.indexOf("\"ref3\"");
+        assertTrue(ref0 >= 0);
+        assertTrue(ref1 > ref0);
+        assertTrue(ref2 > ref1);
+        assertTrue(ref3 > ref2);
+        assertTrue(content.contains("201"));
+        assertTrue(content.indexOf("\"id\": \"4-two\"") > ref2);
+
+        assertNotNull(td.entityProvider6.myEntities.get("AZ0"));
+        assertEquals("Aaron", td.entityProvider6.myEntities.get("AZ0").getStuff());
+        assertEquals(11, td.entityProvider6.myEntities.get("AZ0").getNumber());
+        assertEquals("TEST-PUT", td.entityProvider6.myEntities.get(TestData.IDS6[1]).getStuff());
+        assertNull(td.entityProvider6.myEntities.get(TestData.IDS6[2]));
+        assertEquals(4, td.entityProvider6.myEntities.size());
+    }
+
+    @Test
+    public void testBatchBodyDependentJSON() {
+        // operations can use values from the results of earlier operations
+        String body = "[{\"key\":\"four\",\"url\":\"" + DIRECT_PREFIX + TestData.REF4_two + "\"},"
+                + "{\"key\":\"new\",\"method\":\"POST\",\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/new\","
+                + "\"params\":{\"id\":\"AZ9\",\"stuff\":\"{four.data.id}\"}},"
+                + "{\"method\":\"PUT\",\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/{new.id}.json\","
+                + "\"body\":{\"" + TestData.PREFIX6 + "\":{\"stuff\":\"{four.data.id}-{new.id}\"}}},"
+                + "{\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/{new.id}\",\"after\":[\"ref2\"]},"
+                + "{\"key\":\"bad\",\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/XXXXX\"},"
+                + "{\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/{bad.id}\"}]";
+        this.request.setHeader("Content-Type", "application/json");
+        this.request.setContent(body);
+
+        fireRequest(DIRECT_PREFIX + EntityRequestHandler.SLASH_BATCH + ".json", "POST", null);
+
+        // one of the operations failed
+        assertEquals(500, this.response.getStatus());
+        String content = this.response.getContent();
+        assertNotNull(content);
+        int four = content.indexOf("\"four\"");
+        int created = content.indexOf("\"new\"");
+        int ref2 = content.indexOf("\"ref2\"");
+        int ref3 = content.indexOf("\"ref3\"");
+        int bad = content.indexOf("\"bad\"");
+        int ref5 = content.indexOf("\"ref5\"");
+        assertTrue(four >= 0);
+        assertTrue(created > four);
+        assertTrue(ref2 > created);
+        assertTrue(ref3 > ref2);
+        assertTrue(bad > ref3);
+        assertTrue(ref5 > bad);
+        // the GET after the PUT sees the update
+        assertTrue(content.indexOf("4-two-AZ9") > ref3);
+        assertTrue(content.indexOf("depends on (bad) failed") > ref5);
+
+        assertNotNull(td.entityProvider6.myEntities.get("AZ9"));
+        assertEquals("4-two-AZ9", td.entityProvider6.myEntities.get("AZ9").getStuff());
+    }
+
+    @Test
+    public void testBatchBodyDependentEscapedJSON() {
+        // values from earlier results are escaped when they go into a JSON body
+        String body = "[{\"key\":\"new\",\"method\":\"POST\",\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/new\","
+                + "\"params\":{\"id\":\"AZ8\",\"stuff\":\"say \\\"hi\\\" \\\\o/\"}},"
+                + "{\"key\":\"get\",\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/{new.id}.json\"},"
+                + "{\"method\":\"PUT\",\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/{new.id}.json\","
+                + "\"body\":{\"" + TestData.PREFIX6 + "\":{\"stuff\":\"{get.data.stuff}!\"}}}]";
+        this.request.setHeader("Content-Type", "application/json");
+        this.request.setContent(body);
+
+        fireRequest(DIRECT_PREFIX + EntityRequestHandler.SLASH_BATCH + ".json", "POST", null);
+
+        assertEquals(200, this.response.getStatus());
+        assertNotNull(td.entityProvider6.myEntities.get("AZ8"));
+        assertEquals("say \"hi\" \\o/!", td.entityProvider6.myEntities.get("AZ8").getStuff());
+    }
+
+    @Test
+    public void testBatchBodyDependentInvalidJSON() {
+        // results can only come from earlier operations
+        String[] bodies = new String[] {
+                "[{\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/{later.id}\"},"
+                + "{\"key\":\"later\",\"url\":\"" + DIRECT_PREFIX + TestData.REF4_two + "\"}]",
+                "[{\"url\":\"" + DIRECT_PREFIX + TestData.REF4_two + "\"},"
+                + "{\"method\":\"PUT\",\"url\":\"" + DIRECT_PREFIX + TestData.REF6_2 + ".json\","
+                + "\"body\":{\"" + TestData.PREFIX6 + "\":{\"stuff\":\"{unknown.data.id}\"}}}]",
+                "[{\"key\":\"self\",\"url\":\"" + DIRECT_PREFIX + "/" + TestData.PREFIX6 + "/{self.id}\"}]"
+        };
+        for (int i = 0; i < bodies.length; i++) {
+            this.request.setHeader("Content-Type", "application/json");
+            this.request.setContent(bodies[i]);
+            fireRequest(DIRECT_PREFIX + EntityRequestHandler.SLASH_BATCH + ".json", "POST", null);
+            assertEquals(bodies[i], 400, this.response.getStatus());
+        }
+        // nothing was changed
+        assertEquals("aaron1", td.entityProvider6.myEntities.get(TestData.IDS6[1]).getStuff());
+    }
+
     // TODO need to work on a way to actually call the other webapps, it is not actually possible with forward/include
 
 //    @Test
@@ -705,6 +959,140 @@ public class EntityBrokerServletTest {
 //        }
 //    }
 
+    @Test
+    public void testAsyncFallback() {
+        // jetty 6 has no Servlet 3 async support so async mode must fall back to normal processing
+        try {
+            this.tester.stop();
+        } catch (Exception e) {
+            fail("Could not stop the jetty server: " + e.getMessage());
+        }
+        this.tester = new ServletTester();
+        this.tester.setContextPath(DIRECT_PREFIX);
+        ServletHolder holder = this.tester.addServlet(MockDirectServlet.class, "/*");
+        holder.setInitParameter("async", "true");
+        holder.setInitParameter("async-max-threads", "2");
+        try {
+            this.tester.start();
+        } catch (Exception e) {
+            fail("Could not start the jetty server: " + e.getMessage());
+        }
+
+        fireRequest(DIRECT_PREFIX + TestData.ENTITY_URL4_XML);
+        assertEquals(200, this.response.getStatus());
+        String content = this.response.getContent();
+        assertNotNull(content);
+        assertTrue(content.contains("<id>4-one</id>"));
+    }
+
     // TODO test batch post/head/put/delete
 
+    /**
+     * Binds a value (from the request header) to the request thread in the request storage and 
+     * in the thread state of the {@link BatchIntegrationProviderMock} (like the user session would be)
+     */
+    public static class BatchStateFilter implements Filter {
+        public static final String STATE_HEADER = "X-Batch-State";
+        public static final String STATE_KEY = "batchState";
+        public void init(FilterConfig filterConfig) throws ServletException {
+            // nothing to do
+        }
+        public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+            String state = ((HttpServletRequest) req).getHeader(STATE_HEADER);
+            if (state != null) {
+                ServiceTestManager.getInstance().entityBrokerManager.getRequestStorage().setStoredValue(STATE_KEY, state);
+                BatchIntegrationProviderMock.threadState.set(state);
+            }
+            try {
+                chain.doFilter(req, res);
+            } finally {
+                BatchIntegrationProviderMock.threadState.remove();
+            }
+        }
+        public void destroy() {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Carries the thread state over to the batch workers and allows the batch settings to be changed
+     */
+    public static class BatchIntegrationProviderMock extends ExternalIntegrationProviderMock implements ThreadStatePropagator {
+        static final ThreadLocal<String> threadState = new ThreadLocal<String>();
+        final Map<String, Object> settings = new HashMap<String, Object>();
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T getConfigurationSetting(String settingName, T defaultValue) {
+            if (settings.containsKey(settingName)) {
+                return (T) settings.get(settingName);
+            }
+            return super.getConfigurationSetting(settingName, defaultValue);
+        }
+        public Object captureThreadState() {
+            return threadState.get();
+        }
+        public void applyThreadState(Object state) {
+            if (state != null) {
+                threadState.set((String) state);
+            }
+        }
+        public void clearThreadState(Object state) {
+            threadState.remove();
+        }
+    }
+
+    /**
+     * Records the worker thread, request storage value, and thread state for each entity it gets,
+     * the "wait" entities only complete when both are being processed at the same time 
+     * and the "slow" entities take longer than the batch timeout
+     */
+    public static class BatchWorkerProviderMock extends ResolvableEntityProviderMock implements Deleteable, RequestStorable {
+        public static final String PREFIX = "parallelworker";
+        public static final long SLOW_MILLIS = 3000;
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final Map<String, String[]> calls = new ConcurrentHashMap<String, String[]>();
+        final Map<String, Boolean> deleted = new ConcurrentHashMap<String, Boolean>();
+        RequestStorage requestStorage;
+        public BatchWorkerProviderMock() {
+            super(PREFIX, new String[] {"wait1", "wait2", "fast1", "fast2", "slow1"});
+        }
+        public void setRequestStorage(RequestStorage requestStorage) {
+            this.requestStorage = requestStorage;
+        }
+        @Override
+        public Object getEntity(EntityReference reference) {
+            String id = reference.getId();
+            calls.put(id, new String[] {Thread.currentThread().getName(), 
+                    (String) requestStorage.getStoredValue(BatchStateFilter.STATE_KEY), 
+                    BatchIntegrationProviderMock.threadState.get()});
+            if (id.startsWith("wait")) {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("interrupted waiting for the other entity", e);
+                } catch (BrokenBarrierException e) {
+                    throw new IllegalStateException("the other entity failed", e);
+                } catch (TimeoutException e) {
+                    throw new IllegalStateException("the other entity was not processed at the same time", e);
+                }
+            } else if (id.startsWith("slow")) {
+                sleep();
+            }
+            return new MyEntity(id, "worker");
+        }
+        public void deleteEntity(EntityReference ref, Map<String, Object> params) {
+            if (ref.getId().startsWith("slow")) {
+                sleep();
+            }
+            deleted.put(ref.getId(), Boolean.TRUE);
+        }
+        private void sleep() {
+            try {
+                Thread.sleep(SLOW_MILLIS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("interrupted", e);
+            }
+        }
+    }
+
 }
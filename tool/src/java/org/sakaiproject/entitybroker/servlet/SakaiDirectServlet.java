@@ -31,6 +31,7 @@ import org.sakaiproject.entitybroker.EntityBrokerManager;
 import org.sakaiproject.entitybroker.access.HttpServletAccessProviderManager;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
 import org.sakaiproject.entitybroker.rest.EntityBrokerRESTServiceManager;
+import org.sakaiproject.entitybroker.util.request.ThreadStatePropagator;
 import org.sakaiproject.entitybroker.util.servlet.DirectServlet;
 import org.sakaiproject.tool.api.ActiveTool;
 import org.sakaiproject.tool.api.Session;
@@ -84,6 +85,13 @@ public class SakaiDirectServlet extends DirectServlet {
         HttpServletAccessProviderManager hsapm = (HttpServletAccessProviderManager) 
         ComponentManager.get(HttpServletAccessProviderManager.class.getName());
         entityRESTServiceManager = new EntityBrokerRESTServiceManager(ebm, hsapm);
+        // needed to carry the request over to the worker threads in async mode
+        setRequestGetter(ebm.getRequestGetter());
+        setRequestStorage(ebm.getRequestStorage());
+        if (ebm.getExternalIntegrationProvider() instanceof ThreadStatePropagator) {
+            // carries the sakai session over (and clears the worker thread after)
+            setThreadStatePropagator((ThreadStatePropagator) ebm.getExternalIntegrationProvider());
+        }
         EntityRequestHandler erh = entityRESTServiceManager.getEntityRequestHandler();
         if (erh == null) {
             throw new RuntimeException("FAILED to load EntityRequestHandler");
@@ -23,6 +23,7 @@ package org.sakaiproject.entitybroker.util;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -40,12 +41,15 @@ import org.sakaiproject.entity.api.EntityPropertyTypeException;
 import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.entitybroker.EntityReference;
 import org.sakaiproject.entitybroker.entityprovider.annotations.EntityId;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityLastModified;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.CollectionResolvable;
 import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
 import org.sakaiproject.entitybroker.entityprovider.extension.EntityData;
 import org.sakaiproject.entitybroker.entityprovider.search.Restriction;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
 import org.sakaiproject.entitybroker.util.model.EntityContent;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.PropertyAccessor;
 
 
 /**
@@ -193,6 +197,20 @@ public class EntityDataUtils {
      */
     public static String getEntityId(Object entity) {
         String entityId = null;
+        if (entity == null) {
+            return null;
+        }
+        EntityAccessorPlan plan = EntityAccessorPlan.getPlan(entity.getClass());
+        if (plan.isFixedProperties()) {
+            PropertyAccessor idProperty = plan.getIdProperty();
+            if (idProperty != null) {
+                Object value = idProperty.getValue(entity);
+                if (value != null) {
+                    entityId = ReflectUtils.getInstance().convert(value, String.class);
+                }
+            }
+            return entityId;
+        }
         try {
             entityId = ReflectUtils.getInstance().getFieldValueAsString(entity, "entityId", EntityId.class);
         } catch (FieldnameNotFoundException e) {
@@ -212,6 +230,10 @@ public class EntityDataUtils {
      * @return the name of the identifier field for this entity OR null if it cannot be determined
      */
     public static String getEntityIdField(Class<?> type) {
+        EntityAccessorPlan plan = EntityAccessorPlan.getPlan(type);
+        if (plan.isFixedProperties()) {
+            return plan.getIdFieldName();
+        }
         String entityIdField = ReflectUtils.getInstance().getFieldNameWithAnnotation(type, EntityId.class);
         if (entityIdField == null) {
             try {
@@ -224,6 +246,68 @@ public class EntityDataUtils {
         return entityIdField;
     }
 
+    /**
+     * Find the last modified time for some entity data,
+     * checks the lastModified property first and then the {@link EntityLastModified} field on the entity
+     * @param ed some entity data
+     * @return the last modified time OR null if it cannot be found
+     */
+    public static Long findLastModified(EntityData ed) {
+        Long lastModified = null;
+        if (ed != null) {
+            // try to get from props first
+            Object lm = ed.getEntityProperties().get("lastModified");
+            if (lm != null) {
+                lastModified = makeLastModified(lm);
+            }
+            if (lastModified == null 
+                    && ed.getData() != null) {
+                // look for the annotation on the entity
+                EntityAccessorPlan plan = EntityAccessorPlan.getPlan(ed.getData().getClass());
+                if (plan.isFixedProperties()) {
+                    PropertyAccessor lastModifiedProperty = plan.getLastModifiedProperty();
+                    if (lastModifiedProperty != null) {
+                        lastModified = makeLastModified( lastModifiedProperty.getValue(ed.getData()) );
+                    }
+                } else {
+                    try {
+                        lm = ReflectUtils.getInstance().getFieldValue(ed.getData(), "lastModified", EntityLastModified.class);
+                        lastModified = makeLastModified(lm);
+                    } catch (FieldnameNotFoundException e1) {
+                        // nothing to do here
+                    }
+                }
+            }
+        }
+        return lastModified;
+    }
+
+    /**
+     * Make a last modified long from this object if possible OR return null
+     * @param lm any object that might be the last modified date
+     * @return the long OR null if it cannot be converted
+     */
+    public static Long makeLastModified(Object lm) {
+        Long lastModified = null;
+        if (lm != null) {
+            Class<?> c = lm.getClass();
+            if (Date.class.isAssignableFrom(c)) {
+                lastModified = ((Date)lm).getTime();
+            } else if (Long.class.isAssignableFrom(c)) {
+                lastModified = ((Long)lm);
+            } else if (String.class.isAssignableFrom(c)) {
+                try {
+                    lastModified = new Long((String)lm);
+                } catch (NumberFormatException e) {
+                    // nothing to do here
+                }
+            } else {
+                System.out.println("WARN: EntityRequestHandler: Unknown type returned for 'lastModified' (not Date, Long, String): " + lm.getClass() + ", using the default value of current time instead");
+            }
+        }
+        return lastModified;
+    }
+
     /**
      * Translate the search into one using the standard search params
      * @param search
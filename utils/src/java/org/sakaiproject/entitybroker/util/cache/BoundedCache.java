@@ -0,0 +1,264 @@
+/**
+ * $Id$
+ * $URL$
+ * BoundedCache.java - entity-broker - Oct 18, 2026 5:02:17 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A simple thread safe cache with a strict maximum size (least recently used entries are evicted first)
+ * and a time to live for every entry, keeps counts of hits, misses, evictions and invalidations<br/>
+ * Values which were fetched before an invalidation happened can be put in with {@link #put(Object, Object, long)}
+ * so that a slow fetch cannot put back a value which was invalidated while it was running
+ * (only invalidations of the same key or a clear cause the value to be rejected)
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ * @author Sakai Software Development Team
+ */
+public class BoundedCache<K, V> {
+
+    private final int maxSize;
+    private final long ttl;
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+    private long generation = 0;
+    /**
+     * values fetched before this generation are always rejected (set by clear and when an invalidated key is dropped)
+     */
+    private long minGeneration = 0;
+    /**
+     * the generation when each recently invalidated key was invalidated (least recently invalidated dropped first)
+     */
+    private final LinkedHashMap<K, Long> invalidated;
+
+    /**
+     * @param maxSize the maximum number of entries to hold (must be greater than 0)
+     * @param ttl the time (in milliseconds) that an entry stays valid, 0 or less means entries do not expire
+     */
+    public BoundedCache(int maxSize, long ttl) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than 0: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Entry<K, CacheEntry<V>> eldest) {
+                if (size() > BoundedCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.invalidated = new LinkedHashMap<K, Long>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Entry<K, Long> eldest) {
+                if (size() > BoundedCache.this.maxSize) {
+                    // no longer known which key so reject anything fetched before it
+                    minGeneration = Math.max(minGeneration, eldest.getValue().longValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param key the cache key
+     * @return the cached value OR null if there is none (or it expired)
+     */
+    public synchronized V get(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry != null
+                && entry.expires > 0
+                && entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            evictions++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Put a value in the cache (replaces any existing value)
+     * @param key the cache key
+     * @param value the value (null values are not cached)
+     */
+    public synchronized void put(K key, V value) {
+        if (key == null || value == null) {
+            return;
+        }
+        long expires = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+        entries.put(key, new CacheEntry<V>(value, expires));
+    }
+
+    /**
+     * Put a value in the cache only if this key was not invalidated (and the cache was not cleared)
+     * since the generation was retrieved
+     * @param key the cache key
+     * @param value the value (null values are not cached)
+     * @param generation the value of {@link #getGeneration()} from before the value was fetched
+     * @return true if the value was cached
+     */
+    public synchronized boolean put(K key, V value, long generation) {
+        if (generation < minGeneration) {
+            return false;
+        }
+        Long invalidatedGeneration = invalidated.get(key);
+        if (invalidatedGeneration != null
+                && generation < invalidatedGeneration.longValue()) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    /**
+     * @return the current invalidation generation, this changes every time anything is invalidated
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Remove a cached value
+     * @param key the cache key
+     * @return true if there was a value cached for this key
+     */
+    public synchronized boolean invalidate(K key) {
+        generation++;
+        if (key != null) {
+            invalidated.remove(key); // keeps the most recent invalidations last
+            invalidated.put(key, generation);
+        }
+        boolean removed = entries.remove(key) != null;
+        if (removed) {
+            invalidations++;
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all the cached values
+     */
+    public synchronized void clear() {
+        generation++;
+        minGeneration = generation;
+        invalidated.clear();
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    /**
+     * Removes all expired entries
+     * @return the number of entries removed
+     */
+    public synchronized int purgeExpired() {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (Iterator<CacheEntry<V>> it = entries.values().iterator(); it.hasNext();) {
+            CacheEntry<V> entry = it.next();
+            if (entry.expires > 0 && entry.expires < now) {
+                it.remove();
+                count++;
+            }
+        }
+        evictions += count;
+        return count;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Adds the counts from this cache to the given statistics map (adds to any existing values),
+     * keys are: size, hits, misses, evictions, invalidations
+     * @param stats the map to add the counts into
+     */
+    public synchronized void addStatistics(Map<String, Long> stats) {
+        addStat(stats, "size", entries.size());
+        addStat(stats, "hits", hits);
+        addStat(stats, "misses", misses);
+        addStat(stats, "evictions", evictions);
+        addStat(stats, "invalidations", invalidations);
+    }
+
+    private void addStat(Map<String, Long> stats, String key, long value) {
+        Long current = stats.get(key);
+        stats.put(key, current == null ? value : current.longValue() + value);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cache::size:" + entries.size() + "/" + maxSize + ",ttl:" + ttl + ",hits:" + hits + ",misses:" + misses
+            + ",evictions:" + evictions + ",invalidations:" + invalidations;
+    }
+
+    private static class CacheEntry<V> {
+        final V value;
+        final long expires;
+        CacheEntry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -21,6 +21,7 @@
 package org.sakaiproject.entitybroker.util.devhelper;
 
 import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -28,7 +29,6 @@ import java.util.Map;
 
 import org.azeckoski.reflectutils.ReflectUtils;
 import org.azeckoski.reflectutils.transcoders.HTMLTranscoder;
-import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
 import org.azeckoski.reflectutils.transcoders.Transcoder;
 import org.azeckoski.reflectutils.transcoders.XMLTranscoder;
 
@@ -40,6 +40,7 @@ import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorage;
 import org.sakaiproject.entitybroker.providers.EntityPropertiesService;
 import org.sakaiproject.entitybroker.providers.EntityRESTProvider;
+import org.sakaiproject.entitybroker.util.encoding.JSONStreamEncoder;
 
 /**
  * implementation of the helper service methods which are internal only
@@ -363,17 +364,19 @@ public abstract class AbstractDeveloperHelperService implements DeveloperHelperS
     }
 
 
-    private Map<String, Transcoder> transcoders;
+    // built once up front so concurrent first calls do not race to create it
+    private final Map<String, Transcoder> transcoders = makeTranscoders();
+    private static Map<String, Transcoder> makeTranscoders() {
+        Map<String, Transcoder> transcoders = new HashMap<String, Transcoder>();
+        JSONStreamEncoder jt = new JSONStreamEncoder(true, true, false);
+        transcoders.put(jt.getHandledFormat(), jt);
+        XMLTranscoder xt = new XMLTranscoder(true, true, false, false);
+        transcoders.put(xt.getHandledFormat(), xt);
+        HTMLTranscoder ht = new HTMLTranscoder();
+        transcoders.put(ht.getHandledFormat(), ht);
+        return Collections.unmodifiableMap(transcoders);
+    }
     private Transcoder getTranscoder(String format) {
-        if (transcoders == null) {
-            transcoders = new HashMap<String, Transcoder>();
-            JSONTranscoder jt = new JSONTranscoder(true, true, false);
-            transcoders.put(jt.getHandledFormat(), jt);
-            XMLTranscoder xt = new XMLTranscoder(true, true, false, false);
-            transcoders.put(xt.getHandledFormat(), xt);
-            HTMLTranscoder ht = new HTMLTranscoder();
-            transcoders.put(ht.getHandledFormat(), ht);
-        }
         Transcoder transcoder = transcoders.get(format);
         if (transcoder == null) {
             throw new IllegalArgumentException("Failed to find a transcoder for format, none exists, cannot encode or decode data for format: " + format);
@@ -0,0 +1,65 @@
+/**
+ * $Id$
+ * $URL$
+ * BinaryTranscoder.java - entity-broker - Oct 18, 2026 10:52:31 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.azeckoski.reflectutils.transcoders.Transcoder;
+
+/**
+ * A transcoder for a binary format, the data is written to and read from streams of bytes<br/>
+ * The string methods from {@link Transcoder} hold one byte in each char (ISO-8859-1)
+ * so that the encoded data can still be passed around as a string where that is needed,
+ * these strings must be converted back into bytes with ISO-8859-1 before they are output
+ *
+ * @author Sakai Software Development Team
+ */
+public interface BinaryTranscoder extends Transcoder {
+
+    /**
+     * The charset which maps each byte of the binary data onto a single char
+     */
+    public static final String BYTE_CHARSET = "ISO-8859-1";
+
+    /**
+     * @param object any java object (should not be null)
+     * @param name (optional) the name of the data, will be handled differently by the encoders (null for default: {@link #DATA_KEY})
+     * @param properties (optional) additional properties which will be added to the encoding
+     * as if it were a property of the bean or map being encoded, if the object being encoded is not a bean
+     * or a map then the properties are ignored
+     * @param maxDepth the maximum traversal depth to use for this specific object, 0 or less to use the default depth
+     * @param output the stream to place the encoded data into, this will not be flushed or closed
+     * @throws IOException if the stream fails
+     */
+    public void encode(Object object, String name, Map<String, Object> properties, int maxDepth, OutputStream output) throws IOException;
+
+    /**
+     * @param input the stream of encoded data, this will not be closed
+     * @return a map which contains the decoded data (non-map data is placed in the map using the {@link #DATA_KEY})
+     * @throws IOException if the stream fails
+     * @throws IllegalArgumentException if the data is not valid
+     */
+    public Map<String, Object> decode(InputStream input) throws IOException;
+
+}
@@ -0,0 +1,697 @@
+/**
+ * $Id$
+ * $URL$
+ * CBORTranscoder.java - entity-broker - Oct 18, 2026 10:58:09 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.azeckoski.reflectutils.ClassFields;
+import org.azeckoski.reflectutils.ReflectUtils;
+import org.azeckoski.reflectutils.ClassFields.FieldsFilter;
+import org.azeckoski.reflectutils.map.ArrayOrderedMap;
+import org.azeckoski.reflectutils.transcoders.TranscoderUtils;
+import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.util.encoding.EncodingBuffers.BufferOutputStream;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.Kind;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.PropertyAccessor;
+
+/**
+ * Encodes objects into CBOR (Concise Binary Object Representation, RFC 7049) and decodes CBOR data,
+ * the encoded data has the same structure as the output from the {@link JSONStreamEncoder}
+ * (beans and maps become maps, arrays and collections become arrays, dates become numbers)
+ * but numbers, booleans, and strings are stored in a compact binary form<br/>
+ * Beans are traversed using the accessor plans (see {@link EntityAccessorPlan}) and written straight
+ * into the output stream, maps of beans are written with indefinite length so no values need to be
+ * read ahead of writing them
+ *
+ * @author Sakai Software Development Team
+ */
+public class CBORTranscoder implements BinaryTranscoder {
+
+    // major types
+    public static final int MAJOR_UNSIGNED = 0;
+    public static final int MAJOR_NEGATIVE = 1;
+    public static final int MAJOR_BYTES = 2;
+    public static final int MAJOR_TEXT = 3;
+    public static final int MAJOR_ARRAY = 4;
+    public static final int MAJOR_MAP = 5;
+    public static final int MAJOR_TAG = 6;
+    public static final int MAJOR_SIMPLE = 7;
+
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int UNDEFINED = 0xf7;
+    private static final int FLOAT_16 = 0xf9;
+    private static final int FLOAT_32 = 0xfa;
+    private static final int FLOAT_64 = 0xfb;
+    private static final int BREAK = 0xff;
+    private static final int INDEFINITE = 31;
+    private static final int TAG_POSITIVE_BIGNUM = 2;
+    private static final int TAG_NEGATIVE_BIGNUM = 3;
+
+    private static final String FIELD_CLASS = ClassFields.FIELD_CLASS;
+    private static final BigInteger MAX_UNSIGNED = BigInteger.ONE.shiftLeft(64);
+
+    private boolean includeNulls = true;
+    private boolean includeClassField = false;
+    private int maxLevel = 7;
+    private final EncodingBuffers buffers = new EncodingBuffers();
+    private int maxInputDepth = EntityInputDecoder.DEFAULT_MAX_DEPTH;
+
+    public CBORTranscoder() {}
+
+    /**
+     * @param includeNulls if true then create output for null values
+     * @param includeClassField if true then include the value from the "getClass()" method as "class" when encoding beans
+     */
+    public CBORTranscoder(boolean includeNulls, boolean includeClassField) {
+        this.includeNulls = includeNulls;
+        this.includeClassField = includeClassField;
+    }
+
+    /**
+     * @param maxLevel the number of objects to follow when traveling through the object,
+     * 0 means only the fields in the initial object, default is 7
+     */
+    public void setMaxLevel(int maxLevel) {
+        this.maxLevel = maxLevel;
+    }
+
+    /**
+     * @param maxInputDepth the maximum nesting depth of arrays, maps and tags which will be decoded,
+     * 0 or less for no limit, default is {@link EntityInputDecoder#DEFAULT_MAX_DEPTH}
+     */
+    public void setMaxInputDepth(int maxInputDepth) {
+        this.maxInputDepth = maxInputDepth;
+    }
+
+    public String getHandledFormat() {
+        return Formats.CBOR;
+    }
+
+    public String encode(Object object, String name, Map<String, Object> properties) {
+        return encode(object, name, properties, this.maxLevel);
+    }
+
+    public String encode(Object object, String name, Map<String, Object> properties, int maxDepth) {
+        BufferOutputStream output = buffers.acquireStream();
+        try {
+            encode(object, name, properties, maxDepth, output);
+            return output.toString(BYTE_CHARSET);
+        } catch (IOException e) {
+            // should not be possible with a byte array stream
+            throw new IllegalStateException("Failure encoding CBOR for object ("+object+"): " + e.getMessage(), e);
+        } finally {
+            buffers.release(output);
+        }
+    }
+
+    public void encode(Object object, String name, Map<String, Object> properties, int maxDepth, OutputStream output) throws IOException {
+        if (output == null) {
+            throw new IllegalArgumentException("output cannot be null");
+        }
+        writeItem(output, object, 0, maxDepth > 0 ? maxDepth : this.maxLevel, properties);
+    }
+
+    public Map<String, Object> decode(String string) {
+        if (string == null) {
+            throw new IllegalArgumentException("string to decode cannot be null");
+        }
+        try {
+            return decode( new ByteArrayInputStream(string.getBytes(BYTE_CHARSET)) );
+        } catch (IOException e) {
+            // should not be possible with a byte array stream
+            throw new IllegalStateException("Failure decoding CBOR: " + e.getMessage(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> decode(InputStream input) throws IOException {
+        Object decode = new CBORReader(input, maxInputDepth).readItem(1);
+        Map<String, Object> decoded;
+        if (decode instanceof Map) {
+            decoded = (Map<String, Object>) decode;
+        } else {
+            // if the result is not a map then simply put the result into a map (same as JSON)
+            decoded = new ArrayOrderedMap<String, Object>();
+            decoded.put(DATA_KEY, decode);
+        }
+        return decoded;
+    }
+
+    // ENCODING
+
+    @SuppressWarnings("unchecked")
+    protected void writeItem(OutputStream output, Object object, int level, int maxLevel, Map<String, Object> properties) throws IOException {
+        if (object == null) {
+            output.write(NULL);
+            return;
+        }
+        EntityAccessorPlan plan = EntityAccessorPlan.getPlan(object.getClass());
+        Kind kind = plan.getKind();
+        if (kind == Kind.SIMPLE) {
+            writeSimple(output, object);
+        } else if (kind == Kind.ARRAY) {
+            int length = Array.getLength(object);
+            writeHeader(output, MAJOR_ARRAY, length);
+            for (int i = 0; i < length; i++) {
+                writeItem(output, Array.get(object, i), level+1, maxLevel, properties);
+            }
+        } else if (kind == Kind.COLLECTION) {
+            Collection<Object> collection = (Collection<Object>) object;
+            writeHeader(output, MAJOR_ARRAY, collection.size());
+            for (Object element : collection) {
+                writeItem(output, element, level+1, maxLevel, properties);
+            }
+        } else {
+            // special handling for certain object types
+            String special = TranscoderUtils.checkObjectSpecial(object);
+            if (special != null) {
+                if ("".equals(special)) {
+                    output.write(NULL);
+                } else {
+                    writeString(output, special);
+                }
+            } else if (maxLevel <= level) {
+                writeString(output, "MAX level reached (" + level + "):" + object.toString());
+            } else {
+                Map<String, Object> extra = (level == 0 && properties != null && ! properties.isEmpty()) ? properties : null;
+                // the number of fields is not known until they are read so the map is indefinite
+                writeIndefinite(output, MAJOR_MAP);
+                if (kind == Kind.OBJECT && ! plan.isAdaptable()) {
+                    // properties replace the bean values and go at the end (same as the JSON encoding)
+                    if (includeClassField
+                            && (extra == null || ! extra.containsKey(FIELD_CLASS))) {
+                        writeField(output, FIELD_CLASS, object.getClass(), level, maxLevel, properties);
+                    }
+                    for (PropertyAccessor accessor : plan.getSerializableProperties()) {
+                        String key = accessor.getName();
+                        if (extra != null && extra.containsKey(key)) {
+                            continue;
+                        }
+                        Object value;
+                        try {
+                            value = accessor.getValue(object);
+                        } catch (RuntimeException e) {
+                            // failed to get the value so we will skip this one
+                            continue;
+                        }
+                        writeField(output, key, value, level, maxLevel, properties);
+                    }
+                    if (extra != null) {
+                        for (Entry<String, Object> entry : extra.entrySet()) {
+                            if (entry.getKey() != null) {
+                                writeField(output, entry.getKey(), entry.getValue(), level, maxLevel, properties);
+                            }
+                        }
+                    }
+                } else {
+                    Map<String, Object> map;
+                    if (kind == Kind.MAP) {
+                        map = (Map<String, Object>) object;
+                    } else {
+                        map = ReflectUtils.getInstance().getObjectValues(object, FieldsFilter.SERIALIZABLE, includeClassField);
+                    }
+                    for (Entry<String, Object> entry : map.entrySet()) {
+                        Object key = entry.getKey();
+                        if (key != null) {
+                            Object value = entry.getValue();
+                            if (extra != null && extra.containsKey(key)) {
+                                value = extra.get(key);
+                            }
+                            writeField(output, key.toString(), value, level, maxLevel, properties);
+                        }
+                    }
+                    if (extra != null) {
+                        for (Entry<String, Object> entry : extra.entrySet()) {
+                            if (entry.getKey() != null
+                                    && ! map.containsKey(entry.getKey())) {
+                                writeField(output, entry.getKey(), entry.getValue(), level, maxLevel, properties);
+                            }
+                        }
+                    }
+                }
+                writeBreak(output);
+            }
+        }
+    }
+
+    private void writeField(OutputStream output, String key, Object value, int level, int maxLevel, Map<String, Object> properties) throws IOException {
+        if (value == null && ! includeNulls) {
+            return;
+        }
+        writeString(output, key);
+        writeItem(output, value, level+1, maxLevel, properties);
+    }
+
+    /**
+     * Writes a simple value (numbers, booleans, dates, strings and anything else as a string)
+     * @param output the stream to write to
+     * @param object a simple value
+     * @throws IOException if the stream fails
+     */
+    public static void writeSimple(OutputStream output, Object object) throws IOException {
+        if (object instanceof Date) {
+            writeLong(output, ((Date) object).getTime());
+        } else if (object instanceof Integer
+                || object instanceof Long
+                || object instanceof Short
+                || object instanceof Byte) {
+            writeLong(output, ((Number) object).longValue());
+        } else if (object instanceof Double) {
+            output.write(FLOAT_64);
+            writeBytes(output, Double.doubleToLongBits((Double) object), 8);
+        } else if (object instanceof Float) {
+            output.write(FLOAT_32);
+            writeBytes(output, Float.floatToIntBits((Float) object), 4);
+        } else if (object instanceof BigInteger) {
+            BigInteger bi = (BigInteger) object;
+            if (bi.bitLength() < 64) {
+                writeLong(output, bi.longValue());
+            } else {
+                boolean negative = bi.signum() < 0;
+                byte[] bytes = (negative ? bi.negate().subtract(BigInteger.ONE) : bi).toByteArray();
+                int start = bytes[0] == 0 ? 1 : 0;
+                writeHeader(output, MAJOR_TAG, negative ? TAG_NEGATIVE_BIGNUM : TAG_POSITIVE_BIGNUM);
+                writeHeader(output, MAJOR_BYTES, bytes.length - start);
+                output.write(bytes, start, bytes.length - start);
+            }
+        } else if (object instanceof BigDecimal) {
+            writeSimple(output, ((BigDecimal) object).doubleValue());
+        } else if (object instanceof Number) {
+            writeSimple(output, ((Number) object).doubleValue());
+        } else if (object instanceof Boolean) {
+            output.write( ((Boolean) object).booleanValue() ? TRUE : FALSE );
+        } else {
+            writeString(output, object.toString());
+        }
+    }
+
+    /**
+     * @param output the stream to write to
+     * @param value an integer value
+     * @throws IOException if the stream fails
+     */
+    public static void writeLong(OutputStream output, long value) throws IOException {
+        if (value < 0) {
+            writeHeader(output, MAJOR_NEGATIVE, -1 - value);
+        } else {
+            writeHeader(output, MAJOR_UNSIGNED, value);
+        }
+    }
+
+    /**
+     * @param output the stream to write to
+     * @param string a string
+     * @throws IOException if the stream fails
+     */
+    public static void writeString(OutputStream output, String string) throws IOException {
+        byte[] bytes = string.getBytes(Formats.UTF_8);
+        writeHeader(output, MAJOR_TEXT, bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Writes the start of an array or map with an unknown number of items,
+     * it must be ended with {@link #writeBreak(OutputStream)}
+     * @param output the stream to write to
+     * @param majorType {@link #MAJOR_ARRAY} or {@link #MAJOR_MAP}
+     * @throws IOException if the stream fails
+     */
+    public static void writeIndefinite(OutputStream output, int majorType) throws IOException {
+        output.write((majorType << 5) | INDEFINITE);
+    }
+
+    /**
+     * Ends an array or map started with {@link #writeIndefinite(OutputStream, int)}
+     * @param output the stream to write to
+     * @throws IOException if the stream fails
+     */
+    public static void writeBreak(OutputStream output) throws IOException {
+        output.write(BREAK);
+    }
+
+    /**
+     * Writes the type and argument (value, length, or count) for an item
+     * @param output the stream to write to
+     * @param majorType the major type (0-7)
+     * @param value the argument (treated as unsigned)
+     * @throws IOException if the stream fails
+     */
+    public static void writeHeader(OutputStream output, int majorType, long value) throws IOException {
+        int type = majorType << 5;
+        if (value >= 0 && value < 24) {
+            output.write(type | (int) value);
+        } else if (value >= 0 && value <= 0xffl) {
+            output.write(type | 24);
+            output.write((int) value);
+        } else if (value >= 0 && value <= 0xffffl) {
+            output.write(type | 25);
+            writeBytes(output, value, 2);
+        } else if (value >= 0 && value <= 0xffffffffl) {
+            output.write(type | 26);
+            writeBytes(output, value, 4);
+        } else {
+            output.write(type | 27);
+            writeBytes(output, value, 8);
+        }
+    }
+
+    private static void writeBytes(OutputStream output, long value, int count) throws IOException {
+        for (int i = count - 1; i >= 0; i--) {
+            output.write((int) (value >>> (i * 8)) & 0xff);
+        }
+    }
+
+    // DECODING
+
+    /**
+     * Reads CBOR items from a stream, the items are decoded the same way the JSON decoder would decode
+     * the equivalent JSON (maps become ordered maps with string keys, arrays become lists,
+     * integers become Integer or Long)
+     */
+    public static class CBORReader {
+        private final InputStream input;
+        private final int maxDepth;
+        private int peeked = -1;
+
+        /**
+         * @param input the stream of CBOR data, this will not be closed
+         * @param maxDepth the maximum nesting depth of arrays, maps and tags, 0 or less for no limit
+         */
+        public CBORReader(InputStream input, int maxDepth) {
+            if (input == null) {
+                throw new IllegalArgumentException("input cannot be null");
+            }
+            this.input = input;
+            this.maxDepth = maxDepth;
+        }
+
+        /**
+         * @return the major type of the next item (without reading it)
+         * @throws IOException if the stream fails or is empty
+         */
+        public int peekMajorType() throws IOException {
+            return peek() >>> 5;
+        }
+
+        /**
+         * @return true if the next byte is the break which ends an indefinite array or map (the break is read)
+         * @throws IOException if the stream fails or ends
+         */
+        public boolean readBreak() throws IOException {
+            if (peek() == BREAK) {
+                peeked = -1;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Reads the header of a map
+         * @return the number of entries in the map OR -1 if it is indefinite (ends with a break)
+         * @throws IOException if the stream fails or ends
+         * @throws IllegalArgumentException if the next item is not a map
+         */
+        public long readMapStart() throws IOException {
+            int initial = read();
+            if ((initial >>> 5) != MAJOR_MAP) {
+                throw new IllegalArgumentException("Invalid CBOR: expected a map but found major type " + (initial >>> 5));
+            }
+            return readArgument(initial, true);
+        }
+
+        /**
+         * Reads a complete item (including all the items in it)
+         * @param depth the depth of this item (the top level item is 1)
+         * @return the decoded item
+         * @throws IOException if the stream fails or ends
+         * @throws IllegalArgumentException if the data is invalid or nested too deeply
+         */
+        public Object readItem(int depth) throws IOException {
+            int initial = read();
+            int major = initial >>> 5;
+            Object value;
+            switch (major) {
+            case MAJOR_UNSIGNED:
+                value = makeNumber(readArgument(initial, false), false);
+                break;
+            case MAJOR_NEGATIVE:
+                value = makeNumber(readArgument(initial, false), true);
+                break;
+            case MAJOR_BYTES:
+                value = readChunks(initial, MAJOR_BYTES);
+                break;
+            case MAJOR_TEXT:
+                value = new String(readChunks(initial, MAJOR_TEXT), Formats.UTF_8);
+                break;
+            case MAJOR_ARRAY: {
+                checkDepth(depth);
+                long count = readArgument(initial, true);
+                List<Object> list = new ArrayList<Object>(count > 0 && count < 1024 ? (int) count : 10);
+                if (count < 0) {
+                    while (! readBreak()) {
+                        list.add( readItem(depth + 1) );
+                    }
+                } else {
+                    for (long i = 0; i < count; i++) {
+                        list.add( readItem(depth + 1) );
+                    }
+                }
+                value = list;
+                break;
+            }
+            case MAJOR_MAP: {
+                checkDepth(depth);
+                long count = readArgument(initial, true);
+                Map<String, Object> map = new ArrayOrderedMap<String, Object>();
+                if (count < 0) {
+                    while (! readBreak()) {
+                        map.put( String.valueOf(readItem(depth + 1)), readItem(depth + 1) );
+                    }
+                } else {
+                    for (long i = 0; i < count; i++) {
+                        map.put( String.valueOf(readItem(depth + 1)), readItem(depth + 1) );
+                    }
+                }
+                value = map;
+                break;
+            }
+            case MAJOR_TAG: {
+                // tags wrap an item so they count as a level (tags can be nested)
+                checkDepth(depth);
+                long tag = readArgument(initial, false);
+                Object tagged = readItem(depth + 1);
+                if ((tag == TAG_POSITIVE_BIGNUM || tag == TAG_NEGATIVE_BIGNUM)
+                        && tagged instanceof byte[]) {
+                    BigInteger bi = new BigInteger(1, (byte[]) tagged);
+                    value = tag == TAG_NEGATIVE_BIGNUM ? bi.negate().subtract(BigInteger.ONE) : bi;
+                } else {
+                    // other tags are not understood so only the value is used
+                    value = tagged;
+                }
+                break;
+            }
+            default:
+                value = readSimple(initial);
+            }
+            return value;
+        }
+
+        private Object readSimple(int initial) throws IOException {
+            Object value;
+            switch (initial) {
+            case FALSE: value = Boolean.FALSE; break;
+            case TRUE: value = Boolean.TRUE; break;
+            case NULL: value = null; break;
+            case UNDEFINED: value = null; break;
+            case FLOAT_16: value = Float.valueOf( halfToFloat((int) readBytes(2)) ); break;
+            case FLOAT_32: value = Float.valueOf( Float.intBitsToFloat((int) readBytes(4)) ); break;
+            case FLOAT_64: value = Double.valueOf( Double.longBitsToDouble(readBytes(8)) ); break;
+            case BREAK: throw new IllegalArgumentException("Invalid CBOR: unexpected break");
+            default:
+                // other simple values have no equivalent so they are returned as numbers
+                value = Integer.valueOf( (int) readArgument(initial, false) );
+            }
+            return value;
+        }
+
+        private byte[] readChunks(int initial, int major) throws IOException {
+            long length = readArgument(initial, true);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length > 0 && length < 8192 ? (int) length : 256);
+            if (length < 0) {
+                // indefinite strings are made of definite chunks of the same type
+                while (! readBreak()) {
+                    int chunk = read();
+                    if ((chunk >>> 5) != major) {
+                        throw new IllegalArgumentException("Invalid CBOR: string chunk has the wrong major type (" + (chunk >>> 5) + ")");
+                    }
+                    copy(readArgument(chunk, false), bytes);
+                }
+            } else {
+                copy(length, bytes);
+            }
+            return bytes.toByteArray();
+        }
+
+        private void copy(long length, ByteArrayOutputStream bytes) throws IOException {
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid CBOR: string length is too large (" + length + ")");
+            }
+            // read in chunks so that a bad length cannot allocate a huge array
+            byte[] buffer = new byte[(int) Math.min(length, 8192)];
+            long remaining = length;
+            if (peeked != -1 && remaining > 0) {
+                bytes.write(peeked);
+                peeked = -1;
+                remaining--;
+            }
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+                if (read < 0) {
+                    throw new EOFException("Invalid CBOR: data ended inside a string");
+                }
+                bytes.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+
+        /**
+         * @return the argument value OR -1 if this is indefinite (only if allowed)
+         */
+        private long readArgument(int initial, boolean allowIndefinite) throws IOException {
+            int info = initial & 0x1f;
+            long value;
+            if (info < 24) {
+                value = info;
+            } else if (info == 24) {
+                value = readBytes(1);
+            } else if (info == 25) {
+                value = readBytes(2);
+            } else if (info == 26) {
+                value = readBytes(4);
+            } else if (info == 27) {
+                value = readBytes(8);
+            } else if (info == INDEFINITE && allowIndefinite) {
+                value = -1;
+            } else {
+                throw new IllegalArgumentException("Invalid CBOR: unsupported additional info (" + info + ") for major type " + (initial >>> 5));
+            }
+            return value;
+        }
+
+        private long readBytes(int count) throws IOException {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 8) | read();
+            }
+            return value;
+        }
+
+        private Object makeNumber(long value, boolean negative) {
+            if (value < 0) {
+                // larger than a long can hold
+                BigInteger bi = BigInteger.valueOf(value).add(MAX_UNSIGNED);
+                return negative ? bi.negate().subtract(BigInteger.ONE) : bi;
+            }
+            if (negative) {
+                value = -1 - value;
+            }
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return Integer.valueOf((int) value);
+            }
+            return Long.valueOf(value);
+        }
+
+        private void checkDepth(int depth) {
+            if (maxDepth > 0 && depth > maxDepth) {
+                throw new IllegalArgumentException("Invalid CBOR: data is nested too deeply, max depth is " + maxDepth);
+            }
+        }
+
+        private int peek() throws IOException {
+            if (peeked == -1) {
+                peeked = read();
+            }
+            return peeked;
+        }
+
+        private int read() throws IOException {
+            int b;
+            if (peeked != -1) {
+                b = peeked;
+                peeked = -1;
+            } else {
+                b = input.read();
+                if (b < 0) {
+                    throw new EOFException("Invalid CBOR: data ended before the item was complete");
+                }
+            }
+            return b;
+        }
+    }
+
+    /**
+     * Converts a half precision float into a float
+     */
+    private static float halfToFloat(int half) {
+        int exponent = (half >> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        float value;
+        if (exponent == 0) {
+            value = (float) (mantissa * Math.pow(2, -24));
+        } else if (exponent == 31) {
+            value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+        } else {
+            value = (float) ((mantissa + 1024) * Math.pow(2, exponent - 25));
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    /**
+     * @param string any string
+     * @return the bytes of the string (one per char) as held in the strings from {@link #encode(Object, String, Map)}
+     */
+    public static byte[] toBytes(String string) {
+        try {
+            return string.getBytes(BYTE_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("Missing required charset: " + BYTE_CHARSET, e);
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+/**
+ * $Id$
+ * $URL$
+ * EncodingBuffers.java - entity-broker - Oct 18, 2026 11:58:20 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Writer;
+
+/**
+ * Holds reusable buffers (one char buffer and one byte buffer per thread) for encoders which
+ * build their output in memory, this avoids allocating (and growing) a new buffer for every encoding<br/>
+ * New buffers are sized from the average size of the output seen so far, buffers which grow larger
+ * than the max retained size (or much larger than the average) are dropped after use so that
+ * a few very large outputs do not hold onto memory in every thread<br/>
+ * A buffer is acquired and then MUST be released (in a finally block) when the output has been read from it,
+ * if the buffer for this thread is already in use (nested encoding) then a new one is made
+ *
+ * @author Sakai Software Development Team
+ */
+public class EncodingBuffers {
+
+    public static final int DEFAULT_SIZE = 256;
+    public static final int MAX_RETAINED_SIZE = 65536;
+
+    private final int maxRetainedSize;
+    private final ThreadLocal<BufferWriter> writers = new ThreadLocal<BufferWriter>();
+    private final ThreadLocal<BufferOutputStream> streams = new ThreadLocal<BufferOutputStream>();
+    private volatile int averageSize = DEFAULT_SIZE;
+
+    public EncodingBuffers() {
+        this(MAX_RETAINED_SIZE);
+    }
+
+    /**
+     * @param maxRetainedSize buffers with a capacity larger than this are not kept for reuse
+     */
+    public EncodingBuffers(int maxRetainedSize) {
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    /**
+     * @return the average size of the output written into these buffers
+     */
+    public int getAverageSize() {
+        return averageSize;
+    }
+
+    /**
+     * @return the char buffer for the current thread (empty), this must be released with {@link #release(BufferWriter)}
+     */
+    public BufferWriter acquireWriter() {
+        BufferWriter writer = writers.get();
+        if (writer == null || writer.inUse) {
+            BufferWriter created = new BufferWriter(averageSize);
+            if (writer == null) {
+                writers.set(created);
+            }
+            writer = created;
+        }
+        writer.inUse = true;
+        return writer;
+    }
+
+    /**
+     * Releases the char buffer so it can be reused (the contents are cleared)
+     * @param writer the buffer from {@link #acquireWriter()}
+     */
+    public void release(BufferWriter writer) {
+        recordSize(writer.length());
+        writer.inUse = false;
+        if (isRetained(writer.capacity())) {
+            writer.reset();
+        } else if (writers.get() == writer) {
+            writers.remove();
+        }
+    }
+
+    /**
+     * @return the byte buffer for the current thread (empty), this must be released with {@link #release(BufferOutputStream)}
+     */
+    public BufferOutputStream acquireStream() {
+        BufferOutputStream stream = streams.get();
+        if (stream == null || stream.inUse) {
+            BufferOutputStream created = new BufferOutputStream(averageSize);
+            if (stream == null) {
+                streams.set(created);
+            }
+            stream = created;
+        }
+        stream.inUse = true;
+        return stream;
+    }
+
+    /**
+     * Releases the byte buffer so it can be reused (the contents are cleared)
+     * @param stream the buffer from {@link #acquireStream()}
+     */
+    public void release(BufferOutputStream stream) {
+        recordSize(stream.size());
+        stream.inUse = false;
+        if (isRetained(stream.capacity())) {
+            stream.reset();
+        } else if (streams.get() == stream) {
+            streams.remove();
+        }
+    }
+
+    private boolean isRetained(int capacity) {
+        return capacity <= maxRetainedSize
+            && (capacity <= DEFAULT_SIZE || capacity <= averageSize * 4);
+    }
+
+    private void recordSize(int size) {
+        // moving average, concurrent updates can lose a sample which only makes the estimate slightly less accurate
+        int average = averageSize;
+        average += (size - average) / 8;
+        averageSize = average < DEFAULT_SIZE ? DEFAULT_SIZE : average;
+    }
+
+    /**
+     * A writer into a reusable char buffer (not thread safe)
+     */
+    public static class BufferWriter extends Writer {
+        private final StringBuilder sb;
+        private boolean inUse = false;
+
+        public BufferWriter(int size) {
+            sb = new StringBuilder(size);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            sb.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            sb.append(str, off, off + len);
+        }
+
+        @Override
+        public void write(String str) {
+            sb.append(str);
+        }
+
+        @Override
+        public void write(int c) {
+            sb.append((char) c);
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            sb.append(csq);
+            return this;
+        }
+
+        @Override
+        public void flush() {
+            // nothing to do
+        }
+
+        @Override
+        public void close() {
+            // nothing to do
+        }
+
+        public int length() {
+            return sb.length();
+        }
+
+        public int capacity() {
+            return sb.capacity();
+        }
+
+        public void reset() {
+            sb.setLength(0);
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A stream into a reusable byte buffer (not thread safe)
+     */
+    public static class BufferOutputStream extends ByteArrayOutputStream {
+        private boolean inUse = false;
+
+        public BufferOutputStream(int size) {
+            super(size);
+        }
+
+        public int capacity() {
+            return buf.length;
+        }
+    }
+
+}
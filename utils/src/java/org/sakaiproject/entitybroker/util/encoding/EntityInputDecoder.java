@@ -0,0 +1,918 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityInputDecoder.java - entity-broker - Oct 18, 2026 9:12:38 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.azeckoski.reflectutils.map.ArrayOrderedMap;
+import org.azeckoski.reflectutils.transcoders.Transcoder;
+import org.sakaiproject.entitybroker.util.encoding.CBORTranscoder.CBORReader;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.PropertyMutator;
+
+/**
+ * Decodes JSON, XML, and CBOR input streams directly into an entity object without building the whole
+ * input into a string or a map first, the top level fields are written straight into the
+ * writable properties of the entity (using the cached setters from {@link EntityAccessorPlan}),
+ * only nested values (maps, lists, beans) are built up before they are written<br/>
+ * The data is handled the same way as the {@link Transcoder#decode(String)} output is handled
+ * when it is populated into an entity (unknown fields are ignored, a single wrapper object named
+ * the same as the entity prefix is unwrapped, XML type attributes are used to convert values,
+ * CBOR is decoded the same way as the equivalent JSON),
+ * but the size of the input and the nesting depth are limited and all the fields which could not be
+ * written are reported together in an {@link InputDecodingException}
+ *
+ * @author Sakai Software Development Team
+ */
+public class EntityInputDecoder {
+
+    public static final long DEFAULT_MAX_SIZE = 10485760l; // 10 MB
+    public static final int DEFAULT_MAX_DEPTH = 20;
+
+    private static final String JSON = "json";
+    private static final String XML = "xml";
+    private static final String CBOR = "cbor";
+    private static final String ENCODING = "UTF-8";
+
+    private final long maxSize;
+    private final int maxDepth;
+
+    /**
+     * Create a decoder with the default limits
+     */
+    public EntityInputDecoder() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param maxSize the maximum number of bytes which will be read from the input, 0 or less for no limit
+     * @param maxDepth the maximum nesting depth of objects and arrays in the input (the entity itself is depth 1),
+     * 0 or less for no limit
+     */
+    public EntityInputDecoder(long maxSize, int maxDepth) {
+        this.maxSize = maxSize;
+        this.maxDepth = maxDepth;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @param format the input format
+     * @return true if this format can be decoded by this decoder
+     */
+    public static boolean canDecode(String format) {
+        return JSON.equals(format) || XML.equals(format) || CBOR.equals(format);
+    }
+
+    /**
+     * @param entity the entity object which input will be decoded into
+     * @return true if this entity can have input bound to it directly,
+     * false if it has dynamic properties or is not a bean (e.g. a Map)
+     */
+    public static boolean canBind(Object entity) {
+        if (entity == null) {
+            return false;
+        }
+        return EntityAccessorPlan.getPlan(entity.getClass()).isFixedProperties();
+    }
+
+    /**
+     * Decodes the input stream and writes the data into the entity
+     *
+     * @param input the stream of encoded data (text formats will be read as UTF-8, the stream is not closed)
+     * @param format the format of the data (json, xml, or cbor)
+     * @param entity the entity object to write the data into
+     * @param rootName (optional) the name of a wrapper object which will be unwrapped if it is the first field
+     * in the data and the entity has no property with that name (normally the entity prefix)
+     * @return the entity object with the data written into it
+     * @throws InputTooLargeException if the input is larger than the max size
+     * @throws InputDecodingException if the input is invalid, too deeply nested,
+     * or some of the fields cannot be written into the entity
+     * @throws IllegalArgumentException if the arguments are invalid
+     */
+    public Object decode(InputStream input, String format, Object entity, String rootName) {
+        if (input == null || entity == null) {
+            throw new IllegalArgumentException("input and entity cannot be null");
+        }
+        if (! canDecode(format)) {
+            throw new IllegalArgumentException("Format ("+format+") cannot be decoded, only " + JSON + ", " + XML + ", and " + CBOR + " are supported");
+        }
+        LimitedInputStream limited = new LimitedInputStream(input, maxSize);
+        Binder binder = new Binder(entity, rootName);
+        try {
+            if (JSON.equals(format)) {
+                Reader reader = new BufferedReader( new InputStreamReader(limited, ENCODING) );
+                new JSONReader(reader, binder).read();
+            } else if (CBOR.equals(format)) {
+                readCBOR(limited, binder);
+            } else {
+                readXML(limited, binder);
+            }
+        } catch (IOException e) {
+            if (limited.isExceeded()) {
+                throw new InputTooLargeException(maxSize);
+            }
+            throw new InputDecodingException("Failed reading " + format + " input: " + e.getMessage(), e);
+        } catch (XMLStreamException e) {
+            if (limited.isExceeded()) {
+                throw new InputTooLargeException(maxSize);
+            }
+            throw new InputDecodingException("Invalid " + format + " input: " + e.getMessage(), e);
+        }
+        if (! binder.errors.isEmpty()) {
+            throw new InputDecodingException("Invalid values for " + binder.errors.size()
+                    + " field(s) in " + format + " input: " + binder.errors, binder.errors);
+        }
+        return entity;
+    }
+
+    /**
+     * Wraps an input stream so that no more than the max size can be read from it,
+     * this is for input which is decoded some other way (e.g. by a {@link Transcoder} into a map)
+     * 
+     * @param input the stream of encoded data
+     * @return the limited stream, reading past the max size fails with an IOException
+     * and then {@link LimitedInputStream#isExceeded()} is true
+     */
+    public LimitedInputStream limit(InputStream input) {
+        if (input == null) {
+            throw new IllegalArgumentException("input cannot be null");
+        }
+        return new LimitedInputStream(input, maxSize);
+    }
+
+    /**
+     * Checks the nesting depth of encoded text before it is decoded some other way,
+     * only JSON is checked since the other decoders do not recurse for each level
+     * 
+     * @param data the encoded data
+     * @param format the format of the data
+     * @throws InputDecodingException if the data is nested too deeply
+     */
+    public void checkDepth(String data, String format) {
+        if (maxDepth <= 0 || data == null || ! JSON.equals(format)) {
+            return;
+        }
+        int depth = 0;
+        boolean inString = false;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                checkDepth(++depth);
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Checks the nesting depth of decoded data (maps, collections, and arrays),
+     * the data itself is depth 1
+     * 
+     * @param decoded the decoded data
+     * @throws InputDecodingException if the data is nested too deeply
+     */
+    public void checkDepth(Object decoded) {
+        if (maxDepth > 0) {
+            checkDepth(decoded, 1);
+        }
+    }
+
+    private void checkDepth(Object value, int depth) {
+        Collection<?> children = null;
+        if (value instanceof Map) {
+            children = ((Map<?, ?>) value).values();
+        } else if (value instanceof Collection) {
+            children = (Collection<?>) value;
+        } else if (value instanceof Object[]) {
+            children = Arrays.asList((Object[]) value);
+        } else {
+            return;
+        }
+        checkDepth(depth);
+        for (Object child : children) {
+            checkDepth(child, depth + 1);
+        }
+    }
+
+    protected void checkDepth(int depth) {
+        if (maxDepth > 0 && depth > maxDepth) {
+            throw new InputDecodingException("Input is nested too deeply, max depth is " + maxDepth);
+        }
+    }
+
+    /**
+     * Writes values into the entity and records the failures
+     */
+    protected static class Binder {
+        private final Object entity;
+        private final String rootName;
+        private final EntityAccessorPlan plan;
+        private final Map<String, String> errors = new LinkedHashMap<String, String>();
+        private boolean first = true;
+
+        protected Binder(Object entity, String rootName) {
+            this.entity = entity;
+            this.rootName = rootName;
+            this.plan = EntityAccessorPlan.getPlan(entity.getClass());
+        }
+
+        /**
+         * Checks if the field should be unwrapped, can only be true for the first field
+         * @param name the field name
+         * @return true if the contents of this field should be bound into the entity instead
+         */
+        protected boolean unwrap(String name) {
+            boolean unwrap = first
+                    && rootName != null
+                    && rootName.equals(name)
+                    && plan.getWritableProperty(name) == null;
+            first = false;
+            return unwrap;
+        }
+
+        /**
+         * @param name the field name
+         * @return true if this field can be written (unknown fields are skipped without decoding them into values)
+         */
+        protected boolean isWritable(String name) {
+            return name != null && plan.getWritableProperty(name) != null;
+        }
+
+        protected void bind(String name, Object value) {
+            PropertyMutator mutator = plan.getWritableProperty(name);
+            if (mutator != null) {
+                try {
+                    mutator.setValue(entity, value);
+                    errors.remove(name);
+                } catch (RuntimeException e) {
+                    errors.put(name, e.getMessage());
+                }
+            }
+        }
+    }
+
+    // JSON
+
+    /**
+     * Simple pull parser for JSON which binds the top level object fields into the entity
+     */
+    protected class JSONReader {
+        private final Reader reader;
+        private final Binder binder;
+        private final StringBuilder buf = new StringBuilder();
+        private int c;
+        private long position = 0;
+
+        protected JSONReader(Reader reader, Binder binder) {
+            this.reader = reader;
+            this.binder = binder;
+        }
+
+        protected void read() throws IOException {
+            next();
+            skipWhiteSpace();
+            if (c == -1) {
+                throw new InputDecodingException("Input is empty");
+            }
+            if (c == '{') {
+                bindObject(1);
+            } else {
+                // not an object so it is treated as the data field
+                binder.bind(Transcoder.DATA_KEY, readValue(1));
+            }
+        }
+
+        private void bindObject(int depth) throws IOException {
+            checkDepth(depth);
+            expect('{');
+            skipWhiteSpace();
+            if (c == '}') {
+                next();
+                return;
+            }
+            while (true) {
+                String key = readKey();
+                skipWhiteSpace();
+                boolean unwrap = binder.unwrap(key);
+                if (unwrap && c == '{') {
+                    bindObject(depth);
+                } else if (binder.isWritable(key)) {
+                    binder.bind(key, readValue(depth + 1));
+                } else {
+                    skipValue(depth + 1);
+                }
+                skipWhiteSpace();
+                if (c == ',') {
+                    next();
+                    skipWhiteSpace();
+                } else {
+                    expect('}');
+                    return;
+                }
+            }
+        }
+
+        private String readKey() throws IOException {
+            skipWhiteSpace();
+            if (c != '"') {
+                throw error("expected a field name");
+            }
+            next();
+            String key = readString();
+            skipWhiteSpace();
+            expect(':');
+            return key;
+        }
+
+        private Object readValue(int depth) throws IOException {
+            skipWhiteSpace();
+            Object value;
+            switch (c) {
+            case '{':
+                checkDepth(depth);
+                next();
+                Map<String, Object> map = new ArrayOrderedMap<String, Object>();
+                skipWhiteSpace();
+                if (c == '}') {
+                    next();
+                } else {
+                    while (true) {
+                        String key = readKey();
+                        map.put(key, readValue(depth + 1));
+                        skipWhiteSpace();
+                        if (c == ',') {
+                            next();
+                        } else {
+                            expect('}');
+                            break;
+                        }
+                    }
+                }
+                value = map;
+                break;
+            case '[':
+                checkDepth(depth);
+                next();
+                List<Object> list = new ArrayList<Object>();
+                skipWhiteSpace();
+                if (c == ']') {
+                    next();
+                } else {
+                    while (true) {
+                        list.add( readValue(depth + 1) );
+                        skipWhiteSpace();
+                        if (c == ',') {
+                            next();
+                        } else {
+                            expect(']');
+                            break;
+                        }
+                    }
+                }
+                value = list;
+                break;
+            case '"':
+                next();
+                value = readString();
+                break;
+            case 't':
+                readLiteral("true");
+                value = Boolean.TRUE;
+                break;
+            case 'f':
+                readLiteral("false");
+                value = Boolean.FALSE;
+                break;
+            case 'n':
+                readLiteral("null");
+                value = null;
+                break;
+            default:
+                if (c == '-' || Character.isDigit(c)) {
+                    value = readNumber();
+                } else {
+                    throw error("unexpected character");
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Reads past a value without keeping it (still enforces the depth limit)
+         */
+        private void skipValue(int depth) throws IOException {
+            skipWhiteSpace();
+            if (c == '{' || c == '[') {
+                checkDepth(depth);
+                char end = c == '{' ? '}' : ']';
+                boolean object = c == '{';
+                next();
+                skipWhiteSpace();
+                if (c == end) {
+                    next();
+                    return;
+                }
+                while (true) {
+                    if (object) {
+                        readKey();
+                    }
+                    skipValue(depth + 1);
+                    skipWhiteSpace();
+                    if (c == ',') {
+                        next();
+                    } else {
+                        expect(end);
+                        return;
+                    }
+                }
+            } else {
+                readValue(depth);
+            }
+        }
+
+        private String readString() throws IOException {
+            buf.setLength(0);
+            while (c != '"') {
+                if (c == -1) {
+                    throw error("unterminated string");
+                }
+                if (c == '\\') {
+                    next();
+                    switch (c) {
+                    case 'b': buf.append('\b'); break;
+                    case 'f': buf.append('\f'); break;
+                    case 'n': buf.append('\n'); break;
+                    case 'r': buf.append('\r'); break;
+                    case 't': buf.append('\t'); break;
+                    case 'u':
+                        int value = 0;
+                        for (int i = 0; i < 4; i++) {
+                            next();
+                            int digit = Character.digit(c, 16);
+                            if (digit < 0) {
+                                throw error("invalid unicode escape");
+                            }
+                            value = (value << 4) + digit;
+                        }
+                        buf.append((char) value);
+                        break;
+                    case -1:
+                        throw error("unterminated string");
+                    default:
+                        buf.append((char) c);
+                    }
+                } else {
+                    buf.append((char) c);
+                }
+                next();
+            }
+            next();
+            return buf.toString();
+        }
+
+        private Number readNumber() throws IOException {
+            buf.setLength(0);
+            int length = 0;
+            boolean isFloatingPoint = false;
+            if (c == '-') {
+                add();
+            }
+            length += addDigits();
+            if (c == '.') {
+                add();
+                length += addDigits();
+                isFloatingPoint = true;
+            }
+            if (c == 'e' || c == 'E') {
+                add();
+                if (c == '+' || c == '-') {
+                    add();
+                }
+                addDigits();
+                isFloatingPoint = true;
+            }
+            String s = buf.toString();
+            // same number types as the JSON transcoder
+            try {
+                Number num;
+                if (isFloatingPoint) {
+                    if (length < 10) {
+                        num = Float.valueOf(s);
+                    } else if (length < 17) {
+                        num = Double.valueOf(s);
+                    } else {
+                        num = new BigDecimal(s);
+                    }
+                } else {
+                    if (length < 10) {
+                        num = Integer.valueOf(s);
+                    } else if (length < 19) {
+                        num = Long.valueOf(s);
+                    } else {
+                        num = new BigInteger(s);
+                    }
+                }
+                return num;
+            } catch (NumberFormatException e) {
+                throw error("invalid number (" + s + ")");
+            }
+        }
+
+        private int addDigits() throws IOException {
+            int count = 0;
+            while (c != -1 && Character.isDigit(c)) {
+                add();
+                count++;
+            }
+            return count;
+        }
+
+        private void add() throws IOException {
+            buf.append((char) c);
+            next();
+        }
+
+        private void readLiteral(String literal) throws IOException {
+            for (int i = 0; i < literal.length(); i++) {
+                if (c != literal.charAt(i)) {
+                    throw error("invalid literal, expected " + literal);
+                }
+                next();
+            }
+        }
+
+        private void expect(char expected) throws IOException {
+            if (c != expected) {
+                throw error("expected '" + expected + "'");
+            }
+            next();
+        }
+
+        private void skipWhiteSpace() throws IOException {
+            while (c != -1 && Character.isWhitespace(c)) {
+                next();
+            }
+        }
+
+        private void next() throws IOException {
+            c = reader.read();
+            position++;
+        }
+
+        private InputDecodingException error(String message) {
+            String found = c == -1 ? "end of input" : "'" + (char) c + "'";
+            return new InputDecodingException("Invalid json input at position " + position + ": " + message + " but found " + found);
+        }
+    }
+
+    // CBOR
+
+    protected void readCBOR(InputStream input, Binder binder) throws IOException {
+        CBORReader reader = new CBORReader(input, maxDepth);
+        try {
+            if (reader.peekMajorType() == CBORTranscoder.MAJOR_MAP) {
+                bindCBORMap(reader, binder, 1);
+            } else {
+                // not a map so it is treated as the data field
+                binder.bind(Transcoder.DATA_KEY, reader.readItem(1));
+            }
+        } catch (InputDecodingException e) {
+            throw e;
+        } catch (IllegalArgumentException e) {
+            throw new InputDecodingException("Invalid cbor input: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Binds the entries of the next map into the entity
+     */
+    private void bindCBORMap(CBORReader reader, Binder binder, int depth) throws IOException {
+        checkDepth(depth);
+        long count = reader.readMapStart();
+        for (long i = 0; count < 0 ? ! reader.readBreak() : i < count; i++) {
+            String key = String.valueOf( reader.readItem(depth + 1) );
+            boolean unwrap = binder.unwrap(key);
+            if (unwrap && reader.peekMajorType() == CBORTranscoder.MAJOR_MAP) {
+                bindCBORMap(reader, binder, depth);
+            } else if (binder.isWritable(key)) {
+                binder.bind(key, reader.readItem(depth + 1));
+            } else {
+                // unknown values still have to be read past
+                reader.readItem(depth + 1);
+            }
+        }
+    }
+
+    // XML
+
+    private static XMLInputFactory xmlInputFactory = null;
+    protected static XMLInputFactory getXMLInputFactory() {
+        if (xmlInputFactory == null) {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            xmlInputFactory = factory;
+        }
+        return xmlInputFactory;
+    }
+
+    protected void readXML(InputStream input, Binder binder) throws XMLStreamException {
+        XMLStreamReader reader = getXMLInputFactory().createXMLStreamReader(input, ENCODING);
+        try {
+            // find the root element, it is only a wrapper so the name is ignored
+            while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+                // skip the prolog
+            }
+            if (! reader.isStartElement()) {
+                throw new InputDecodingException("Input is empty, no root element found");
+            }
+            bindElement(reader, binder, 1);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Binds the child elements of the current element into the entity
+     */
+    private void bindElement(XMLStreamReader reader, Binder binder, int depth) throws XMLStreamException {
+        checkDepth(depth);
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (binder.unwrap(name)) {
+                    bindElement(reader, binder, depth);
+                } else if (binder.isWritable(name)) {
+                    binder.bind(name, readElement(reader, depth + 1));
+                } else {
+                    skipElement(reader, depth + 1);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the current element into a value the same way the XML transcoder does,
+     * elements with child elements become maps (or lists if the type is array or collection)
+     */
+    @SuppressWarnings("unchecked")
+    private Object readElement(XMLStreamReader reader, int depth) throws XMLStreamException {
+        String type = reader.getAttributeValue(null, "type");
+        Object container = null;
+        StringBuilder text = null;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (container == null) {
+                    checkDepth(depth);
+                    if ("array".equals(type) || "collection".equals(type)) {
+                        container = new Vector<Object>();
+                    } else {
+                        container = new ArrayOrderedMap<String, Object>();
+                    }
+                }
+                String name = reader.getLocalName();
+                Object value = readElement(reader, depth + 1);
+                if (container instanceof Map) {
+                    Map<String, Object> map = (Map<String, Object>) container;
+                    if (map.containsKey(name)) {
+                        // repeated elements mean this is really a collection
+                        Collection<Object> collection = new Vector<Object>(map.values());
+                        collection.add(value);
+                        container = collection;
+                    } else {
+                        map.put(name, value);
+                    }
+                } else {
+                    ((Collection<Object>) container).add(value);
+                }
+            } else if (event == XMLStreamConstants.CHARACTERS
+                    || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                if (text == null) {
+                    text = new StringBuilder();
+                }
+                text.append(reader.getText());
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+        if (container != null) {
+            return container;
+        }
+        if (text == null) {
+            return null;
+        }
+        String content = text.toString().trim();
+        Object value = content;
+        if ("boolean".equals(type)) {
+            value = Boolean.valueOf(content);
+        } else if ("number".equals(type)) {
+            value = makeNumber(content);
+        } else if ("date".equals(type)) {
+            try {
+                value = new Date(Long.valueOf(content));
+            } catch (NumberFormatException e) {
+                value = content;
+            }
+        }
+        return value;
+    }
+
+    private void skipElement(XMLStreamReader reader, int depth) throws XMLStreamException {
+        int level = 1;
+        while (reader.hasNext() && level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+                checkDepth(depth + level - 1);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+    }
+
+    private static Object makeNumber(String content) {
+        try {
+            if (content.indexOf('.') >= 0 || content.indexOf('e') >= 0 || content.indexOf('E') >= 0) {
+                return Double.valueOf(content);
+            }
+            long l = Long.parseLong(content);
+            if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                return Integer.valueOf((int) l);
+            }
+            return Long.valueOf(l);
+        } catch (NumberFormatException e) {
+            return content;
+        }
+    }
+
+    /**
+     * Stops reading (with an IOException) when more than the max number of bytes are read
+     */
+    public static class LimitedInputStream extends FilterInputStream {
+        private final long maxSize;
+        private long count = 0;
+        private boolean exceeded = false;
+
+        protected LimitedInputStream(InputStream in, long maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        public boolean isExceeded() {
+            return exceeded;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the input belongs to the caller
+        }
+
+        private void count(long read) throws IOException {
+            count += read;
+            if (maxSize > 0 && count > maxSize) {
+                exceeded = true;
+                throw new IOException("Input is larger than the max size of " + maxSize + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Indicates that the input was larger than the max size allowed
+     */
+    public static class InputTooLargeException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+        private final long maxSize;
+
+        public InputTooLargeException(long maxSize) {
+            super("Input is larger than the max size of " + maxSize + " bytes");
+            this.maxSize = maxSize;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+    }
+
+    /**
+     * Indicates that the input was invalid or could not be written into the entity,
+     * any fields which could not be written are in the field errors
+     */
+    public static class InputDecodingException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, String> fieldErrors;
+
+        public InputDecodingException(String message) {
+            super(message);
+            this.fieldErrors = Collections.emptyMap();
+        }
+
+        public InputDecodingException(String message, Throwable cause) {
+            super(message, cause);
+            this.fieldErrors = Collections.emptyMap();
+        }
+
+        public InputDecodingException(String message, Map<String, String> fieldErrors) {
+            super(message);
+            this.fieldErrors = Collections.unmodifiableMap(new LinkedHashMap<String, String>(fieldErrors));
+        }
+
+        /**
+         * @return the map of field name -> error message for all fields which could not be written (may be empty)
+         */
+        public Map<String, String> getFieldErrors() {
+            return fieldErrors;
+        }
+    }
+
+}
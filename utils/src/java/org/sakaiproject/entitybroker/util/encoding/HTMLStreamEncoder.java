@@ -0,0 +1,315 @@
+/**
+ * $Id$
+ * $URL$
+ * HTMLStreamEncoder.java - entity-broker - Oct 18, 2026 9:02:37 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.azeckoski.reflectutils.ClassFields;
+import org.azeckoski.reflectutils.ReflectUtils;
+import org.azeckoski.reflectutils.ClassFields.FieldsFilter;
+import org.azeckoski.reflectutils.transcoders.HTMLTranscoder;
+import org.azeckoski.reflectutils.transcoders.TranscoderUtils;
+import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.util.encoding.EncodingBuffers.BufferWriter;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.Kind;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.PropertyAccessor;
+
+/**
+ * Encodes objects into HTML tables by writing directly to a {@link Writer} as the object is traversed,
+ * bean classes are only introspected once (see {@link EntityAccessorPlan})<br/>
+ * The output is the same as the output from the {@link HTMLTranscoder} with the same settings,
+ * decoding HTML is not supported
+ * 
+ * @author Sakai Software Development Team
+ */
+public class HTMLStreamEncoder implements StreamingTranscoder {
+
+    private static final String SPACES = "  ";
+    private static final String ELEMENT = "element";
+
+    private boolean humanOutput = true;
+    private boolean includeNulls = true;
+    private boolean includeClassField = false;
+    private int maxLevel = 7;
+    private final EncodingBuffers buffers = new EncodingBuffers();
+
+    public HTMLStreamEncoder() {}
+
+    /**
+     * @param humanOutput if true then enable human readable output (includes indentation and line breaks)
+     * @param includeNulls if true then create output for null values
+     * @param includeClassField if true then include the value from the "getClass()" method as "class" when encoding beans
+     */
+    public HTMLStreamEncoder(boolean humanOutput, boolean includeNulls, boolean includeClassField) {
+        this.humanOutput = humanOutput;
+        this.includeNulls = includeNulls;
+        this.includeClassField = includeClassField;
+    }
+
+    /**
+     * @param maxLevel the number of objects to follow when traveling through the object,
+     * 0 means only the fields in the initial object, default is 7
+     */
+    public void setMaxLevel(int maxLevel) {
+        this.maxLevel = maxLevel;
+    }
+
+    public String getHandledFormat() {
+        return Formats.HTML;
+    }
+
+    public String encode(Object object, String name, Map<String, Object> properties) {
+        return encode(object, name, properties, this.maxLevel);
+    }
+
+    public String encode(Object object, String name, Map<String, Object> properties, int maxDepth) {
+        BufferWriter writer = buffers.acquireWriter();
+        try {
+            encode(object, name, properties, maxDepth, writer);
+            return writer.toString();
+        } catch (IOException e) {
+            // should not be possible with a buffer writer
+            throw new IllegalStateException("Failure encoding HTML for object ("+object+"): " + e.getMessage(), e);
+        } finally {
+            buffers.release(writer);
+        }
+    }
+
+    public void encode(Object object, String name, Map<String, Object> properties, Writer writer) throws IOException {
+        encode(object, name, properties, this.maxLevel, writer);
+    }
+
+    /**
+     * NOTE: the properties are ignored when encoding to HTML (the same as the {@link HTMLTranscoder})
+     */
+    public void encode(Object object, String name, Map<String, Object> properties, int maxDepth, Writer writer) throws IOException {
+        if (writer == null) {
+            throw new IllegalArgumentException("writer cannot be null");
+        }
+        if (object != null) {
+            if (name == null || "".equals(name)) {
+                name = DATA_KEY;
+            }
+        }
+        writer.write("<table border='1'>\n");
+        writeHTML(writer, object, name, 0, maxDepth);
+        writer.write("</table>\n");
+    }
+
+    public Map<String, Object> decode(String string) {
+        throw new UnsupportedOperationException("Decoding from HTML is not supported");
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void writeHTML(Writer writer, Object object, String tagName, int level, int maxLevel) throws IOException {
+        if (object == null) {
+            if (includeNulls) {
+                tagName = HTMLTranscoder.validate(tagName == null ? "null" : tagName);
+                writeLevelSpaces(writer, level);
+                writer.write("<tr><td>");
+                writer.write(tagName);
+                writer.write("</td><td><i>NULL</i></td></tr>");
+                writeEOL(writer);
+            }
+            return;
+        }
+        if (object instanceof RawContent) {
+            // already encoded so it goes into the value cell as is
+            tagName = HTMLTranscoder.validate(tagName == null ? DATA_KEY : tagName);
+            writeLevelSpaces(writer, level);
+            writer.write("<tr><td>");
+            writer.write(tagName);
+            writer.write("</td><td>");
+            ((RawContent) object).writeTo(writer);
+            writer.write("</td></tr>");
+            writeEOL(writer);
+            return;
+        }
+        EntityAccessorPlan plan = EntityAccessorPlan.getPlan(object.getClass());
+        Kind kind = plan.getKind();
+        if (kind == Kind.SIMPLE) {
+            tagName = HTMLTranscoder.validate(tagName == null ? makeElementName(object.getClass()) : tagName);
+            writeValueRow(writer, tagName, object.toString(), level);
+        } else if (kind == Kind.ARRAY) {
+            tagName = HTMLTranscoder.validate(tagName == null ? "array" : tagName);
+            int length = Array.getLength(object);
+            writeLevelSpaces(writer, level);
+            writer.write("<tr><td width='3%'>");
+            writer.write(tagName);
+            writer.write(" type=array length=");
+            writer.write( Integer.toString(length) );
+            writeTableStart(writer, level);
+            String elementName = makeElementName(object.getClass().getComponentType());
+            for (int i = 0; i < length; i++) {
+                writeHTML(writer, Array.get(object, i), elementName, level+2, maxLevel);
+            }
+            writeTableEnd(writer, level);
+        } else if (kind == Kind.COLLECTION) {
+            tagName = HTMLTranscoder.validate(tagName == null ? "collection" : tagName);
+            Collection<Object> collection = (Collection<Object>) object;
+            writeLevelSpaces(writer, level);
+            writer.write("<tr><td width='3%'>");
+            writer.write(tagName);
+            writer.write(" type=collection size=");
+            writer.write( Integer.toString(collection.size()) );
+            writeTableStart(writer, level);
+            for (Object element : collection) {
+                String elementName = element == null ? ELEMENT : makeElementName(element.getClass());
+                writeHTML(writer, element, elementName, level+2, maxLevel);
+            }
+            writeTableEnd(writer, level);
+        } else {
+            tagName = HTMLTranscoder.validate(tagName == null ? makeElementName(object.getClass()) : tagName);
+            // special handling for certain object types
+            String special = TranscoderUtils.checkObjectSpecial(object);
+            if (special != null) {
+                if (! "".equals(special)) {
+                    writeValueRow(writer, tagName, special, level);
+                }
+            } else if ((maxLevel*2) <= level) {
+                // if the max level was reached then stop
+                writer.write("<tr><td width='3%'>");
+                writer.write(tagName);
+                writer.write("</td><td>MAX level reached (");
+                writer.write( Integer.toString(level) );
+                writer.write("):");
+                XMLStreamEncoder.writeEscaped(writer, object.toString());
+                writer.write("</td></tr>");
+                writeEOL(writer);
+            } else if (kind == Kind.OBJECT && ! plan.isAdaptable()) {
+                List<PropertyAccessor> accessors = plan.getSerializableProperties();
+                int max = accessors.size() + 1;
+                String[] names = new String[max];
+                Object[] values = new Object[max];
+                int size = 0;
+                if (includeClassField) {
+                    names[size] = ClassFields.FIELD_CLASS;
+                    values[size++] = object.getClass();
+                }
+                for (PropertyAccessor accessor : accessors) {
+                    try {
+                        values[size] = accessor.getValue(object);
+                    } catch (RuntimeException e) {
+                        // failed to get the value so we will skip this one
+                        continue;
+                    }
+                    names[size++] = accessor.getName();
+                }
+                writeLevelSpaces(writer, level);
+                writer.write("<tr><td width='3%'>");
+                writer.write(tagName);
+                writer.write(" type=bean size=");
+                writer.write( Integer.toString(size) );
+                writeTableStart(writer, level);
+                for (int i = 0; i < size; i++) {
+                    writeHTML(writer, values[i], names[i], level+2, maxLevel);
+                }
+                writeTableEnd(writer, level);
+            } else {
+                String xmlType = "bean";
+                Map<String, Object> map;
+                if (kind == Kind.MAP) {
+                    xmlType = "map";
+                    map = (Map<String, Object>) object;
+                } else {
+                    map = ReflectUtils.getInstance().getObjectValues(object, FieldsFilter.SERIALIZABLE, includeClassField);
+                }
+                writeLevelSpaces(writer, level);
+                writer.write("<tr><td width='3%'>");
+                writer.write(tagName);
+                writer.write(" type=");
+                writer.write(xmlType);
+                writer.write(" size=");
+                writer.write( Integer.toString(map.size()) );
+                writeTableStart(writer, level);
+                for (Entry<String, Object> entry : map.entrySet()) {
+                    Object key = entry.getKey();
+                    if (key != null) {
+                        writeHTML(writer, entry.getValue(), key.toString(), level+2, maxLevel);
+                    }
+                }
+                writeTableEnd(writer, level);
+            }
+        }
+    }
+
+    private void writeValueRow(Writer writer, String tagName, String value, int level) throws IOException {
+        writeLevelSpaces(writer, level);
+        writer.write("<tr><td>");
+        writer.write(tagName);
+        writer.write("</td><td>");
+        XMLStreamEncoder.writeEscaped(writer, value);
+        writer.write("</td></tr>");
+        writeEOL(writer);
+    }
+
+    private void writeTableStart(Writer writer, int level) throws IOException {
+        writer.write("</td><td>");
+        writeEOL(writer);
+        writeLevelSpaces(writer, level+1);
+        writer.write("<table border='1'>");
+        writeEOL(writer);
+    }
+
+    private void writeTableEnd(Writer writer, int level) throws IOException {
+        writeLevelSpaces(writer, level+1);
+        writer.write("</table>");
+        writeEOL(writer);
+        writeLevelSpaces(writer, level);
+        writer.write("</td></tr>");
+        writeEOL(writer);
+    }
+
+    private void writeEOL(Writer writer) throws IOException {
+        if (humanOutput) {
+            writer.write('\n');
+        }
+    }
+
+    private void writeLevelSpaces(Writer writer, int level) throws IOException {
+        if (humanOutput) {
+            for (int i = 0; i <= level; i++) {
+                writer.write(SPACES);
+            }
+        }
+    }
+
+    /**
+     * @return the element name to use for elements of this type (the same as the {@link HTMLTranscoder})
+     */
+    protected static String makeElementName(Class<?> type) {
+        String name = ELEMENT;
+        if (type != null 
+                && ! Map.class.isAssignableFrom(type)) {
+            name = type.getSimpleName();
+        }
+        return name;
+    }
+
+}
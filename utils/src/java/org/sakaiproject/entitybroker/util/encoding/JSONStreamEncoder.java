@@ -0,0 +1,325 @@
+/**
+ * $Id$
+ * $URL$
+ * JSONStreamEncoder.java - entity-broker - Oct 18, 2026 7:20:03 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.azeckoski.reflectutils.ClassFields;
+import org.azeckoski.reflectutils.ReflectUtils;
+import org.azeckoski.reflectutils.ClassFields.FieldsFilter;
+import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
+import org.azeckoski.reflectutils.transcoders.TranscoderUtils;
+import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.util.encoding.EncodingBuffers.BufferWriter;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.Kind;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.PropertyAccessor;
+
+/**
+ * Encodes objects into JSON by writing directly to a {@link Writer} as the object is traversed,
+ * no intermediate maps or strings are created for the beans being encoded and the
+ * introspection of bean classes is done only once per class (see {@link EntityAccessorPlan})<br/>
+ * The output is the same as the output from the {@link JSONTranscoder} with the same settings,
+ * decoding is handled by the {@link JSONTranscoder}
+ * 
+ * @author Sakai Software Development Team
+ */
+public class JSONStreamEncoder implements StreamingTranscoder {
+
+    private static final String FIELD_CLASS = ClassFields.FIELD_CLASS;
+    private static final String SPACES = "  ";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private boolean humanOutput = false;
+    private boolean includeNulls = true;
+    private boolean includeClassField = false;
+    private int maxLevel = 7;
+    private final EncodingBuffers buffers = new EncodingBuffers();
+    private final JSONTranscoder decoder;
+
+    public JSONStreamEncoder() {
+        decoder = new JSONTranscoder();
+    }
+
+    /**
+     * @param humanOutput if true then enable human readable output (includes indentation and line breaks)
+     * @param includeNulls if true then create output for null values
+     * @param includeClassField if true then include the value from the "getClass()" method as "class" when encoding beans
+     */
+    public JSONStreamEncoder(boolean humanOutput, boolean includeNulls, boolean includeClassField) {
+        this.humanOutput = humanOutput;
+        this.includeNulls = includeNulls;
+        this.includeClassField = includeClassField;
+        decoder = new JSONTranscoder(humanOutput, includeNulls, includeClassField);
+    }
+
+    /**
+     * @param maxLevel the number of objects to follow when traveling through the object,
+     * 0 means only the fields in the initial object, default is 7
+     */
+    public void setMaxLevel(int maxLevel) {
+        this.maxLevel = maxLevel;
+        decoder.setMaxLevel(maxLevel);
+    }
+
+    public String getHandledFormat() {
+        return Formats.JSON;
+    }
+
+    public String encode(Object object, String name, Map<String, Object> properties) {
+        return encode(object, name, properties, this.maxLevel);
+    }
+
+    public String encode(Object object, String name, Map<String, Object> properties, int maxDepth) {
+        BufferWriter writer = buffers.acquireWriter();
+        try {
+            encode(object, name, properties, maxDepth, writer);
+            return writer.toString();
+        } catch (IOException e) {
+            // should not be possible with a buffer writer
+            throw new IllegalStateException("Failure encoding JSON for object ("+object+"): " + e.getMessage(), e);
+        } finally {
+            buffers.release(writer);
+        }
+    }
+
+    public void encode(Object object, String name, Map<String, Object> properties, Writer writer) throws IOException {
+        encode(object, name, properties, this.maxLevel, writer);
+    }
+
+    public void encode(Object object, String name, Map<String, Object> properties, int maxDepth, Writer writer) throws IOException {
+        if (writer == null) {
+            throw new IllegalArgumentException("writer cannot be null");
+        }
+        writeJSON(writer, object, 0, maxDepth, properties);
+    }
+
+    public Map<String, Object> decode(String string) {
+        return decoder.decode(string);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void writeJSON(Writer writer, Object object, int level, int maxLevel, Map<String, Object> properties) throws IOException {
+        if (object == null) {
+            if (includeNulls) {
+                writer.write(JSONTranscoder.NULL);
+            }
+            return;
+        }
+        if (object instanceof RawContent) {
+            // already encoded
+            ((RawContent) object).writeTo(writer);
+            return;
+        }
+        EntityAccessorPlan plan = EntityAccessorPlan.getPlan(object.getClass());
+        Kind kind = plan.getKind();
+        if (kind == Kind.SIMPLE) {
+            if (object instanceof Date) {
+                writer.write( Long.toString(((Date) object).getTime()) );
+            } else if (object instanceof Number) {
+                writer.write( object.toString() );
+            } else if (object instanceof Boolean) {
+                writer.write( ((Boolean) object).booleanValue() ? JSONTranscoder.BOOLEAN_TRUE : JSONTranscoder.BOOLEAN_FALSE );
+            } else {
+                writeString(writer, object.toString());
+            }
+        } else if (kind == Kind.ARRAY) {
+            int length = Array.getLength(object);
+            writer.write(JSONTranscoder.ARRAY_BEG);
+            if (length > 0) {
+                for (int i = 0; i < length; i++) {
+                    if (i > 0) {
+                        writer.write(JSONTranscoder.JSON_SEP);
+                    }
+                    writeEOL(writer, level+1);
+                    writeJSON(writer, Array.get(object, i), level+1, maxLevel, properties);
+                }
+                writeEOL(writer, level);
+            }
+            writer.write(JSONTranscoder.ARRAY_END);
+        } else if (kind == Kind.COLLECTION) {
+            Collection<Object> collection = (Collection<Object>) object;
+            writer.write(JSONTranscoder.ARRAY_BEG);
+            if (! collection.isEmpty()) {
+                boolean first = true;
+                for (Object element : collection) {
+                    if (first) {
+                        first = false;
+                    } else {
+                        writer.write(JSONTranscoder.JSON_SEP);
+                    }
+                    writeEOL(writer, level+1);
+                    writeJSON(writer, element, level+1, maxLevel, properties);
+                }
+                writeEOL(writer, level);
+            }
+            writer.write(JSONTranscoder.ARRAY_END);
+        } else {
+            // special handling for certain object types
+            String special = TranscoderUtils.checkObjectSpecial(object);
+            if (special != null) {
+                if ("".equals(special)) {
+                    writer.write(JSONTranscoder.NULL);
+                } else {
+                    writeString(writer, special);
+                }
+            } else if (maxLevel <= level) {
+                writeString(writer, "MAX level reached (" + level + "):" + object.toString());
+            } else {
+                Map<String, Object> extra = (level == 0 && properties != null && ! properties.isEmpty()) ? properties : null;
+                writer.write(JSONTranscoder.OBJ_BEG);
+                boolean first = true;
+                if (kind == Kind.OBJECT && ! plan.isAdaptable()) {
+                    // properties replace the bean values and go at the end (same as putAll on the ordered map of values)
+                    if (includeClassField 
+                            && (extra == null || ! extra.containsKey(FIELD_CLASS))) {
+                        first = writeField(writer, first, FIELD_CLASS, object.getClass(), level, maxLevel, properties);
+                    }
+                    for (PropertyAccessor accessor : plan.getSerializableProperties()) {
+                        String key = accessor.getName();
+                        if (extra != null && extra.containsKey(key)) {
+                            continue;
+                        }
+                        Object value;
+                        try {
+                            value = accessor.getValue(object);
+                        } catch (RuntimeException e) {
+                            // failed to get the value so we will skip this one
+                            continue;
+                        }
+                        first = writeField(writer, first, key, value, level, maxLevel, properties);
+                    }
+                    if (extra != null) {
+                        for (Entry<String, Object> entry : extra.entrySet()) {
+                            if (entry.getKey() != null) {
+                                first = writeField(writer, first, entry.getKey(), entry.getValue(), level, maxLevel, properties);
+                            }
+                        }
+                    }
+                } else {
+                    Map<String, Object> map;
+                    if (kind == Kind.MAP) {
+                        map = (Map<String, Object>) object;
+                    } else {
+                        map = ReflectUtils.getInstance().getObjectValues(object, FieldsFilter.SERIALIZABLE, includeClassField);
+                    }
+                    for (Entry<String, Object> entry : map.entrySet()) {
+                        Object key = entry.getKey();
+                        if (key != null) {
+                            Object value = entry.getValue();
+                            if (extra != null && extra.containsKey(key)) {
+                                value = extra.get(key);
+                            }
+                            first = writeField(writer, first, key.toString(), value, level, maxLevel, properties);
+                        }
+                    }
+                    if (extra != null) {
+                        for (Entry<String, Object> entry : extra.entrySet()) {
+                            if (entry.getKey() != null 
+                                    && ! map.containsKey(entry.getKey())) {
+                                first = writeField(writer, first, entry.getKey(), entry.getValue(), level, maxLevel, properties);
+                            }
+                        }
+                    }
+                }
+                writeEOL(writer, level);
+                writer.write(JSONTranscoder.OBJ_END);
+            }
+        }
+    }
+
+    /**
+     * @return the new value for first (false if anything was written)
+     */
+    private boolean writeField(Writer writer, boolean first, String key, Object value, int level, int maxLevel, Map<String, Object> properties) throws IOException {
+        if (value == null && ! includeNulls) {
+            return first;
+        }
+        if (! first) {
+            writer.write(JSONTranscoder.JSON_SEP);
+        }
+        writeEOL(writer, level+1);
+        writer.write(JSONTranscoder.QUOT);
+        writer.write(key);
+        writer.write(JSONTranscoder.QUOT);
+        writer.write(JSONTranscoder.OBJ_SEP);
+        if (humanOutput) {
+            writer.write(JSONTranscoder.SPACE);
+        }
+        writeJSON(writer, value, level+1, maxLevel, properties);
+        return false;
+    }
+
+    private void writeEOL(Writer writer, int level) throws IOException {
+        if (humanOutput) {
+            writer.write(JSONTranscoder.EOL);
+            for (int i = 0; i < level; i++) {
+                writer.write(SPACES);
+            }
+        }
+    }
+
+    /**
+     * Writes a quoted string escaped in the same way as {@link JSONTranscoder#escapeForJSON(String)}
+     */
+    protected static void writeString(Writer writer, String string) throws IOException {
+        writer.write(JSONTranscoder.QUOT);
+        int len = string.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = string.charAt(i);
+            String escape = null;
+            switch (c) {
+            case '"': escape = "\\\""; break;
+            case '\\': escape = "\\\\"; break;
+            case '/': escape = "\\/"; break;
+            case '\b': escape = "\\b"; break;
+            case '\f': escape = "\\f"; break;
+            case '\n': escape = "\\n"; break;
+            case '\r': escape = "\\r"; break;
+            case '\t': escape = "\\t"; break;
+            default:
+                if (Character.isISOControl(c)) {
+                    escape = new String(new char[] {'\\', 'u', 
+                            HEX[(c >> 12) & 0xf], HEX[(c >> 8) & 0xf], HEX[(c >> 4) & 0xf], HEX[c & 0xf]});
+                }
+            }
+            if (escape != null) {
+                if (i > start) {
+                    writer.write(string, start, i - start);
+                }
+                writer.write(escape);
+                start = i + 1;
+            }
+        }
+        if (len > start) {
+            writer.write(string, start, len - start);
+        }
+        writer.write(JSONTranscoder.QUOT);
+    }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * $Id$
+ * $URL$
+ * RawContent.java - entity-broker - Oct 18, 2026 2:05:17 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A value which is already encoded in the output format, the {@link StreamingTranscoder}s
+ * write this into the output as is (it is not escaped or traversed) in place of the value,
+ * this allows content which is already encoded (like the response to a batched request)
+ * to be embedded in the output without decoding and encoding it again<br/>
+ * The content must be valid for the format being output, there is no checking
+ *
+ * @author Sakai Software Development Team
+ */
+public interface RawContent {
+
+    /**
+     * Write the encoded content into the output
+     * @param writer the writer which holds the output, this should not be flushed or closed
+     * @throws IOException if the writer fails
+     */
+    public void writeTo(Writer writer) throws IOException;
+
+}
@@ -0,0 +1,62 @@
+/**
+ * $Id$
+ * $URL$
+ * StreamingTranscoder.java - entity-broker - Oct 18, 2026 7:12:31 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+import org.azeckoski.reflectutils.transcoders.Transcoder;
+
+/**
+ * A transcoder which can write the encoded data directly to a {@link Writer} instead of
+ * building the complete encoded string in memory first, the output must be identical to the
+ * output from {@link #encode(Object, String, Map, int)}<br/>
+ * Values which are {@link RawContent} are already encoded and are written into the output as is
+ * 
+ * @author Sakai Software Development Team
+ */
+public interface StreamingTranscoder extends Transcoder {
+
+    /**
+     * @param object any java object (should not be null)
+     * @param name (optional) the name of the data, will be handled differently by the encoders (null for default: {@link #DATA_KEY})
+     * @param properties (optional) additional properties which will be added to the encoding
+     * as if it were a property of the bean or map being encoded, if the object being encoded is not a bean
+     * or a map then the properties are ignored
+     * @param writer the writer to place the encoded data into, this will not be flushed or closed
+     * @throws IOException if the writer fails
+     */
+    public void encode(Object object, String name, Map<String, Object> properties, Writer writer) throws IOException;
+
+    /**
+     * @param object any java object (should not be null)
+     * @param name (optional) the name of the data, will be handled differently by the encoders (null for default: {@link #DATA_KEY})
+     * @param properties (optional) additional properties which will be added to the encoding
+     * as if it were a property of the bean or map being encoded, if the object being encoded is not a bean
+     * or a map then the properties are ignored
+     * @param maxDepth the maximum traversal depth to use for this specific object
+     * @param writer the writer to place the encoded data into, this will not be flushed or closed
+     * @throws IOException if the writer fails
+     */
+    public void encode(Object object, String name, Map<String, Object> properties, int maxDepth, Writer writer) throws IOException;
+
+}
@@ -0,0 +1,460 @@
+/**
+ * $Id$
+ * $URL$
+ * XMLStreamEncoder.java - entity-broker - Oct 18, 2026 8:31:52 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.azeckoski.reflectutils.ConstructorUtils;
+import org.azeckoski.reflectutils.DateUtils;
+import org.azeckoski.reflectutils.ReflectUtils;
+import org.azeckoski.reflectutils.ClassFields.FieldsFilter;
+import org.azeckoski.reflectutils.transcoders.TranscoderUtils;
+import org.azeckoski.reflectutils.transcoders.XMLTranscoder;
+import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.util.encoding.EncodingBuffers.BufferWriter;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.Kind;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.PropertyAccessor;
+
+/**
+ * Encodes objects into XML by writing the elements directly to a {@link Writer} as the object is traversed,
+ * no DOM or intermediate strings are created and bean classes are only introspected once
+ * (see {@link EntityAccessorPlan})<br/>
+ * The output is the same as the output from the {@link XMLTranscoder} with the same settings
+ * (this never writes an XML declaration), decoding is handled by the {@link XMLTranscoder}
+ * 
+ * @author Sakai Software Development Team
+ */
+public class XMLStreamEncoder implements StreamingTranscoder {
+
+    private static final String SPACES = "  ";
+    private static final String ELEMENT = "element";
+
+    private boolean humanOutput = false;
+    private boolean includeNulls = true;
+    private boolean includeClass = false;
+    private boolean fixTags = true;
+    private int maxLevel = 7;
+    private final EncodingBuffers buffers = new EncodingBuffers();
+    private final XMLTranscoder decoder;
+
+    public XMLStreamEncoder() {
+        decoder = new XMLTranscoder();
+    }
+
+    /**
+     * @param humanOutput if true then enable human readable output (includes indentation and line breaks)
+     * @param includeNulls if true then create output tags for null values
+     * @param includeClassField if true then include the value from the "getClass()" method as "class" when encoding beans
+     * (this is ignored when encoding to XML, the same as the {@link XMLTranscoder})
+     * @param includeClass if true then add in class tips to the XML output
+     */
+    public XMLStreamEncoder(boolean humanOutput, boolean includeNulls, boolean includeClassField, boolean includeClass) {
+        this.humanOutput = humanOutput;
+        this.includeNulls = includeNulls;
+        this.includeClass = includeClass;
+        decoder = new XMLTranscoder(humanOutput, includeNulls, includeClassField, includeClass);
+    }
+
+    /**
+     * @param maxLevel the number of objects to follow when traveling through the object,
+     * 0 means only the fields in the initial object, default is 7
+     */
+    public void setMaxLevel(int maxLevel) {
+        this.maxLevel = maxLevel;
+        decoder.setMaxLevel(maxLevel);
+    }
+
+    /**
+     * @param fixTags if true then fix up any invalid xml tag names, else just throw exception
+     */
+    public void setFixTags(boolean fixTags) {
+        this.fixTags = fixTags;
+        decoder.setFixTags(fixTags);
+    }
+
+    public String getHandledFormat() {
+        return Formats.XML;
+    }
+
+    public String encode(Object object, String name, Map<String, Object> properties) {
+        return encode(object, name, properties, this.maxLevel);
+    }
+
+    public String encode(Object object, String name, Map<String, Object> properties, int maxDepth) {
+        BufferWriter writer = buffers.acquireWriter();
+        try {
+            encode(object, name, properties, maxDepth, writer);
+            return writer.toString();
+        } catch (IOException e) {
+            // should not be possible with a buffer writer
+            throw new IllegalStateException("Failure encoding XML for object ("+object+"): " + e.getMessage(), e);
+        } finally {
+            buffers.release(writer);
+        }
+    }
+
+    public void encode(Object object, String name, Map<String, Object> properties, Writer writer) throws IOException {
+        encode(object, name, properties, this.maxLevel, writer);
+    }
+
+    public void encode(Object object, String name, Map<String, Object> properties, int maxDepth, Writer writer) throws IOException {
+        if (writer == null) {
+            throw new IllegalArgumentException("writer cannot be null");
+        }
+        if (object != null) {
+            // only set the name if this is not null to preserve the "null" tag
+            if (name == null || "".equals(name)) {
+                name = DATA_KEY;
+            }
+        }
+        writeXML(writer, object, name, 0, maxDepth, properties);
+    }
+
+    public Map<String, Object> decode(String string) {
+        return decoder.decode(string);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void writeXML(Writer writer, Object object, String tagName, int level, int maxLevel, Map<String, Object> properties) throws IOException {
+        if (object == null) {
+            if (includeNulls) {
+                // nulls are empty tags always
+                tagName = validate(tagName == null ? "null" : tagName);
+                writeLevelSpaces(writer, level);
+                writer.write('<');
+                writer.write(tagName);
+                writer.write("/>");
+                writeEOL(writer);
+            }
+            return;
+        }
+        if (object instanceof RawContent) {
+            // already encoded so it goes inside the tag as is
+            tagName = validate(tagName == null ? DATA_KEY : tagName);
+            writeLevelSpaces(writer, level);
+            writer.write('<');
+            writer.write(tagName);
+            writer.write('>');
+            writeEOL(writer);
+            ((RawContent) object).writeTo(writer);
+            writeEndTag(writer, tagName);
+            return;
+        }
+        EntityAccessorPlan plan = EntityAccessorPlan.getPlan(object.getClass());
+        Kind kind = plan.getKind();
+        if (kind == Kind.SIMPLE) {
+            Class<?> type = ConstructorUtils.getWrapper(object.getClass());
+            tagName = validate(tagName == null ? makeElementName(type) : tagName);
+            writeLevelSpaces(writer, level);
+            writer.write('<');
+            writer.write(tagName);
+            if (object instanceof Date) {
+                Date d = (Date) object;
+                writer.write(" type='date' date='");
+                writer.write( DateUtils.makeDateISO8601(d) );
+                writer.write("'>");
+                writer.write( Long.toString(d.getTime()) );
+            } else if (object instanceof Number) {
+                writer.write(" type='number'");
+                if (includeClass) {
+                    writeClassName(writer, type);
+                }
+                writer.write('>');
+                writer.write( object.toString() );
+            } else if (object instanceof Boolean) {
+                writer.write(" type='boolean'>");
+                writer.write( object.toString() );
+            } else {
+                writer.write('>');
+                writeEscaped(writer, object.toString());
+            }
+            writeEndTag(writer, tagName);
+        } else if (kind == Kind.ARRAY) {
+            tagName = validate(tagName == null ? "array" : tagName);
+            int length = Array.getLength(object);
+            Class<?> elementType = object.getClass().getComponentType();
+            writeLevelSpaces(writer, level);
+            writer.write('<');
+            writer.write(tagName);
+            writer.write(" type='array' length='");
+            writer.write( Integer.toString(length) );
+            writer.write('\'');
+            if (includeClass) {
+                writer.write(" component='");
+                writer.write( ConstructorUtils.getTypeFromInnerCollection(elementType).getName() );
+                writer.write('\'');
+            }
+            writer.write('>');
+            writeEOL(writer);
+            String elementName = makeElementName(elementType);
+            for (int i = 0; i < length; i++) {
+                writeXML(writer, Array.get(object, i), elementName, level+1, maxLevel, properties);
+            }
+            writeLevelSpaces(writer, level);
+            writeEndTag(writer, tagName);
+        } else if (kind == Kind.COLLECTION) {
+            tagName = validate(tagName == null ? "collection" : tagName);
+            Collection<Object> collection = (Collection<Object>) object;
+            writeLevelSpaces(writer, level);
+            writer.write('<');
+            writer.write(tagName);
+            writer.write(" type='collection' size='");
+            writer.write( Integer.toString(collection.size()) );
+            writer.write('\'');
+            if (includeClass) {
+                writeClassName(writer, ConstructorUtils.getTypeFromInnerCollection(ConstructorUtils.getWrapper(object.getClass())));
+            }
+            writer.write('>');
+            writeEOL(writer);
+            for (Object element : collection) {
+                String elementName = element == null ? ELEMENT : makeElementName(element.getClass());
+                writeXML(writer, element, elementName, level+1, maxLevel, properties);
+            }
+            writeLevelSpaces(writer, level);
+            writeEndTag(writer, tagName);
+        } else {
+            Class<?> type = ConstructorUtils.getWrapper(object.getClass());
+            tagName = validate(tagName == null ? makeElementName(type) : tagName);
+            // special handling for certain object types
+            String special = TranscoderUtils.checkObjectSpecial(object);
+            if (special != null) {
+                if (! "".equals(special)) {
+                    writeLevelSpaces(writer, level);
+                    writer.write('<');
+                    writer.write(tagName);
+                    writer.write('>');
+                    writeEscaped(writer, special);
+                    writeEndTag(writer, tagName);
+                }
+            } else if (maxLevel <= level) {
+                // if the max level was reached then stop
+                writer.write('<');
+                writer.write(tagName);
+                writer.write(">MAX level reached (");
+                writer.write( Integer.toString(level) );
+                writer.write("):");
+                writeEscaped(writer, object.toString());
+                writeEndTag(writer, tagName);
+            } else {
+                Map<String, Object> extra = (level == 0 && properties != null && ! properties.isEmpty()) ? properties : null;
+                String xmlType;
+                String[] names;
+                Object[] values;
+                int size;
+                if (kind == Kind.OBJECT && ! plan.isAdaptable()) {
+                    // properties replace the bean values and go at the end (same as putAll on the ordered map of values)
+                    xmlType = "bean";
+                    List<PropertyAccessor> accessors = plan.getSerializableProperties();
+                    int max = accessors.size() + (extra == null ? 0 : extra.size());
+                    names = new String[max];
+                    values = new Object[max];
+                    size = 0;
+                    for (PropertyAccessor accessor : accessors) {
+                        if (extra != null && extra.containsKey(accessor.getName())) {
+                            continue;
+                        }
+                        try {
+                            values[size] = accessor.getValue(object);
+                        } catch (RuntimeException e) {
+                            // failed to get the value so we will skip this one
+                            continue;
+                        }
+                        names[size++] = accessor.getName();
+                    }
+                    if (extra != null) {
+                        for (Entry<String, Object> entry : extra.entrySet()) {
+                            names[size] = entry.getKey();
+                            values[size++] = entry.getValue();
+                        }
+                    }
+                } else {
+                    Map<String, Object> map;
+                    if (kind == Kind.MAP) {
+                        xmlType = "map";
+                        map = (Map<String, Object>) object;
+                    } else {
+                        xmlType = "bean";
+                        map = ReflectUtils.getInstance().getObjectValues(object, FieldsFilter.SERIALIZABLE, false);
+                    }
+                    int max = map.size() + (extra == null ? 0 : extra.size());
+                    names = new String[max];
+                    values = new Object[max];
+                    size = 0;
+                    for (Entry<String, Object> entry : map.entrySet()) {
+                        Object key = entry.getKey();
+                        names[size] = key == null ? null : key.toString();
+                        values[size++] = (extra != null && key != null && extra.containsKey(key)) ? extra.get(key) : entry.getValue();
+                    }
+                    if (extra != null) {
+                        for (Entry<String, Object> entry : extra.entrySet()) {
+                            if (! map.containsKey(entry.getKey())) {
+                                names[size] = entry.getKey();
+                                values[size++] = entry.getValue();
+                            }
+                        }
+                    }
+                }
+                writeLevelSpaces(writer, level);
+                writer.write('<');
+                writer.write(tagName);
+                writer.write(" type='");
+                writer.write(xmlType);
+                writer.write("' size='");
+                writer.write( Integer.toString(size) );
+                writer.write('\'');
+                if (includeClass) {
+                    writeClassName(writer, ConstructorUtils.getTypeFromInnerCollection(type));
+                }
+                writer.write('>');
+                writeEOL(writer);
+                for (int i = 0; i < size; i++) {
+                    if (names[i] != null) {
+                        writeXML(writer, values[i], names[i], level+1, maxLevel, properties);
+                    }
+                }
+                writeLevelSpaces(writer, level);
+                writeEndTag(writer, tagName);
+            }
+        }
+    }
+
+    private void writeEndTag(Writer writer, String tagName) throws IOException {
+        writer.write("</");
+        writer.write(tagName);
+        writer.write('>');
+        writeEOL(writer);
+    }
+
+    private void writeClassName(Writer writer, Class<?> type) throws IOException {
+        if (type != null) {
+            writer.write(" class='");
+            writer.write(type.getName());
+            writer.write('\'');
+        }
+    }
+
+    private void writeEOL(Writer writer) throws IOException {
+        if (humanOutput) {
+            writer.write('\n');
+        }
+    }
+
+    private void writeLevelSpaces(Writer writer, int level) throws IOException {
+        if (humanOutput) {
+            for (int i = 0; i < level; i++) {
+                writer.write(SPACES);
+            }
+        }
+    }
+
+    /**
+     * @return the tag name (the same as {@link XMLTranscoder#validate(String, boolean)}),
+     * names which are already valid are returned without creating a new string
+     */
+    protected String validate(String name) {
+        if (isValidName(name)) {
+            return name;
+        }
+        return XMLTranscoder.validate(name, fixTags);
+    }
+
+    private static boolean isValidName(String name) {
+        int length = name.length();
+        if (length == 0) {
+            return false;
+        }
+        char first = name.charAt(0);
+        if (! Character.isLetter(first) && '_' != first && ':' != first) {
+            return false;
+        }
+        if (('x' == first || 'X' == first) 
+                && name.regionMatches(true, 0, "xml", 0, 3)) {
+            return false;
+        }
+        for (int i = 1; i < length; i++) {
+            char c = name.charAt(i);
+            if (! Character.isLetterOrDigit(c) && ':' != c && '-' != c && '.' != c && '_' != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the element name to use for elements of this type (the same as the {@link XMLTranscoder})
+     */
+    protected static String makeElementName(Class<?> type) {
+        String name = ELEMENT;
+        if (type != null 
+                && ! Map.class.isAssignableFrom(type)) {
+            String simpleName = type.getSimpleName().toLowerCase();
+            // strip off the [] for arrays
+            int index = simpleName.indexOf('[');
+            if (index == 0) {
+                // weird to have [] at the beginning so just use default
+            } else if (index > 0) {
+                name = simpleName.substring(0, index);
+            } else {
+                name = simpleName;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Writes a string escaped for XML (the same as {@link XMLTranscoder#escapeForXML(String)}),
+     * &amp; &lt; &gt; and &quot; are replaced with entities
+     */
+    protected static void writeEscaped(Writer writer, String string) throws IOException {
+        int len = string.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            String escape;
+            switch (string.charAt(i)) {
+            case '&': escape = "&amp;"; break;
+            case '<': escape = "&lt;"; break;
+            case '>': escape = "&gt;"; break;
+            case '"': escape = "&quot;"; break;
+            default: escape = null;
+            }
+            if (escape != null) {
+                if (i > start) {
+                    writer.write(string, start, i - start);
+                }
+                writer.write(escape);
+                start = i + 1;
+            }
+        }
+        if (len > start) {
+            writer.write(string, start, len - start);
+        }
+    }
+
+}
@@ -83,7 +83,8 @@ public class ExternalIntegrationProviderMock implements ExternalIntegrationProvi
 
     @SuppressWarnings("unchecked")
     public <T> T getConfigurationSetting(String settingName, T defaultValue) {
-        if ("entitybroker.batch.enable".equals(settingName)) {
+        if ("entitybroker.batch.enable".equals(settingName)
+                || "entitybroker.cache.fragment.enable".equals(settingName)) {
             return ((T) Boolean.TRUE);
         }
         return defaultValue;
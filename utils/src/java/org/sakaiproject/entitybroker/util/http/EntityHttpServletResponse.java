@@ -20,11 +20,14 @@
 
 package org.sakaiproject.entitybroker.util.http;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -34,6 +37,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
@@ -56,7 +61,7 @@ public class EntityHttpServletResponse implements HttpServletResponse {
      * Create a default response that is valid for testing
      */
     public EntityHttpServletResponse() {
-        this.content = new ByteArrayOutputStream(512);
+        this.content = new ContentOutputStream(512);
         this.outputStream = new EntityServletOutputStream(content);
         this.setLocale( Locale.getDefault() );
     }
@@ -67,7 +72,7 @@ public class EntityHttpServletResponse implements HttpServletResponse {
      * @param response any valid response, cannot be null
      */
     public EntityHttpServletResponse(HttpServletResponse response) {
-        this.content = new ByteArrayOutputStream(512);
+        this.content = new ContentOutputStream(512);
         this.outputStream = new EntityServletOutputStream(content);
         if (response == null) {
             throw new IllegalArgumentException("response to copy cannot be null");
@@ -86,7 +91,7 @@ public class EntityHttpServletResponse implements HttpServletResponse {
     public Vector<Cookie> cookies = new Vector<Cookie>();
 
     private boolean contentAccessed = false; // for debugging and tracking
-    private final ByteArrayOutputStream content;
+    private final ContentOutputStream content;
     private final ServletOutputStream outputStream;
 
     private boolean outputStreamAccessAllowed = true;
@@ -213,6 +218,22 @@ public class EntityHttpServletResponse implements HttpServletResponse {
         return this.content.toByteArray();
     }
 
+    /**
+     * @return a read only view of the content (decompressed if it was compressed) OR an empty buffer if there is no content,
+     * this does not copy the content (unless it has to be decompressed) so it is cheaper than {@link #getContentAsByteArray()}
+     * for large content but it must not be used after the response is reset or written to again
+     */
+    public ByteBuffer getContentAsByteBuffer() {
+        if (! this.contentAccessed) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        flushBuffer();
+        if (isContentCompressed()) {
+            return ByteBuffer.wrap(getDecodedContent()).asReadOnlyBuffer();
+        }
+        return this.content.toByteBuffer();
+    }
+
     /**
      * @return a string representing the content of this response OR "" if there is no content
      * @throws RuntimeException if the encoding fails and the content cannot be retrieved
@@ -223,13 +244,53 @@ public class EntityHttpServletResponse implements HttpServletResponse {
         }
         flushBuffer();
         try {
-            String content = (this.characterEncoding != null) ? this.content.toString(this.characterEncoding) : this.content.toString();
+            String content;
+            if (isContentCompressed()) {
+                byte[] decoded = getDecodedContent();
+                content = (this.characterEncoding != null) ? new String(decoded, this.characterEncoding) : new String(decoded);
+            } else {
+                content = (this.characterEncoding != null) ? this.content.toString(this.characterEncoding) : this.content.toString();
+            }
             return content;
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException("Failure during encoding of the string in this response: " + this.characterEncoding + ":" + e.getMessage(), e);
         }
     }
 
+    /**
+     * @return true if the content was compressed (Content-Encoding of gzip or deflate),
+     * {@link #getContentAsByteArray()} returns the compressed bytes in this case while
+     * {@link #getContentAsString()} returns the decompressed content
+     */
+    public boolean isContentCompressed() {
+        String contentEncoding = getHeader(LazyResponseOutputStream.HEADER_CONTENT_ENCODING);
+        return LazyResponseOutputStream.ENCODING_GZIP.equals(contentEncoding) 
+            || LazyResponseOutputStream.ENCODING_DEFLATE.equals(contentEncoding);
+    }
+
+    /**
+     * @return the decompressed content bytes
+     */
+    private byte[] getDecodedContent() {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(this.content.size() * 4);
+        InputStream input = new ByteArrayInputStream(this.content.toByteArray());
+        try {
+            if (LazyResponseOutputStream.ENCODING_GZIP.equals(getHeader(LazyResponseOutputStream.HEADER_CONTENT_ENCODING))) {
+                input = new GZIPInputStream(input);
+            } else {
+                input = new InflaterInputStream(input);
+            }
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = input.read(buf)) != -1) {
+                decoded.write(buf, 0, read);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failure decompressing the content in this response: " + e.getMessage(), e);
+        }
+        return decoded.toByteArray();
+    }
+
     /* (non-Javadoc)
      * @see javax.servlet.ServletResponse#setContentLength(int)
      */
@@ -696,4 +757,16 @@ public class EntityHttpServletResponse implements HttpServletResponse {
         return this.errorMessage;
     }
 
+    /**
+     * Holds the content and allows it to be viewed without copying it
+     */
+    private static class ContentOutputStream extends ByteArrayOutputStream {
+        public ContentOutputStream(int size) {
+            super(size);
+        }
+        public synchronized ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count).asReadOnlyBuffer();
+        }
+    }
+
 }
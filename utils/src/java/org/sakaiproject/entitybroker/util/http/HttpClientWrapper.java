@@ -23,6 +23,7 @@ package org.sakaiproject.entitybroker.util.http;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 
 /**
  * Allows us to cleanly wrap an httpclient object without exposing the actual object class
@@ -37,6 +38,15 @@ public class HttpClientWrapper {
     }
     private MultiThreadedHttpConnectionManager connectionManager;
     private HttpState initialHttpState;
+    private IdleConnectionTimeoutThread idleConnectionThread;
+    private boolean statePerRequest = false;
+    /**
+     * @return true if this client is shared (pooled) so every request must use its own state,
+     * the client state is never used or changed by requests in that case
+     */
+    public boolean isStatePerRequest() {
+        return statePerRequest;
+    }
     /**
      * This is meant for system use so you should not be constructing this,
      * use the {@link HttpRESTUtils#makeReusableHttpClient(boolean, int, javax.servlet.http.Cookie[])} instead
@@ -49,6 +59,20 @@ public class HttpClientWrapper {
         this.connectionManager = multiThreadedHttpConnectionManager;
         this.initialHttpState = initialHttpState;
     }
+    /**
+     * This is meant for system use so you should not be constructing this,
+     * use the {@link HttpRESTUtils#makePooledHttpClient(int, int, int, int, int)} instead
+     */
+    public HttpClientWrapper(HttpClient httpClient, 
+            MultiThreadedHttpConnectionManager multiThreadedHttpConnectionManager,
+            HttpState initialHttpState, IdleConnectionTimeoutThread idleConnectionThread) {
+        super();
+        this.httpClient = httpClient;
+        this.connectionManager = multiThreadedHttpConnectionManager;
+        this.initialHttpState = initialHttpState;
+        this.idleConnectionThread = idleConnectionThread;
+        this.statePerRequest = true;
+    }
     /**
      * Resets the http client state between requests,
      * this is not necessarily required but might be a good idea
@@ -64,6 +88,10 @@ public class HttpClientWrapper {
      * cleanup and shutdown the http client
      */
     public void shutdown() {
+        if (this.idleConnectionThread != null) {
+            this.idleConnectionThread.shutdown();
+            this.idleConnectionThread = null;
+        }
         if (this.connectionManager != null) {
             this.connectionManager.shutdown();
         }
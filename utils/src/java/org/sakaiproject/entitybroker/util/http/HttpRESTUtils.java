@@ -51,8 +51,10 @@ import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 
 
 /**
@@ -174,8 +176,35 @@ public class HttpRESTUtils {
      * @return an object representing the response, includes data about the response
      * @throws HttpRequestException if the request cannot be processed for some reason (this is unrecoverable)
      */
-    @SuppressWarnings("deprecation")
     public static HttpResponse fireRequest(HttpClientWrapper httpClientWrapper, String URL, Method method, Map<String, String> params, Map<String, String> headers, Object data, boolean guaranteeSSL) {
+        return fireRequest(httpClientWrapper, URL, method, params, headers, data, guaranteeSSL, null);
+    }
+
+    /**
+     * Fire off a request to a URL using the specified method but reuse the client for efficiency,
+     * include optional params, data, and cookies in the request,
+     * the response data will be returned in the object if the request can be carried out<br/>
+     * The cookies are only sent with this request (they do not change the state of the client)
+     * so this is the way to use a client which is shared by requests from different users
+     * (e.g. one from {@link #makePooledHttpClient(int, int, int, int, int)})
+     * 
+     * @param httpClientWrapper (optional) allows the http client to be reused for efficiency,
+     * if null a new one will be created each time
+     * @param URL the url to send the request to (absolute or relative, can include query params)
+     * @param method the method to use (e.g. GET, POST, etc.)
+     * @param params (optional) params to send along with the request, will be encoded in the query string or in the body depending on the method
+     * @param headers (optional) headers to send along with the request, will be encoded in the headers
+     * @param data (optional) data to send along in the body of the request, this only works for POST and PUT requests, ignored for the other types
+     * @param guaranteeSSL if this is true then the request is sent in a mode which will allow self signed certs to work,
+     * otherwise https requests will fail if the certs cannot be centrally verified
+     * @param cookies (optional) cookies to send along with this request only (to the host in the URL
+     * so only pass cookies which belong to that host), if null then the cookies in the client state are used 
+     * (pooled clients never use the client state)
+     * @return an object representing the response, includes data about the response
+     * @throws HttpRequestException if the request cannot be processed for some reason (this is unrecoverable)
+     */
+    @SuppressWarnings("deprecation")
+    public static HttpResponse fireRequest(HttpClientWrapper httpClientWrapper, String URL, Method method, Map<String, String> params, Map<String, String> headers, Object data, boolean guaranteeSSL, Cookie[] cookies) {
         if (guaranteeSSL) {
             // added this to attempt to force the SSL self signed certs to work
             Protocol myhttps = new Protocol("https", new EasySSLProtocolSocketFactory(), 443);
@@ -241,7 +270,17 @@ public class HttpRESTUtils {
 
         HttpResponse response = null;
         try {
-            int responseCode = httpClientWrapper.getHttpClient().executeMethod(httpMethod);
+            int responseCode;
+            if (cookies == null && ! httpClientWrapper.isStatePerRequest()) {
+                responseCode = httpClientWrapper.getHttpClient().executeMethod(httpMethod);
+            } else {
+                // the state only applies to this request so the client is not changed
+                HttpState state = new HttpState();
+                if (cookies != null) {
+                    addCookies(state, cookies, httpMethod.getURI().getHost());
+                }
+                responseCode = httpClientWrapper.getHttpClient().executeMethod(null, httpMethod, state);
+            }
             response = new HttpResponse(responseCode);
             
             // Avoid DOS because of large responses using up all memory in the system - https://jira.sakaiproject.org/browse/SAK-20405
@@ -486,6 +525,67 @@ public class HttpRESTUtils {
         return wrapper;
     }
 
+    /**
+     * Generates a pooled http client wrapper which can be shared by many threads (and users) for a long time,
+     * connections are kept open and reused until they are idle for too long,
+     * the cookies for each request should be passed to {@link #fireRequest(HttpClientWrapper, String, Method, Map, Map, Object, boolean, Cookie[])}
+     * and the client must be shutdown ({@link HttpClientWrapper#shutdown()}) when it is no longer needed
+     * 
+     * @param maxConnectionsPerHost the maximum number of open connections to a single host
+     * @param maxTotalConnections the maximum number of open connections overall
+     * @param idleConnectionTimeout connections which are idle for this long (ms) are closed, 0 or less to keep them open
+     * @param connectTimeout the time (ms) to wait for a connection to be made, 0 or less for no limit
+     * @param readTimeout the time (ms) to wait for data when reading the response, 0 or less for no limit
+     * @return the pooled http client wrapper
+     */
+    public static HttpClientWrapper makePooledHttpClient(int maxConnectionsPerHost, int maxTotalConnections, 
+            int idleConnectionTimeout, int connectTimeout, int readTimeout) {
+        if (maxConnectionsPerHost <= 0 || maxTotalConnections <= 0) {
+            throw new IllegalArgumentException("maxConnectionsPerHost ("+maxConnectionsPerHost+") and maxTotalConnections ("+maxTotalConnections+") must be greater than 0");
+        }
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams managerParams = connectionManager.getParams();
+        managerParams.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        managerParams.setMaxTotalConnections(maxTotalConnections);
+        managerParams.setConnectionTimeout(connectTimeout > 0 ? connectTimeout : 0);
+        managerParams.setSoTimeout(readTimeout > 0 ? readTimeout : 0);
+        managerParams.setStaleCheckingEnabled(true);
+        HttpClient client = new HttpClient(connectionManager);
+        // set some defaults
+        client.getParams().setParameter(HttpMethodParams.USER_AGENT, "Mozilla/5.0 (Windows; U; Windows NT 5.1; en-US; rv:1.9.0.1) Gecko/2008070208 Firefox/3.0.1");
+        client.getParams().setCookiePolicy(CookiePolicy.BROWSER_COMPATIBILITY);
+        client.getParams().setBooleanParameter(HttpMethodParams.SINGLE_COOKIE_HEADER, true);
+        IdleConnectionTimeoutThread idleThread = null;
+        if (idleConnectionTimeout > 0) {
+            idleThread = new IdleConnectionTimeoutThread();
+            idleThread.setName("entitybroker-http-idle");
+            idleThread.setConnectionTimeout(idleConnectionTimeout);
+            idleThread.setTimeoutInterval(idleConnectionTimeout < 5000 ? idleConnectionTimeout : 5000);
+            idleThread.addConnectionManager(connectionManager);
+            idleThread.start();
+        }
+        return new HttpClientWrapper(client, connectionManager, null, idleThread);
+    }
+
+    /**
+     * Adds servlet cookies into the http client state,
+     * request cookies do not have a domain or path so they are set for the host being requested,
+     * the caller must only pass cookies which belong to that host
+     * @param state the http client state
+     * @param cookies the servlet cookies
+     * @param host the host the request is going to
+     */
+    private static void addCookies(HttpState state, Cookie[] cookies, String host) {
+        for (int i = 0; i < cookies.length; i++) {
+            Cookie c = cookies[i];
+            String domain = c.getDomain() != null ? c.getDomain() : host;
+            String path = c.getPath() != null ? c.getPath() : "/";
+            org.apache.commons.httpclient.Cookie mycookie = 
+                new org.apache.commons.httpclient.Cookie(domain, c.getName(), c.getValue(), path, c.getMaxAge(), c.getSecure());
+            state.addCookie(mycookie);
+        }
+    }
+
     /**
      * Encode a date into an http date string
      * @param date the date
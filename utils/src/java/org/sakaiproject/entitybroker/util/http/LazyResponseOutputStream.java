@@ -20,8 +20,11 @@
 
 package org.sakaiproject.entitybroker.util.http;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -29,6 +32,9 @@ import javax.servlet.http.HttpServletResponse;
  * This will get the response to get an outputstream from but will not actually get it from the response
  * until someone attempts to use the outputstream<br/>
  * This is horrible but required because of the way Sakai tool forwarding works<br/>
+ * This can also compress the output (gzip or deflate), in that case the output is held until it reaches
+ * the threshold size and is only compressed if it gets that big, {@link #finish()} must be called
+ * once all the output is written when compressing<br/>
  * 
  * @author Aaron Zeckoski (azeckoski @ gmail.com)
  */
@@ -50,6 +56,23 @@ public class LazyResponseOutputStream extends OutputStream {
         return stream;
     }
 
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    public static final String ENCODING_GZIP = "gzip";
+    public static final String ENCODING_DEFLATE = "deflate";
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    /**
+     * the content encoding to compress with (gzip or deflate) OR null if not compressing
+     */
+    private String contentEncoding = null;
+    private int threshold = DEFAULT_COMPRESSION_THRESHOLD;
+    /**
+     * holds the output until the threshold is reached (only when compressing)
+     */
+    private ByteArrayOutputStream pending = null;
+    private boolean compressed = false;
+    private boolean finished = false;
+
     /**
      * @param response the response that will be used to get the outputstream,
      * this will die if someone has tried to get the writer out of this
@@ -60,24 +83,121 @@ public class LazyResponseOutputStream extends OutputStream {
         }
         this.response = response;
     }
+
+    /**
+     * @param response the response that will be used to get the outputstream,
+     * this will die if someone has tried to get the writer out of this
+     * @param contentEncoding (optional) the content encoding to compress the output with ({@link #ENCODING_GZIP} or {@link #ENCODING_DEFLATE}),
+     * if null then the output is not compressed
+     * @param threshold the output is only compressed if it is at least this many bytes
+     */
+    public LazyResponseOutputStream(HttpServletResponse response, String contentEncoding, int threshold) {
+        this(response);
+        if (contentEncoding != null 
+                && ! ENCODING_GZIP.equals(contentEncoding) 
+                && ! ENCODING_DEFLATE.equals(contentEncoding)) {
+            throw new IllegalArgumentException("contentEncoding must be null, "+ENCODING_GZIP+" or "+ENCODING_DEFLATE+": " + contentEncoding);
+        }
+        this.contentEncoding = contentEncoding;
+        this.threshold = threshold;
+        if (contentEncoding != null) {
+            pending = new ByteArrayOutputStream(threshold > 0 && threshold < 8192 ? threshold : 8192);
+        }
+    }
+
+    /**
+     * @return the content encoding that the output will be compressed with (if it is over the threshold) OR null if it is not being compressed
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @return true if the output was actually compressed (it was larger than the threshold)
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Switches over to the compressed output stream, sets the Content-Encoding header
+     * and writes out anything held so far
+     */
+    private void startCompression() throws IOException {
+        response.setHeader(HEADER_CONTENT_ENCODING, contentEncoding);
+        OutputStream raw = getStream();
+        if (ENCODING_GZIP.equals(contentEncoding)) {
+            stream = new GZIPOutputStream(raw, 8192);
+        } else {
+            stream = new DeflaterOutputStream(raw);
+        }
+        compressed = true;
+        ByteArrayOutputStream held = pending;
+        pending = null;
+        held.writeTo(stream);
+    }
+
+    /**
+     * Completes the output, this writes out any held output (uncompressed if it is under the threshold)
+     * and finishes the compressed stream but does not close the response stream,
+     * this does nothing if the output is not being compressed
+     * @throws IOException if the output fails
+     */
+    public void finish() throws IOException {
+        if (finished || contentEncoding == null) {
+            return;
+        }
+        finished = true;
+        if (pending != null) {
+            // under the threshold so it goes out as is
+            ByteArrayOutputStream held = pending;
+            pending = null;
+            if (held.size() > 0) {
+                response.setContentLength(held.size());
+                held.writeTo(getStream());
+            }
+        } else if (compressed) {
+            ((DeflaterOutputStream) stream).finish();
+        }
+    }
+
     @Override
     public void write(byte[] b) throws IOException {
-        getStream().write(b);
+        write(b, 0, b.length);
     }
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        getStream().write(b, off, len);
+        if (pending != null) {
+            pending.write(b, off, len);
+            if (pending.size() >= threshold) {
+                startCompression();
+            }
+        } else {
+            getStream().write(b, off, len);
+        }
     }
     @Override
     public void write(int b) throws IOException {
-        getStream().write(b);
+        if (pending != null) {
+            pending.write(b);
+            if (pending.size() >= threshold) {
+                startCompression();
+            }
+        } else {
+            getStream().write(b);
+        }
     }
     @Override
     public void close() throws IOException {
+        finish();
         getStream().close();
     }
     @Override
     public void flush() throws IOException {
+        if (pending != null) {
+            // still deciding if this will be compressed so nothing can go out yet
+            return;
+        }
         getStream().flush();
     }
     @Override
@@ -0,0 +1,480 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityAccessorPlan.java - entity-broker - Oct 18, 2026 7:05:44 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.reflect;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.azeckoski.reflectutils.ClassFields;
+import org.azeckoski.reflectutils.ClassProperty;
+import org.azeckoski.reflectutils.ConstructorUtils;
+import org.azeckoski.reflectutils.ReflectUtils;
+import org.azeckoski.reflectutils.ClassFields.FieldsFilter;
+import org.azeckoski.reflectutils.refmap.ReferenceMap;
+import org.azeckoski.reflectutils.refmap.ReferenceType;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityId;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityLastModified;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityOwner;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityTitle;
+
+/**
+ * Holds the results of introspecting a class (what kind of class it is and direct references to
+ * the getters for its serializable properties) so that objects of this class can be read
+ * repeatedly without any further reflection lookups<br/>
+ * Plans are created once per class and cached, use {@link #getPlan(Class)} to get them<br/>
+ * The serializable properties are the same (and in the same order) as the ones returned by
+ * {@link ReflectUtils#getObjectValues(Object, FieldsFilter, boolean)} with {@link FieldsFilter#SERIALIZABLE},
+ * the writable properties are the ones found with {@link FieldsFilter#WRITEABLE} and are used when
+ * binding input data onto objects of this class<br/>
+ * The entity properties (id, title, last modified, owner) are found using the entity annotations
+ * ({@link EntityId}, {@link EntityTitle}, {@link EntityLastModified}, {@link EntityOwner}) first
+ * and then the conventional field names, the same way as
+ * {@link ReflectUtils#getFieldValue(Object, String, Class)} finds them
+ * 
+ * @author Sakai Software Development Team
+ */
+public class EntityAccessorPlan {
+
+    /**
+     * The kinds of classes which are handled differently when they are read or encoded
+     */
+    public static enum Kind {
+        /** simple values (String, numbers, Date, Boolean, etc.) */
+        SIMPLE, 
+        /** arrays */
+        ARRAY, 
+        /** collections (List, Set, etc.) */
+        COLLECTION, 
+        /** maps */
+        MAP, 
+        /** everything else (beans and other objects) */
+        OBJECT
+    }
+
+    private static final String DYNABEAN_CLASS = "org.apache.commons.beanutils.DynaBean";
+
+    // weak keys so plans do not hold onto classes from webapps which are unloaded
+    private static Map<Class<?>, EntityAccessorPlan> plans = new ReferenceMap<Class<?>, EntityAccessorPlan>(ReferenceType.WEAK, ReferenceType.SOFT);
+
+    /**
+     * Get the accessor plan for a class, this will be created the first time a class is seen
+     * @param type any class
+     * @return the plan for this class
+     */
+    public static EntityAccessorPlan getPlan(Class<?> type) {
+        if (type == null) {
+            throw new IllegalArgumentException("type cannot be null");
+        }
+        EntityAccessorPlan plan = plans.get(type);
+        if (plan == null) {
+            plan = new EntityAccessorPlan(type);
+            plans.put(type, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Removes all the cached plans
+     */
+    public static void clearPlans() {
+        plans.clear();
+    }
+
+    private final Class<?> type;
+    private final Kind kind;
+    private final boolean adaptable;
+    private final boolean bean;
+    private volatile List<PropertyAccessor> serializableProperties;
+    private volatile Map<String, PropertyMutator> writableProperties;
+    private volatile boolean entityPropertiesFound = false;
+    private String idFieldName;
+    private PropertyAccessor idProperty;
+    private PropertyAccessor titleProperty;
+    private PropertyAccessor lastModifiedProperty;
+    private PropertyAccessor ownerProperty;
+
+    protected EntityAccessorPlan(Class<?> type) {
+        this.type = type;
+        Class<?> wrapper = ConstructorUtils.getWrapper(type);
+        if (ConstructorUtils.isClassSimple(wrapper)) {
+            kind = Kind.SIMPLE;
+        } else if (ConstructorUtils.isClassArray(wrapper)) {
+            kind = Kind.ARRAY;
+        } else if (ConstructorUtils.isClassCollection(wrapper)) {
+            kind = Kind.COLLECTION;
+        } else if (Map.class.isAssignableFrom(wrapper)) {
+            kind = Kind.MAP;
+        } else {
+            kind = Kind.OBJECT;
+        }
+        adaptable = isDynaBean(type);
+        bean = ConstructorUtils.isClassBean(type);
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return true if the properties of this class are dynamic (e.g. DynaBeans) and must be read using
+     * {@link ReflectUtils#getObjectValues(Object, FieldsFilter, boolean)} instead of the accessors in this plan
+     */
+    public boolean isAdaptable() {
+        return adaptable;
+    }
+
+    /**
+     * @return true if this class is a bean (the same as {@link ConstructorUtils#isClassBean(Class)})
+     */
+    public boolean isBean() {
+        return bean;
+    }
+
+    /**
+     * @return true if the properties of this class are fixed (it is an {@link Kind#OBJECT} and is not adaptable)
+     * so the accessors in this plan can be used to read and write all of them,
+     * otherwise the properties need to be handled by {@link ReflectUtils}
+     */
+    public boolean isFixedProperties() {
+        return kind == Kind.OBJECT && ! adaptable;
+    }
+
+    /**
+     * @return the accessors for all serializable properties of this class (in order),
+     * will be empty if this is not an {@link Kind#OBJECT}
+     */
+    public List<PropertyAccessor> getSerializableProperties() {
+        if (serializableProperties == null) {
+            List<PropertyAccessor> properties = new ArrayList<PropertyAccessor>();
+            if (kind == Kind.OBJECT) {
+                ReflectUtils reflectUtils = ReflectUtils.getInstance();
+                ClassFields<?> cf = reflectUtils.analyzeClass(type);
+                for (String name : reflectUtils.getFieldTypes(type, FieldsFilter.SERIALIZABLE).keySet()) {
+                    properties.add( new PropertyAccessor(name, cf.getClassProperty(name)) );
+                }
+            }
+            serializableProperties = Collections.unmodifiableList(properties);
+        }
+        return serializableProperties;
+    }
+
+    /**
+     * @return the mutators for all writable properties of this class (name -> mutator),
+     * will be empty if this is not an {@link Kind#OBJECT}
+     */
+    public Map<String, PropertyMutator> getWritableProperties() {
+        if (writableProperties == null) {
+            Map<String, PropertyMutator> properties = new LinkedHashMap<String, PropertyMutator>();
+            if (kind == Kind.OBJECT) {
+                ReflectUtils reflectUtils = ReflectUtils.getInstance();
+                ClassFields<?> cf = reflectUtils.analyzeClass(type);
+                for (Map.Entry<String, Class<?>> entry : reflectUtils.getFieldTypes(type, FieldsFilter.WRITEABLE).entrySet()) {
+                    String name = entry.getKey();
+                    properties.put(name, new PropertyMutator(name, entry.getValue(), cf.getClassProperty(name)) );
+                }
+            }
+            writableProperties = Collections.unmodifiableMap(properties);
+        }
+        return writableProperties;
+    }
+
+    /**
+     * @param name the name of a property
+     * @return the mutator for this property OR null if there is no writable property with this name
+     */
+    public PropertyMutator getWritableProperty(String name) {
+        return getWritableProperties().get(name);
+    }
+
+    /**
+     * @return the name of the identifier property ({@link EntityId} or "id") OR null if there is none
+     */
+    public String getIdFieldName() {
+        findEntityProperties();
+        return idFieldName;
+    }
+
+    /**
+     * @return the accessor for the identifier property ({@link EntityId}, "entityId", or "id") OR null if there is none
+     */
+    public PropertyAccessor getIdProperty() {
+        findEntityProperties();
+        return idProperty;
+    }
+
+    /**
+     * @return the accessor for the title property ({@link EntityTitle} or "title") OR null if there is none
+     */
+    public PropertyAccessor getTitleProperty() {
+        findEntityProperties();
+        return titleProperty;
+    }
+
+    /**
+     * @return the accessor for the last modified property ({@link EntityLastModified} or "lastModified") OR null if there is none
+     */
+    public PropertyAccessor getLastModifiedProperty() {
+        findEntityProperties();
+        return lastModifiedProperty;
+    }
+
+    /**
+     * @return the accessor for the owner property ({@link EntityOwner} or "owner") OR null if there is none
+     */
+    public PropertyAccessor getOwnerProperty() {
+        findEntityProperties();
+        return ownerProperty;
+    }
+
+    private void findEntityProperties() {
+        if (! entityPropertiesFound) {
+            synchronized (this) {
+                if (! entityPropertiesFound) {
+                    if (isFixedProperties()) {
+                        ClassFields<?> cf = ReflectUtils.getInstance().analyzeClass(type);
+                        idFieldName = cf.getFieldNameByAnnotation(EntityId.class);
+                        if (idFieldName == null
+                                && cf.isFieldNameValid("id", FieldsFilter.READABLE)) {
+                            idFieldName = "id";
+                        }
+                        idProperty = makeAccessor(cf, EntityId.class, "entityId");
+                        if (idProperty == null) {
+                            idProperty = makeAccessor(cf, null, "id");
+                        }
+                        titleProperty = makeAccessor(cf, EntityTitle.class, "title");
+                        lastModifiedProperty = makeAccessor(cf, EntityLastModified.class, "lastModified");
+                        ownerProperty = makeAccessor(cf, EntityOwner.class, "owner");
+                    }
+                    entityPropertiesFound = true;
+                }
+            }
+        }
+    }
+
+    private static PropertyAccessor makeAccessor(ClassFields<?> cf, Class<? extends Annotation> annotationClass, String defaultName) {
+        String name = null;
+        if (annotationClass != null) {
+            name = cf.getFieldNameByAnnotation(annotationClass);
+        }
+        if (name == null) {
+            name = defaultName;
+        }
+        PropertyAccessor accessor = null;
+        if (cf.isFieldNameValid(name, FieldsFilter.READABLE)) {
+            accessor = new PropertyAccessor(name, cf.getClassProperty(name));
+        }
+        return accessor;
+    }
+
+    private static boolean isDynaBean(Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Class<?> iface : c.getInterfaces()) {
+                if (DYNABEAN_CLASS.equals(iface.getName()) 
+                        || isDynaBean(iface)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "plan:" + type.getName() + ":" + kind;
+    }
+
+    /**
+     * Reads a single property from objects using the getter (or public field) directly
+     */
+    public static class PropertyAccessor {
+        private final String name;
+        private final Method getter;
+        private final Field field;
+
+        protected PropertyAccessor(String name, ClassProperty property) {
+            this.name = name;
+            Method m = null;
+            Field f = null;
+            if (property != null) {
+                m = property.getGetter();
+                if (m == null 
+                        && property.isPublicField()) {
+                    f = property.getField();
+                }
+            }
+            try {
+                if (m != null) {
+                    m.setAccessible(true);
+                } else if (f != null) {
+                    f.setAccessible(true);
+                }
+            } catch (SecurityException e) {
+                // will fail on access if it is really not accessible
+            }
+            this.getter = m;
+            this.field = f;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @param object an object of the class this plan is for
+         * @return the value of this property in the object
+         * @throws IllegalStateException if the value cannot be read
+         */
+        public Object getValue(Object object) {
+            try {
+                if (getter != null) {
+                    return getter.invoke(object);
+                } else if (field != null) {
+                    return field.get(object);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Could not read property ("+name+") from object ("+object+"): " + e, e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException("Could not read property ("+name+") from object ("+object+"): " + e.getCause(), e.getCause());
+            }
+            // no direct accessor so let reflectutils work it out
+            return ReflectUtils.getInstance().getFieldValue(object, name);
+        }
+
+        @Override
+        public String toString() {
+            return name + (getter != null ? ":getter" : (field != null ? ":field" : ":other"));
+        }
+    }
+
+    /**
+     * Writes a single property into objects using the setter (or public field) directly,
+     * simple values are converted to the property type and complex values (maps, collections, beans)
+     * are copied into the property the same way as {@link ReflectUtils#populate(Object, Map)} does it
+     */
+    public static class PropertyMutator {
+        private final String name;
+        private final Class<?> type;
+        private final boolean simple;
+        private final Method setter;
+        private final Field field;
+
+        protected PropertyMutator(String name, Class<?> type, ClassProperty property) {
+            this.name = name;
+            Method m = null;
+            Field f = null;
+            if (property != null) {
+                m = property.getSetter();
+                if (m == null 
+                        && property.isPublicField()
+                        && ! property.isFinal()) {
+                    f = property.getField();
+                }
+            }
+            try {
+                if (m != null) {
+                    m.setAccessible(true);
+                } else if (f != null) {
+                    f.setAccessible(true);
+                }
+            } catch (SecurityException e) {
+                // will fail on access if it is really not accessible
+            }
+            if (m != null) {
+                type = m.getParameterTypes()[0];
+            } else if (f != null) {
+                type = f.getType();
+            }
+            this.type = type == null ? Object.class : type;
+            this.simple = ConstructorUtils.isClassSimple( ConstructorUtils.getWrapper(this.type) );
+            this.setter = m;
+            this.field = f;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Class<?> getType() {
+            return type;
+        }
+
+        /**
+         * @return true if the property type is a simple type (String, numbers, Date, Boolean, etc.)
+         */
+        public boolean isSimple() {
+            return simple;
+        }
+
+        /**
+         * @param object an object of the class this plan is for
+         * @param value the value to write into the property (will be converted to the property type if possible)
+         * @throws UnsupportedOperationException if the value cannot be converted to the property type
+         * @throws IllegalArgumentException if the value cannot be written into the property
+         * @throws IllegalStateException if the setter fails
+         */
+        public void setValue(Object object, Object value) {
+            ReflectUtils reflectUtils = ReflectUtils.getInstance();
+            if (simple || value == null) {
+                Object converted = reflectUtils.convert(value, type);
+                if (setter == null && field == null) {
+                    // no direct mutator so let reflectutils work it out
+                    reflectUtils.setFieldValue(object, name, converted, true);
+                    return;
+                }
+                try {
+                    if (setter != null) {
+                        setter.invoke(object, converted);
+                    } else {
+                        field.set(object, converted);
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("Could not write property ("+name+") in object ("+object+"): " + e, e);
+                } catch (InvocationTargetException e) {
+                    throw new IllegalStateException("Could not write property ("+name+") in object ("+object+"): " + e.getCause(), e.getCause());
+                }
+            } else {
+                Map<String, Object> properties = new HashMap<String, Object>(1);
+                properties.put(name, value);
+                if (reflectUtils.populate(object, properties).isEmpty()) {
+                    throw new IllegalArgumentException("Could not write value ("+value+") into property ("+name+") of type ("+type.getName()+")");
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + (setter != null ? ":setter" : (field != null ? ":field" : ":other"));
+        }
+    }
+
+}
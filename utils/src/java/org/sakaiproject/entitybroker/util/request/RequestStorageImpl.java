@@ -21,9 +21,12 @@
 package org.sakaiproject.entitybroker.util.request;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -65,6 +68,20 @@ public class RequestStorageImpl implements RequestStorageWrite {
         this.requestGetter = requestGetter;
     }
 
+    /**
+     * Holds the read only views which have been built for the current request,
+     * one for each combination of the include flags (these are only rebuilt when the stored values change
+     * so later changes made directly to the request are not in them)
+     */
+    private static class StorageViews {
+        final HttpServletRequest request;
+        final List<Map<String, Object>> views = new ArrayList<Map<String, Object>>(Collections.<Map<String, Object>>nCopies(16, null));
+        StorageViews(HttpServletRequest request) {
+            this.request = request;
+        }
+    }
+    private ThreadLocal<StorageViews> requestViews = new ThreadLocal<StorageViews>();
+
     /* (non-Javadoc)
      * @see org.sakaiproject.entitybroker.entityprovider.extension.RequestStorage#inRequest()
      */
@@ -110,6 +127,33 @@ public class RequestStorageImpl implements RequestStorageWrite {
         return m;
     }
 
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.entityprovider.extension.RequestStorage#getStorageMapView()
+     */
+    public Map<String, Object> getStorageMapView() {
+        return getStorageMapView(true, true, true, true);
+    }
+
+    /* (non-Javadoc)
+     * @see org.sakaiproject.entitybroker.entityprovider.extension.RequestStorage#getStorageMapView(boolean, boolean, boolean, boolean)
+     */
+    public Map<String, Object> getStorageMapView(boolean includeInternal, boolean includeHeaders, boolean includeParams, boolean includeAttributes) {
+        HttpServletRequest request = requestGetter.getRequest();
+        StorageViews sv = requestViews.get();
+        if (sv == null || sv.request != request) {
+            // new request (or none) so the old views are no good
+            sv = new StorageViews(request);
+            requestViews.set(sv);
+        }
+        int index = (includeInternal ? 1 : 0) | (includeHeaders ? 2 : 0) | (includeParams ? 4 : 0) | (includeAttributes ? 8 : 0);
+        Map<String, Object> view = sv.views.get(index);
+        if (view == null) {
+            view = Collections.unmodifiableMap( getStorageMapCopy(includeInternal, includeHeaders, includeParams, includeAttributes) );
+            sv.views.set(index, view);
+        }
+        return view;
+    }
+
     /* (non-Javadoc)
      * @see org.sakaiproject.entitybroker.entityprovider.extension.RequestStorage#getStoredValueAsType(java.lang.Class, java.lang.String)
      */
@@ -150,6 +194,7 @@ public class RequestStorageImpl implements RequestStorageWrite {
      * Resets the request storage and purges all stored values (has no effect on the data in the request)
      */
     public void reset() {
+        requestViews.remove();
         getInternalMap().clear();
         // only clear the known attribute values from the request -AZ
         HttpServletRequest request = requestGetter.getRequest();
@@ -173,6 +218,8 @@ public class RequestStorageImpl implements RequestStorageWrite {
             }
         }
         getInternalMap().put(key, value);
+        // the views no longer match the stored values
+        requestViews.remove();
     }
 
     /**
@@ -190,7 +237,8 @@ public class RequestStorageImpl implements RequestStorageWrite {
     protected Object getRequestValue(String key) {
         Object value = getInternalMap().get(key);
         if (value == null) {
-            value = getAllRequestValues().get(key);
+            // straight from the request so changes made to it since the views were built are seen
+            value = getRequestValue(requestGetter.getRequest(), key);
         }
         if (value == null) {
             // perhaps get one of the reserved values
@@ -239,6 +287,46 @@ public class RequestStorageImpl implements RequestStorageWrite {
 
     // STATIC
 
+    /**
+     * Get a single value from the request, this is the same value that would be in the
+     * map from {@link #getRequestValues(HttpServletRequest, boolean, boolean, boolean)} with everything included
+     * but without building the map
+     * @param request the request (may be null)
+     * @param key the key for the value
+     * @return the value OR null if there is none
+     */
+    public static Object getRequestValue(HttpServletRequest request, String key) {
+        Object value = null;
+        if (request != null && key != null) {
+            // same order of precedence as the map (later values replace earlier ones there)
+            if (ReservedKeys._locale.name().equals(key)) {
+                value = request.getLocale();
+            } else if ("method".equals(key)) {
+                value = request.getMethod().toUpperCase();
+            } else if ("queryString".equals(key)) {
+                value = request.getQueryString() == null ? "" : request.getQueryString();
+            } else if ("pathInfo".equals(key)) {
+                value = request.getPathInfo() == null ? "" : request.getPathInfo();
+            } else {
+                value = request.getAttribute(key);
+                if (value == null) {
+                    String[] values = request.getParameterValues(key);
+                    if (values != null) {
+                        if (values.length > 1) {
+                            value = values;
+                        } else {
+                            value = values.length == 1 ? values[0] : "";
+                        }
+                    }
+                }
+                if (value == null) {
+                    value = request.getHeader(key);
+                }
+            }
+        }
+        return value;
+    }
+
     public static Map<String, Object> getRequestValues(HttpServletRequest request, 
             boolean includeHeaders, boolean includeParams, boolean includeAttributes) {
         HashMap<String, Object> m = new HashMap<String, Object>();
@@ -21,6 +21,7 @@
 package org.sakaiproject.entitybroker.util.request;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -30,6 +31,8 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -45,6 +48,7 @@ import org.sakaiproject.entitybroker.entityprovider.search.Search;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
 import org.sakaiproject.entitybroker.util.TemplateParseUtil;
+import org.sakaiproject.entitybroker.util.http.LazyResponseOutputStream;
 
 
 /**
@@ -71,8 +75,9 @@ public class RequestUtils {
     public static Map<String, String> extensionsToFormat;
 
     static {
-        mimeTypeToFormat = new LinkedHashMap<String, String>(12);
+        mimeTypeToFormat = new LinkedHashMap<String, String>(13);
         mimeTypeToFormat.put(Formats.ATOM_MIME_TYPE, Formats.ATOM);
+        mimeTypeToFormat.put(Formats.CBOR_MIME_TYPE, Formats.CBOR);
         mimeTypeToFormat.put(Formats.FORM_MIME_TYPE, Formats.FORM);
         mimeTypeToFormat.put(Formats.HTML_MIME_TYPE, Formats.HTML);
         mimeTypeToFormat.put("application/xhtml+xml", Formats.HTML);
@@ -85,8 +90,9 @@ public class RequestUtils {
         mimeTypeToFormat.put(Formats.XML_MIME_TYPE, Formats.XML);
         mimeTypeToFormat.put("text/xml", Formats.XML); // this is not really valid
 
-        formatToMimeType = new LinkedHashMap<String, String>(7);
+        formatToMimeType = new LinkedHashMap<String, String>(9);
         formatToMimeType.put(Formats.ATOM, Formats.ATOM_MIME_TYPE);
+        formatToMimeType.put(Formats.CBOR, Formats.CBOR_MIME_TYPE);
         formatToMimeType.put(Formats.FORM, Formats.FORM_MIME_TYPE);
         formatToMimeType.put(Formats.HTML, Formats.HTML_MIME_TYPE);
         formatToMimeType.put(Formats.JSON, Formats.JSON_MIME_TYPE);
@@ -97,6 +103,7 @@ public class RequestUtils {
 
         extensionsToFormat = new LinkedHashMap<String, String>(20);
         extractExtensionsIntoMap(Formats.ATOM, Formats.ATOM_EXTENSIONS, extensionsToFormat);
+        extractExtensionsIntoMap(Formats.CBOR, Formats.CBOR_EXTENSIONS, extensionsToFormat);
         extractExtensionsIntoMap(Formats.FORM, Formats.FORM_EXTENSIONS, extensionsToFormat);
         extractExtensionsIntoMap(Formats.HTML, Formats.HTML_EXTENSIONS, extensionsToFormat);
         extractExtensionsIntoMap(Formats.JSON, Formats.JSON_EXTENSIONS, extensionsToFormat);
@@ -351,6 +358,7 @@ public class RequestUtils {
     // put the keys which should be ignored in this array which will be placed in a set and ignored
     public static String[] ignoreForSearch = new String[] {
         EntityRequestHandler.COMPENSATE_METHOD,
+        EntityRequestHandler.EMBEDDED_OUTPUT,
         "queryString", 
         "pathInfo", 
         "method", 
@@ -375,7 +383,7 @@ public class RequestUtils {
     /**
      * This looks at request parameters and returns anything it finds in the
      * request parameters that can be put into the search,
-     * supports the page params and sorting params
+     * supports the page params (including the _cursor param) and sorting params
      * 
      * @param params the request params from a request (do not include headers)
      * @return a search filter object
@@ -412,6 +420,13 @@ public class RequestUtils {
                                 System.out.println("WARN Invalid non-number passed in for _limit/_perpage param: " + value + ":" + e);
                             }
                             continue;
+                        } else if ("_cursor".equals(key)) {
+                            // opaque cursor for providers which page using cursors
+                            String cursor = value.toString();
+                            if (cursor.length() > 0) {
+                                search.setCursor(cursor);
+                            }
+                            continue;
                         } else if ("_start".equals(key)
                                 || "startIndex".equals(key)) {
                             try {
@@ -490,7 +505,7 @@ public class RequestUtils {
 
     /**
      * This will set the response mime type correctly based on the format constant,
-     * also sets the response encoding to UTF_8
+     * also sets the response encoding to UTF_8 (except for binary formats like {@link Formats#CBOR})
      * @param format the format constant, example {@link Formats#XML}
      * @param res the current outgoing response
      */
@@ -503,7 +518,9 @@ public class RequestUtils {
             }
         }
         res.setContentType(encoding);
-        res.setCharacterEncoding(Formats.UTF_8);
+        if (! Formats.CBOR.equals(format)) {
+            res.setCharacterEncoding(Formats.UTF_8);
+        }
     }
 
     /**
@@ -526,4 +543,96 @@ public class RequestUtils {
         return context;
     }
 
+    /**
+     * Finds the content encoding (compression) to use for the response based on the Accept-Encoding header,
+     * gzip is preferred over deflate when both are acceptable with the same quality
+     * @param req the incoming request
+     * @param allowDeflate if true then deflate can be used when the client does not accept gzip
+     * @return {@link LazyResponseOutputStream#ENCODING_GZIP} or {@link LazyResponseOutputStream#ENCODING_DEFLATE} 
+     * OR null if the response should not be compressed
+     */
+    public static String findResponseContentEncoding(HttpServletRequest req, boolean allowDeflate) {
+        if (req == null) {
+            return null;
+        }
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        if (acceptEncoding == null || "".equals(acceptEncoding)) {
+            return null;
+        }
+        float gzipQ = -1f;
+        float deflateQ = -1f;
+        float anyQ = -1f;
+        String[] parts = acceptEncoding.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.length() == 0) {
+                continue;
+            }
+            float q = 1f;
+            int semi = part.indexOf(';');
+            String coding = part;
+            if (semi > -1) {
+                coding = part.substring(0, semi).trim();
+                String param = part.substring(semi + 1).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0f;
+                    }
+                }
+            }
+            coding = coding.toLowerCase();
+            if (LazyResponseOutputStream.ENCODING_GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzipQ = q;
+            } else if (LazyResponseOutputStream.ENCODING_DEFLATE.equals(coding)) {
+                deflateQ = q;
+            } else if ("*".equals(coding)) {
+                anyQ = q;
+            }
+        }
+        // anything not mentioned gets the wildcard quality
+        if (gzipQ < 0f) {
+            gzipQ = anyQ;
+        }
+        if (deflateQ < 0f) {
+            deflateQ = anyQ;
+        }
+        String encoding = null;
+        if (gzipQ > 0f) {
+            encoding = LazyResponseOutputStream.ENCODING_GZIP;
+        }
+        if (allowDeflate && deflateQ > 0f && deflateQ > gzipQ) {
+            encoding = LazyResponseOutputStream.ENCODING_DEFLATE;
+        }
+        return encoding;
+    }
+
+    /**
+     * Gets the input stream for the request body and decodes it if the body was sent compressed
+     * (Content-Encoding of gzip or deflate)
+     * @param req the incoming request
+     * @return the stream of the (uncompressed) request body
+     * @throws IOException if the stream cannot be opened or the compressed data is not valid
+     * @throws EntityException (415) if the content encoding is not supported
+     */
+    public static InputStream getDecodedInputStream(HttpServletRequest req) throws IOException {
+        InputStream input = req.getInputStream();
+        String contentEncoding = req.getHeader(LazyResponseOutputStream.HEADER_CONTENT_ENCODING);
+        if (input != null && contentEncoding != null) {
+            contentEncoding = contentEncoding.trim().toLowerCase();
+            if (LazyResponseOutputStream.ENCODING_GZIP.equals(contentEncoding) 
+                    || "x-gzip".equals(contentEncoding)) {
+                input = new GZIPInputStream(input);
+            } else if (LazyResponseOutputStream.ENCODING_DEFLATE.equals(contentEncoding)) {
+                input = new InflaterInputStream(input);
+            } else if (! "".equals(contentEncoding) 
+                    && ! "identity".equals(contentEncoding)) {
+                throw new EntityException("Content-Encoding of the request body is not supported: " + contentEncoding, 
+                        req.getPathInfo(), HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            }
+        }
+        return input;
+    }
+
 }
@@ -0,0 +1,52 @@
+/**
+ * $Id$
+ * $URL$
+ * ThreadStatePropagator.java - entity-broker - Oct 18, 2026 1:12:40 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.request;
+
+/**
+ * Optional interface for an external integration provider which binds state (like the current user session)
+ * to the request thread, this allows work for the current request to be handed to a worker thread
+ * (e.g. the parallel references in a batch request) with that state in place<br/>
+ * The state is captured on the request thread and then applied to and cleared from the worker thread
+ *
+ * @author Sakai Software Development Team
+ */
+public interface ThreadStatePropagator {
+
+    /**
+     * Called on the request thread
+     * @return the state bound to the current thread (will be passed to {@link #applyThreadState(Object)}), may be null
+     */
+    public Object captureThreadState();
+
+    /**
+     * Binds the captured state to the current (worker) thread
+     * @param state the state from {@link #captureThreadState()}, may be null
+     */
+    public void applyThreadState(Object state);
+
+    /**
+     * Removes everything bound to the current (worker) thread after the work is complete,
+     * the worker threads are reused so anything set in {@link #applyThreadState(Object)} must be removed here
+     * @param state the state from {@link #captureThreadState()}, may be null
+     */
+    public void clearThreadState(Object state);
+
+}
@@ -21,15 +21,43 @@
 package org.sakaiproject.entitybroker.util.servlet;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetterWrite;
+import org.sakaiproject.entitybroker.entityprovider.extension.RequestStorageWrite;
 import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
+import org.sakaiproject.entitybroker.util.request.ThreadStatePropagator;
 
 /**
  * This is the core abstract DirectServlet class which is meant to extended,
@@ -37,7 +65,17 @@ import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
  * and for handling logins <br/>
  * <br/>
  * Direct servlet allows unfettered access to entity URLs within the EB system, it also can handle
- * authentication (login) if required (without breaking an entity URL)
+ * authentication (login) if required (without breaking an entity URL) <br/>
+ * <br/>
+ * There is an optional async mode (off by default) which is enabled with the "async" init-param,
+ * when enabled and the container supports Servlet 3 async processing the entity request is handed
+ * to a bounded executor and the container thread is released, when the executor is full
+ * (or async is not supported) the request is simply processed on the container thread as normal <br/>
+ * Init params: async (true/false), async-max-threads (default 50), async-queue-size (default 100),
+ * async-timeout (millis, default 60000), async-virtual-threads (true/false, used when the JVM has them,
+ * there is no queue with virtual threads so async-queue-size does not apply) <br/>
+ * NOTE: the servlet and all filters in front of it must be marked as async-supported in the container,
+ * when a request times out the 503 error is sent and anything the worker writes after that is dropped
  * 
  * @author Aaron Zeckoski (aaron@caret.cam.ac.uk)
  */
@@ -50,6 +88,92 @@ public abstract class DirectServlet extends HttpServlet {
         this.entityRequestHandler = entityRequestHandler;
     }
 
+    /**
+     * (OPTIONAL) used to carry the current request and response over to the async worker thread
+     */
+    protected transient RequestGetterWrite requestGetter;
+    public void setRequestGetter(RequestGetterWrite requestGetter) {
+        this.requestGetter = requestGetter;
+    }
+
+    /**
+     * (OPTIONAL) used to carry the current request storage values over to the async worker thread
+     */
+    protected transient RequestStorageWrite requestStorage;
+    public void setRequestStorage(RequestStorageWrite requestStorage) {
+        this.requestStorage = requestStorage;
+    }
+
+    /**
+     * (OPTIONAL) used to carry any system specific thread bound state (e.g. the current session) 
+     * over to the async worker thread, this is normally the external integration provider
+     */
+    protected transient ThreadStatePropagator threadStatePropagator;
+    public void setThreadStatePropagator(ThreadStatePropagator threadStatePropagator) {
+        this.threadStatePropagator = threadStatePropagator;
+    }
+
+    public static final String ASYNC_PARAM = "async";
+    public static final String ASYNC_MAX_THREADS_PARAM = "async-max-threads";
+    public static final String ASYNC_QUEUE_SIZE_PARAM = "async-queue-size";
+    public static final String ASYNC_TIMEOUT_PARAM = "async-timeout";
+    public static final String ASYNC_VIRTUAL_THREADS_PARAM = "async-virtual-threads";
+
+    private boolean asyncEnabled = false;
+    /**
+     * @param asyncEnabled if true then requests are processed on the async executor when the container allows it,
+     * this must be set before the servlet is initialized
+     */
+    public void setAsyncEnabled(boolean asyncEnabled) {
+        this.asyncEnabled = asyncEnabled;
+    }
+    public boolean isAsyncEnabled() {
+        return asyncEnabled;
+    }
+
+    private int asyncMaxThreads = 50;
+    /**
+     * @param asyncMaxThreads the maximum number of requests which will be processed at once in async mode
+     */
+    public void setAsyncMaxThreads(int asyncMaxThreads) {
+        this.asyncMaxThreads = asyncMaxThreads;
+    }
+
+    private int asyncQueueSize = 100;
+    /**
+     * @param asyncQueueSize the number of async requests which can wait for a thread,
+     * once this is full the requests are processed on the container thread,
+     * this does not apply to virtual threads (requests beyond the max threads are processed on the container thread)
+     */
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    private long asyncTimeout = 60000l;
+    /**
+     * @param asyncTimeout the maximum time (in millis) an async request can take before it is
+     * interrupted and a 503 is returned, 0 or less means no timeout
+     */
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    private boolean asyncVirtualThreads = true;
+    /**
+     * @param asyncVirtualThreads if true then virtual threads are used for async processing when the JVM supports them
+     */
+    public void setAsyncVirtualThreads(boolean asyncVirtualThreads) {
+        this.asyncVirtualThreads = asyncVirtualThreads;
+    }
+
+    private transient ExecutorService asyncExecutor;
+    private transient Semaphore asyncPermits;
+    private transient ScheduledExecutorService asyncTimer;
+    private transient Method isAsyncSupportedMethod;
+    private transient Method startAsyncMethod;
+    private transient Method asyncCompleteMethod;
+    private transient Method asyncSetTimeoutMethod;
+
 
     /**
      * This runs on servlet initialization (it is the first thing to run)
@@ -116,6 +240,105 @@ public abstract class DirectServlet extends HttpServlet {
         if (entityRequestHandler == null) {
             throw new IllegalStateException("FAILURE to get the handler during init of the direct servlet");
         }
+        initializeAsync();
+    }
+
+    /**
+     * Reads the async init params and starts up the async executor if async mode is enabled
+     * and the servlet container supports Servlet 3 async processing
+     */
+    protected void initializeAsync() {
+        ServletConfig config = getServletConfig();
+        if (config != null) {
+            String value = config.getInitParameter(ASYNC_PARAM);
+            if (value != null) {
+                asyncEnabled = Boolean.parseBoolean(value.trim());
+            }
+            value = config.getInitParameter(ASYNC_MAX_THREADS_PARAM);
+            if (value != null) {
+                asyncMaxThreads = Integer.parseInt(value.trim());
+            }
+            value = config.getInitParameter(ASYNC_QUEUE_SIZE_PARAM);
+            if (value != null) {
+                asyncQueueSize = Integer.parseInt(value.trim());
+            }
+            value = config.getInitParameter(ASYNC_TIMEOUT_PARAM);
+            if (value != null) {
+                asyncTimeout = Long.parseLong(value.trim());
+            }
+            value = config.getInitParameter(ASYNC_VIRTUAL_THREADS_PARAM);
+            if (value != null) {
+                asyncVirtualThreads = Boolean.parseBoolean(value.trim());
+            }
+        }
+        if (! asyncEnabled || asyncExecutor != null) {
+            return;
+        }
+        if (asyncMaxThreads <= 0) {
+            throw new IllegalArgumentException("async-max-threads must be greater than 0: " + asyncMaxThreads);
+        }
+        // the servlet API here is 2.5 so the Servlet 3 async methods are found at runtime
+        try {
+            Class<?> requestType = getAsyncRequestType();
+            isAsyncSupportedMethod = requestType.getMethod("isAsyncSupported");
+            startAsyncMethod = requestType.getMethod("startAsync");
+            Class<?> asyncContextClass = startAsyncMethod.getReturnType();
+            asyncCompleteMethod = asyncContextClass.getMethod("complete");
+            asyncSetTimeoutMethod = asyncContextClass.getMethod("setTimeout", long.class);
+        } catch (Exception e) {
+            System.out.println("WARN DirectServlet async mode requested but the servlet container does not support Servlet 3 async processing, requests will be processed synchronously: " + e);
+            asyncEnabled = false;
+            return;
+        }
+        ExecutorService executor = null;
+        if (asyncVirtualThreads) {
+            try {
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                executor = (ExecutorService) m.invoke(null);
+                asyncPermits = new Semaphore(asyncMaxThreads);
+            } catch (Exception e) {
+                // no virtual threads in this JVM so use the normal pool
+                executor = null;
+            }
+        }
+        if (executor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(asyncMaxThreads, asyncMaxThreads, 60, TimeUnit.SECONDS, 
+                    new ArrayBlockingQueue<Runnable>(asyncQueueSize > 0 ? asyncQueueSize : 1), 
+                    new AsyncThreadFactory("direct-async-"));
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        asyncExecutor = executor;
+        if (asyncTimeout > 0) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new AsyncThreadFactory("direct-async-timer-"));
+            // the timeouts for completed requests are cancelled so they must not stay in the queue (holding the request)
+            timer.setRemoveOnCancelPolicy(true);
+            asyncTimer = timer;
+        }
+        System.out.println("INFO DirectServlet async mode enabled: max-threads=" + asyncMaxThreads 
+                + ", queue-size=" + (asyncPermits != null ? "none" : asyncQueueSize) + ", timeout=" + asyncTimeout 
+                + ", virtual-threads=" + (asyncPermits != null));
+    }
+
+    /**
+     * @return the request type which has the Servlet 3 async methods (isAsyncSupported, startAsync),
+     * this is the {@link ServletRequest} in a Servlet 3 container
+     */
+    protected Class<?> getAsyncRequestType() {
+        return ServletRequest.class;
+    }
+
+    @Override
+    public void destroy() {
+        if (asyncTimer != null) {
+            asyncTimer.shutdownNow();
+            asyncTimer = null;
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+        super.destroy();
     }
 
     /* (non-Javadoc)
@@ -150,11 +373,214 @@ public abstract class DirectServlet extends HttpServlet {
         String[] parts = option.split("/");
         if ((parts.length == 2) && ((parts[1].equals("login")))) {
             handleUserLogin(req, res, null);
-        } else {
+        } else if (! dispatchAsync(req, res)) {
             dispatch(req, res);
         }
     }
 
+    /**
+     * Attempts to hand the request to the async executor (Servlet 3 async processing),
+     * the {@link #dispatch(HttpServletRequest, HttpServletResponse)} method is run on the executor thread
+     * with the context classloader and the request getter/storage thread values of the container thread
+     * 
+     * @param req the http request (from the client)
+     * @param res the http response (back to the client)
+     * @return true if the request will be processed asynchronously, 
+     * false if it was not accepted (async disabled or unsupported or the executor is full) and must be processed now
+     */
+    protected boolean dispatchAsync(final HttpServletRequest req, final HttpServletResponse res) {
+        final ExecutorService executor = asyncExecutor;
+        if (! asyncEnabled || executor == null) {
+            return false;
+        }
+        try {
+            if (! Boolean.TRUE.equals(isAsyncSupportedMethod.invoke(req))) {
+                return false;
+            }
+        } catch (Exception e) {
+            return false;
+        }
+        if (asyncPermits != null && ! asyncPermits.tryAcquire()) {
+            return false; // too busy so stay on the container thread
+        }
+        final Object asyncContext;
+        try {
+            asyncContext = startAsyncMethod.invoke(req);
+            // we enforce our own timeout
+            asyncSetTimeoutMethod.invoke(asyncContext, 0l);
+        } catch (Exception e) {
+            if (asyncPermits != null) {
+                asyncPermits.release();
+            }
+            System.out.println("WARN DirectServlet could not start async processing, processing synchronously: " + e);
+            return false;
+        }
+
+        // capture the values from the container thread
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        final Map<String, Object> storedValues = requestStorage == null ? null 
+                : requestStorage.getStorageMapCopy(true, false, false, false);
+        final Object threadState = captureAsyncThreadState(req);
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        // the worker only writes through this so nothing is written once the timeout has sent the error
+        final AsyncResponse asyncRes = new AsyncResponse(res, finished);
+        // the scheduled timeout, cancelled when the worker finishes
+        final AtomicReference<Future<?>> timeout = new AtomicReference<Future<?>>();
+        Runnable task = new Runnable() {
+            public void run() {
+                Thread current = Thread.currentThread();
+                ClassLoader currentLoader = current.getContextClassLoader();
+                current.setContextClassLoader(classLoader);
+                if (requestGetter != null) {
+                    requestGetter.setRequest(req);
+                    requestGetter.setResponse(asyncRes);
+                }
+                if (requestStorage != null) {
+                    requestStorage.setRequestValues(storedValues);
+                }
+                try {
+                    applyAsyncThreadState(threadState);
+                    dispatch(req, asyncRes);
+                } catch (Throwable e) {
+                    if (! finished.get()) {
+                        String msg = "Failure processing async entity request: " + req.getPathInfo() + ": " + e;
+                        System.err.println("WARN " + msg);
+                        sendError(asyncRes, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, msg);
+                    }
+                } finally {
+                    clearAsyncThreadState(threadState);
+                    if (requestStorage != null) {
+                        requestStorage.reset();
+                    }
+                    if (requestGetter != null) {
+                        requestGetter.setRequest(null);
+                        requestGetter.setResponse(null);
+                    }
+                    current.setContextClassLoader(currentLoader);
+                    if (asyncPermits != null) {
+                        asyncPermits.release();
+                    }
+                    synchronized (asyncRes) {
+                        completeAsync(asyncContext, finished);
+                    }
+                    cancelTimeout(timeout);
+                }
+            }
+        };
+        final Future<?> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            // full (or shutting down) so process it on the container thread
+            if (asyncPermits != null) {
+                asyncPermits.release();
+            }
+            try {
+                dispatch(req, res);
+            } catch (ServletException se) {
+                sendError(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, se.getMessage());
+            }
+            completeAsync(asyncContext, finished);
+            return true;
+        }
+        final ScheduledExecutorService timer = asyncTimer;
+        if (timer != null) {
+            try {
+                timeout.set( timer.schedule(new Runnable() {
+                    public void run() {
+                        // holding the lock means the worker is not in the middle of a write
+                        synchronized (asyncRes) {
+                            if (finished.compareAndSet(false, true)) {
+                                future.cancel(true);
+                                String msg = "Entity request timed out after " + asyncTimeout + " ms: " + req.getPathInfo();
+                                System.out.println("INFO " + msg);
+                                sendError(res, HttpServletResponse.SC_SERVICE_UNAVAILABLE, msg);
+                                invokeComplete(asyncContext);
+                            }
+                        }
+                    }
+                }, asyncTimeout, TimeUnit.MILLISECONDS) );
+                if (finished.get()) {
+                    // the worker finished before the timeout was set
+                    cancelTimeout(timeout);
+                }
+            } catch (RejectedExecutionException e) {
+                // timer is shutting down, the request will still complete normally
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Captures any system specific thread bound state (e.g. the current session)
+     * from the container thread before the request is handed to the async executor,
+     * uses the {@link ThreadStatePropagator} (if there is one) by default
+     * 
+     * @param req the http request (from the client)
+     * @return the captured state (will be passed to {@link #applyAsyncThreadState(Object)}), may be null
+     */
+    protected Object captureAsyncThreadState(HttpServletRequest req) {
+        if (threadStatePropagator != null) {
+            return threadStatePropagator.captureThreadState();
+        }
+        return null;
+    }
+
+    /**
+     * Applies the state captured in {@link #captureAsyncThreadState(HttpServletRequest)}
+     * to the async worker thread before the request is dispatched,
+     * uses the {@link ThreadStatePropagator} (if there is one) by default
+     * 
+     * @param state the captured state, may be null
+     */
+    protected void applyAsyncThreadState(Object state) {
+        if (threadStatePropagator != null) {
+            threadStatePropagator.applyThreadState(state);
+        }
+    }
+
+    /**
+     * Clears any thread bound state from the async worker thread after the request is done,
+     * the worker threads are reused so anything set in {@link #applyAsyncThreadState(Object)} must be removed here,
+     * uses the {@link ThreadStatePropagator} (if there is one) by default
+     * 
+     * @param state the captured state, may be null
+     */
+    protected void clearAsyncThreadState(Object state) {
+        if (threadStatePropagator != null) {
+            threadStatePropagator.clearThreadState(state);
+        }
+    }
+
+    /**
+     * Cancels the scheduled timeout (if it is set) so the timer does not hold on to the request
+     */
+    private void cancelTimeout(AtomicReference<Future<?>> timeout) {
+        Future<?> future = timeout.getAndSet(null);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Completes the async processing unless it was already completed (e.g. by the timeout)
+     */
+    private void completeAsync(Object asyncContext, AtomicBoolean finished) {
+        if (finished.compareAndSet(false, true)) {
+            invokeComplete(asyncContext);
+        }
+    }
+
+    private void invokeComplete(Object asyncContext) {
+        try {
+            asyncCompleteMethod.invoke(asyncContext);
+        } catch (InvocationTargetException e) {
+            System.err.println("WARN Error completing async entity request: " + e.getCause());
+        } catch (Exception e) {
+            System.err.println("WARN Error completing async entity request: " + e);
+        }
+    }
+
     /**
      * handle all communication from the user not related to login
      * 
@@ -232,4 +658,220 @@ public abstract class DirectServlet extends HttpServlet {
         }
     }
 
+    /**
+     * The response used by the async worker, every change to the response is made while holding the lock
+     * on this object and is dropped once the request is finished (timed out), 
+     * the timeout holds the same lock while it sends the error so the worker and the timeout 
+     * never write to the response at the same time and the worker never writes after it is completed
+     */
+    private static class AsyncResponse extends HttpServletResponseWrapper {
+        private final AtomicBoolean finished;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        public AsyncResponse(HttpServletResponse response, AtomicBoolean finished) {
+            super(response);
+            this.finished = finished;
+        }
+
+        private boolean isFinished() {
+            return finished.get();
+        }
+
+        @Override
+        public synchronized ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                outputStream = new AsyncOutputStream(super.getOutputStream());
+            }
+            return outputStream;
+        }
+
+        @Override
+        public synchronized PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new AsyncWriter(super.getWriter()));
+            }
+            return writer;
+        }
+
+        @Override
+        public synchronized void sendError(int sc, String msg) throws IOException {
+            if (! isFinished()) super.sendError(sc, msg);
+        }
+
+        @Override
+        public synchronized void sendError(int sc) throws IOException {
+            if (! isFinished()) super.sendError(sc);
+        }
+
+        @Override
+        public synchronized void sendRedirect(String location) throws IOException {
+            if (! isFinished()) super.sendRedirect(location);
+        }
+
+        @Override
+        public synchronized void setStatus(int sc) {
+            if (! isFinished()) super.setStatus(sc);
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public synchronized void setStatus(int sc, String sm) {
+            if (! isFinished()) super.setStatus(sc, sm);
+        }
+
+        @Override
+        public synchronized void setHeader(String name, String value) {
+            if (! isFinished()) super.setHeader(name, value);
+        }
+
+        @Override
+        public synchronized void addHeader(String name, String value) {
+            if (! isFinished()) super.addHeader(name, value);
+        }
+
+        @Override
+        public synchronized void setIntHeader(String name, int value) {
+            if (! isFinished()) super.setIntHeader(name, value);
+        }
+
+        @Override
+        public synchronized void addIntHeader(String name, int value) {
+            if (! isFinished()) super.addIntHeader(name, value);
+        }
+
+        @Override
+        public synchronized void setDateHeader(String name, long date) {
+            if (! isFinished()) super.setDateHeader(name, date);
+        }
+
+        @Override
+        public synchronized void addDateHeader(String name, long date) {
+            if (! isFinished()) super.addDateHeader(name, date);
+        }
+
+        @Override
+        public synchronized void addCookie(Cookie cookie) {
+            if (! isFinished()) super.addCookie(cookie);
+        }
+
+        @Override
+        public synchronized void setContentType(String type) {
+            if (! isFinished()) super.setContentType(type);
+        }
+
+        @Override
+        public synchronized void setContentLength(int len) {
+            if (! isFinished()) super.setContentLength(len);
+        }
+
+        @Override
+        public synchronized void setCharacterEncoding(String charset) {
+            if (! isFinished()) super.setCharacterEncoding(charset);
+        }
+
+        @Override
+        public synchronized void setLocale(Locale loc) {
+            if (! isFinished()) super.setLocale(loc);
+        }
+
+        @Override
+        public synchronized void setBufferSize(int size) {
+            if (! isFinished()) super.setBufferSize(size);
+        }
+
+        @Override
+        public synchronized void flushBuffer() throws IOException {
+            if (! isFinished()) super.flushBuffer();
+        }
+
+        @Override
+        public synchronized void reset() {
+            if (! isFinished()) super.reset();
+        }
+
+        @Override
+        public synchronized void resetBuffer() {
+            if (! isFinished()) super.resetBuffer();
+        }
+
+        private class AsyncOutputStream extends ServletOutputStream {
+            private final ServletOutputStream stream;
+            AsyncOutputStream(ServletOutputStream stream) {
+                this.stream = stream;
+            }
+            @Override
+            public void write(int b) throws IOException {
+                synchronized (AsyncResponse.this) {
+                    if (! isFinished()) stream.write(b);
+                }
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (AsyncResponse.this) {
+                    if (! isFinished()) stream.write(b, off, len);
+                }
+            }
+            @Override
+            public void flush() throws IOException {
+                synchronized (AsyncResponse.this) {
+                    if (! isFinished()) stream.flush();
+                }
+            }
+            @Override
+            public void close() throws IOException {
+                synchronized (AsyncResponse.this) {
+                    if (! isFinished()) stream.close();
+                }
+            }
+        }
+
+        private class AsyncWriter extends Writer {
+            private final Writer out;
+            AsyncWriter(Writer out) {
+                this.out = out;
+            }
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                synchronized (AsyncResponse.this) {
+                    if (! isFinished()) out.write(cbuf, off, len);
+                }
+            }
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                synchronized (AsyncResponse.this) {
+                    if (! isFinished()) out.write(str, off, len);
+                }
+            }
+            @Override
+            public void flush() throws IOException {
+                synchronized (AsyncResponse.this) {
+                    if (! isFinished()) out.flush();
+                }
+            }
+            @Override
+            public void close() throws IOException {
+                synchronized (AsyncResponse.this) {
+                    if (! isFinished()) out.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates named daemon threads for the async executors
+     */
+    private static class AsyncThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+        private final String prefix;
+        public AsyncThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
 }
@@ -22,11 +22,26 @@ package org.sakaiproject.entitybroker.util;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.http.Cookie;
+
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.junit.Test;
+import org.sakaiproject.entitybroker.util.http.HttpClientWrapper;
 import org.sakaiproject.entitybroker.util.http.HttpRESTUtils;
+import org.sakaiproject.entitybroker.util.http.HttpRESTUtils.HttpIOException;
+import org.sakaiproject.entitybroker.util.http.HttpRESTUtils.Method;
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
 import org.sakaiproject.entitybroker.util.http.URLData;
 
 
@@ -207,6 +222,179 @@ public class HttpRESTUtilsTest {
         }
     }
 
+    /**
+     * Test method for {@link HttpRESTUtils#fireRequest(HttpClientWrapper, String, Method, Map, Map, Object, boolean, Cookie[])}
+     * with a client from {@link HttpRESTUtils#makePooledHttpClient(int, int, int, int, int)}
+     */
+    @Test
+    public void testPooledClientCookies() throws Exception {
+        TestServer server = new TestServer(true);
+        HttpClientWrapper client = HttpRESTUtils.makePooledHttpClient(2, 4, 1000, 2000, 2000);
+        try {
+            String url = "http://127.0.0.1:" + server.getPort() + "/direct/thing";
+
+            // the cookies are sent with the request they are passed to
+            HttpResponse response = HttpRESTUtils.fireRequest(client, url, Method.GET, null, null, null, false, 
+                    new Cookie[] {new Cookie("user", "AZ")});
+            assertEquals(200, response.getResponseCode());
+            String cookie = server.cookies.poll(5, TimeUnit.SECONDS);
+            assertTrue(cookie.contains("user=AZ"));
+
+            // but they are never stored in the shared client (not even the ones the server sets)
+            assertEquals(0, client.getHttpClient().getState().getCookies().length);
+
+            // so the next request only has its own cookies
+            response = HttpRESTUtils.fireRequest(client, url, Method.GET, null, null, null, false, 
+                    new Cookie[] {new Cookie("user", "BZ")});
+            assertEquals(200, response.getResponseCode());
+            cookie = server.cookies.poll(5, TimeUnit.SECONDS);
+            assertTrue(cookie.contains("user=BZ"));
+            assertFalse(cookie.contains("AZ"));
+            assertFalse(cookie.contains("server=abc"));
+
+            response = HttpRESTUtils.fireRequest(client, url, Method.GET, null, null, null, false, new Cookie[0]);
+            assertEquals(200, response.getResponseCode());
+            assertEquals("", server.cookies.poll(5, TimeUnit.SECONDS));
+            assertEquals(0, client.getHttpClient().getState().getCookies().length);
+        } finally {
+            client.shutdown();
+            server.close();
+        }
+    }
+
+    /**
+     * Test method for {@link HttpRESTUtils#fireRequest(HttpClientWrapper, String, Method, java.util.Map, java.util.Map, Object, boolean, Cookie[])}
+     * with a pooled client and no cookies
+     */
+    @Test
+    public void testPooledClientNoCookies() throws Exception {
+        TestServer server = new TestServer(true);
+        HttpClientWrapper client = HttpRESTUtils.makePooledHttpClient(2, 4, 1000, 2000, 2000);
+        try {
+            String url = "http://127.0.0.1:" + server.getPort() + "/direct/thing";
+
+            HttpResponse response = HttpRESTUtils.fireRequest(client, url, Method.GET, null, null, null, false, null);
+            assertEquals(200, response.getResponseCode());
+            assertEquals("", server.cookies.poll(5, TimeUnit.SECONDS));
+            // the cookie the server set is not kept in the shared client
+            assertEquals(0, client.getHttpClient().getState().getCookies().length);
+
+            // so it is not sent along with the next request (which might be for another user)
+            response = HttpRESTUtils.fireRequest(client, url, Method.GET, null, null, null, false, null);
+            assertEquals(200, response.getResponseCode());
+            assertEquals("", server.cookies.poll(5, TimeUnit.SECONDS));
+            assertEquals(0, client.getHttpClient().getState().getCookies().length);
+        } finally {
+            client.shutdown();
+            server.close();
+        }
+    }
+
+    /**
+     * Test method for {@link HttpRESTUtils#makePooledHttpClient(int, int, int, int, int)}
+     */
+    @Test
+    public void testPooledClientTimeouts() throws Exception {
+        HttpClientWrapper client = HttpRESTUtils.makePooledHttpClient(3, 7, 0, 1500, 250);
+        try {
+            HttpConnectionManagerParams params = client.getHttpClient().getHttpConnectionManager().getParams();
+            assertEquals(1500, params.getConnectionTimeout());
+            assertEquals(250, params.getSoTimeout());
+            assertEquals(3, params.getDefaultMaxConnectionsPerHost());
+            assertEquals(7, params.getMaxTotalConnections());
+
+            // a server which never answers fails after the read timeout
+            TestServer server = new TestServer(false);
+            try {
+                long start = System.currentTimeMillis();
+                try {
+                    HttpRESTUtils.fireRequest(client, "http://127.0.0.1:" + server.getPort() + "/direct/slow", 
+                            Method.GET, null, null, null, false, new Cookie[0]);
+                    fail("should have timed out");
+                } catch (HttpIOException e) {
+                    assertNotNull(e.getMessage());
+                }
+                assertTrue(System.currentTimeMillis() - start < 5000);
+            } finally {
+                server.close();
+            }
+        } finally {
+            client.shutdown();
+        }
+
+        try {
+            HttpRESTUtils.makePooledHttpClient(0, 1, 0, 0, 0);
+            fail("should have died");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    /**
+     * Minimal http server which records the Cookie header of each request,
+     * it either answers with a cookie of its own or never answers
+     */
+    private static class TestServer implements Runnable {
+        final LinkedBlockingQueue<String> cookies = new LinkedBlockingQueue<String>();
+        private final ServerSocket serverSocket;
+        private final boolean answer;
+
+        TestServer(boolean answer) throws IOException {
+            this.answer = answer;
+            serverSocket = new ServerSocket(0);
+            Thread t = new Thread(this, "HttpRESTUtilsTest-server");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        public void run() {
+            while (! serverSocket.isClosed()) {
+                Socket socket = null;
+                try {
+                    socket = serverSocket.accept();
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                    String cookie = "";
+                    String line;
+                    while ((line = reader.readLine()) != null && line.length() > 0) {
+                        if (line.toLowerCase().startsWith("cookie:")) {
+                            cookie = line.substring(7).trim();
+                        }
+                    }
+                    cookies.add(cookie);
+                    if (answer) {
+                        OutputStream out = socket.getOutputStream();
+                        out.write(("HTTP/1.1 200 OK\r\nSet-Cookie: server=abc; Path=/\r\n"
+                                + "Content-Length: 2\r\nConnection: close\r\n\r\nOK").getBytes("ISO-8859-1"));
+                        out.flush();
+                    } else {
+                        // hold the connection open without answering until the client gives up
+                        while (socket.getInputStream().read() != -1) {
+                            // nothing to do
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed
+                } finally {
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     // Cannot handle partial URLs
 //    public void testParseURL() {
 //        URL url = null;
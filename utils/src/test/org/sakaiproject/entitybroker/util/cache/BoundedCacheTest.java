@@ -0,0 +1,131 @@
+/**
+ * $Id$
+ * $URL$
+ * BoundedCacheTest.java - entity-broker - Oct 18, 2026 5:40:11 PM - Sakai Software Development Team
+ **********************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **********************************************************************************/
+
+package org.sakaiproject.entitybroker.util.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+/**
+ * Testing the bounded cache
+ * 
+ * @author Sakai Software Development Team
+ */
+public class BoundedCacheTest {
+
+    @Test
+    public void testBounds() {
+        BoundedCache<String, String> cache = new BoundedCache<String, String>(2, 0);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        assertEquals("A", cache.get("a")); // a is now most recently used
+        cache.put("c", "C");
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.put("d", null);
+        assertEquals(2, cache.size());
+
+        try {
+            new BoundedCache<String, String>(0, 0);
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        BoundedCache<String, String> cache = new BoundedCache<String, String>(10, 20);
+        cache.put("a", "A");
+        assertEquals("A", cache.get("a"));
+        Thread.sleep(50);
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getEvictions());
+
+        cache.put("b", "B");
+        Thread.sleep(50);
+        assertEquals(1, cache.purgeExpired());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        BoundedCache<String, String> cache = new BoundedCache<String, String>(10, 0);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        assertTrue(cache.invalidate("a"));
+        assertFalse(cache.invalidate("a"));
+        assertNull(cache.get("a"));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getInvalidations());
+
+        // values fetched before an invalidation are not cached
+        long generation = cache.getGeneration();
+        cache.invalidate("x");
+        assertFalse(cache.put("x", "X", generation));
+        assertNull(cache.get("x"));
+        assertTrue(cache.put("x", "X", cache.getGeneration()));
+        assertEquals("X", cache.get("x"));
+
+        // invalidating other keys does not stop values from being cached
+        generation = cache.getGeneration();
+        cache.invalidate("y");
+        assertTrue(cache.put("z", "Z", generation));
+        assertFalse(cache.put("y", "Y", generation));
+        assertEquals("Z", cache.get("z"));
+        cache.invalidate("z");
+
+        // clearing stops everything fetched before it
+        generation = cache.getGeneration();
+        cache.clear();
+        assertFalse(cache.put("z", "Z", generation));
+        assertTrue(cache.put("z", "Z", cache.getGeneration()));
+        assertEquals(4, cache.getInvalidations());
+
+        Map<String, Long> stats = new HashMap<String, Long>();
+        cache.addStatistics(stats);
+        cache.addStatistics(stats);
+        assertEquals(Long.valueOf(2), stats.get("size"));
+        assertEquals(Long.valueOf(8), stats.get("invalidations"));
+
+        // once too many keys are invalidated the oldest ones are forgotten and everything before them is rejected
+        cache = new BoundedCache<String, String>(2, 0);
+        generation = cache.getGeneration();
+        cache.invalidate("a");
+        cache.invalidate("b");
+        assertTrue(cache.put("c", "C", generation));
+        cache.invalidate("d");
+        assertFalse(cache.put("e", "E", generation));
+        assertTrue(cache.put("e", "E", cache.getGeneration()));
+    }
+
+}
@@ -0,0 +1,264 @@
+/**
+ * $Id$
+ * $URL$
+ * CBORTranscoderTest.java - entity-broker - Oct 18, 2026 11:36:44 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
+import org.junit.Test;
+import org.sakaiproject.entitybroker.util.encoding.EntityInputDecoder.InputDecodingException;
+import org.sakaiproject.entitybroker.util.encoding.JSONStreamEncoderTest.TestBean;
+
+
+/**
+ * Testing the CBOR transcoder against the examples in RFC 7049 and that it has the same structure as the JSON encoding
+ *
+ * @author Sakai Software Development Team
+ */
+public class CBORTranscoderTest {
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] bytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private String encodeHex(Object data) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new CBORTranscoder().encode(data, null, null, 0, output);
+        return hex(output.toByteArray());
+    }
+
+    private Object decodeHex(String hex) throws IOException {
+        return new CBORTranscoder().decode(new ByteArrayInputStream(bytes(hex))).get(CBORTranscoder.DATA_KEY);
+    }
+
+    /**
+     * The JSON structure of the data (decoding then encoding again makes the number types match)
+     */
+    private void checkSameAsJSON(Object data, Map<String, Object> props) {
+        JSONTranscoder json = new JSONTranscoder(false, true, false);
+        CBORTranscoder cbor = new CBORTranscoder(true, false);
+        Map<String, Object> jProps = props == null ? null : new LinkedHashMap<String, Object>(props);
+        String expected = json.encode(json.decode(json.encode(data, null, jProps)), null, null);
+        assertEquals(expected, json.encode(cbor.decode(cbor.encode(data, null, props)), null, null));
+    }
+
+    @Test
+    public void testEncodeExamples() throws Exception {
+        assertEquals("00", encodeHex(0));
+        assertEquals("17", encodeHex(23));
+        assertEquals("1818", encodeHex(24));
+        assertEquals("1903e8", encodeHex(1000));
+        assertEquals("1a000f4240", encodeHex(1000000));
+        assertEquals("1b000000e8d4a51000", encodeHex(1000000000000l));
+        assertEquals("20", encodeHex(-1));
+        assertEquals("3903e7", encodeHex(-1000));
+        assertEquals("c249010000000000000000", encodeHex(new BigInteger("18446744073709551616")));
+        assertEquals("c349010000000000000000", encodeHex(new BigInteger("-18446744073709551617")));
+        assertEquals("fb3ff199999999999a", encodeHex(1.1d));
+        assertEquals("fa47c35000", encodeHex(100000.0f));
+        assertEquals("f4", encodeHex(false));
+        assertEquals("f5", encodeHex(true));
+        assertEquals("f6", encodeHex(null));
+        assertEquals("60", encodeHex(""));
+        assertEquals("6449455446", encodeHex("IETF"));
+        assertEquals("62c3bc", encodeHex("ü"));
+        assertEquals("83010203", encodeHex(new int[] {1, 2, 3}));
+        assertEquals("1903e8", encodeHex(new Date(1000l)));
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("a", 1);
+        map.put("b", new ArrayList<Object>());
+        assertEquals("bf6161016162" + "80" + "ff", encodeHex(map));
+    }
+
+    @Test
+    public void testDecodeExamples() throws Exception {
+        assertEquals(0, decodeHex("00"));
+        assertEquals(1000, decodeHex("1903e8"));
+        assertEquals(1000000000000l, decodeHex("1b000000e8d4a51000"));
+        assertEquals(new BigInteger("18446744073709551615"), decodeHex("1bffffffffffffffff"));
+        assertEquals(new BigInteger("18446744073709551616"), decodeHex("c249010000000000000000"));
+        assertEquals(new BigInteger("-18446744073709551617"), decodeHex("c349010000000000000000"));
+        assertEquals(-1000, decodeHex("3903e7"));
+        assertEquals(1.5f, decodeHex("f93e00"));
+        assertEquals(-4.0f, decodeHex("f9c400"));
+        assertEquals(100000.0f, decodeHex("fa47c35000"));
+        assertEquals(1.1d, decodeHex("fb3ff199999999999a"));
+        assertEquals(Boolean.TRUE, decodeHex("f5"));
+        assertNull(decodeHex("f6"));
+        assertNull(decodeHex("f7"));
+        assertEquals("IETF", decodeHex("6449455446"));
+        assertEquals("streaming", decodeHex("7f657374726561646d696e67ff"));
+        assertEquals("0102030405", hex((byte[]) decodeHex("5f42010243030405ff")));
+        // tags which are not understood are ignored
+        assertEquals(1363896240, decodeHex("c11a514b67b0"));
+
+        List<?> list = (List<?>) decodeHex("9f018202039f0405ffff");
+        assertEquals(3, list.size());
+        assertEquals(1, list.get(0));
+        assertEquals(2, ((List<?>) list.get(1)).size());
+
+        Map<String, Object> map = new CBORTranscoder().decode(new ByteArrayInputStream(bytes("a26161016162820203")));
+        assertEquals(2, map.size());
+        assertEquals(1, map.get("a"));
+        assertEquals(2, ((List<?>) map.get("b")).size());
+        map = new CBORTranscoder().decode(new ByteArrayInputStream(bytes("bf61610161629f0203ffff")));
+        assertEquals(2, map.size());
+        assertEquals(3, ((List<?>) map.get("b")).get(1));
+    }
+
+    @Test
+    public void testSameAsJSON() throws Exception {
+        checkSameAsJSON("quote\" unié", null);
+        checkSameAsJSON(new String[] {"a", "b", null}, null);
+        TestBean bean = new TestBean("id1", "title");
+        bean.getTags().add("tag");
+        bean.setChild(new TestBean("child", null));
+        checkSameAsJSON(bean, null);
+        Map<String, Object> props = new LinkedHashMap<String, Object>();
+        props.put("title", "replaced");
+        props.put("entityURL", "/test/id1");
+        checkSameAsJSON(bean, props);
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("number", 12345678901l);
+        map.put("bean", bean);
+        map.put("list", bean.getTags());
+        checkSameAsJSON(map, props);
+
+        // the string form holds one byte per char
+        CBORTranscoder cbor = new CBORTranscoder();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        cbor.encode(bean, null, props, 0, output);
+        assertEquals(hex(output.toByteArray()), hex(CBORTranscoder.toBytes(cbor.encode(bean, null, props))));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        String[] invalid = new String[] {"", "1a0001", "62c3", "830102", "ff", "1c", "5f6161ff", "bf6161"};
+        for (int i = 0; i < invalid.length; i++) {
+            try {
+                decodeHex(invalid[i]);
+                fail("should have thrown exception: " + invalid[i]);
+            } catch (IOException e) {
+                assertNotNull(e.getMessage());
+            } catch (IllegalArgumentException e) {
+                assertNotNull(e.getMessage());
+            }
+        }
+
+        // depth is limited
+        CBORTranscoder cbor = new CBORTranscoder();
+        cbor.setMaxInputDepth(2);
+        cbor.decode(new ByteArrayInputStream(bytes("a1616181f6")));
+        try {
+            cbor.decode(new ByteArrayInputStream(bytes("a161618181f6")));
+            fail("should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+
+        // nested tags count toward the depth as well
+        assertEquals(new BigInteger("18446744073709551616"), 
+                cbor.decode(new ByteArrayInputStream(bytes("c249010000000000000000"))).get(CBORTranscoder.DATA_KEY));
+        try {
+            cbor.decode(new ByteArrayInputStream(bytes("c6c6c6f6")));
+            fail("should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+        byte[] tags = new byte[2 * 1024 * 1024];
+        Arrays.fill(tags, (byte) 0xc6);
+        try {
+            new CBORTranscoder().decode(new ByteArrayInputStream(tags));
+            fail("should have thrown exception");
+        } catch (IllegalArgumentException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDecodeIntoEntity() throws Exception {
+        TestBean source = new TestBean("id1", "title \"quoted\" unié");
+        source.setCount(12);
+        source.setActive(false);
+        source.getTags().add("a");
+        source.getTags().add("b");
+        source.setChild(new TestBean("child", null));
+        Map<String, Object> props = new LinkedHashMap<String, Object>();
+        props.put("unknown", new int[] {1, 2});
+        byte[] data = CBORTranscoder.toBytes(new CBORTranscoder().encode(source, null, props));
+
+        TestBean bean = new TestBean();
+        new EntityInputDecoder().decode(new ByteArrayInputStream(data), "cbor", bean, "test");
+        assertEquals("id1", bean.getId());
+        assertEquals(source.getTitle(), bean.getTitle());
+        assertEquals(new Integer(12), bean.getCount());
+        assertFalse(bean.isActive());
+        assertEquals(source.getCreated(), bean.getCreated());
+        assertEquals(2, bean.getTags().size());
+        assertEquals("child", bean.getChild().getId());
+
+        // wrapped in the root name
+        Map<String, Object> wrapper = new LinkedHashMap<String, Object>();
+        wrapper.put("test", source);
+        data = CBORTranscoder.toBytes(new CBORTranscoder().encode(wrapper, null, null));
+        bean = new TestBean();
+        new EntityInputDecoder().decode(new ByteArrayInputStream(data), "cbor", bean, "test");
+        assertEquals("id1", bean.getId());
+
+        try {
+            new EntityInputDecoder().decode(new ByteArrayInputStream(bytes("a1656361756e74")), "cbor", new TestBean(), "test");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+        try {
+            new EntityInputDecoder(0, 2).decode(new ByteArrayInputStream(bytes("a1616181a0")), "cbor", new TestBean(), "test");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ * $Id$
+ * $URL$
+ * EncodingBuffersTest.java - entity-broker - Oct 18, 2026 11:14:52 AM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.sakaiproject.entitybroker.util.encoding.EncodingBuffers.BufferOutputStream;
+import org.sakaiproject.entitybroker.util.encoding.EncodingBuffers.BufferWriter;
+
+
+/**
+ * Testing the buffers are reused, are not shared while in use, and large ones are not kept
+ *
+ * @author Sakai Software Development Team
+ */
+public class EncodingBuffersTest {
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testWriterReuse() throws Exception {
+        EncodingBuffers buffers = new EncodingBuffers(1024);
+        BufferWriter writer = buffers.acquireWriter();
+        writer.write("abc");
+        writer.write('d');
+        writer.write("xefx", 1, 2);
+        assertEquals("abcdef", writer.toString());
+        // nested use gets a separate buffer
+        BufferWriter nested = buffers.acquireWriter();
+        assertNotSame(writer, nested);
+        buffers.release(nested);
+        buffers.release(writer);
+
+        BufferWriter again = buffers.acquireWriter();
+        assertSame(writer, again);
+        assertEquals("", again.toString());
+
+        // large buffers are dropped after use
+        again.write(repeat('a', 2000));
+        buffers.release(again);
+        BufferWriter fresh = buffers.acquireWriter();
+        assertNotSame(again, fresh);
+        buffers.release(fresh);
+    }
+
+    @Test
+    public void testStreamReuse() throws Exception {
+        EncodingBuffers buffers = new EncodingBuffers(1024);
+        BufferOutputStream stream = buffers.acquireStream();
+        stream.write(new byte[] {1, 2, 3});
+        assertEquals(3, stream.size());
+        buffers.release(stream);
+        BufferOutputStream again = buffers.acquireStream();
+        assertSame(stream, again);
+        assertEquals(0, again.size());
+        again.write(new byte[2000]);
+        buffers.release(again);
+        assertNotSame(again, buffers.acquireStream());
+    }
+
+    @Test
+    public void testAverageSize() throws Exception {
+        EncodingBuffers buffers = new EncodingBuffers();
+        assertEquals(EncodingBuffers.DEFAULT_SIZE, buffers.getAverageSize());
+        String big = repeat('x', 4000);
+        for (int i = 0; i < 50; i++) {
+            BufferWriter writer = buffers.acquireWriter();
+            writer.write(big);
+            buffers.release(writer);
+        }
+        assertTrue(buffers.getAverageSize() > 3000);
+        assertTrue(buffers.getAverageSize() <= 4000);
+        // new buffers start at the average size
+        BufferWriter writer = buffers.acquireWriter();
+        BufferWriter nested = buffers.acquireWriter();
+        assertTrue(nested.capacity() > 3000);
+        buffers.release(nested);
+        buffers.release(writer);
+    }
+
+}
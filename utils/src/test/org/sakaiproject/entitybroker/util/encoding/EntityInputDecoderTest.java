@@ -0,0 +1,248 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityInputDecoderTest.java - entity-broker - Oct 18, 2026 9:48:10 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+
+import org.azeckoski.reflectutils.ReflectUtils;
+import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
+import org.azeckoski.reflectutils.transcoders.XMLTranscoder;
+import org.junit.Test;
+import org.sakaiproject.entitybroker.util.encoding.EntityInputDecoder.InputDecodingException;
+import org.sakaiproject.entitybroker.util.encoding.EntityInputDecoder.InputTooLargeException;
+import org.sakaiproject.entitybroker.util.encoding.JSONStreamEncoderTest.TestBean;
+
+
+/**
+ * Testing the streaming input decoder binds data the same way as decoding and populating does
+ *
+ * @author Sakai Software Development Team
+ */
+public class EntityInputDecoderTest {
+
+    private TestBean decode(EntityInputDecoder decoder, String data, String format) throws Exception {
+        TestBean bean = new TestBean();
+        Object result = decoder.decode(new ByteArrayInputStream(data.getBytes("UTF-8")), format, bean, "test");
+        assertSame(bean, result);
+        return bean;
+    }
+
+    private void checkBean(TestBean bean) {
+        assertEquals("id1", bean.getId());
+        assertEquals("title \"quoted\" unié", bean.getTitle());
+        assertEquals(new Integer(12), bean.getCount());
+        assertFalse(bean.isActive());
+        assertEquals(new Date(1000l), bean.getCreated());
+        assertEquals(2, bean.getTags().size());
+        assertEquals("b", bean.getTags().get(1));
+        assertNotNull(bean.getChild());
+        assertEquals("child", bean.getChild().getId());
+    }
+
+    @Test
+    public void testDecodeJSON() throws Exception {
+        EntityInputDecoder decoder = new EntityInputDecoder();
+        String json = "{ \"id\" : \"id1\", \"title\" : \"title \\\"quoted\\\" uni\\u00e9\", \"count\" : 12, "
+            + "\"active\" : false, \"created\" : 1000, \"tags\" : [\"a\", \"b\"], \"unknown\" : { \"x\" : [1, 2, {}] }, "
+            + "\"child\" : { \"id\" : \"child\", \"count\" : 1 } }";
+        checkBean( decode(decoder, json, "json") );
+
+        // same result as the transcoder and populate
+        TestBean populated = new TestBean();
+        ReflectUtils.getInstance().populate(populated, new JSONTranscoder().decode(json));
+        checkBean(populated);
+
+        // root wrapper is unwrapped
+        checkBean( decode(decoder, "{ \"test\" : " + json + " }", "json") );
+
+        // empty object changes nothing
+        TestBean bean = decode(decoder, " { } ", "json");
+        assertNull(bean.getId());
+        assertEquals(new Integer(3), bean.getCount());
+    }
+
+    @Test
+    public void testDecodeXML() throws Exception {
+        EntityInputDecoder decoder = new EntityInputDecoder();
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<test><id>id1</id><title>title &quot;quoted&quot; uni&#233;</title>"
+            + "<count type=\"number\">12</count><active type=\"boolean\">false</active><created type=\"date\">1000</created>"
+            + "<tags type=\"collection\"><string>a</string><string>b</string></tags><unknown><x>1</x></unknown>"
+            + "<child type=\"bean\"><id>child</id></child></test>";
+        checkBean( decode(decoder, xml, "xml") );
+
+        // same result as the transcoder and populate
+        TestBean populated = new TestBean();
+        ReflectUtils.getInstance().populate(populated, new XMLTranscoder().decode(xml));
+        checkBean(populated);
+
+        // root wrapper is unwrapped
+        checkBean( decode(decoder, "<data>" + xml.substring(xml.indexOf("<test>")) + "</data>", "xml") );
+    }
+
+    @Test
+    public void testFieldErrors() throws Exception {
+        EntityInputDecoder decoder = new EntityInputDecoder();
+        try {
+            decode(decoder, "{ \"id\" : \"id1\", \"count\" : \"many\", \"child\" : 5 }", "json");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertEquals(2, e.getFieldErrors().size());
+            assertTrue(e.getFieldErrors().containsKey("count"));
+            assertTrue(e.getFieldErrors().containsKey("child"));
+        }
+
+        try {
+            decode(decoder, "<test><count type=\"number\">lots</count></test>", "xml");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertEquals(1, e.getFieldErrors().size());
+            assertTrue(e.getFieldErrors().containsKey("count"));
+        }
+
+        // invalid input
+        String[] invalid = new String[] {"", "{ \"id\" : ", "{ \"id\" \"a\" }", "{ \"id\" : tru }", "[1,2"};
+        for (int i = 0; i < invalid.length; i++) {
+            try {
+                decode(decoder, invalid[i], "json");
+                fail("should have thrown exception: " + invalid[i]);
+            } catch (InputDecodingException e) {
+                assertNotNull(e.getMessage());
+                assertTrue(e.getFieldErrors().isEmpty());
+            }
+        }
+        try {
+            decode(decoder, "<test><id>a</test>", "xml");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        EntityInputDecoder decoder = new EntityInputDecoder(20, 3);
+        decode(decoder, "{\"id\":\"a\"}", "json");
+        try {
+            decode(decoder, "{ \"id\" : \"0123456789012345678901234567890\" }", "json");
+            fail("should have thrown exception");
+        } catch (InputTooLargeException e) {
+            assertEquals(20, e.getMaxSize());
+        }
+        try {
+            decode(decoder, "<test><id>0123456789012345678901234567890</id></test>", "xml");
+            fail("should have thrown exception");
+        } catch (InputTooLargeException e) {
+            assertEquals(20, e.getMaxSize());
+        }
+
+        decoder = new EntityInputDecoder(0, 3);
+        decode(decoder, "{\"tags\":[\"a\"],\"x\":{\"y\":1}}", "json");
+        try {
+            decode(decoder, "{\"x\":{\"y\":[[1]]}}", "json");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+        try {
+            decode(decoder, "<test><child><child><child><id>a</id></child></child></child></test>", "xml");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+
+        // deeply nested cbor tags
+        byte[] tags = new byte[2 * 1024 * 1024];
+        Arrays.fill(tags, (byte) 0xc6);
+        try {
+            new EntityInputDecoder().decode(new ByteArrayInputStream(tags), "cbor", new TestBean(), "test");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLimitsOtherDecoding() throws Exception {
+        EntityInputDecoder decoder = new EntityInputDecoder(20, 3);
+        EntityInputDecoder.LimitedInputStream limited = decoder.limit(new ByteArrayInputStream("0123456789".getBytes("UTF-8")));
+        assertEquals(10, limited.read(new byte[50], 0, 50));
+        assertFalse(limited.isExceeded());
+        limited = decoder.limit(new ByteArrayInputStream("0123456789012345678901234567890".getBytes("UTF-8")));
+        try {
+            limited.read(new byte[50], 0, 50);
+            fail("should have thrown exception");
+        } catch (IOException e) {
+            assertTrue(limited.isExceeded());
+        }
+
+        // text is checked before it is decoded
+        decoder.checkDepth("{\"x\":{\"y\":[1]}}", "json");
+        decoder.checkDepth("{\"x\":\"[[[[{{{{\\\"\"}", "json");
+        decoder.checkDepth("<a><b><c><d>1</d></c></b></a>", "xml");
+        try {
+            decoder.checkDepth("{\"x\":{\"y\":[[1]]}}", "json");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+        char[] deep = new char[200000];
+        Arrays.fill(deep, '[');
+        try {
+            decoder.checkDepth(new String(deep), "json");
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+
+        // decoded data is checked after it is decoded
+        decoder.checkDepth(new XMLTranscoder().decode("<a><b><c>1</c></b></a>"));
+        try {
+            decoder.checkDepth(new XMLTranscoder().decode("<a><b><c><d><e>1</e></d></c></b></a>"));
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+        try {
+            decoder.checkDepth(new Object[] {Arrays.asList(Arrays.asList(new HashMap<String, Object>()))});
+            fail("should have thrown exception");
+        } catch (InputDecodingException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCanBind() {
+        assertTrue(EntityInputDecoder.canBind(new TestBean()));
+        assertFalse(EntityInputDecoder.canBind(new HashMap<String, Object>()));
+        assertFalse(EntityInputDecoder.canBind("string"));
+        assertFalse(EntityInputDecoder.canBind(null));
+        assertTrue(EntityInputDecoder.canDecode("json"));
+        assertTrue(EntityInputDecoder.canDecode("xml"));
+        assertFalse(EntityInputDecoder.canDecode("html"));
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * $Id$
+ * $URL$
+ * HTMLStreamEncoderTest.java - entity-broker - Oct 18, 2026 9:27:09 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.azeckoski.reflectutils.transcoders.HTMLTranscoder;
+import org.junit.Test;
+import org.sakaiproject.entitybroker.util.encoding.JSONStreamEncoderTest.TestBean;
+
+
+/**
+ * Testing the streaming HTML encoder produces the same output as the HTML transcoder
+ * 
+ * @author Sakai Software Development Team
+ */
+public class HTMLStreamEncoderTest {
+
+    private void checkSame(Object data, boolean human, boolean nulls, boolean classField, int maxLevel) throws Exception {
+        HTMLTranscoder transcoder = new HTMLTranscoder(human, nulls, classField);
+        HTMLStreamEncoder encoder = new HTMLStreamEncoder(human, nulls, classField);
+        String expected = transcoder.encode(data, null, null, maxLevel);
+        assertEquals(expected, encoder.encode(data, null, null, maxLevel));
+        StringWriter writer = new StringWriter();
+        encoder.encode(data, null, null, maxLevel, writer);
+        assertEquals(expected, writer.toString());
+    }
+
+    private void checkAllModes(Object data) throws Exception {
+        checkSame(data, true, true, false, 7);
+        checkSame(data, false, true, false, 7);
+        checkSame(data, true, false, true, 7);
+        checkSame(data, true, true, false, 1);
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        checkAllModes("amp& lt< gt> quot\" unié");
+        checkAllModes(123);
+        checkAllModes(new Date(1000l));
+        checkAllModes(null);
+        checkAllModes(new String[] {"a", null});
+        List<Object> l = new ArrayList<Object>();
+        l.add("one");
+        l.add(null);
+        l.add(new TestBean("in", "list"));
+        checkAllModes(l);
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("a", "A");
+        m.put("b", null);
+        m.put("list", l);
+        checkAllModes(m);
+        TestBean bean = new TestBean("id1", "bean <one>");
+        bean.getTags().add("tag1");
+        bean.setChild(new TestBean("id2", null));
+        checkAllModes(bean);
+        checkSame(bean, true, true, false, 0);
+    }
+
+    @Test
+    public void testDecode() {
+        try {
+            new HTMLStreamEncoder().decode("<table></table>");
+            fail("Should have thrown exception");
+        } catch (UnsupportedOperationException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+}
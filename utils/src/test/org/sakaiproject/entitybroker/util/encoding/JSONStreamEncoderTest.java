@@ -0,0 +1,225 @@
+/**
+ * $Id$
+ * $URL$
+ * JSONStreamEncoderTest.java - entity-broker - Oct 18, 2026 7:48:12 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
+import org.junit.Test;
+
+
+/**
+ * Testing the streaming JSON encoder produces the same output as the JSON transcoder
+ * 
+ * @author Sakai Software Development Team
+ */
+public class JSONStreamEncoderTest {
+
+    public static class TestBean {
+        private String id;
+        private String title;
+        private Date created = new Date(1234567890l);
+        private Integer count = 3;
+        private boolean active = true;
+        private TestBean child;
+        private List<String> tags = new ArrayList<String>();
+        public String extra = "public\"field";
+        public TestBean() {}
+        public TestBean(String id, String title) {
+            this.id = id;
+            this.title = title;
+        }
+        public String getId() {
+            return id;
+        }
+        public void setId(String id) {
+            this.id = id;
+        }
+        public String getTitle() {
+            return title;
+        }
+        public void setTitle(String title) {
+            this.title = title;
+        }
+        public Date getCreated() {
+            return created;
+        }
+        public void setCreated(Date created) {
+            this.created = created;
+        }
+        public Integer getCount() {
+            return count;
+        }
+        public void setCount(Integer count) {
+            this.count = count;
+        }
+        public boolean isActive() {
+            return active;
+        }
+        public void setActive(boolean active) {
+            this.active = active;
+        }
+        public TestBean getChild() {
+            return child;
+        }
+        public void setChild(TestBean child) {
+            this.child = child;
+        }
+        public List<String> getTags() {
+            return tags;
+        }
+        public void setTags(List<String> tags) {
+            this.tags = tags;
+        }
+        public String getBroken() {
+            throw new IllegalStateException("cannot read this");
+        }
+        public void setBroken(String broken) {
+            // nothing
+        }
+    }
+
+    private void checkSame(Object data, Map<String, Object> props, boolean human, boolean nulls, boolean classField, int maxLevel) throws Exception {
+        JSONTranscoder transcoder = new JSONTranscoder(human, nulls, classField);
+        JSONStreamEncoder encoder = new JSONStreamEncoder(human, nulls, classField);
+        Map<String, Object> tProps = props == null ? null : new LinkedHashMap<String, Object>(props);
+        String expected = transcoder.encode(data, null, tProps, maxLevel);
+        assertEquals(expected, encoder.encode(data, null, props, maxLevel));
+        StringWriter writer = new StringWriter();
+        encoder.encode(data, null, props, maxLevel, writer);
+        assertEquals(expected, writer.toString());
+    }
+
+    private void checkAllModes(Object data, Map<String, Object> props) throws Exception {
+        checkSame(data, props, true, true, false, 7);
+        checkSame(data, props, false, true, false, 7);
+        checkSame(data, props, true, false, false, 7);
+        checkSame(data, props, false, false, true, 7);
+        checkSame(data, props, true, true, false, 1);
+    }
+
+    @Test
+    public void testEncodeSimple() throws Exception {
+        checkAllModes("string", null);
+        checkAllModes("quote\" slash/ back\\ tab\t nl\n cr\r ctl\u0001 unié", null);
+        checkAllModes(123, null);
+        checkAllModes(12.5d, null);
+        checkAllModes(Boolean.FALSE, null);
+        checkAllModes(new Date(1000l), null);
+        checkAllModes(null, null);
+    }
+
+    @Test
+    public void testEncodeCollections() throws Exception {
+        checkAllModes(new String[] {"a", "b", null}, null);
+        checkAllModes(new String[0], null);
+        List<Object> l = new ArrayList<Object>();
+        checkAllModes(l, null);
+        l.add("one");
+        l.add(2);
+        l.add(null);
+        l.add(new TestBean("in", "list"));
+        checkAllModes(l, null);
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        checkAllModes(m, null);
+        m.put("a", "A");
+        m.put("b", null);
+        m.put("list", l);
+        m.put("map", new HashMap<String, Object>());
+        checkAllModes(m, null);
+    }
+
+    @Test
+    public void testEncodeBeans() throws Exception {
+        TestBean bean = new TestBean("id1", "bean <one>");
+        checkAllModes(bean, null);
+        bean.getTags().add("tag1");
+        bean.getTags().add("tag2");
+        TestBean child = new TestBean("id2", null);
+        child.setChild(new TestBean("id3", "three"));
+        bean.setChild(child);
+        checkAllModes(bean, null);
+        // max level stops nesting
+        checkSame(bean, null, true, true, false, 0);
+        checkSame(bean, null, true, true, false, 2);
+    }
+
+    @Test
+    public void testEncodeProperties() throws Exception {
+        Map<String, Object> props = new LinkedHashMap<String, Object>();
+        props.put("entityReference", "/bean/id1");
+        props.put("title", "replaced title");
+        props.put("entityURL", "http://localhost/direct/bean/id1");
+        props.put("nullProp", null);
+        TestBean bean = new TestBean("id1", "bean one");
+        bean.setChild(new TestBean("id2", "child"));
+        checkAllModes(bean, props);
+
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("title", "map title");
+        m.put("other", "thing");
+        checkAllModes(m, props);
+        // the data map is not changed by the encoder (the transcoder adds the properties into it)
+        Map<String, Object> m2 = new LinkedHashMap<String, Object>();
+        m2.put("other", "thing");
+        new JSONStreamEncoder(true, true, false).encode(m2, null, props);
+        assertEquals(1, m2.size());
+
+        // properties are ignored for non beans
+        checkAllModes("string", props);
+        List<Object> l = new ArrayList<Object>();
+        l.add(bean);
+        checkAllModes(l, props);
+    }
+
+    @Test
+    public void testEncodeRawContent() throws Exception {
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("raw", new RawContent() {
+            public void writeTo(Writer writer) throws IOException {
+                writer.write("{\"already\":\"encoded\"}");
+            }
+        });
+        m.put("other", "thing");
+        JSONStreamEncoder encoder = new JSONStreamEncoder(false, true, false);
+        assertEquals("{\"raw\":{\"already\":\"encoded\"},\"other\":\"thing\"}", encoder.encode(m, null, null));
+    }
+
+    @Test
+    public void testDecode() {
+        JSONStreamEncoder encoder = new JSONStreamEncoder(true, true, false);
+        Map<String, Object> decoded = encoder.decode( encoder.encode(new TestBean("id1", "one"), null, null) );
+        assertEquals("id1", decoded.get("id"));
+        assertEquals("one", decoded.get("title"));
+        assertEquals("json", encoder.getHandledFormat());
+    }
+
+}
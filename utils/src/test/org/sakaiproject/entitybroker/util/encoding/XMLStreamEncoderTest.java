@@ -0,0 +1,153 @@
+/**
+ * $Id$
+ * $URL$
+ * XMLStreamEncoderTest.java - entity-broker - Oct 18, 2026 9:20:44 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.encoding;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.azeckoski.reflectutils.transcoders.XMLTranscoder;
+import org.junit.Test;
+import org.sakaiproject.entitybroker.util.encoding.JSONStreamEncoderTest.TestBean;
+
+
+/**
+ * Testing the streaming XML encoder produces the same output as the XML transcoder
+ * 
+ * @author Sakai Software Development Team
+ */
+public class XMLStreamEncoderTest {
+
+    private void checkSame(Object data, String name, Map<String, Object> props, boolean human, boolean nulls, boolean includeClass, int maxLevel) throws Exception {
+        XMLTranscoder transcoder = new XMLTranscoder(human, nulls, false, includeClass);
+        XMLStreamEncoder encoder = new XMLStreamEncoder(human, nulls, false, includeClass);
+        Map<String, Object> tProps = props == null ? null : new LinkedHashMap<String, Object>(props);
+        String expected = transcoder.encode(data, name, tProps, maxLevel);
+        assertEquals(expected, encoder.encode(data, name, props, maxLevel));
+        StringWriter writer = new StringWriter();
+        encoder.encode(data, name, props, maxLevel, writer);
+        assertEquals(expected, writer.toString());
+    }
+
+    private void checkAllModes(Object data, Map<String, Object> props) throws Exception {
+        checkSame(data, null, props, true, true, false, 7);
+        checkSame(data, "named", props, false, true, false, 7);
+        checkSame(data, null, props, true, false, false, 7);
+        checkSame(data, "xml bad<name>", props, true, true, true, 7);
+        checkSame(data, null, props, true, true, false, 1);
+    }
+
+    @Test
+    public void testEncodeSimple() throws Exception {
+        checkAllModes("string", null);
+        checkAllModes("amp& lt< gt> quot\" apos' unié", null);
+        checkAllModes(123, null);
+        checkAllModes(12.5d, null);
+        checkAllModes(Boolean.FALSE, null);
+        checkAllModes(new Date(1000l), null);
+        checkAllModes(null, null);
+    }
+
+    @Test
+    public void testEncodeCollections() throws Exception {
+        checkAllModes(new String[] {"a", "b", null}, null);
+        checkAllModes(new String[0], null);
+        List<Object> l = new ArrayList<Object>();
+        checkAllModes(l, null);
+        l.add("one");
+        l.add(2);
+        l.add(null);
+        l.add(new TestBean("in", "list"));
+        checkAllModes(l, null);
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        checkAllModes(m, null);
+        m.put("a", "A");
+        m.put("b", null);
+        m.put("1bad key", "fixed");
+        m.put("list", l);
+        m.put("map", new HashMap<String, Object>());
+        checkAllModes(m, null);
+    }
+
+    @Test
+    public void testEncodeBeans() throws Exception {
+        TestBean bean = new TestBean("id1", "bean <one>");
+        checkAllModes(bean, null);
+        bean.getTags().add("tag1");
+        bean.getTags().add("tag2");
+        TestBean child = new TestBean("id2", null);
+        child.setChild(new TestBean("id3", "three"));
+        bean.setChild(child);
+        checkAllModes(bean, null);
+        // max level stops nesting
+        checkSame(bean, null, null, true, true, false, 0);
+        checkSame(bean, null, null, true, true, false, 2);
+    }
+
+    @Test
+    public void testEncodeProperties() throws Exception {
+        Map<String, Object> props = new LinkedHashMap<String, Object>();
+        props.put("entityReference", "/bean/id1");
+        props.put("title", "replaced title");
+        props.put("nullProp", null);
+        TestBean bean = new TestBean("id1", "bean one");
+        bean.setChild(new TestBean("id2", "child"));
+        checkAllModes(bean, props);
+
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("title", "map title");
+        m.put("other", "thing");
+        checkAllModes(m, props);
+
+        checkAllModes("string", props);
+    }
+
+    @Test
+    public void testEncodeRawContent() throws Exception {
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("raw", new RawContent() {
+            public void writeTo(Writer writer) throws IOException {
+                writer.write("<already>encoded</already>");
+            }
+        });
+        m.put("other", "thing");
+        XMLStreamEncoder encoder = new XMLStreamEncoder(false, true, false, false);
+        assertEquals("<named type='map' size='2'><raw><already>encoded</already></raw><other>thing</other></named>", encoder.encode(m, "named", null));
+    }
+
+    @Test
+    public void testDecode() {
+        XMLStreamEncoder encoder = new XMLStreamEncoder(true, true, false, false);
+        Map<String, Object> decoded = encoder.decode( encoder.encode(new TestBean("id1", "one"), "bean", null) );
+        assertEquals("id1", decoded.get("id"));
+        assertEquals("one", decoded.get("title"));
+        assertEquals("xml", encoder.getHandledFormat());
+    }
+
+}
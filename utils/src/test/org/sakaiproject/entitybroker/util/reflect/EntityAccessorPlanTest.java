@@ -0,0 +1,146 @@
+/**
+ * $Id$
+ * $URL$
+ * EntityAccessorPlanTest.java - entity-broker - Oct 18, 2026 10:21:05 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.reflect;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityId;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityLastModified;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityOwner;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityTitle;
+import org.sakaiproject.entitybroker.util.EntityDataUtils;
+import org.sakaiproject.entitybroker.util.reflect.EntityAccessorPlan.Kind;
+
+
+/**
+ * Testing the accessor plans find the same properties as the reflection utils
+ *
+ * @author Sakai Software Development Team
+ */
+public class EntityAccessorPlanTest {
+
+    public static class AnnotatedBean {
+        private String key = "KEY";
+        private String name = "NAME";
+        private Date changed = new Date(1000l);
+        private String creator = "aaronz";
+        @EntityId
+        public String getKey() {
+            return key;
+        }
+        public void setKey(String key) {
+            this.key = key;
+        }
+        @EntityTitle
+        public String getName() {
+            return name;
+        }
+        public void setName(String name) {
+            this.name = name;
+        }
+        @EntityLastModified
+        public Date getChanged() {
+            return changed;
+        }
+        @EntityOwner
+        public String getCreator() {
+            return creator;
+        }
+    }
+
+    public static class PlainBean {
+        public String id = "ID";
+        private String title = "TITLE";
+        private int number = 5;
+        public String getTitle() {
+            return title;
+        }
+        public int getNumber() {
+            return number;
+        }
+        public void setNumber(int number) {
+            this.number = number;
+        }
+    }
+
+    @Test
+    public void testEntityProperties() {
+        EntityAccessorPlan plan = EntityAccessorPlan.getPlan(AnnotatedBean.class);
+        assertSame(plan, EntityAccessorPlan.getPlan(AnnotatedBean.class));
+        assertEquals(Kind.OBJECT, plan.getKind());
+        assertTrue(plan.isBean());
+        assertTrue(plan.isFixedProperties());
+        AnnotatedBean ab = new AnnotatedBean();
+        assertEquals("key", plan.getIdFieldName());
+        assertEquals("KEY", plan.getIdProperty().getValue(ab));
+        assertEquals("NAME", plan.getTitleProperty().getValue(ab));
+        assertEquals(new Date(1000l), plan.getLastModifiedProperty().getValue(ab));
+        assertEquals("aaronz", plan.getOwnerProperty().getValue(ab));
+        assertEquals("KEY", EntityDataUtils.getEntityId(ab));
+        assertEquals("key", EntityDataUtils.getEntityIdField(AnnotatedBean.class));
+
+        plan = EntityAccessorPlan.getPlan(PlainBean.class);
+        PlainBean pb = new PlainBean();
+        assertEquals("id", plan.getIdFieldName());
+        assertEquals("ID", plan.getIdProperty().getValue(pb));
+        assertEquals("TITLE", plan.getTitleProperty().getValue(pb));
+        assertNull(plan.getLastModifiedProperty());
+        assertNull(plan.getOwnerProperty());
+        assertEquals("ID", EntityDataUtils.getEntityId(pb));
+
+        // maps and simple types have no fixed properties
+        plan = EntityAccessorPlan.getPlan(HashMap.class);
+        assertEquals(Kind.MAP, plan.getKind());
+        assertFalse(plan.isBean());
+        assertFalse(plan.isFixedProperties());
+        assertNull(plan.getIdProperty());
+        assertNull(plan.getIdFieldName());
+        plan = EntityAccessorPlan.getPlan(String.class);
+        assertEquals(Kind.SIMPLE, plan.getKind());
+        assertFalse(plan.isFixedProperties());
+        assertTrue(plan.getSerializableProperties().isEmpty());
+        assertTrue(plan.getWritableProperties().isEmpty());
+    }
+
+    @Test
+    public void testWritableProperties() {
+        EntityAccessorPlan plan = EntityAccessorPlan.getPlan(PlainBean.class);
+        assertNull(plan.getWritableProperty("title"));
+        assertNotNull(plan.getWritableProperty("id"));
+        PlainBean pb = new PlainBean();
+        plan.getWritableProperty("id").setValue(pb, "NEW");
+        assertEquals("NEW", pb.id);
+        plan.getWritableProperty("number").setValue(pb, "12");
+        assertEquals(12, pb.getNumber());
+        assertTrue(plan.getWritableProperty("number").isSimple());
+        try {
+            plan.getWritableProperty("number").setValue(pb, "twelve");
+            fail("should have thrown exception");
+        } catch (RuntimeException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+}
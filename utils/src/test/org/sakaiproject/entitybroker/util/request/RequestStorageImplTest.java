@@ -38,12 +38,13 @@ import junit.framework.TestCase;
 public class RequestStorageImplTest extends TestCase {
 
     private RequestStorageImpl requestStorage;
+    private EntityHttpServletRequest req;
     
     @Override
     protected void setUp() throws Exception {
         requestStorage = new RequestStorageImpl();
         RequestGetterImpl rgi = new RequestGetterImpl();
-        EntityHttpServletRequest req = new EntityHttpServletRequest("GET", "/thing");
+        req = new EntityHttpServletRequest("GET", "/thing");
         req.setAttribute("attribNum", 135);
         req.setAttribute("attribStrNum", "135");
         req.setAttribute("attribBool", true);
@@ -87,6 +88,42 @@ public class RequestStorageImplTest extends TestCase {
         assertEquals(12, m.size()); // 8 + the 4 standard ones
     }
 
+    /**
+     * Test method for {@link org.sakaiproject.entitybroker.util.request.RequestStorageImpl#getStorageMapView()}.
+     */
+    public void testGetStorageMapView() {
+        Map<String, Object> m = requestStorage.getStorageMapView();
+        assertNotNull(m);
+        assertEquals(requestStorage.getStorageMapCopy(), m);
+        assertEquals(135, m.get("attribNum"));
+        // same view is returned each time
+        assertSame(m, requestStorage.getStorageMapView());
+        assertSame(m, requestStorage.getStorageMapView(true, true, true, true));
+
+        Map<String, Object> noHeaders = requestStorage.getStorageMapView(true, false, true, true);
+        assertEquals(11, noHeaders.size());
+        assertFalse(noHeaders.containsKey("header"));
+        assertSame(noHeaders, requestStorage.getStorageMapView(true, false, true, true));
+
+        // read only
+        try {
+            m.put("test", "thing");
+            fail("Should have thrown exception");
+        } catch (UnsupportedOperationException e) {
+            assertNotNull(e);
+        }
+
+        // storing a value rebuilds the view
+        requestStorage.setRequestValue("test", "thing");
+        Map<String, Object> m2 = requestStorage.getStorageMapView();
+        assertNotSame(m, m2);
+        assertEquals("thing", m2.get("test"));
+
+        // reset clears the view
+        requestStorage.reset();
+        assertNotSame(m2, requestStorage.getStorageMapView());
+    }
+
     /**
      * Test method for {@link org.sakaiproject.entitybroker.util.request.RequestStorageImpl#getStoredValue(java.lang.String)}.
      */
@@ -95,6 +132,17 @@ public class RequestStorageImplTest extends TestCase {
         assertEquals(true, requestStorage.getStoredValue("attribBool"));
         assertEquals("stuff", requestStorage.getStoredValue("attribStr"));
         assertEquals(null, requestStorage.getStoredValue("XXXXXXXXXX"));
+        assertEquals("param1", requestStorage.getStoredValue("paramStr"));
+        assertEquals(3, ((String[]) requestStorage.getStoredValue("paramArray")).length);
+        assertEquals("Header1", requestStorage.getStoredValue("header"));
+        assertEquals("GET", requestStorage.getStoredValue("method"));
+
+        // changes made directly to the request after a view was built are still seen
+        requestStorage.getStorageMapView();
+        req.setAttribute("attribLater", "later");
+        req.addParameter("paramLater", "later2");
+        assertEquals("later", requestStorage.getStoredValue("attribLater"));
+        assertEquals("later2", requestStorage.getStoredValue("paramLater"));
     }
 
     /**
@@ -117,6 +117,23 @@ public class RequestUtilsTest extends TestCase {
       assertEquals(10, search.getStart());
    }
 
+   public void testMakeSearchFromRequestStorageCursor() {
+      Map<String, Object> params = new HashMap<String, Object>();
+      params.put("_cursor", "abc123");
+      params.put("_limit", "25");
+      Search search = RequestUtils.makeSearchFromRequestParams(params);
+      assertNotNull(search);
+      assertEquals("abc123", search.getCursor());
+      assertEquals(25, search.getLimit());
+      assertEquals(0, search.getStart());
+      assertTrue(search.isEmpty());
+
+      params.clear();
+      params.put("_cursor", "");
+      search = RequestUtils.makeSearchFromRequestParams(params);
+      assertNull(search.getCursor());
+   }
+
    public void testMakeSearchFromRequestStorageOrder() {
        Search search = null;
        Map<String, Object> params = new HashMap<String, Object>();
@@ -203,6 +220,33 @@ public class RequestUtilsTest extends TestCase {
       assertEquals(Formats.XML_MIME_TYPE, res.getContentType());
    }
 
+   public void testFindResponseContentEncoding() {
+       EntityHttpServletRequest req = new EntityHttpServletRequest("/stuff/111.xml");
+       assertNull(RequestUtils.findResponseContentEncoding(req, true));
+       assertNull(RequestUtils.findResponseContentEncoding(null, true));
+
+       req = new EntityHttpServletRequest("/stuff/111.xml");
+       req.addHeader("Accept-Encoding", "gzip, deflate");
+       assertEquals("gzip", RequestUtils.findResponseContentEncoding(req, true));
+
+       req = new EntityHttpServletRequest("/stuff/111.xml");
+       req.addHeader("Accept-Encoding", "gzip;q=0.5, deflate");
+       assertEquals("deflate", RequestUtils.findResponseContentEncoding(req, true));
+       assertEquals("gzip", RequestUtils.findResponseContentEncoding(req, false));
+
+       req = new EntityHttpServletRequest("/stuff/111.xml");
+       req.addHeader("Accept-Encoding", "deflate");
+       assertNull(RequestUtils.findResponseContentEncoding(req, false));
+
+       req = new EntityHttpServletRequest("/stuff/111.xml");
+       req.addHeader("Accept-Encoding", "gzip;q=0, identity");
+       assertNull(RequestUtils.findResponseContentEncoding(req, true));
+
+       req = new EntityHttpServletRequest("/stuff/111.xml");
+       req.addHeader("Accept-Encoding", "*");
+       assertEquals("gzip", RequestUtils.findResponseContentEncoding(req, true));
+   }
+
    public void testShortComparator() {
        ArrayList<String> l = new ArrayList<String>();
        l.add("E");
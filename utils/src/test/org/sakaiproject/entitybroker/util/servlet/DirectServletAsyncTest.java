@@ -0,0 +1,216 @@
+/**
+ * $Id$
+ * $URL$
+ * DirectServletAsyncTest.java - entity-broker - Oct 18, 2026 4:12:31 PM - Sakai Software Development Team
+ **************************************************************************
+ * Copyright (c) 2026 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.entitybroker.util.servlet;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sakaiproject.entitybroker.providers.EntityRequestHandler;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletRequest;
+import org.sakaiproject.entitybroker.util.http.EntityHttpServletResponse;
+import org.sakaiproject.entitybroker.util.request.ThreadStatePropagator;
+
+
+/**
+ * Testing the async processing in the direct servlet with a fake Servlet 3 request
+ * (the servlet API and jetty used for testing do not have async support)
+ *
+ * @author Sakai Software Development Team
+ */
+public class DirectServletAsyncTest {
+
+    private SlowDirectServlet servlet;
+
+    @After
+    public void teardown() {
+        if (servlet != null) {
+            servlet.release.countDown();
+            servlet.destroy();
+        }
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        servlet = new SlowDirectServlet();
+        servlet.setAsyncEnabled(true);
+        servlet.setAsyncTimeout(100);
+        servlet.setAsyncVirtualThreads(false);
+        servlet.initializeAsync();
+
+        AsyncRequest req = new AsyncRequest("/myprefix/1");
+        EntityHttpServletResponse res = new EntityHttpServletResponse();
+        servlet.handleRequest(req, res);
+
+        // the slow request is timed out and completed by the timer
+        assertTrue(req.context.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, res.getStatus());
+
+        // the worker keeps going after the timeout but nothing it writes gets into the response
+        servlet.release.countDown();
+        assertTrue(servlet.done.await(5, TimeUnit.SECONDS));
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, res.getStatus());
+        assertFalse(res.getContentAsString().contains("late"));
+        assertNull(res.getHeader("X-Late"));
+        assertEquals(1, req.context.completeCount.get());
+    }
+
+    @Test
+    public void testAsyncComplete() throws Exception {
+        servlet = new SlowDirectServlet();
+        servlet.setAsyncEnabled(true);
+        servlet.setAsyncTimeout(5000);
+        servlet.setAsyncVirtualThreads(false);
+        servlet.initializeAsync();
+        servlet.release.countDown(); // not slow
+        TestThreadStatePropagator propagator = new TestThreadStatePropagator();
+        servlet.setThreadStatePropagator(propagator);
+
+        AsyncRequest req = new AsyncRequest("/myprefix/1");
+        EntityHttpServletResponse res = new EntityHttpServletResponse();
+        TestThreadStatePropagator.state.set("session1");
+        try {
+            servlet.handleRequest(req, res);
+        } finally {
+            TestThreadStatePropagator.state.remove();
+        }
+
+        assertTrue(req.context.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+        assertTrue(res.getContentAsString().contains("late"));
+        assertEquals("true", res.getHeader("X-Late"));
+        assertEquals(1, req.context.completeCount.get());
+
+        // the thread state is carried over to the worker and cleared after
+        assertTrue(servlet.done.await(5, TimeUnit.SECONDS));
+        assertEquals("session1", servlet.dispatchState);
+        assertTrue(propagator.cleared.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Servlet with a slow provider (dispatch waits until released and ignores interrupts)
+     */
+    public static class SlowDirectServlet extends DirectServlet {
+        private static final long serialVersionUID = 1L;
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String dispatchState;
+
+        @Override
+        protected Class<?> getAsyncRequestType() {
+            return AsyncRequest.class;
+        }
+
+        @Override
+        public void dispatch(HttpServletRequest req, HttpServletResponse res) throws ServletException {
+            dispatchState = TestThreadStatePropagator.state.get();
+            try {
+                boolean released = false;
+                while (! released) {
+                    try {
+                        released = release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // keep going like a provider which does not check for interrupts
+                    }
+                }
+                res.setStatus(HttpServletResponse.SC_OK);
+                res.setHeader("X-Late", "true");
+                res.getOutputStream().write("late".getBytes());
+                res.getOutputStream().flush();
+            } catch (IOException e) {
+                throw new ServletException(e);
+            } finally {
+                done.countDown();
+            }
+        }
+
+        @Override
+        protected EntityRequestHandler initializeEntityRequestHandler() {
+            return null;
+        }
+
+        @Override
+        protected String getCurrentLoggedInUserId() {
+            return null;
+        }
+
+        @Override
+        protected void handleUserLogin(HttpServletRequest req, HttpServletResponse res, String path) {
+            // not used
+        }
+    }
+
+    /**
+     * Carries a thread local value over to the async worker
+     */
+    public static class TestThreadStatePropagator implements ThreadStatePropagator {
+        static final ThreadLocal<String> state = new ThreadLocal<String>();
+        final CountDownLatch cleared = new CountDownLatch(1);
+        public Object captureThreadState() {
+            return state.get();
+        }
+        public void applyThreadState(Object captured) {
+            state.set((String) captured);
+        }
+        public void clearThreadState(Object captured) {
+            state.remove();
+            cleared.countDown();
+        }
+    }
+
+    /**
+     * Request with the Servlet 3 async methods
+     */
+    public static class AsyncRequest extends EntityHttpServletRequest {
+        final AsyncContext context = new AsyncContext();
+        public AsyncRequest(String pathString) {
+            super("GET", pathString);
+        }
+        public boolean isAsyncSupported() {
+            return true;
+        }
+        public AsyncContext startAsync() {
+            return context;
+        }
+    }
+
+    public static class AsyncContext {
+        final CountDownLatch completed = new CountDownLatch(1);
+        final AtomicInteger completeCount = new AtomicInteger();
+        public void setTimeout(long timeout) {
+            // nothing to do
+        }
+        public void complete() {
+            completeCount.incrementAndGet();
+            completed.countDown();
+        }
+    }
+
+}